@@ -19,6 +19,10 @@ public class BenchmarkRunner {
 	
 	public void printStream(PrintStream ps) { out = ps; }
 	public void iterations(int iters) { iter = iters; }
+	public void threadCounts(int min, int max) {
+		minThreadCount = min;
+		maxThreadCount = max;
+	}
 	
 	public void run(String label, Benchmark b) {
 		for (int nt=minThreadCount; nt<=maxThreadCount; ++nt) {
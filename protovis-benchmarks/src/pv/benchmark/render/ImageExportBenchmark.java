@@ -0,0 +1,109 @@
+package pv.benchmark.render;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pv.benchmark.Benchmark;
+import pv.benchmark.BenchmarkRunner;
+import pv.mark.Scene;
+import pv.mark.constants.MarkType;
+import pv.render.awt.java2D.ImageDisplay;
+import pv.style.Fill;
+import pv.style.Stroke;
+
+/**
+ * Measures the throughput of headless batch export: each run updates,
+ * renders and PNG-encodes a batch of small charts with
+ * {@link ImageDisplay#exportPNG}, across a range of thread counts.
+ * Reported times are seconds per batch.
+ */
+public class ImageExportBenchmark {
+
+	static int NCHARTS = 200, NDATA = 200;
+	static int WIDTH = 400, HEIGHT = 300;
+	
+	public static void main(String[] args)
+	{
+		System.setProperty("java.awt.headless", "true");
+		int nproc = Runtime.getRuntime().availableProcessors();
+		BenchmarkRunner.instance.iterations(11);
+		BenchmarkRunner.instance.threadCounts(1, nproc);
+		BenchmarkRunner.instance.run("EXPORT", new Exporter("BARS", false));
+		BenchmarkRunner.instance.run("EXPORT", new Exporter("DOTS", true));
+		System.exit(0);
+	}
+	
+	public static Scene barChart(List<Double> data) {
+		Scene scene = new Scene()
+			.left(20).top(20)
+			.width(WIDTH-40).height(HEIGHT-40)
+			.scene();
+		scene.add(MarkType.Bar)
+			.datatype(Double.class)
+			.data(data)
+			.left("{{ index * parent.width / "+NDATA+" }}")
+			.width("{{ parent.width / "+NDATA+" - 1 }}")
+			.bottom(0)
+			.height("{{ data * parent.height }}")
+			.fill(Fill.solid(0x4455aa));
+		return scene;
+	}
+	
+	public static Scene dotChart(List<Double> data) {
+		Scene scene = new Scene()
+			.left(20).top(20)
+			.width(WIDTH-40).height(HEIGHT-40)
+			.scene();
+		scene.add(MarkType.Dot)
+			.datatype(Double.class)
+			.data(data)
+			.left("{{ index * parent.width / "+NDATA+" }}")
+			.bottom("{{ data * parent.height }}")
+			.size(16)
+			.stroke(Stroke.solid(1, 0x3344ff));
+		return scene;
+	}
+	
+	public static class Exporter implements Benchmark {
+		private String name;
+		private boolean dots;
+		private List<Scene> scenes;
+		
+		public Exporter(String name, boolean dots) {
+			this.name = name;
+			this.dots = dots;
+		}
+		public String name() { return name; }
+		public void setup() {
+			scenes = new ArrayList<Scene>();
+			for (int i=0; i<NCHARTS; ++i) {
+				List<Double> data = new ArrayList<Double>();
+				for (int j=0; j<NDATA; ++j) data.add(Math.random());
+				scenes.add(dots ? dotChart(data) : barChart(data));
+			}
+			// compile evaluators and warm up
+			export();
+		}
+		public void takedown() {
+			scenes = null;
+		}
+		private void export() {
+			try {
+				ImageDisplay.exportPNG(scenes, WIDTH, HEIGHT);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+		}
+		public long[] run(int iterations) {
+			long[] t = new long[iterations];
+			for (int i=0; i<iterations; ++i) {
+				t[i] = System.currentTimeMillis();
+				export();
+				t[i] = System.currentTimeMillis() - t[i];
+			}
+			return t;
+		}
+	}
+	
+}
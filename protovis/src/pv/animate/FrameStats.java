@@ -0,0 +1,91 @@
+package pv.animate;
+
+/**
+ * Timing statistics of the frames run by the {@link Scheduler}. A frame is
+ * one scheduler cycle: its tasks followed by its post-tasks, which render
+ * the displays. Times are in nanoseconds. Frame intervals are measured
+ * only between frames the scheduler timed, not after it blocked idle, so
+ * that the jitter reflects the steadiness of animation rather than pauses
+ * in activity.
+ */
+public class FrameStats {
+
+	private long _frames, _overruns, _deferred;
+	private long _start = -1;
+	// running mean, variance and maximum of frame durations
+	private double _duration, _duration2;
+	private long _maxDuration;
+	// running mean and variance of intervals between timed frames
+	private long _intervals;
+	private double _interval, _interval2;
+
+	/** Notes the start of a frame. */
+	synchronized void start(long t, boolean timed) {
+		if (_start >= 0 && timed) {
+			double x = t - _start, d = x - _interval;
+			_interval += d / ++_intervals;
+			_interval2 += d * (x - _interval);
+		}
+		_start = t;
+	}
+
+	/** Notes the end of the current frame. */
+	synchronized void finish(long t, long budget, int deferred) {
+		long x = t - _start;
+		double d = x - _duration;
+		_duration += d / ++_frames;
+		_duration2 += d * (x - _duration);
+		if (x > _maxDuration) _maxDuration = x;
+		if (budget > 0 && x > budget) ++_overruns;
+		_deferred += deferred;
+	}
+
+	/** Clears the statistics. */
+	public synchronized void reset() {
+		_frames = _overruns = _deferred = 0;
+		_duration = _duration2 = 0;
+		_maxDuration = 0;
+		_intervals = 0;
+		_interval = _interval2 = 0;
+	}
+
+	/** The number of frames run. */
+	public synchronized long frames() { return _frames; }
+
+	/** The number of frames that took longer than the frame budget. */
+	public synchronized long overruns() { return _overruns; }
+
+	/** The number of times a deferrable task was postponed. */
+	public synchronized long deferred() { return _deferred; }
+
+	/** The mean time spent running a frame. */
+	public synchronized double meanDuration() { return _duration; }
+
+	/** The standard deviation of the time spent running a frame. */
+	public synchronized double deviation() {
+		return _frames < 2 ? 0 : Math.sqrt(_duration2 / (_frames - 1));
+	}
+
+	/** The longest time spent running a frame. */
+	public synchronized long maxDuration() { return _maxDuration; }
+
+	/** The mean time between the starts of consecutive timed frames. */
+	public synchronized double meanInterval() { return _interval; }
+
+	/**
+	 * The jitter of frames: the standard deviation of the time between
+	 * the starts of consecutive timed frames.
+	 */
+	public synchronized double jitter() {
+		return _intervals < 2 ? 0 : Math.sqrt(_interval2 / (_intervals - 1));
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("frames=%d overruns=%d deferred=%d "
+			+ "duration=%.2fms max=%.2fms interval=%.2fms jitter=%.2fms",
+			_frames, _overruns, _deferred, _duration / 1e6,
+			_maxDuration / 1e6, _interval / 1e6, jitter() / 1e6);
+	}
+
+}
@@ -35,6 +35,7 @@ public class GroupTransition extends ItemTransition {
 
 		long next = -1;
 		int len = group.size();
+		group.changed();
 		boolean fork = len > PARALLEL_THRESHOLD && ThreadPool.getThreadCount() > 1;
 		
 		//long t0 = System.currentTimeMillis();
@@ -48,7 +49,7 @@ public class GroupTransition extends ItemTransition {
 			}
 			// invoke tasks on thread pool
 			try {
-				ThreadPool.getThreadPool().invokeAll(list);
+				ThreadPool.invokeAll(list);
 			} catch (InterruptedException ex) {
 				ex.printStackTrace();
 			}
@@ -23,6 +23,7 @@ public class ItemTransition extends Transition {
 	}
 	
 	public long step(double dt, double dd, Easing e) {
+		if (x.group != null) x.group.changed();
 		return interpolate(x, a, b, dt, dd, e);
 	}
 	
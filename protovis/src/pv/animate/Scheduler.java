@@ -1,13 +1,18 @@
 package pv.animate;
 
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Scheduler extends Thread {
 
+	/** Number of consecutive frames a deferrable task may be deferred. */
+	public static final int MAX_DEFERRALS = 4;
+	
 	private static Scheduler _instance = null;
 	public static Scheduler instance() {
 		if (_instance == null) {
@@ -30,7 +35,19 @@ public class Scheduler extends Thread {
 	
 	private Queue<Task> _queue = new ConcurrentLinkedQueue<Task>();
 	private Queue<Task> _postq = new ConcurrentLinkedQueue<Task>();
+	// tasks removed by other threads, whose costs are yet to be dropped
+	private Queue<Task> _removed = new ConcurrentLinkedQueue<Task>();
 	private Map<String,Task> _map = new ConcurrentHashMap<String,Task>();
+	private volatile boolean _wake = false;
+	private final AtomicLong _changes = new AtomicLong();
+	
+	// frame budgeting state, owned by the scheduler thread
+	private volatile long _budget = 0;
+	private volatile long _deadline = Long.MAX_VALUE;
+	private long _post = 0;
+	private boolean _timed = false;
+	private final Map<Task,long[]> _costs = new IdentityHashMap<Task,long[]>();
+	private final FrameStats _stats = new FrameStats();
 	
 	private Scheduler() {
 		super("pv-scheduler");
@@ -46,39 +63,107 @@ public class Scheduler extends Thread {
 		} catch (Exception e) {}
 	}
 	
+	/**
+	 * Returns the frame budget in milliseconds, or zero if frames are not
+	 * budgeted.
+	 */
+	public long budget() {
+		return _budget / 1000000L;
+	}
+	
+	/**
+	 * Sets the frame budget in milliseconds, such as 16 for 60 frames per
+	 * second, or zero to run every task on every cycle (the default).
+	 *
+	 * <p>With a budget, each cycle first runs the urgent tasks, such as
+	 * transitions and one-off updates, then runs {@link Deferrable} tasks
+	 * in turn while their average cost fits in what remains of the budget,
+	 * less the average cost of the post-tasks that render the frame.
+	 * Deferred tasks are retried on the next cycle, and run regardless
+	 * once deferred {@link #MAX_DEFERRALS} times in a row. Code running in
+	 * a task can split its work using {@link #deadline()}.</p>
+	 */
+	public void budget(long ms) {
+		_budget = Math.max(0, ms) * 1000000L;
+	}
+	
+	/**
+	 * Returns the {@link System#nanoTime()} by which the current task
+	 * should yield to keep the frame within budget, or Long.MAX_VALUE if
+	 * frames are not budgeted or if called outside of the scheduler.
+	 */
+	public static long deadline() {
+		Scheduler s = _instance;
+		return (s != null && isCurrentThread()) ? s._deadline : Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Returns the timing statistics of the frames run by the scheduler.
+	 */
+	public FrameStats stats() {
+		return _stats;
+	}
+	
 	public void run() {
 		while (true) {
 			long now = System.currentTimeMillis();
+			long start = System.nanoTime();
+			long budget = _budget;
 			long t = -1, s;
 			boolean ranTask = false;
+			int deferred = 0;
+			_stats.start(start, _timed);
+			for (Task task; (task = _removed.poll()) != null;) {
+				_costs.remove(task);
+			}
 			
-			// run tasks in sequence
-			for (Iterator<Task> iter = _queue.iterator(); iter.hasNext();)
-			{	
-				Task task = iter.next();
-				try {
-					s = task.evaluate(now);
-				} catch (Exception e) {
-					e.printStackTrace();
-					s = -1;
-				}
-				ranTask = true;
-				
-				if (s <= 0) {
-					iter.remove();
-					if (task.id() != null) {
-						_map.remove(task.id());
+			// run tasks in sequence; with a budget, urgent tasks first
+			// and deferrable tasks after, as far as the budget allows
+			for (int pass = 0; pass < (budget > 0 ? 2 : 1); ++pass) {
+				_deadline = pass == 0 ? Long.MAX_VALUE : start + budget - _post;
+				for (Iterator<Task> iter = _queue.iterator(); iter.hasNext();)
+				{	
+					Task task = iter.next();
+					if (budget > 0) {
+						if ((task instanceof Deferrable) != (pass == 1)) continue;
+						if (pass == 1 && !fits(task)) {
+							++deferred;
+							s = budget / 1000000L;
+							t = (t <= 0 ? s : (t < s ? t : s));
+							continue;
+						}
+					}
+					long t0 = System.nanoTime();
+					try {
+						s = task.evaluate(now);
+					} catch (Exception e) {
+						e.printStackTrace();
+						s = -1;
+					}
+					ranTask = true;
+					if (budget > 0) cost(task, System.nanoTime() - t0);
+					
+					if (s <= 0) {
+						iter.remove();
+						_costs.remove(task);
+						if (task.id() != null) {
+							_map.remove(task.id());
+						}
+					} else {
+						t = (t <= 0 ? s : (t < s ? t : s));
 					}
-				} else {
-					t = (t <= 0 ? s : (t < s ? t : s));
 				}
 			}
+			_deadline = Long.MAX_VALUE;
 			synchronized (_queue) {
 				_queue.notifyAll();
 			}
 			
-			// if tasks were run, run the post-task queue
-			if (ranTask) {
+			// if tasks were run or a wake-up requested, run the post-task queue
+			boolean wake = _wake;
+			_wake = false;
+			if (ranTask || wake) {
+				long t0 = System.nanoTime();
 				for (Iterator<Task> iter = _postq.iterator(); iter.hasNext();)
 				{	
 					Task task = iter.next();
@@ -90,18 +175,24 @@ public class Scheduler extends Thread {
 					}
 					if (s <= 0) iter.remove();
 				}
+				_post = average(_post, System.nanoTime() - t0);
 			}
+			_stats.finish(System.nanoTime(), budget, deferred);
 			
 			// adjust timing to include execution time
 			s = System.currentTimeMillis() - now;
 			t = (s >= t ? 1 : (t-s));
 			
-			// sleep for requested time units
+			// sleep for requested time units, or until woken if idle
 			try {
 				synchronized (this) { 
-					if (_queue.isEmpty()) {
+					_timed = false;
+					if (_wake) {
+						// woken while running, go again
+					} else if (_queue.isEmpty()) {
 						this.wait();
 					} else {
+						_timed = true;
 						this.wait(t);
 					}
 				}
@@ -111,12 +202,42 @@ public class Scheduler extends Thread {
 		}
 	}
 	
+	/**
+	 * Indicates if a deferrable task is expected to finish within the
+	 * remaining frame budget, counting the deferral if not.
+	 */
+	private boolean fits(Task task) {
+		long[] c = _costs.get(task);
+		if (c == null) return true;
+		if (c[1] >= MAX_DEFERRALS || System.nanoTime() + c[0] <= _deadline) {
+			c[1] = 0;
+			return true;
+		}
+		++c[1];
+		return false;
+	}
+	
+	/** Records the cost of running a task. */
+	private void cost(Task task, long ns) {
+		long[] c = _costs.get(task);
+		if (c == null) {
+			_costs.put(task, c = new long[] { ns, 0 });
+		} else {
+			c[0] = average(c[0], ns);
+		}
+	}
+	
+	/** Exponential moving average, weighting new samples by a quarter. */
+	private static long average(long avg, long ns) {
+		return avg + (ns - avg) / 4;
+	}
+	
 	public void add(Task task) {
 		String id = task.id();
 		if (id != null) {
 			Task prev = _map.get(id);
 			if (prev != null) {
-				_queue.remove(prev);
+				cancel(prev);
 			}
 			_map.put(id, task);
 		}
@@ -130,13 +251,47 @@ public class Scheduler extends Thread {
 		_postq.add(task);
 	}
 	
+	/**
+	 * Wakes the scheduler to run the post-task queue once, even if no task
+	 * is due. Used by displays to render changes made outside of tasks,
+	 * such as to their transform. The scheduler blocks while it has no
+	 * tasks and is not woken.
+	 */
+	public void wake() {
+		synchronized (this) {
+			_wake = true;
+			notify();
+		}
+	}
+	
+	/**
+	 * Notes a change that displays must render, made outside of scene
+	 * updates, such as a transition step or a finished image load, and
+	 * wakes the scheduler so that the post-tasks run.
+	 */
+	public void changed() {
+		_changes.incrementAndGet();
+		wake();
+	}
+	
+	/**
+	 * Returns the number of changes noted by {@link #changed()}, which
+	 * displays compare to find whether to render.
+	 */
+	public long changes() {
+		return _changes.get();
+	}
+	
 	public Task cancel(String id) {
 		Task task = _map.remove(id);
 		return (task != null ? cancel(task) : null);
 	}
 	
 	public Task cancel(Task task) {
-		_queue.remove(task);
+		if (_queue.remove(task)) {
+			// the cost map is owned by the scheduler thread
+			_removed.add(task);
+		}
 		return task;
 	}
 	
@@ -145,6 +300,15 @@ public class Scheduler extends Thread {
 		public long evaluate(long t);
 	}
 	
+	/**
+	 * A low-priority task, such as a repeated scene update, that a
+	 * budgeted scheduler may postpone to later frames so that urgent tasks
+	 * and renders meet the frame deadline.
+	 * @see Scheduler#budget(long)
+	 */
+	public static interface Deferrable extends Task {
+	}
+	
 	public static class TaskAdapter implements Task {
 		public String id() { return null; }
 		public long evaluate(long t) { return -1; }
@@ -42,13 +42,15 @@ public class Transition implements Scheduler.Task
 	{
 		if (_startTime == Long.MAX_VALUE) play();
 		if (_startTime < 0) return 0;
-		if (t0 - _stepTime < _pause) return (t0 - _stepTime); 
+		if (t0 - _stepTime < _pause) return _pause - (t0 - _stepTime);
 		
 		// compute timing parameters
 		_stepTime = t0;
 		double dt = t0 - _startTime, dd = _endTime - _startTime;
 		long next = step(dt, dd, _ease); 
 		if (next < 0) _startTime = -1;
+		// transitions may change anything, so have displays render
+		Scheduler.instance().changed();
 		return next;
 	}
 	
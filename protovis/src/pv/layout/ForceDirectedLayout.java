@@ -1,19 +1,20 @@
 package pv.layout;
 
 import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Map;
-import java.util.Set;
-
-import com.google.common.collect.Iterables;
 
+import pv.animate.Scheduler;
 import pv.mark.Mark;
 import pv.mark.MarkEvent;
 import pv.mark.eval.EventHandler;
 import pv.mark.property.AbstractProperty;
 import pv.scene.Item;
 import pv.scene.LinkItem;
+import pv.util.ThreadPool;
+import pv.util.physics.Multilevel;
 import pv.util.physics.Particle;
 import pv.util.physics.Simulation;
 import pv.util.physics.Spring;
@@ -23,10 +24,12 @@ public class ForceDirectedLayout {
 	private Simulation _sim;
 	private int _step = 1;
 	private int _iter = 1;
-	private int _gen = 0;
 	private boolean _key = true;
 	private boolean _enabled = true;
 	private Rectangle2D _bounds = null;
+	private Multilevel _multilevel = null;
+	private Multilevel.Placement _placement = null;
+	private int _born = 0;
 	
 	// simulation defaults
 	protected float _mass = 1;
@@ -47,7 +50,9 @@ public class ForceDirectedLayout {
 	public void defaultSpringTension(float v) { _tension = v; }
 	
 	/** The number of iterations to run the simulation per invocation
-	 *  (default is 1, expecting continuous updates). */
+	 *  (default is 1, expecting continuous updates). When run by a
+	 *  scheduler with a frame budget, fewer iterations are run if the
+	 *  frame deadline passes, and at least one. */
 	public int iterations() { return _iter; }
 	public void iterations(int iter) { _iter = iter; }
 	
@@ -72,10 +77,26 @@ public class ForceDirectedLayout {
 	public Rectangle2D bounds() { return _bounds; }
 	public void bounds(Rectangle2D b) { _bounds = b; }
 	
-	private Set<Iterable<Item>> _nodes = new HashSet<Iterable<Item>>();
-	private Set<Iterable<Item>> _edges = new HashSet<Iterable<Item>>();
-	private Iterable<Item> _niter = Iterables.concat(_nodes);
-	private Iterable<Item> _eiter = Iterables.concat(_edges);
+	/** Enables multilevel placement (default false). When a step adds
+	 *  at least half of the particles, such as when the layout is first
+	 *  populated, all particles are placed by laying out successively
+	 *  coarsened versions of the graph, which lets large graphs converge
+	 *  in far fewer ticks. Placement runs on the I/O pool, and the
+	 *  simulation pauses until a later step applies it. See
+	 *  {@link Multilevel}. */
+	public boolean multilevel() { return _multilevel != null; }
+	public void multilevel(boolean b) {
+		_multilevel = b ? (_multilevel != null ? _multilevel
+			: new Multilevel()) : null;
+		if (!b) _placement = null;
+	}
+	
+	private Map<Iterable<Item>,Nodes> _nodes =
+		new IdentityHashMap<Iterable<Item>,Nodes>();
+	private Map<Iterable<Item>,Edges> _edges =
+		new IdentityHashMap<Iterable<Item>,Edges>();
+	// springs may need new parameters as degrees change
+	private boolean _changed = false, _pending = false, _invalid = false;
 	
 	// --------------------------------------------------------------------
 	
@@ -109,43 +130,90 @@ public class ForceDirectedLayout {
 	}
 	
 	public ForceDirectedLayout nodes(Iterable<Item> nodes) {
-		_nodes.add(nodes);
+		if (!_nodes.containsKey(nodes)) _nodes.put(nodes, new Nodes(nodes));
 		return this;
 	}
 	
 	public ForceDirectedLayout edges(Iterable<Item> edges) {
-		_edges.add(edges);
+		if (!_edges.containsKey(edges)) _edges.put(edges, new Edges(edges));
 		return this;
 	}
 	
+	/**
+	 * Recomputes the masses of all particles and the parameters of all
+	 * springs on the next step, for use when the values returned by
+	 * {@link #mass}, {@link #restLength}, {@link #tension} or
+	 * {@link #damping} change without changes to the items.
+	 */
+	public void invalidate() {
+		_invalid = true;
+	}
+	
 	private Particle particle(Item item) {
 		Object key = _key ? item.data : item;
 		return _pmap.get(key);
 	}
 	
-	private void particle(Item item, Particle p) {
-		Object key = _key ? item.data : item;
+	/**
+	 * Returns the particle for an item, adding one if needed, and counts
+	 * the reference in the particle's tag.
+	 */
+	private Particle acquire(Object key, Item n) {
+		Particle p = _pmap.get(key);
 		if (p == null) {
-			_pmap.remove(key);
-		} else {
+			p = _sim.addParticle(_mass,
+				(float)(n.left + 2*(Math.random() - 0.5)),
+				(float)(n.top + 2*(Math.random() - 0.5)));
+			p.tag = 0;
 			_pmap.put(key, p);
-			p.payload = item;
+			_changed = true;
+			++_born;
 		}
+		p.payload = n;
+		p.tag++;
+		return p;
 	}
 	
-	private Spring spring(LinkItem item) {
-		Object key = _key ? item.data : item;
-		return _smap.get(key);
+	/**
+	 * Releases a reference to a particle, removing it when unreferenced.
+	 */
+	private void release(Object key, Particle p) {
+		if (--p.tag > 0) return;
+		p.kill();
+		if (_pmap.get(key) == p) _pmap.remove(key);
+		_changed = true;
 	}
 	
-	private void spring(LinkItem item, Spring s) {
-		Object key = _key ? item.data : item;
+	/**
+	 * Returns the spring for a link, adding one if needed, and counts the
+	 * reference in the spring's tag.
+	 */
+	private Spring acquire(Object key, LinkItem e, Particle p1, Particle p2) {
+		Spring s = _smap.get(key);
+		if (s != null && (s.p1 != p1 || s.p2 != p2)) {
+			// the link was rewired, replace the spring of the key
+			s.kill();
+			s = null;
+		}
 		if (s == null) {
-			_smap.remove(key);
-		} else {
+			s = _sim.addSpring(p1, p2, _restLength, _tension, _damping);
+			s.tag = 0;
 			_smap.put(key, s);
-			s.payload = item;
+			_changed = true;
 		}
+		s.payload = e;
+		s.tag++;
+		return s;
+	}
+	
+	/**
+	 * Releases a reference to a spring, removing it when unreferenced.
+	 */
+	private void release(Object key, Spring s) {
+		if (--s.tag > 0) return;
+		s.kill();
+		if (_smap.get(key) == s) _smap.remove(key);
+		_changed = true;
 	}
 	
 	// -- run simulation ------------------------------------------------------
@@ -157,14 +225,35 @@ public class ForceDirectedLayout {
 	{
 		if (!_enabled) return;
 		
-		++_gen; // update generation counter
 		init(); // populate simulation
 		
 		// run simulation
 		_sim.bounds(_bounds != null ? _bounds : null);
+		if (_multilevel != null && _born > 0 && 2*_born >= _pmap.size()) {
+			// placement takes seconds for large graphs, so run it off the
+			// scheduler thread; a newer one supersedes a running one
+			_placement = _multilevel.placement(_sim);
+			ThreadPool.getIOPool().execute(_placement);
+		}
+		_born = 0;
+		if (_placement != null) {
+			// ticks before the positions are placed would be lost
+			if (!_placement.isDone()) return;
+			_placement.apply();
+			_placement = null;
+		}
 		
 		//long t0 = System.currentTimeMillis();
-		_sim.tick(_step, _iter);
+		long deadline = Scheduler.deadline();
+		if (_iter > 1 && deadline != Long.MAX_VALUE) {
+			// split iterations at the frame deadline
+			for (int i=0; i<_iter; ++i) {
+				_sim.tick(_step, 1);
+				if (System.nanoTime() >= deadline) break;
+			}
+		} else {
+			_sim.tick(_step, _iter);
+		}
 		//float t1 = (System.currentTimeMillis()-t0)/1000f;
 		//tt += t1;
 		//ii += 1;
@@ -173,87 +262,201 @@ public class ForceDirectedLayout {
 	
 	public void reset()
 	{
+		_placement = null;
 		_pmap.clear();
 		_smap.clear();
 		_sim.reset();
+		for (Nodes n : _nodes.values()) n.clear();
+		for (Edges e : _edges.values()) e.clear();
 	}
 	
 	/**
-	 * Initializes the Simulation for this ForceDirectedLayout
+	 * Initializes the Simulation for this ForceDirectedLayout. Each list of
+	 * nodes and edges keeps the items it held on the previous step along
+	 * with their particles and springs, so that only items that are new,
+	 * replaced, removed, or whose visibility changed are looked up. The
+	 * items of groups whose data changed (flagged as modified) are looked
+	 * up again, as their keys may have changed, and zombie items (those
+	 * exiting the scene) are removed from the simulation. Particles and
+	 * springs count the items referring to them in their tags, and are
+	 * removed when no longer referenced.
 	 */
 	protected void init()
 	{
-		// TODO this method can be a bottleneck
-		// find way to cull redundant computation
+		boolean all = _invalid;
+		_invalid = false;
 		
-		// initialize all simulation entries
-		for (Item n : _niter) {
-			if (!n.visible) continue;
-			Particle p = particle(n);
-			if (p == null) {
-				p = _sim.addParticle(_mass,
-					(float)(n.left + 2*(Math.random() - 0.5)),
-					(float)(n.top + 2*(Math.random() - 0.5)));
-				particle(n, p);
-				//p.fixed = o.fixed;
-			} else {
-				p.x = (float)n.left;
-				p.y = (float)n.top;
-				//p.fixed = o.fixed;
+		for (Nodes n : _nodes.values()) n.update(all);
+		for (Edges e : _edges.values()) e.update(all);
+		
+		// spring tensions depend on particle degrees, which change as
+		// springs are added now and as removed springs are dropped on the
+		// next tick, so check them again on the next step
+		if (_changed || _pending || all) {
+			for (Edges e : _edges.values()) e.parameters(all);
+		}
+		_pending = _changed;
+		_changed = false;
+	}
+	
+	/**
+	 * The particles of a list of node items, by position in the list.
+	 */
+	private class Nodes {
+		final Iterable<Item> list;
+		Item[] items = new Item[0];
+		Object[] keys = new Object[0];
+		Particle[] ps = new Particle[0];
+		int size = 0;
+		
+		Nodes(Iterable<Item> list) { this.list = list; }
+		
+		void update(boolean all) {
+			int i = 0;
+			for (Item n : list) {
+				if (i == items.length) grow(i+1);
+				Particle p = ps[i];
+				boolean live = n.visible && !n.zombie(), born = false;
+				if (i >= size || n != items[i] || live != (p != null)
+					|| all || (n.group != null && n.group.modified()))
+				{
+					// acquire before releasing, to keep unchanged particles
+					Object key = _key ? n.data : n;
+					int count = _born;
+					Particle q = live ? acquire(key, n) : null;
+					born = _born != count;
+					if (p != null) release(keys[i], p);
+					if (q != null) q.mass = mass(n, q);
+					items[i] = n; keys[i] = key; ps[i] = p = q;
+				}
+				// keep the jitter of new particles, so that items at the
+				// same position do not start out coincident
+				if (p != null && !born) {
+					p.x = (float)n.left;
+					p.y = (float)n.top;
+				}
+				++i;
 			}
-			p.tag = _gen;
+			truncate(i);
 		}
-		for (Item item : _eiter) {
-			if (!item.visible) continue;
-			LinkItem e = (LinkItem) item;
-			if (!e.source.visible || !e.target.visible) continue;
-			Spring s = spring(e);
-			if (s == null) {
-				Particle p1 = particle(e.source);
-				Particle p2 = particle(e.target);
-				s = _sim.addSpring(p1, p2, _restLength, _tension, _damping);
-				spring(e, s);
+		
+		void truncate(int n) {
+			for (int i=n; i<size; ++i) {
+				if (ps[i] != null) release(keys[i], ps[i]);
+				items[i] = null; keys[i] = null; ps[i] = null;
 			}
-			s.tag = _gen;
+			size = n;
 		}
 		
-		// set up simulation parameters
-		// this needs to be kept separate from the above initialization
-		// to ensure all simulation items are created first
-		for (Item n : _niter) {
-			Particle p = particle(n);
-			if (p == null)
-				continue;
-			p.mass = mass(n, p);
+		void clear() {
+			Arrays.fill(items, null);
+			Arrays.fill(keys, null);
+			Arrays.fill(ps, null);
+			size = 0;
 		}
-		for (Item item : _eiter) {
-			LinkItem e = (LinkItem) item;
-			Spring s = spring(e);
-			if (s == null)
-				continue;
-			s.restLength = restLength(e, s);
-			s.tension = tension(e, s);
-			s.damping = damping(e, s);
+		
+		void grow(int n) {
+			n = Math.max(n, 2*items.length);
+			items = Arrays.copyOf(items, n);
+			keys = Arrays.copyOf(keys, n);
+			ps = Arrays.copyOf(ps, n);
+		}
+	}
+	
+	/**
+	 * The springs of a list of edge items, by position in the list.
+	 */
+	private class Edges {
+		final Iterable<Item> list;
+		LinkItem[] items = new LinkItem[0];
+		Item[] sources = new Item[0], targets = new Item[0];
+		Object[] keys = new Object[0];
+		Spring[] springs = new Spring[0];
+		// the degree the spring parameters were computed for, -1 if none
+		int[] degrees = new int[0];
+		int size = 0;
+		
+		Edges(Iterable<Item> list) { this.list = list; }
+		
+		void update(boolean all) {
+			int i = 0;
+			for (Item item : list) {
+				if (i == items.length) grow(i+1);
+				LinkItem e = (LinkItem) item;
+				Spring s = springs[i];
+				boolean live = e.visible && !e.zombie()
+					&& e.source.visible && e.target.visible;
+				if (i >= size || e != items[i] || live != (s != null)
+					|| e.source != sources[i] || e.target != targets[i]
+					|| (s != null && (s.die || s.p1.die || s.p2.die))
+					|| (e.group != null && e.group.modified()))
+				{
+					Object key = _key ? e.data : e;
+					Spring t = null;
+					if (live) {
+						Particle p1 = particle(e.source);
+						Particle p2 = particle(e.target);
+						if (p1 != null && p2 != null) {
+							t = acquire(key, e, p1, p2);
+						}
+					}
+					if (s != null) release(keys[i], s);
+					items[i] = e; keys[i] = key; springs[i] = t;
+					sources[i] = e.source; targets[i] = e.target;
+					degrees[i] = -1;
+				}
+				++i;
+			}
+			truncate(i);
 		}
 		
-		for (Particle p = _sim.particles(); p!=null; p=p.next) {
-			if (p.tag != _gen) {
-				p.kill();
-				particle((Item)p.payload, null);
+		void parameters(boolean all) {
+			for (int i=0; i<size; ++i) {
+				Spring s = springs[i];
+				if (s == null) continue;
+				int d = Math.max(s.p1.degree, s.p2.degree);
+				if (!all && d == degrees[i]) continue;
+				s.restLength = restLength(items[i], s);
+				s.tension = tension(items[i], s);
+				s.damping = damping(items[i], s);
+				degrees[i] = d;
 			}
 		}
-		for (Spring s = _sim.springs(); s!=null; s=s.next) {
-			if (s.tag != _gen) {
-				s.kill();
-				spring((LinkItem)s.payload, null);
+		
+		void truncate(int n) {
+			for (int i=n; i<size; ++i) {
+				if (springs[i] != null) release(keys[i], springs[i]);
+				items[i] = null; sources[i] = null; targets[i] = null;
+				keys[i] = null; springs[i] = null;
 			}
+			size = n;
+		}
+		
+		void clear() {
+			Arrays.fill(items, null);
+			Arrays.fill(sources, null);
+			Arrays.fill(targets, null);
+			Arrays.fill(keys, null);
+			Arrays.fill(springs, null);
+			size = 0;
+		}
+		
+		void grow(int n) {
+			n = Math.max(n, 2*items.length);
+			items = Arrays.copyOf(items, n);
+			sources = Arrays.copyOf(sources, n);
+			targets = Arrays.copyOf(targets, n);
+			keys = Arrays.copyOf(keys, n);
+			springs = Arrays.copyOf(springs, n);
+			degrees = Arrays.copyOf(degrees, n);
 		}
 	}
 	
 	/**
 	 * Function for assigning mass values to particles. By default, this
 	 * simply returns the default mass value. This function can be replaced
-	 * to perform custom mass assignment.
+	 * to perform custom mass assignment. It is called when a particle is
+	 * added and when its item's group is modified.
 	 */
 	protected float mass(Item n, Particle p) { return _mass; }
 	
@@ -271,7 +474,9 @@ public class ForceDirectedLayout {
 	 * specifically, the tension is computed as the default tension value
 	 * divided by the square root of the maximum degree of the attached
 	 * particles. This function can be replaced to perform custom tension
-	 * assignment.
+	 * assignment. Spring parameters are computed when a spring is added,
+	 * when its item's group is modified, and when the degree of its
+	 * particles changes.
 	 */
 	protected float tension(LinkItem e, Spring s) {
 		double n = Math.max(s.p1.degree, s.p2.degree);
@@ -23,6 +23,8 @@ import pv.mark.property.ConstantProperty;
 import pv.mark.property.DynamicProperty;
 import pv.mark.property.Property;
 import pv.mark.property.VariableProperty;
+import pv.render.LevelOfDetail;
+import pv.scene.ColumnGroupItem;
 import pv.scene.GroupItem;
 import pv.scene.Item;
 import pv.style.Easing;
@@ -35,7 +37,7 @@ public class Mark {
 	// -- static --------------------------------------------------------------
 	
 	protected static Set<String> SET_LEVEL = new HashSet<String>(
-		Arrays.asList("data","datatype","depth","segmented","interpolate"));
+		Arrays.asList("data","datatype","depth","segmented","interpolate","lod"));
 	protected static Set<String> KEY_LEVEL = new HashSet<String>(
 		Arrays.asList("key", "sourceNodes", "targetNodes",
 			"sourceNodeKey", "targetNodeKey", "sourceKey", "targetKey"));
@@ -123,6 +125,7 @@ public class Mark {
 	protected Panel _panel;
 	protected Evaluator _eval;
 	protected int _treeIndex, _panelSize = 0;
+	protected boolean _columnar = false;
 	
 	protected PropertySet _pset = new PropertySet();
 	
@@ -138,6 +141,21 @@ public class Mark {
 	public String markType() { return _marktype; }
 	public Class<?> itemType() { return _defn==null ? null : _defn.itemType(); }
 	
+	/**
+	 * Indicates if this mark's items are stored in a columnar group.
+	 * Only bar and dot marks support columnar storage.
+	 */
+	public boolean columnar() {
+		return _columnar && ColumnGroupItem.supports(_marktype);
+	}
+	/**
+	 * Sets if this mark's items should be stored in a columnar group, with
+	 * item properties kept in primitive arrays rather than per-item
+	 * objects. Columnar marks are not animated.
+	 * @see ColumnGroupItem
+	 */
+	public Mark columnar(boolean b) { _columnar = b; return this; }
+	
 	public Scene scene() { return _scene; }
 	public Panel panel() { return _panel; }
 	public Mark  proto() { return _proto.size() > 1 ? _proto.get(1) : null; }
@@ -363,6 +381,19 @@ public class Mark {
 	public Mark segmented(boolean b) { return set("segmented", constant(b, boolean.class)); }
 	public Mark segmented(String s) { return set("segmented", dynamic(s, boolean.class)); }
 	
+	/**
+	 * Sets the level of detail threshold, in items per device pixel. When a
+	 * dot group covers fewer pixels, or a line or area group spans fewer
+	 * pixel columns, than its items times the threshold, renderers draw an
+	 * aggregated representation instead of each item, and return to full
+	 * detail as the view is zoomed in. Zero, the default, disables it.
+	 * @see pv.render.LevelOfDetail
+	 */
+	public Mark lod(Property p) { return set("lod", p); }
+	public Mark lod(double x) { return set("lod", constant(x, double.class)); }
+	public Mark lod(boolean b) { return lod(b ? LevelOfDetail.THRESHOLD : 0); }
+	public Mark lod(String s) { return set("lod", dynamic(s, double.class)); }
+	
 	public Mark interpolate(Property p) { return set("interpolate", p); }
 	public Mark interpolate(String s) {
 		if (DynamicProperty.isDynamicProperty(s)) {
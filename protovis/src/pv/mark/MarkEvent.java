@@ -3,6 +3,7 @@ package pv.mark;
 import java.util.List;
 
 import pv.mark.eval.EventHandler;
+import pv.scene.ColumnGroupItem;
 import pv.scene.GroupItem;
 import pv.scene.Item;
 
@@ -39,6 +40,10 @@ public class MarkEvent {
 		for (EventHandler h : handlers) {
 			h.handle(e, item);
 		}
+		if (group instanceof ColumnGroupItem && item != group) {
+			// items of columnar groups are copies of their row
+			((ColumnGroupItem) group).update(item);
+		}
 	}
 	
 	public static void fire(MarkEvent e, Scene scene) {
@@ -1,15 +1,22 @@
 package pv.mark;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 import pv.animate.Parallel;
 import pv.animate.Scheduler;
 import pv.animate.Transition;
 import pv.mark.update.MarkUpdater;
 import pv.scene.Item;
 import pv.scene.PanelItem;
+import pv.scene.SceneBuffer;
+import pv.style.Easing;
 
 public class Scene extends Panel {
 
 	private PanelItem _items = new PanelItem();
+	private volatile SceneBuffer _buffer = null;
+	private final AtomicLong _version = new AtomicLong(0);
+	private long _published = -1;
 	
 	public Scene() {
 		super();
@@ -22,6 +29,72 @@ public class Scene extends Panel {
 		return _items;
 	}
 	
+	/**
+	 * Indicates if the scene is double-buffered.
+	 */
+	public boolean doubleBuffered() {
+		return _buffer != null;
+	}
+	
+	/**
+	 * Sets if the scene is double-buffered. Updates of a double-buffered
+	 * scene modify a working scenegraph, which is published as a snapshot
+	 * for rendering once per scheduler cycle, so that displays can render
+	 * concurrently with updates without seeing partial changes.
+	 * @param b true to double-buffer the scene
+	 * @return this scene
+	 */
+	public Scene doubleBuffered(boolean b) {
+		synchronized (this) {
+			_buffer = b ? new SceneBuffer() : null;
+			_published = -1;
+		}
+		return this;
+	}
+	
+	/**
+	 * Returns the scenegraph to render: the last published snapshot if
+	 * the scene is double-buffered, otherwise the working scenegraph.
+	 */
+	public Item renderItems() {
+		SceneBuffer buffer = _buffer;
+		return buffer == null ? _items : buffer.acquire();
+	}
+	
+	/**
+	 * Publishes a snapshot of the working scenegraph for rendering. Does
+	 * nothing unless the scene is double-buffered, or if the current
+	 * {@link #version()} was already published, so that displays sharing
+	 * the scene copy it once. Called by displays from the scheduler thread
+	 * between updates.
+	 */
+	public synchronized void publish() {
+		SceneBuffer buffer = _buffer;
+		long v = _version.get();
+		if (buffer == null || v == _published) return;
+		buffer.publish(_items);
+		_published = v;
+	}
+	
+	/**
+	 * Returns a counter advanced whenever the scene is updated or one of
+	 * its transitions steps. Displays compare it between scheduler cycles
+	 * to render only scenes that changed.
+	 */
+	public long version() {
+		return _version.get();
+	}
+	
+	/**
+	 * Notes that the scene changed, so that displays render it on the next
+	 * scheduler cycle. Changes to a double-buffered scene made outside of
+	 * its updates, such as by user transitions, are published only once
+	 * noted here.
+	 */
+	public void changed() {
+		_version.incrementAndGet();
+	}
+	
 	public void clear() {
 		_items.items.clear();
 	}
@@ -46,11 +119,25 @@ public class Scene extends Panel {
 		return t;
 	}
 	
+	/**
+	 * Updates the scene immediately in the calling thread using the given
+	 * updater, bypassing the scheduler. Used to update scenes that are not
+	 * shown in an interactive display, such as scenes rendered offscreen
+	 * in parallel; each concurrent caller should use its own updater.
+	 * @param updater the updater to use
+	 */
+	public void update(MarkUpdater updater) {
+		setTreeIndex(-1);
+		if (_items.size() == 0) _items.add(null);
+		updater.update(this, null, _items, null);
+		changed();
+	}
+	
 	protected Transition buildItems(double duration) {
 		setTreeIndex(-1);
 		if (_items.size() == 0) _items.add(null);
 		
-		Parallel p = duration<=0 ? null : new Parallel(duration);
+		Parallel p = duration<=0 ? null : new SceneTransition(duration);
 		MarkUpdater.instance().submit(this, null, _items, p);
 		return p;
 	}
@@ -83,7 +170,30 @@ public class Scene extends Panel {
 		Scheduler.instance().add(new UpdateTask(p, -1, end));
 	}
 	
-	public class UpdateTask implements Scheduler.Task
+	/**
+	 * The transition of a scene update, which marks the scene changed on
+	 * each step.
+	 */
+	private class SceneTransition extends Parallel
+	{
+		SceneTransition(double duration) {
+			super(duration);
+		}
+		
+		@Override
+		public long step(double dt, double dd, Easing e) {
+			long next = super.step(dt, dd, e);
+			changed();
+			return next;
+		}
+	}
+	
+	/**
+	 * A repeated update of the scene. Repeated updates are deferrable, so
+	 * that a budgeted scheduler may skip frames of them to keep
+	 * transitions and renders on time.
+	 */
+	public class UpdateTask implements Scheduler.Deferrable
 	{
 		private final String _id = "repeated-update-"+Scene.this.toString();
 		private boolean _cancel = false;
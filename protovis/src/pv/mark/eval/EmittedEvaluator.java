@@ -0,0 +1,47 @@
+package pv.mark.eval;
+
+import pv.mark.Mark;
+import pv.mark.property.Property;
+import pv.scene.GroupItem;
+import pv.scene.Item;
+
+/**
+ * Base class for evaluators generated by {@link EvaluatorEmitter}. The
+ * generated subclasses override the property evaluation hooks of
+ * {@link StaticEvaluator} with straight-line byte code, reading property
+ * instances and constant values from the arrays below.
+ */
+public abstract class EmittedEvaluator extends StaticEvaluator {
+
+	/** Compiled properties, indexed by the generated code. */
+	public Property[] _p;
+	/** Constant property values, indexed by the generated code. */
+	public Object[] _c;
+	/** True if the data property inherits the parent datum. */
+	public boolean _inheritData;
+	/** True if items are keyed by index. */
+	public boolean _indexKey;
+	/** True if items are keyed by datum. */
+	public boolean _dataKey;
+
+	public EmittedEvaluator(Mark mark) {
+		super(mark);
+	}
+
+	protected Object getData(GroupItem item) {
+		return _inheritData ? item.group.data : super.getData(item);
+	}
+
+	public Object key(Item item) {
+		return _indexKey ? item.index : _dataKey ? item.data : super.key(item);
+	}
+
+	/**
+	 * Generated code evaluates all instance properties at once, so the
+	 * mask is ignored.
+	 */
+	public void evaluate(GroupItem group, int start, int end, boolean animate, long mask) {
+		evaluate(group, start, end, animate);
+	}
+
+}
@@ -1,15 +1,28 @@
 package pv.mark.eval;
 
+import java.io.File;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.tools.Diagnostic;
 import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
 
 import pv.mark.Mark;
+import pv.mark.Scene;
 import pv.mark.Mark.PropertySet;
 import pv.mark.property.ConstantProperty;
 import pv.mark.property.DynamicProperty;
@@ -17,9 +30,11 @@ import pv.mark.property.Property;
 import pv.mark.property.VariableProperty;
 import pv.scene.GroupItem;
 import pv.scene.LinkItem;
+import pv.util.ClassCache;
 import pv.util.Objects;
 import pv.util.RuntimeCompiler;
 import pv.util.RuntimeCompilerException;
+import pv.util.ThreadPool;
 import pv.util.TypeLib;
 
 public class EvaluatorBuilder implements TemplateConstants {
@@ -36,30 +51,202 @@ public class EvaluatorBuilder implements TemplateConstants {
 	public boolean compile() { return _compile; }
 	public void compile(boolean b) { _compile = b; }
 	
+	/**
+	 * Indicates if evaluators are emitted directly as byte code when
+	 * possible, rather than generated as source and compiled.
+	 */
+	public boolean emit() { return _emit; }
+	/**
+	 * Sets if evaluators are emitted directly as byte code when possible.
+	 * Marks whose bindings can not be emitted (for example, those using
+	 * arbitrary dynamic code) fall back to compilation, or to the
+	 * interpreted evaluator if no Java compiler is available.
+	 */
+	public void emit(boolean b) { _emit = b; }
+	
 	public boolean cache() { return _cache; }
 	public void cache(boolean b) { _cache = b; }
 	
+	/**
+	 * Indicates if large batches of evaluators are compiled in parallel.
+	 */
+	public boolean parallelCompile() { return _parallel; }
+	/**
+	 * Sets if large batches of evaluators are compiled in parallel, using
+	 * one compilation task per thread of the {@link ThreadPool}.
+	 */
+	public void parallelCompile(boolean b) { _parallel = b; }
+	
+	/**
+	 * Indicates if evaluators are compiled in the background.
+	 */
+	public boolean async() { return _async; }
+	/**
+	 * Sets if evaluators are compiled in the background. If true, a build
+	 * request returns immediately with an interim evaluator: an emitted,
+	 * interpreted evaluator if the mark's bindings allow, or else the mark's
+	 * previous evaluator. The compiled evaluator is swapped in on the first
+	 * update after compilation completes (see {@link #compiled(Mark)}), and
+	 * an update of the mark's scene is requested at that time. Marks with
+	 * no usable interim evaluator are still compiled immediately.
+	 */
+	public void async(boolean b) { _async = b; }
+	
+	/**
+	 * Returns the directory in which compiled evaluators are persisted, or
+	 * null if evaluators are not stored on disk.
+	 */
+	public File cacheDirectory() {
+		return _diskCache == null ? null : _diskCache.directory();
+	}
+	
+	/**
+	 * Sets a directory in which to persist compiled evaluators across runs.
+	 * Evaluator byte code is stored under a hash of the generated source and
+	 * the item and data types, and subsequently loaded without invoking the
+	 * compiler. Set to null to disable the on-disk cache.
+	 */
+	public void cacheDirectory(File dir) {
+		_diskCache = dir == null ? null : new ClassCache(dir);
+	}
+	
+	// minimum number of sources per parallel compilation task, as each
+	// task pays the fixed start-up cost of the compiler
+	private static final int MIN_BATCH = 8;
+	
 	private int _id = 0;
 	private boolean _printSource = false;
 	private boolean _compile = true;
+	private boolean _emit = false;
+	private boolean _parallel = true;
+	private boolean _async = false;
 	private boolean _cache = true;
 	private String _declStart = "\t";
 	private String _bodyStart = "\t\t\t";
 	private String _end = ";\n";
 	private String _pkg = "pv.temp";
 	
-	private RuntimeCompiler<?> compiler = RuntimeCompiler.instance();
-	private Map<String,Class<Evaluator>> cache = new HashMap<String,Class<Evaluator>>();
+	private RuntimeCompiler<?> compiler = null;
+	private boolean _noCompiler = false;
+	private List<RuntimeCompiler<?>> _compilers = new ArrayList<RuntimeCompiler<?>>();
+	private EvaluatorEmitter emitter = new EvaluatorEmitter();
+	private Map<String,Class<Evaluator>> cache = new ConcurrentHashMap<String,Class<Evaluator>>();
+	private Map<Mark,Pending> _pending = new ConcurrentHashMap<Mark,Pending>();
+	private ExecutorService _background = null;
+	private ClassCache _diskCache = null;
 	
 	public Evaluator build(Mark mark)
 	{
-		return _compile ? compile(mark) : instance(mark);
+		if (_emit) {
+			Evaluator eval = emitter.emit(mark);
+			if (eval != null) return configure(eval, mark);
+		}
+		if (!_compile || compiler() == null) {
+			return instance(mark);
+		}
+		if (_async) {
+			Evaluator eval = interim(mark);
+			if (eval != null) {
+				submit(Collections.singletonList(generate(mark)));
+				return eval;
+			}
+		}
+		_pending.remove(mark);
+		return compile(mark);
 	}
 	
-	protected Evaluator instance(Mark mark)
+	/**
+	 * Returns the evaluator compiled in the background for the mark's
+	 * current bindings, if it has become available. Each compiled evaluator
+	 * is returned only once; subsequent calls return null.
+	 * @param mark the mark, which must already be bound
+	 * @return the compiled evaluator, or null if none is ready
+	 */
+	public Evaluator compiled(Mark mark)
+	{
+		if (_pending.isEmpty()) return null;
+		Pending p = _pending.get(mark);
+		if (p == null || !p.done) return null;
+		_pending.remove(mark);
+		// discard results for outdated bindings
+		if (!p.pset.equals(mark.propertySet())) return null;
+		return instantiate(p.source);
+	}
+	
+	private Evaluator interim(Mark mark)
 	{
-		Evaluator eval = new StaticEvaluator(mark);
+		// use an interpreted evaluator if the bindings allow
+		Evaluator eval = emitter.emit(mark);
+		if (eval != null) return configure(eval, mark);
 		
+		// otherwise keep the previous bindings until compilation completes
+		eval = mark.evaluator();
+		if (eval != null && eval.datatype() == getDataType(mark)) return eval;
+		return null;
+	}
+	
+	private void submit(final List<Source> sources)
+	{
+		final List<Pending> list = new ArrayList<Pending>(sources.size());
+		for (Source s : sources) {
+			Pending p = new Pending(s);
+			_pending.put(s.mark, p);
+			list.add(p);
+		}
+		background().submit(new Runnable() {
+			public void run() {
+				Set<Scene> scenes = new HashSet<Scene>();
+				try {
+					compile(sources);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+				for (Pending p : list) {
+					p.done = true;
+					Scene scene = p.source.mark.scene();
+					if (scene != null) scenes.add(scene);
+				}
+				// request an update so the compiled evaluators are swapped in
+				for (Scene scene : scenes) {
+					scene.update();
+				}
+			}
+		});
+	}
+	
+	private synchronized ExecutorService background() {
+		if (_background == null) {
+			_background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "pv-compiler");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return _background;
+	}
+	
+	private RuntimeCompiler<?> compiler() {
+		if (compiler == null && !_noCompiler) {
+			try {
+				compiler = RuntimeCompiler.instance();
+			} catch (IllegalStateException e) {
+				// no compiler available (e.g., running on a JRE)
+				System.err.println(e.getMessage());
+				_noCompiler = true;
+			}
+		}
+		return compiler;
+	}
+	
+	protected Evaluator instance(Mark mark)
+	{
+		return configure(new StaticEvaluator(mark), mark);
+	}
+	
+	private Evaluator configure(Evaluator eval, Mark mark)
+	{
 		// if no errors occurred, configure the evaluator
 		if (eval != null) {
 			Integer hasProps = 0;
@@ -78,8 +265,56 @@ public class EvaluatorBuilder implements TemplateConstants {
 		return eval;
 	}
 	
-	@SuppressWarnings("unchecked")
+	/**
+	 * Builds evaluators for a batch of marks. Generated sources not found in
+	 * the cache are compiled together in a single compilation task, rather
+	 * than one task per mark. Large batches are split among parallel
+	 * compilation tasks on the {@link ThreadPool}, if enabled.
+	 * @param marks the marks, which must already be bound
+	 * @return the evaluators, in the same order as the marks
+	 */
+	public List<Evaluator> build(List<Mark> marks)
+	{
+		List<Evaluator> evals = new ArrayList<Evaluator>(marks.size());
+		List<Source> sources = new ArrayList<Source>();
+		List<Source> later = new ArrayList<Source>();
+		boolean compile = _compile && compiler() != null;
+		
+		for (Mark mark : marks) {
+			Evaluator eval = _emit ? emitter.emit(mark) : null;
+			if (eval != null) {
+				eval = configure(eval, mark);
+			} else if (!compile) {
+				eval = instance(mark);
+			} else if (_async && (eval = interim(mark)) != null) {
+				later.add(generate(mark));
+			} else {
+				_pending.remove(mark);
+				sources.add(generate(mark));
+			}
+			evals.add(eval);
+		}
+		if (!later.isEmpty()) submit(later);
+		if (sources.isEmpty()) return evals;
+		
+		compile(sources);
+		for (int i=0, j=0; i<evals.size(); ++i) {
+			if (evals.get(i) == null) {
+				evals.set(i, instantiate(sources.get(j++)));
+			}
+		}
+		return evals;
+	}
+	
 	protected Evaluator compile(Mark mark)
+	{
+		Source s = generate(mark);
+		compile(Collections.singletonList(s));
+		return instantiate(s);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Source generate(Mark mark)
 	{
 		PropertySet pset = mark.propertySet();
 		Class<?> type = mark.itemType();
@@ -210,12 +445,26 @@ public class EvaluatorBuilder implements TemplateConstants {
 			if (props==pset.enter) vp = "_enter_";
 			if (props==pset.exit) vp = "_exit_";
 			
+			int bit = 0;
 			for (Map.Entry<String, Property> pair : props.entrySet())
 			{
 				String name = pair.getKey();
+				int k = bit++;
 				try { itype.getField(name); }
 				catch (Exception e) { continue; }
-				property(name, pair.getValue(), null, vp, decl, body, members);
+				
+				// guard instance properties by the evaluation mask
+				if (!isLink && props == pset.instance && k < 64) {
+					String start = _bodyStart;
+					body.append(start).append("if ((__mask & ")
+						.append(1L << k).append("L) != 0) {\n");
+					_bodyStart = start + "\t";
+					property(name, pair.getValue(), null, vp, decl, body, members);
+					_bodyStart = start;
+					body.append(start).append("}\n");
+				} else {
+					property(name, pair.getValue(), null, vp, decl, body, members);
+				}
 			}
 		}
 		
@@ -262,38 +511,157 @@ public class EvaluatorBuilder implements TemplateConstants {
 		Objects.StringBuffer.reclaim(hdlr);
 		
 		
-		// -- COMPILE AND CONFIGURE -------------------------------------------
+		// -- GENERATE CLASS NAME ---------------------------------------------
 		
-		// look for compiled class in cache
-		Class<Evaluator> evalClass = _cache ? cache.get(src) : null;
-		Evaluator eval = null;
-
-		// compile if no cached version is found
-		if (evalClass == null)
-		{
-			// generate class name
-			String key = src;
-			String className = "Evaluator_"+(_id++);
-			src = src.replace(CLASSNAME, className);
-			if (_printSource) System.out.println(src);
-			
-			// compile
+		Source source = new Source();
+		source.mark = mark;
+		source.members = members;
+		source.key = src;
+		if (_diskCache != null) {
+			source.hash = ClassCache.key(src, type.getName(),
+				datatype.getName(), layer_datatype.getName());
+		}
+		// class name is deterministic if persisted on disk
+		String className = "Evaluator_"+(source.hash==null ? String.valueOf(_id++) : source.hash);
+		source.className = _pkg+"."+className;
+		source.src = src.replace(CLASSNAME, className);
+		return source;
+	}
+	
+	/**
+	 * Resolves the evaluator classes for the given sources, compiling all
+	 * sources missing from the caches.
+	 */
+	private synchronized void compile(List<Source> sources)
+	{
+		ClassCache disk = _diskCache;
+		boolean cached = _cache || disk != null;
+		
+		// look for compiled classes in the caches
+		Map<String,Source> todo = new LinkedHashMap<String,Source>();
+		for (Source s : sources) {
+			s.evalClass = cached ? cache.get(s.key) : null;
+			if (s.evalClass == null && disk != null) {
+				// look for persisted class on disk
+				s.evalClass = load(disk, s.hash);
+				if (s.evalClass != null) cache.put(s.key, s.evalClass);
+			}
+			if (s.evalClass == null && !todo.containsKey(s.key)) {
+				if (_printSource) System.out.println(s.src);
+				todo.put(s.key, s);
+			}
+		}
+		if (todo.isEmpty()) return;
+		
+		// compile, in parallel batches if the batch is large enough
+		List<Source> list = new ArrayList<Source>(todo.values());
+		int n = _parallel ? Math.min(ThreadPool.getThreadCount(), list.size()/MIN_BATCH) : 1;
+		if (n <= 1) {
+			compile(compiler, list);
+		} else {
+			compile(list, n);
+		}
+		
+		for (Source s : list) {
+			if (s.evalClass == null) continue;
+			if (cached) cache.put(s.key, s.evalClass);
+			if (disk != null) {
+				disk.store(s.hash, s.compiler.getByteCode(s.className));
+			}
+		}
+		// duplicate sources share the compiled class
+		for (Source s : sources) {
+			if (s.evalClass != null) continue;
+			Source t = todo.get(s.key);
+			s.evalClass = t.evalClass;
+			s.interpret = t.interpret;
+		}
+	}
+	
+	private void compile(List<Source> list, int n)
+	{
+		while (_compilers.size() < n-1) {
+			_compilers.add(RuntimeCompiler.create());
+		}
+		
+		// partition sources among batches
+		List<List<Source>> batches = new ArrayList<List<Source>>(n);
+		for (int i=0; i<n; ++i) {
+			batches.add(new ArrayList<Source>());
+		}
+		for (int i=0; i<list.size(); ++i) {
+			batches.get(i % n).add(list.get(i));
+		}
+		
+		// compile the first batch on this thread, the rest on the pool
+		List<Future<?>> futures = new ArrayList<Future<?>>(n-1);
+		for (int i=1; i<n; ++i) {
+			final RuntimeCompiler<?> c = _compilers.get(i-1);
+			final List<Source> batch = batches.get(i);
+			futures.add(ThreadPool.getThreadPool().submit(new Runnable() {
+				public void run() { compile(c, batch); }
+			}));
+		}
+		compile(compiler, batches.get(0));
+		for (Future<?> f : futures) {
 			try {
-				evalClass = (Class<Evaluator>) compiler.compile(_pkg+"."+className, src);
-				eval = evalClass.newInstance();
-				if (_cache) cache.put(key, evalClass);
-			} catch (RuntimeCompilerException ex) {
+				f.get();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void compile(RuntimeCompiler<?> c, List<Source> batch)
+	{
+		Map<String,CharSequence> classes = new HashMap<String,CharSequence>();
+		for (Source s : batch) {
+			classes.put(s.className, s.src);
+		}
+		try {
+			Map<String,?> compiled = c.compile(classes,
+				new DiagnosticCollector<JavaFileObject>());
+			for (Source s : batch) {
+				s.evalClass = (Class<Evaluator>) compiled.get(s.className);
+				s.compiler = c;
+			}
+		} catch (RuntimeCompilerException ex) {
+			if (batch.size() > 1) {
+				// isolate the failing sources
+				for (Source s : batch) {
+					compile(c, Collections.singletonList(s));
+				}
+			} else {
 				DiagnosticCollector<?> diag = ex.getDiagnostics();
 				for (Diagnostic<?> d : diag.getDiagnostics()) {
 					System.err.println(d);
 				}
-			} catch (Exception e) {
-				e.printStackTrace();
 			}
-		} else {
-			// create new instance
+		} catch (Exception e) {
+			// the compiler itself failed, use interpreted evaluators
+			e.printStackTrace();
+			for (Source s : batch) {
+				s.interpret = true;
+			}
+		}
+	}
+	
+	private Evaluator instantiate(Source source)
+	{
+		Mark mark = source.mark;
+		PropertySet pset = mark.propertySet();
+		Map<String,Object> members = source.members;
+		Evaluator eval = null;
+		if (source.evalClass == null && source.interpret) {
+			Objects.Map.reclaim(members);
+			return instance(mark);
+		}
+		
+		// create new instance
+		if (source.evalClass != null) {
 			try {
-				eval = evalClass.newInstance();
+				eval = source.evalClass.newInstance();
 			} catch (Exception e) {
 				e.printStackTrace();
 			}
@@ -303,7 +671,7 @@ public class EvaluatorBuilder implements TemplateConstants {
 		if (eval != null) {
 			Integer hasProps = 0;
 			try {
-				Method m = type.getDeclaredMethod("checkProperties", Map.class);
+				Method m = mark.itemType().getDeclaredMethod("checkProperties", Map.class);
 				hasProps = (Integer) m.invoke(null, pset.instance);
 			} catch (Exception ex) {
 				// should never happen
@@ -313,7 +681,7 @@ public class EvaluatorBuilder implements TemplateConstants {
 			if (!members.isEmpty()) RuntimeCompiler.configure(eval, members);
 			
 			// extract event handlers
-			hid = 0;
+			int hid = 0;
 			Class<?> evaltype = eval.getClass();
 			for (String name : pset.handlers.keySet()) {
 				List<EventHandler> list = pset.handlers.get(name);
@@ -337,8 +705,27 @@ public class EvaluatorBuilder implements TemplateConstants {
 		return eval;
 	}
 	
+	@SuppressWarnings("unchecked")
+	private Class<Evaluator> load(ClassCache disk, String hash) {
+		Map<String,byte[]> classes = disk.load(hash);
+		if (classes == null) return null;
+		try {
+			return (Class<Evaluator>) compiler.define(
+				_pkg+".Evaluator_"+hash, classes);
+		} catch (Throwable t) {
+			// stale or corrupt entry, fall back to compilation
+			t.printStackTrace();
+			return null;
+		}
+	}
+	
 	private static Class<?> getDataType(Mark mark) {
 		if (mark != null) {
+			// prefer the bound type, the evaluator may not be built yet
+			PropertySet pset = mark.propertySet();
+			Object type = pset.group == null ? null : getConstant(pset, "datatype");
+			if (type instanceof Class<?>)
+				return (Class<?>) type;
 			Evaluator eval = mark.evaluator();
 			if (eval != null)
 				return eval.datatype();
@@ -476,4 +863,33 @@ public class EvaluatorBuilder implements TemplateConstants {
 		}
 	}
 	
+	/**
+	 * An evaluator being compiled in the background.
+	 */
+	private static class Pending {
+		Source source;
+		PropertySet pset;
+		volatile boolean done = false;
+		
+		Pending(Source source) {
+			this.source = source;
+			this.pset = source.mark.propertySet();
+		}
+	}
+	
+	/**
+	 * Generated evaluator source awaiting compilation.
+	 */
+	private static class Source {
+		Mark mark;
+		String key;
+		String src;
+		String hash;
+		String className;
+		Map<String,Object> members;
+		Class<Evaluator> evalClass;
+		RuntimeCompiler<?> compiler;
+		boolean interpret;
+	}
+	
 }
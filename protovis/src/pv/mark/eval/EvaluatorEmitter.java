@@ -0,0 +1,432 @@
+package pv.mark.eval;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import pv.mark.Mark;
+import pv.mark.Mark.PropertySet;
+import pv.mark.property.ConstantProperty;
+import pv.mark.property.DynamicProperty;
+import pv.mark.property.Property;
+import pv.scene.GroupItem;
+import pv.scene.Item;
+import pv.scene.LinkItem;
+import pv.style.Fill;
+import pv.style.Font;
+import pv.style.Stroke;
+import pv.util.ClassWriter;
+
+/**
+ * Generates {@link EmittedEvaluator} subclasses directly as byte code,
+ * without requiring a Java compiler at runtime. Each property binding is
+ * emitted as a typed field store on the item, in the same order and with
+ * the same item fields as the source template used by
+ * {@link EvaluatorBuilder}. Generated classes depend only on the shape of
+ * a mark's property set, and are shared among marks of the same shape.
+ * <p>
+ * Constant and compiled properties are supported, along with the simple
+ * dynamic expressions used by the default mark definitions (numeric
+ * literals, <code>data</code>, <code>index</code>, <code>item.field</code>,
+ * <code>Math.sqrt(item.field)</code> and <code>String.valueOf(data)</code>).
+ * For any other dynamic code, {@link #emit(Mark)} returns null and the mark
+ * must be handled by another backend.
+ */
+public class EvaluatorEmitter {
+
+	private static final String BASE = "pv/mark/eval/EmittedEvaluator";
+	private static final String PROPERTY = "pv/mark/property/Property";
+	private static final String ITEM_DESC = "(Lpv/scene/Item;)V";
+	private static final String GROUP_DESC = "(Lpv/scene/GroupItem;)V";
+
+	private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d*)?([eE][-+]?\\d+)?");
+	private static final Pattern FIELD = Pattern.compile("item\\.(\\w+)");
+	private static final Pattern SQRT = Pattern.compile("Math\\.sqrt\\(item\\.(\\w+)\\)");
+	private static final String VALUE_OF_DATA = "String.valueOf(data)";
+
+	private static final Step SKIP = new Step(null, -1);
+
+	private static final Class<?>[] NUMERIC = {
+		int.class, long.class, float.class, double.class
+	};
+
+	private int _id = 0;
+	private String _pkg = "pv.temp";
+	private Map<String,Class<?>> _classes = new HashMap<String,Class<?>>();
+	private Loader _loader = new Loader(EvaluatorEmitter.class.getClassLoader());
+
+	/**
+	 * Indicates if the given mark can be handled by this backend.
+	 * @param mark the mark, which must already be bound
+	 * @return true if an evaluator can be emitted for the mark
+	 */
+	public boolean supports(Mark mark) {
+		return plan(mark, new ArrayList<Property>(),
+			new ArrayList<Object>(), new StringBuffer()) != null;
+	}
+
+	/**
+	 * Emits an evaluator for the given mark.
+	 * @param mark the mark, which must already be bound
+	 * @return a new evaluator, or null if the mark's property bindings are
+	 * not supported by this backend
+	 */
+	public synchronized Evaluator emit(Mark mark)
+	{
+		List<Property> props = new ArrayList<Property>();
+		List<Object> consts = new ArrayList<Object>();
+		StringBuffer key = new StringBuffer();
+		Step[][] plan = plan(mark, props, consts, key);
+		if (plan == null) return null;
+
+		try {
+			Class<?> type = _classes.get(key.toString());
+			if (type == null) {
+				String name = _pkg+".Emitted_"+(_id++);
+				byte[] bytes = write(name.replace('.', '/'), mark.itemType(), plan);
+				type = _loader.define(name, bytes);
+				_classes.put(key.toString(), type);
+			}
+			EmittedEvaluator eval = (EmittedEvaluator)
+				type.getConstructor(Mark.class).newInstance(mark);
+			PropertySet pset = mark.propertySet();
+			eval._p = props.toArray(new Property[props.size()]);
+			eval._c = consts.toArray();
+			eval._inheritData = isCode(pset.data, "data");
+			Property k = pset.keys == null ? null : pset.keys.get("key");
+			eval._indexKey = isCode(k, "index");
+			eval._dataKey = isCode(k, "data");
+			return eval;
+		} catch (Throwable t) {
+			// e.g., inaccessible item types; let another backend handle it
+			t.printStackTrace();
+			return null;
+		}
+	}
+
+	// -- planning ------------------------------------------------------------
+
+	private Step[][] plan(Mark mark, List<Property> props, List<Object> consts, StringBuffer key)
+	{
+		PropertySet pset = mark.propertySet();
+		Class<?> type = mark.itemType();
+		if (type == LinkItem.class) return null;
+
+		// data and key bindings are interpreted by the base class
+		if (!isInterpreted(pset.data, "data")) return null;
+		if (pset.keys != null) {
+			Property k = pset.keys.get("key");
+			if (!isInterpreted(k, "index") && !isCode(k, "data")) return null;
+		}
+
+		// dynamic event handlers require compilation
+		for (List<EventHandler> list : pset.handlers.values()) {
+			for (EventHandler h : list) {
+				if (h instanceof DynamicEventHandler) return null;
+			}
+		}
+
+		key.append(type.getName());
+		Step[][] plan = new Step[4][];
+		List<Map<String,Property>> sets = new ArrayList<Map<String,Property>>();
+		sets.add(pset.group);
+		sets.add(pset.instance);
+		sets.add(pset.enter);
+		sets.add(pset.exit);
+
+		for (int i=0; i<4; ++i) {
+			Map<String,Property> set = sets.get(i);
+			Class<?> itype = (i==0 ? GroupItem.class : type);
+			List<Step> steps = new ArrayList<Step>();
+			key.append('|');
+			if (set != null) {
+				for (Map.Entry<String,Property> e : set.entrySet()) {
+					Step s = step(itype, e.getKey(), e.getValue(), props, consts);
+					if (s == null) return null;
+					if (s == SKIP) continue;
+					steps.add(s);
+					s.describe(key);
+				}
+			}
+			plan[i] = steps.toArray(new Step[steps.size()]);
+		}
+		return plan;
+	}
+
+	private static boolean isInterpreted(Property p, String code) {
+		return p == null || p.type() != Property.Type.DYNAMIC || isCode(p, code);
+	}
+
+	private static boolean isCode(Property p, String code) {
+		if (p == null || p.type() != Property.Type.DYNAMIC) return false;
+		String[] lines = ((DynamicProperty)p).lines();
+		return lines.length == 1 && code.equals(lines[0]);
+	}
+
+	private static Step step(Class<?> itype, String name, Property p,
+		List<Property> props, List<Object> consts)
+	{
+		Field target = field(itype, name);
+		if (target == null) return SKIP;
+		Class<?> t = target.getType();
+
+		if (p == null) {
+			return t.isPrimitive() ? SKIP : new Step(target, Step.NULL);
+		}
+
+		Step s;
+		switch (p.type()) {
+		case CONSTANT:
+			Object v = ((ConstantProperty)p).value();
+			if (isNumeric(t) && v instanceof Number) {
+				s = new Step(target, Step.NUMBER);
+				s.value = ((Number)v).doubleValue();
+				return s;
+			} else if (t == boolean.class && v instanceof Boolean) {
+				s = new Step(target, Step.NUMBER);
+				s.value = ((Boolean)v) ? 1 : 0;
+				return s;
+			} else if (t == String.class) {
+				v = String.valueOf(v);
+			} else if (t.isPrimitive() || (v != null && !t.isInstance(v))) {
+				return null;
+			}
+			s = new Step(target, Step.CONSTANT);
+			s.slot = consts.size();
+			consts.add(v);
+			return s;
+
+		case DYNAMIC:
+			String[] lines = ((DynamicProperty)p).lines();
+			if (lines.length != 1) return null;
+			return dynamic(itype, target, lines[0]);
+
+		default:
+			if (method(t) == null) return null;
+			s = new Step(target, Step.PROPERTY);
+			s.slot = props.size();
+			props.add(p);
+			return s;
+		}
+	}
+
+	private static Step dynamic(Class<?> itype, Field target, String code) {
+		Class<?> t = target.getType();
+		Matcher m;
+		if (NUMBER.matcher(code).matches()) {
+			if (!isNumeric(t)) return null;
+			Step s = new Step(target, Step.NUMBER);
+			s.value = Double.parseDouble(code);
+			return s;
+		} else if ("true".equals(code) || "false".equals(code)) {
+			if (t != boolean.class) return null;
+			Step s = new Step(target, Step.NUMBER);
+			s.value = "true".equals(code) ? 1 : 0;
+			return s;
+		} else if (VALUE_OF_DATA.equals(code)) {
+			if (!t.isAssignableFrom(String.class)) return null;
+			return new Step(target, Step.STRING);
+		} else if ("data".equals(code) || "index".equals(code)) {
+			return source(target, Step.FIELD, field(itype, code));
+		} else if ((m=FIELD.matcher(code)).matches()) {
+			return source(target, Step.FIELD, field(itype, m.group(1)));
+		} else if ((m=SQRT.matcher(code)).matches()) {
+			Field f = field(itype, m.group(1));
+			if (f == null || !isNumeric(f.getType()) || !isNumeric(t)) return null;
+			return source(target, Step.SQRT, f);
+		}
+		return null;
+	}
+
+	private static Step source(Field target, int kind, Field source) {
+		if (source == null) return null;
+		Class<?> s = source.getType(), t = target.getType();
+		boolean ok = (s == t)
+			|| (isNumeric(s) && isNumeric(t))
+			|| (!s.isPrimitive() && !t.isPrimitive());
+		if (!ok) return null;
+		Step step = new Step(target, kind);
+		step.source = source;
+		return step;
+	}
+
+	private static Field field(Class<?> type, String name) {
+		try {
+			Field f = type.getField(name);
+			return Modifier.isStatic(f.getModifiers()) ? null : f;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static boolean isNumeric(Class<?> c) {
+		for (Class<?> n : NUMERIC) if (n == c) return true;
+		return false;
+	}
+
+	private static String method(Class<?> t) {
+		if (isNumeric(t)) return "number";
+		if (t == boolean.class) return "bool";
+		if (t == String.class) return "string";
+		if (t == Fill.class) return "fill";
+		if (t == Stroke.class) return "stroke";
+		if (t == Font.class) return "font";
+		return t.isPrimitive() ? null : "object";
+	}
+
+	// -- code generation -----------------------------------------------------
+
+	private static byte[] write(String name, Class<?> type, Step[][] plan) {
+		ClassWriter cw = new ClassWriter(name, BASE);
+
+		ClassWriter.Code c = cw.method(ClassWriter.ACC_PUBLIC,
+			"<init>", "(Lpv/mark/Mark;)V", 2, 2);
+		c.aload(0).aload(1).invokespecial(BASE, "<init>", "(Lpv/mark/Mark;)V");
+		c.op(ClassWriter.RETURN);
+
+		write(cw, "evalGroup", GROUP_DESC, GroupItem.class, plan[0]);
+		write(cw, "evalInstance", ITEM_DESC, type, plan[1]);
+		write(cw, "evalEnter", ITEM_DESC, type, plan[2]);
+		write(cw, "evalExit", ITEM_DESC, type, plan[3]);
+		return cw.toByteArray();
+	}
+
+	private static void write(ClassWriter cw, String method, String desc,
+		Class<?> type, Step[] steps)
+	{
+		String owner = internal(type);
+		ClassWriter.Code c = cw.method(ClassWriter.ACC_PUBLIC, method, desc, 6, 3);
+		c.aload(1).checkcast(owner).astore(2);
+
+		for (Step s : steps) {
+			Class<?> t = s.target.getType();
+			c.aload(2);
+			switch (s.kind) {
+			case Step.NULL:
+				c.op(ClassWriter.ACONST_NULL);
+				break;
+			case Step.NUMBER:
+				if (t == double.class || t == float.class || t == long.class) {
+					c.dconst(s.value);
+					convert(c, double.class, t);
+				} else {
+					c.iconst((int)s.value);
+				}
+				break;
+			case Step.CONSTANT:
+				c.aload(0).getfield(BASE, "_c", "[Ljava/lang/Object;");
+				c.iconst(s.slot).op(ClassWriter.AALOAD);
+				convert(c, Object.class, t);
+				break;
+			case Step.PROPERTY:
+				String m = method(t);
+				Class<?> r = "number".equals(m) ? double.class
+					: "bool".equals(m) ? boolean.class
+					: "object".equals(m) ? Object.class : t;
+				c.aload(0).getfield(BASE, "_p", "[L"+PROPERTY+";");
+				c.iconst(s.slot).op(ClassWriter.AALOAD);
+				c.aload(1).invokeinterface(PROPERTY, m,
+					"(Lpv/scene/Item;)"+descriptor(r), 1);
+				convert(c, r, t);
+				break;
+			case Step.FIELD:
+				c.aload(2).getfield(owner, s.source.getName(),
+					descriptor(s.source.getType()));
+				convert(c, s.source.getType(), t);
+				break;
+			case Step.SQRT:
+				c.aload(2).getfield(owner, s.source.getName(),
+					descriptor(s.source.getType()));
+				convert(c, s.source.getType(), double.class);
+				c.invokestatic("java/lang/Math", "sqrt", "(D)D");
+				convert(c, double.class, t);
+				break;
+			case Step.STRING:
+				c.aload(2).getfield(owner, "data", "Ljava/lang/Object;");
+				c.invokestatic("java/lang/String", "valueOf",
+					"(Ljava/lang/Object;)Ljava/lang/String;");
+				break;
+			}
+			c.putfield(owner, s.target.getName(), descriptor(t));
+		}
+		c.op(ClassWriter.RETURN);
+	}
+
+	private static void convert(ClassWriter.Code c, Class<?> from, Class<?> to) {
+		if (from == to) return;
+		if (isNumeric(from) && isNumeric(to)) {
+			int fi = numeric(from), ti = numeric(to);
+			c.op(ClassWriter.I2L + 3*fi + (ti < fi ? ti : ti-1));
+		} else if (!to.isAssignableFrom(from)) {
+			c.checkcast(internal(to));
+		}
+	}
+
+	private static int numeric(Class<?> c) {
+		for (int i=0; i<NUMERIC.length; ++i) if (NUMERIC[i] == c) return i;
+		return -1;
+	}
+
+	private static String internal(Class<?> c) {
+		return c.getName().replace('.', '/');
+	}
+
+	private static String descriptor(Class<?> c) {
+		if (c == void.class) return "V";
+		if (c == boolean.class) return "Z";
+		if (c == byte.class) return "B";
+		if (c == char.class) return "C";
+		if (c == short.class) return "S";
+		if (c == int.class) return "I";
+		if (c == long.class) return "J";
+		if (c == float.class) return "F";
+		if (c == double.class) return "D";
+		if (c.isArray()) return internal(c);
+		return "L"+internal(c)+";";
+	}
+
+	// ------------------------------------------------------------------------
+
+	private static class Step {
+		static final int NULL = 0;
+		static final int NUMBER = 1;
+		static final int CONSTANT = 2;
+		static final int PROPERTY = 3;
+		static final int FIELD = 4;
+		static final int SQRT = 5;
+		static final int STRING = 6;
+
+		Field target;
+		int kind;
+		int slot;
+		double value;
+		Field source;
+
+		Step(Field target, int kind) {
+			this.target = target;
+			this.kind = kind;
+		}
+
+		void describe(StringBuffer b) {
+			b.append(target.getName()).append(':').append(kind);
+			if (kind == NUMBER) b.append('=').append(value);
+			if (source != null) b.append('=').append(source.getName());
+			b.append(';');
+		}
+	}
+
+	private static class Loader extends ClassLoader {
+		Loader(ClassLoader parent) {
+			super(parent);
+		}
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+}
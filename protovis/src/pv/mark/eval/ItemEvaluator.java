@@ -7,6 +7,7 @@ import pv.animate.Animator;
 import pv.animate.GroupTransition;
 import pv.animate.Transition;
 import pv.mark.Mark;
+import pv.scene.ColumnGroupItem;
 import pv.scene.GroupItem;
 import pv.util.Objects;
 
@@ -26,13 +27,29 @@ public abstract class ItemEvaluator implements Evaluator {
 		return index;
 	}
 	
+	/**
+	 * Evaluates the instance properties selected by a bit mask, where bit
+	 * <i>k</i> selects the <i>k</i>-th property of the mark's bound
+	 * instance properties. Implied properties are recomputed for every
+	 * item. The default implementation evaluates all properties.
+	 * @param group the group to evaluate
+	 * @param start the first item index, inclusive
+	 * @param end the last item index, exclusive
+	 * @param animate true if the evaluation is animated
+	 * @param mask the instance properties to evaluate, -1 for all
+	 */
+	public void evaluate(GroupItem group, int start, int end, boolean animate, long mask) {
+		evaluate(group, start, end, animate);
+	}
+	
 	protected static GroupItem getGroup(Mark mark, GroupItem proto, GroupItem layer)
 	{
 		int index = mark.treeIndex();
 		GroupItem group = (GroupItem) layer.items.get(index);
 		
-		if (group == null) {
-			group = new GroupItem(mark.markType());
+		if (group == null || mark.columnar() != (group instanceof ColumnGroupItem)) {
+			group = mark.columnar() ? new ColumnGroupItem(mark.markType())
+				: new GroupItem(mark.markType());
 			group.group = layer;
 			group.index = index;
 			layer.items.set(index, group);
@@ -12,6 +12,7 @@ import pv.mark.constants.Events;
 import pv.mark.constants.MarkType;
 import pv.mark.property.ConstantProperty;
 import pv.mark.property.Property;
+import pv.scene.ColumnGroupItem;
 import pv.scene.DotItem;
 import pv.scene.GroupItem;
 import pv.scene.ImageItem;
@@ -59,10 +60,12 @@ public class StaticEvaluator extends ItemEvaluator {
 			}
 		}
 		if (pset.instance != null) {
+			int k = 0;
 			for (Map.Entry<String,Property> e : pset.instance.entrySet()) {
 				PropertyEval pe = PropertyEval.get(e.getKey());
+				long bit = k < 64 ? 1L << k : -1L; ++k;
 				if (pe == null || e.getValue() == null) continue;
-				_pinstance.add(new Pair(pe, e.getValue()));
+				_pinstance.add(new Pair(pe, e.getValue(), bit));
 			}
 		}
 		if (pset.enter != null) {
@@ -106,12 +109,54 @@ public class StaticEvaluator extends ItemEvaluator {
 		}
 	}
 	
-	@SuppressWarnings("unchecked")
+	private void evalItem(Item item, List<Pair> list, long mask) {
+		int len = list.size();
+		for (int i=0; i<len; ++i) {
+			Pair p = list.get(i);
+			if ((p.bit & mask) != 0) p.eval(item);
+		}
+	}
+	
+	protected void evalGroup(GroupItem item) {
+		evalItem(item, _pgroup);
+	}
+	
+	protected void evalInstance(Item item) {
+		evalItem(item, _pinstance);
+	}
+	
+	protected void evalEnter(Item item) {
+		evalItem(item, _penter);
+	}
+	
+	protected void evalExit(Item item) {
+		evalItem(item, _pexit);
+	}
+	
 	public GroupItem build(Mark mark, GroupItem proto, PanelItem layer, boolean animate) {
 		GroupItem group = getGroup(mark, proto, layer);
 		group.modified(false);
 		Iterable<?> _data_ = data(group);
-				
+
+		if (group instanceof ColumnGroupItem) {
+			((ColumnGroupItem)group).build(_data_);
+		} else {
+			buildItems(mark, group, _data_, animate);
+		}
+		
+		// EVALUATE GROUP PROPERTIES
+		{
+			GroupItem item = group;
+			item.handlers = mark.propertySet().handlers;
+			evalGroup(item);
+			// FIRE BUILD EVENT
+			MarkEvent.fire(MarkEvent.create(Events.build), item, item);
+		}
+		return group;
+	}
+		
+	@SuppressWarnings("unchecked")
+	private void buildItems(Mark mark, GroupItem group, Iterable<?> _data_, boolean animate) {
 		// BUILD LOOKUP TABLE
 		Map<Object,Item> map = null;
 		if (animate && _hasKey) {
@@ -208,27 +253,21 @@ public class StaticEvaluator extends ItemEvaluator {
 		
 		// remove extra items if length changes
 		group.discard(idx);
-		
-		// EVALUATE GROUP PROPERTIES
-		{
-			GroupItem item = group;
-			item.handlers = mark.propertySet().handlers;
-			evalItem(item, _pgroup);
-			// FIRE BUILD EVENT
-			MarkEvent.fire(MarkEvent.create(Events.build), item, item);
-		}
-		return group;
 	}
 		
 	public void evaluate(GroupItem group, int start, int end, boolean animate) {
+		if (group instanceof ColumnGroupItem) {
+			evaluate((ColumnGroupItem)group, start, end);
+			return;
+		}
 		for (int i=start; i<end; ++i) {
 			Item item = group.item(i);
 			boolean zombie = item.zombie();
 			
 			// EVALUATE PROPERTIES
-			evalItem(item, _pinstance);
+			evalInstance(item);
 			if (zombie) {
-				evalItem(item, _pexit);
+				evalExit(item);
 			}
 			item.buildImplied(_props);
 			
@@ -239,7 +278,7 @@ public class StaticEvaluator extends ItemEvaluator {
 					item.born(false);
 					item.next.populate(item);
 					item = item.next;
-					evalItem(item, _penter);
+					evalEnter(item);
 					item.buildImplied(_props);
 				} else if (!zombie) {
 					item.populate(item.next); // ???
@@ -251,13 +290,56 @@ public class StaticEvaluator extends ItemEvaluator {
 		}
 	}
 	
+	public void evaluate(GroupItem group, int start, int end, boolean animate, long mask) {
+		if (animate || mask == -1L) {
+			evaluate(group, start, end, animate);
+		} else if (group instanceof ColumnGroupItem) {
+			evaluate((ColumnGroupItem)group, start, end, mask);
+		} else {
+			for (int i=start; i<end; ++i) {
+				Item item = group.item(i);
+				evalItem(item, _pinstance, mask);
+				item.buildImplied(_props);
+			}
+		}
+	}
+	
+	/**
+	 * Evaluates the rows of a columnar group, using a single cursor item
+	 * to hold the values of the current row.
+	 */
+	protected void evaluate(ColumnGroupItem group, int start, int end) {
+		Item item = _factory.create();
+		for (int i=start; i<end; ++i) {
+			group.load(item, i);
+			evalInstance(item);
+			item.buildImplied(_props);
+			group.store(item, i);
+		}
+	}
+	
+	private void evaluate(ColumnGroupItem group, int start, int end, long mask) {
+		Item item = _factory.create();
+		for (int i=start; i<end; ++i) {
+			group.load(item, i);
+			evalItem(item, _pinstance, mask);
+			item.buildImplied(_props);
+			group.store(item, i);
+		}
+	}
+	
 	public static class Pair {
 		PropertyEval eval;
 		Property p;
+		long bit = -1L;
 		public Pair(PropertyEval eval, Property p) {
 			this.eval = eval;
 			this.p = p;
 		}		
+		public Pair(PropertyEval eval, Property p, long bit) {
+			this(eval, p);
+			this.bit = bit;
+		}
 		public void eval(Item x) {
 			eval.eval(x, p);
 		}
@@ -349,6 +431,7 @@ public class StaticEvaluator extends ItemEvaluator {
 			map.put("segmented", new SegmentedEval());
 			map.put("interpolate", new InterpolateEval());
 			map.put("depth", new DepthEval());
+			map.put("lod", new LodEval());
 		}
 		public static PropertyEval get(String name) {
 			return map.get(name);
@@ -457,6 +540,9 @@ public class StaticEvaluator extends ItemEvaluator {
 		public static class DepthEval extends PropertyEval {
 			public void eval(Item x, Property p) { ((GroupItem)x).depth = (int)p.number(x); }
 		}
+		public static class LodEval extends PropertyEval {
+			public void eval(Item x, Property p) { ((GroupItem)x).lod = p.number(x); }
+		}
 		
 		// TODO LINK
 	}
@@ -0,0 +1,188 @@
+package pv.mark.update;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import pv.mark.Variable;
+import pv.mark.Mark.PropertySet;
+import pv.mark.property.DynamicProperty;
+import pv.mark.property.Property;
+import pv.mark.property.VariableProperty;
+
+/**
+ * Records which {@link Variable}s and scenegraph fields the bound
+ * properties of a mark read, so that an update can re-evaluate only the
+ * properties affected by a change. Instance properties are identified by
+ * their position in the property set, matching the evaluation masks of
+ * {@link pv.mark.eval.ItemEvaluator#evaluate(pv.scene.GroupItem, int, int, boolean, long)}.
+ *
+ * <p>Dependencies of dynamic properties are found by scanning the property
+ * code for identifiers. Dynamic properties are assumed to read only the
+ * item, its data and index, its ancestors and prototype, and the mark's
+ * variables. Compiled properties may read anything, and are re-evaluated
+ * on every update.</p>
+ */
+public class Dependencies {
+
+	/** Identifiers reading the enclosing panel or prototype items. */
+	private static final Set<String> UPSTREAM = new HashSet<String>(
+		Arrays.asList("parent", "proto", "ancestor", "cousin", "group"));
+	/** Identifiers reading other properties of the same mark. */
+	private static final Set<String> LOCAL = new HashSet<String>(
+		Arrays.asList("item", "sibling", "cousin"));
+
+	private final Variable[] _vars;
+	private final long[] _varBits;
+	private long _unknown = 0;
+	private long _upstream = 0;
+	private long _local = 0;
+	private boolean _opaque = false;
+
+	/**
+	 * Computes the dependencies of a property set.
+	 * @param pset the bound properties of a mark
+	 */
+	public Dependencies(PropertySet pset) {
+		List<Variable> vars = new ArrayList<Variable>();
+		Map<String,Integer> names = new HashMap<String,Integer>();
+		if (pset.vars != null) {
+			for (Map.Entry<String,Property> e : pset.vars.entrySet()) {
+				if (!(e.getValue() instanceof VariableProperty)) continue;
+				names.put(e.getKey(), vars.size());
+				vars.add(((VariableProperty)e.getValue()).value());
+			}
+		}
+		// build-level properties: any changed variable already forces a
+		// build, so only properties of unknown origin need recording
+		_opaque = unknown(pset.data);
+		for (Map<String,Property> props : Arrays.asList(pset.group, pset.keys)) {
+			if (props == null) continue;
+			for (Property p : props.values()) _opaque |= unknown(p);
+		}
+
+		// instance properties
+		List<Long> bits = new ArrayList<Long>();
+		for (int i=0; i<vars.size(); ++i) bits.add(0L);
+		if (pset.instance != null) {
+			_opaque |= pset.instance.size() > 64;
+			int k = 0;
+			for (Property p : pset.instance.values()) {
+				long bit = k < 64 ? 1L << k : 0; ++k;
+				if (p == null) continue;
+				switch (p.type()) {
+				case CONSTANT:
+					break;
+				case VARIABLE:
+					Variable v = ((VariableProperty)p).value();
+					int idx = vars.indexOf(v);
+					if (idx < 0) {
+						idx = vars.size();
+						vars.add(v);
+						bits.add(0L);
+					}
+					bits.set(idx, bits.get(idx) | bit);
+					break;
+				case DYNAMIC:
+					for (String id : identifiers(p.toString())) {
+						Integer vi = names.get(id);
+						if (vi != null) bits.set(vi, bits.get(vi) | bit);
+						if (UPSTREAM.contains(id)) _upstream |= bit;
+						if (LOCAL.contains(id)) _local |= bit;
+					}
+					break;
+				default:
+					_unknown |= bit;
+				}
+			}
+		}
+		_vars = vars.toArray(new Variable[vars.size()]);
+		_varBits = new long[bits.size()];
+		for (int i=0; i<_varBits.length; ++i) _varBits[i] = bits.get(i);
+	}
+
+	private static boolean unknown(Property p) {
+		return p != null && p.type() == Property.Type.COMPILED;
+	}
+
+	/**
+	 * Returns true if the build of the mark depends on values that can not
+	 * be tracked, so that the mark must be rebuilt on every update.
+	 */
+	public boolean opaque() {
+		return _opaque;
+	}
+
+	/**
+	 * Returns the current versions of the variables the mark depends on.
+	 */
+	public int[] versions() {
+		int[] v = new int[_vars.length];
+		for (int i=0; i<v.length; ++i) v[i] = _vars[i].version();
+		return v;
+	}
+
+	/**
+	 * Returns true if any variable changed since the given versions.
+	 * @param versions versions returned by {@link #versions()}
+	 */
+	public boolean changed(int[] versions) {
+		for (int i=0; i<_vars.length; ++i) {
+			if (_vars[i].version() != versions[i]) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the instance properties that need evaluation.
+	 * @param versions variable versions at the last evaluation
+	 * @param upstream true if the enclosing panel or prototype changed
+	 * @return a bit mask of instance properties
+	 */
+	public long mask(int[] versions, boolean upstream) {
+		long mask = _unknown;
+		for (int i=0; i<_vars.length; ++i) {
+			if (_vars[i].version() != versions[i]) mask |= _varBits[i];
+		}
+		if (upstream) mask |= _upstream;
+		// properties reading other properties of the mark follow them
+		if (mask != 0) mask |= _local;
+		return mask;
+	}
+
+	/**
+	 * Returns the identifiers of a code fragment that are not member
+	 * accesses, skipping string and character literals.
+	 */
+	private static Set<String> identifiers(String code) {
+		Set<String> ids = new HashSet<String>();
+		int len = code.length();
+		for (int i=0; i<len;) {
+			char c = code.charAt(i);
+			if (c == '"' || c == '\'') {
+				// skip literal
+				for (++i; i<len && code.charAt(i) != c; ++i) {
+					if (code.charAt(i) == '\\') ++i;
+				}
+				++i;
+			} else if (Character.isJavaIdentifierStart(c)) {
+				int j = i;
+				while (j<len && Character.isJavaIdentifierPart(code.charAt(j))) ++j;
+				int k = i-1;
+				while (k>=0 && Character.isWhitespace(code.charAt(k))) --k;
+				if (k < 0 || code.charAt(k) != '.') {
+					ids.add(code.substring(i, j));
+				}
+				i = j;
+			} else {
+				++i;
+			}
+		}
+		return ids;
+	}
+
+}
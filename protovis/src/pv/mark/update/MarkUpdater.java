@@ -1,9 +1,14 @@
 package pv.mark.update;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import pv.animate.Scheduler;
 import pv.animate.Transition;
 import pv.mark.Mark;
+import pv.mark.Scene;
 import pv.scene.GroupItem;
+import pv.scene.Item;
 import pv.scene.PanelItem;
 
 public abstract class MarkUpdater {
@@ -12,14 +17,84 @@ public abstract class MarkUpdater {
 	public static MarkUpdater instance() {
 		return s_updater;
 	}
+	/**
+	 * Sets the updater used to update scenes.
+	 */
+	public static void instance(MarkUpdater updater) {
+		s_updater = updater;
+	}
+	
+	private final List<UpdateListener> _listeners = new CopyOnWriteArrayList<UpdateListener>();
 	
 	public abstract void update(Mark mark, GroupItem proto, PanelItem panel, Transition t);
 	
+	// -- instrumentation -----------------------------------------------------
+	
+	/**
+	 * Adds a listener notified with the timings and counts of each update.
+	 * Updates are instrumented only while listeners are registered.
+	 */
+	public void addUpdateListener(UpdateListener l) {
+		_listeners.add(l);
+	}
+	
+	/**
+	 * Removes an update listener.
+	 */
+	public void removeUpdateListener(UpdateListener l) {
+		_listeners.remove(l);
+	}
+	
+	/**
+	 * Starts recording an update.
+	 * @return the stats to record into, or null if no listeners are
+	 *  registered
+	 */
+	protected UpdateStats startStats() {
+		return _listeners.isEmpty() ? null : new UpdateStats();
+	}
+	
+	/**
+	 * Returns the number of items a mark currently has in a panel, used
+	 * to count discarded items.
+	 */
+	protected static int groupSize(Mark mark, PanelItem panel) {
+		int idx = mark.treeIndex();
+		if (idx < 0 || idx >= panel.size()) return 0;
+		Item item = panel.item(idx);
+		return item instanceof GroupItem ? ((GroupItem)item).size() : 0;
+	}
+	
+	/**
+	 * Finishes recording an update and notifies the listeners.
+	 */
+	protected void fireUpdated(Mark mark, UpdateStats stats) {
+		if (stats == null) return;
+		stats.finish();
+		for (UpdateListener l : _listeners) {
+			try {
+				l.updated(mark, stats);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Notes that the scene of an updated mark changed, so that displays
+	 * render it.
+	 */
+	static void changed(Mark mark) {
+		Scene scene = mark.scene();
+		if (scene != null) scene.changed();
+	}
+	
 	public void submit(Mark mark, GroupItem proto, PanelItem panel, Transition t) {
 		if (Scheduler.isCurrentThread()) {
 			//long t0 = System.currentTimeMillis();
 			
 			update(mark, proto, panel, t);
+			changed(mark);
 			
 			//long t1 = System.currentTimeMillis();
 			//System.out.println((t1-t0)/1000f+"s");
@@ -51,6 +126,7 @@ public abstract class MarkUpdater {
 			//long t0 = System.currentTimeMillis();
 
 			exec.update(mark, proto, panel, trans);
+			changed(mark);
 			
 			//long t1 = System.currentTimeMillis();
 			//System.out.println((t1-t0)/1000f+"s");
@@ -1,11 +1,14 @@
 package pv.mark.update;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.Callable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import pv.animate.Transition;
 import pv.mark.Mark;
@@ -15,97 +18,237 @@ import pv.mark.constants.Events;
 import pv.mark.constants.MarkType;
 import pv.mark.eval.Evaluator;
 import pv.mark.eval.EvaluatorBuilder;
+import pv.mark.eval.ItemEvaluator;
 import pv.mark.eval.LinkEvaluator;
 import pv.scene.GroupItem;
 import pv.scene.Item;
 import pv.scene.PanelItem;
-import pv.util.ThreadPool;
+import pv.util.ForkJoinPool;
+import pv.util.RecursiveAction;
 
+/**
+ * Updates marks in parallel on a work-stealing {@link ForkJoinPool}. The
+ * build and evaluation of each group are recursive tasks that fork the
+ * tasks of their child marks once done, and group evaluation is split
+ * adaptively: ranges of items are halved only while other workers are
+ * idle and the range exceeds the {@link #grain()} size.
+ */
 public class ParallelUpdater extends MarkUpdater {
 
+	/** Queued tasks above which evaluation ranges are no longer split. */
+	private static final int SURPLUS = 3;
+	
 	protected EvaluatorBuilder _compiler = EvaluatorBuilder.instance();
+	protected ForkJoinPool _pool;
 	
-	private Queue<Future<?>> _futures = new ConcurrentLinkedQueue<Future<?>>();
 	private Queue<GraphTask> _links = new ConcurrentLinkedQueue<GraphTask>();
+	private int _grain = 32;
+	private volatile UpdateStats _stats;
+	
+	private boolean _incremental = false;
+	private Map<Mark,Plan> _plans = new ConcurrentHashMap<Mark,Plan>();
+	private Set<GroupItem> _fresh = Collections.newSetFromMap(
+		new ConcurrentHashMap<GroupItem,Boolean>());
 	
 	public ParallelUpdater() {
+		this(null);
+	}
+	
+	/**
+	 * Create a new ParallelUpdater running on the given pool.
+	 * @param pool the pool running update tasks, or null for the
+	 *  {@link ForkJoinPool#commonPool() common pool}
+	 */
+	public ParallelUpdater(ForkJoinPool pool) {
+		_pool = pool;
+	}
+	
+	/**
+	 * Returns the minimum number of items evaluated by a single task.
+	 */
+	public int grain() {
+		return _grain;
+	}
+	
+	/**
+	 * Sets the minimum number of items evaluated by a single task. Groups
+	 * of at least twice this size are split while other workers are idle.
+	 * @param grain the minimum task size
+	 * @return this updater
+	 */
+	public ParallelUpdater grain(int grain) {
+		_grain = Math.max(1, grain);
+		return this;
+	}
+	
+	/**
+	 * Indicates if updates are incremental.
+	 */
+	public boolean incremental() {
+		return _incremental;
+	}
+	
+	/**
+	 * Sets if updates are incremental. An incremental update tracks which
+	 * variables and scenegraph fields each property reads, see
+	 * {@link Dependencies}, and re-evaluates only the properties affected
+	 * since the last update. Marks whose properties are unaffected skip
+	 * both build and evaluation. Animated updates are never incremental.
+	 * Data collections modified in place are not detected; call
+	 * {@link #invalidate(Mark)} after such changes.
+	 * @param b true for incremental updates
+	 * @return this updater
+	 */
+	public ParallelUpdater incremental(boolean b) {
+		_incremental = b;
+		if (!b) _plans.clear();
+		return this;
 	}
 	
-	private <T> Future<T> submit(Callable<T> task) {
-		return ThreadPool.getThreadPool().submit(task);
+	/**
+	 * Forces a full build and evaluation of a mark on the next update.
+	 * @param mark the mark to invalidate
+	 */
+	public void invalidate(Mark mark) {
+		_plans.remove(mark);
 	}
 	
 	// ------------------------------------------------------------------------
 	
 	public void update(Mark mark, GroupItem proto, PanelItem panel, Transition t)
 	{
-		//long t0 = System.currentTimeMillis();
+		UpdateStats stats = _stats = startStats();
+		long t0 = System.nanoTime();
 		
 		// bind properties
-		bind(mark);
+		bind(mark, t);
+		long t1 = System.nanoTime();
 		
 		// build scenegraph
-		build(mark, proto, panel, t);
-		waitForFutures();
+		invoke(new BuildTask(mark, proto, panel, t));
+		long t2 = System.nanoTime();
 		
 		// build graph links
 		if (!_links.isEmpty()) {
-			try {
-				ThreadPool.getThreadPool().invokeAll(_links);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} finally {
-				_links.clear();
-			}
+			final List<GraphTask> links = new ArrayList<GraphTask>(_links);
+			_links.clear();
+			invoke(new RecursiveAction() {
+				protected void compute() { invokeAll(links); }
+			});
 		}
-		
-		//long t1 = System.currentTimeMillis();
+		long t3 = System.nanoTime();
 		
 		// fire update event
 		MarkEvent.fire(MarkEvent.create(Events.update), mark.scene());
-		
-		//long t2 = System.currentTimeMillis();
+		long t4 = System.nanoTime();
 		
 		// evaluate properties
 		GroupItem g = (GroupItem) panel.item(mark.treeIndex()); 
-		evaluate(mark, g, t);
-		waitForFutures();
-//		evaluateSerial(mark, layer, t);
+		invoke(new EvaluateTask(mark, g, t));
 		
-		//long t3 = System.currentTimeMillis();
-		//System.out.print("* "+(t1-t0)/1000f + "\t" + (t2-t1)/1000f + "\t" + (t3-t2)/1000f + "\t");
+		if (stats != null) {
+			stats.bind = t1 - t0;
+			stats.build = t2 - t1;
+			stats.link = t3 - t2;
+			stats.event = t4 - t3;
+			stats.evaluate = System.nanoTime() - t4;
+			_stats = null;
+			fireUpdated(mark, stats);
+		}
 	}
 	
 	// ------------------------------------------------------------------------
 	
 	// -- handle operations ----
 	
-	private void bind(Mark mark) {
-		// bind properties and compile if needed
+	private void bind(Mark mark, Transition t) {
+		// bind properties, then compile all dirty marks as one batch
+		List<Mark> dirty = new ArrayList<Mark>();
+		Set<Mark> visited = new HashSet<Mark>();
+		_fresh.clear();
+		bind(mark, dirty, visited, _incremental && t == null, false);
+		_plans.keySet().retainAll(visited);
+		if (dirty.isEmpty()) return;
+		
+		long t0 = System.nanoTime();
+		List<Evaluator> evals = _compiler.build(dirty);
+		if (_stats != null) _stats.compiled(System.nanoTime() - t0);
+		for (int i=0; i<dirty.size(); ++i) {
+			dirty.get(i).evaluator(evals.get(i));
+		}
+		// track dependencies of the new evaluators
+		for (Mark m : dirty) {
+			if (_plans.containsKey(m)) _plans.put(m, new Plan(m));
+		}
+	}
+	
+	private void bind(Mark mark, List<Mark> dirty, Set<Mark> visited,
+		boolean track, boolean upstream)
+	{
 		PropertySet pset = mark.bind();
 		if (pset.dirty) {
-			mark.evaluator(_compiler.build(mark));
+			dirty.add(mark);
+		} else {
+			// swap in evaluators compiled in the background
+			Evaluator compiled = _compiler.compiled(mark);
+			if (compiled != null) mark.evaluator(compiled);
 		}
+		visited.add(mark);
+		boolean changed = plan(mark, track, upstream);
 		for (Mark child : mark.children())
-			bind(child);
+			bind(child, dirty, visited, track, changed);
 	}
 	
-	private void build(Mark mark, GroupItem proto, PanelItem panel, Transition t) {
-		_futures.add(submit(buildTask(mark, proto, panel, t)));
+	/**
+	 * Plans the incremental update of a mark.
+	 * @return true if the mark's items may change in this update
+	 */
+	private boolean plan(Mark mark, boolean track, boolean upstream) {
+		Plan plan = _plans.get(mark);
+		if (!track || mark.markType() == MarkType.Link) {
+			// links depend on the items of other marks
+			_plans.remove(mark);
+			return true;
+		}
+		if (plan == null || mark.propertySet().dirty
+			|| plan.eval != mark.evaluator())
+		{
+			_plans.put(mark, new Plan(mark));
+			return true;
+		}
+		return plan.update(upstream);
 	}
-		
-	private void evaluate(Mark mark, GroupItem item, Transition t) {
-		int size = item.size();
-		int blockSize = Math.max(1, 1 + size / ThreadPool.getThreadCount());
-		int numTasks =  Math.max(1, (int)Math.ceil(((double)size)/blockSize));
-		AtomicInteger count = new AtomicInteger(0);
-		
-		for (int i=0; i<size; i+=blockSize) {
-			_futures.add(submit(
-				evalTask(mark, item, i, i+blockSize, t, count, numTasks)));
+	
+	private void invoke(RecursiveAction task) {
+		try {
+			(_pool==null ? ForkJoinPool.commonPool() : _pool).invoke(task);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
 		}
 	}
 	
+	private List<EvaluateTask> evaluateChildren(Mark mark, GroupItem group, Transition t) {
+		List<EvaluateTask> tasks = new ArrayList<EvaluateTask>();
+		PanelItem panel = (PanelItem) group.group;
+		if (group.type == MarkType.Panel) {
+			for (int i=0; i<group.size(); ++i) {
+				Item item = group.item(i);
+				if (!item.visible) continue;
+				PanelItem panelItem = (PanelItem) item;
+				for (Mark child : mark.children()) {
+					GroupItem g = (GroupItem) panelItem.item(child.treeIndex());
+					tasks.add(new EvaluateTask(child, g, t));
+				}
+			}
+		} else {
+			for (Mark child : mark.children()) {
+				GroupItem g = (GroupItem) panel.item(child.treeIndex());
+				tasks.add(new EvaluateTask(child, g, t));
+			}
+		}
+		return tasks;
+	}
+	
 //	private void evaluateSerial(Mark mark, PanelItem panel, Transition t)
 //	{
 //		int index = mark.treeIndex();
@@ -135,33 +278,9 @@ public class ParallelUpdater extends MarkUpdater {
 //		}
 //	}
 	
-	private void waitForFutures() {
-		while (!_futures.isEmpty()) {
-			try {
-				_futures.remove().get();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			} catch (ExecutionException e) {
-				e.printStackTrace();
-			}
-		}
-	}
-	
-	// -- get task instances --------------------------------------------------
-	
-	private BuildTask buildTask(Mark mark, GroupItem proto, PanelItem panel, Transition t) {
-		return new BuildTask(mark, proto, panel, t);
-	}
-	
-	private EvaluateTask evalTask(Mark mark, GroupItem group, int start, int end,
-		Transition t, AtomicInteger count, int numTasks)
-	{
-		return new EvaluateTask(mark, group, start, end, t, count, numTasks);
-	}
-	
 	// ------------------------------------------------------------------------
 	
-	public class GraphTask implements Callable<GroupItem> {
+	public class GraphTask extends RecursiveAction {
 		public Mark mark;
 		public GroupItem group;
 		
@@ -170,20 +289,18 @@ public class ParallelUpdater extends MarkUpdater {
 			this.group = group;
 		}
 
-		public GroupItem call() throws Exception {
+		protected void compute() {
 			LinkEvaluator eval = (LinkEvaluator) mark.evaluator();
 			eval.buildGraph(group);
-			return group;
 		}
 		
 	}
 	
-	public class BuildTask implements Callable<GroupItem> {
+	public class BuildTask extends RecursiveAction {
 		public Mark mark;
 		public GroupItem proto;
 		public PanelItem panel;
 		public Transition trans;
-		public int pidx;
 		
 		public BuildTask(Mark mark, GroupItem proto, PanelItem panel, Transition trans) {
 			this.mark = mark;
@@ -192,15 +309,32 @@ public class ParallelUpdater extends MarkUpdater {
 			this.trans = trans;
 		}
 		
-		public GroupItem call() throws Exception
+		protected void compute()
 		{
-			// generate group item
-			GroupItem group = mark.evaluator().build(mark, proto, panel, trans!=null);
+			// generate group item, reusing the previous one if unaffected
+			Plan plan = _plans.get(mark);
+			GroupItem group = null;
+			if (plan != null && !plan.full && !plan.build) {
+				group = (GroupItem) panel.item(mark.treeIndex());
+			}
+			if (group == null) {
+				UpdateStats stats = _stats;
+				int before = stats==null ? 0 : groupSize(mark, panel);
+				long t0 = System.nanoTime();
+				group = mark.evaluator().build(mark, proto, panel, trans!=null);
+				if (stats != null) {
+					stats.built(mark, group, before, System.nanoTime() - t0);
+				}
+				if (plan != null && (group.modified() || group.dirty())) {
+					_fresh.add(group);
+				}
+			}
 			if (group.type == MarkType.Link) {
 				_links.add(new GraphTask(mark, group));
 			}
 			
 			// recurse
+			List<BuildTask> tasks = new ArrayList<BuildTask>();
 			if (group.type == MarkType.Panel) {
 				// if we're building a panel, build child marks now
 				for (int i=0; i<group.size(); ++i) {
@@ -208,78 +342,123 @@ public class ParallelUpdater extends MarkUpdater {
 					if (item.visible) {
 						PanelItem layerItem = (PanelItem) item;
 						for (Mark child : mark.children()) {
-							build(child, null, layerItem, trans);
+							tasks.add(new BuildTask(child, null, layerItem, trans));
 						}
-						//layerItem.discard(nidx);
 					}
 				}
 			} else {
 				// if we're not a panel, build inheriting marks now
 				// compute child mark values, add as children of item
 				for (Mark child : mark.children()) {
-					build(child, group, panel, trans);
+					tasks.add(new BuildTask(child, group, panel, trans));
 				}
-				// remove extra items if length changes
-				//layerItem.discard(pidx);
 			}
-			
-			return group;
+			invokeAll(tasks);
 		}
 	}
 	
-	public class EvaluateTask implements Callable<GroupItem> {
+	public class EvaluateTask extends RecursiveAction {
 		
 		public Mark mark;
 		public GroupItem group;
-		public int start, end;
 		public Transition trans;
-		public AtomicInteger count;
-		public int numTasks;
 		
-		public EvaluateTask(Mark mark, GroupItem group, int start, int end,
-			Transition trans, AtomicInteger count, int numTasks)
-		{
+		public EvaluateTask(Mark mark, GroupItem group, Transition trans) {
 			this.mark = mark;
 			this.group = group;
-			this.start = start;
-			this.end = end > group.size() ? group.size() : end;
 			this.trans = trans;
-			this.count = count;
-			this.numTasks = numTasks;
-		}	
+		}
 		
-		public GroupItem call() throws Exception {
+		protected void compute() {
 			Evaluator eval = mark.evaluator();
-			
-			//long t0 = System.currentTimeMillis();
-			eval.evaluate(group, start, end, trans!=null);
-			//long t1= System.currentTimeMillis();
-			//System.out.println("\t"+start+"-"+end+"("+numTasks+") - "+(t1-t0)/1000f);
-			
-			
-			if (count.incrementAndGet() >= numTasks) {
-				PanelItem panel = (PanelItem) group.group;
-				// recurse
-				if (group.type == MarkType.Panel) {
-					for (int i=0; i<group.size(); ++i) {
-						Item item = group.item(i);
-						if (!item.visible) continue;
-						PanelItem panelItem = (PanelItem) item;
-						for (Mark child : mark.children()) {
-							GroupItem g = (GroupItem) panelItem.item(child.treeIndex());
-							evaluate(child, g, trans);
-						}
-					}
-				} else {
-					for (Mark child : mark.children()) {
-						GroupItem g = (GroupItem) panel.item(child.treeIndex());
-						evaluate(child, g, trans);
-					}
-				}
+			long mask = -1L;
+			boolean skip = false;
+			Plan plan = _plans.get(mark);
+			if (plan != null && !plan.full && !_fresh.contains(group)) {
+				// unaffected marks continue with their child marks
+				skip = (plan.mask == 0 && !plan.upstream);
+				mask = plan.mask;
+			}
+			if (!skip) {
+				long t0 = System.nanoTime();
+				new RangeTask(eval, group, 0, group.size(), trans!=null, mask).invoke();
+				group.changed();
+				UpdateStats stats = _stats;
+				if (stats != null) stats.evaluated(mark, System.nanoTime() - t0);
 				if (trans != null) trans.add(eval.transition(group));
 			}
-			return group;
+			
+			// recurse
+			invokeAll(evaluateChildren(mark, group, trans));
+		}
+	}
+	
+	public class RangeTask extends RecursiveAction {
+		
+		public Evaluator eval;
+		public GroupItem group;
+		public int start, end;
+		public boolean animate;
+		public long mask;
+		
+		public RangeTask(Evaluator eval, GroupItem group, int start, int end,
+			boolean animate, long mask)
+		{
+			this.eval = eval;
+			this.group = group;
+			this.start = start;
+			this.end = end;
+			this.animate = animate;
+			this.mask = mask;
+		}
+		
+		protected void compute() {
+			int size = end - start;
+			if (size >= 2*_grain && getSurplusQueuedTaskCount() <= SURPLUS) {
+				// split while other workers may steal the second half
+				int mid = start + (size >>> 1);
+				invokeAll(
+					new RangeTask(eval, group, start, mid, animate, mask),
+					new RangeTask(eval, group, mid, end, animate, mask));
+			} else if (mask == -1L) {
+				eval.evaluate(group, start, end, animate);
+			} else {
+				((ItemEvaluator)eval).evaluate(group, start, end, false, mask);
+			}
 		}
 	}
+	
+	/**
+	 * The incremental update state of a mark.
+	 */
+	private static class Plan {
+		final Evaluator eval;
+		final Dependencies deps;
+		int[] versions;
+		/** True if the mark is fully built and evaluated. */
+		boolean full = true;
+		/** True if the mark is built. */
+		boolean build = true;
+		/** True if the enclosing panel or prototype changed. */
+		boolean upstream = true;
+		/** The instance properties to evaluate. */
+		long mask = -1L;
 		
+		Plan(Mark mark) {
+			eval = mark.evaluator();
+			deps = new Dependencies(mark.propertySet());
+			versions = deps.versions();
+		}
+		
+		boolean update(boolean upstream) {
+			if (!(eval instanceof ItemEvaluator)) return true;
+			this.full = false;
+			this.upstream = upstream;
+			this.build = upstream || deps.opaque() || deps.changed(versions);
+			this.mask = deps.mask(versions, upstream);
+			this.versions = deps.versions();
+			return build || mask != 0;
+		}
+	}
+	
 }
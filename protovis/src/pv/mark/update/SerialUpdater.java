@@ -16,31 +16,64 @@ import pv.scene.PanelItem;
 public class SerialUpdater extends MarkUpdater {
 
 	private EvaluatorBuilder _compiler = EvaluatorBuilder.instance();
+	private UpdateStats _stats;
 	
 	public void update(Mark mark, GroupItem proto, PanelItem panel, Transition t) {
+		UpdateStats stats = _stats = startStats();
 		try {
+			long t0 = System.nanoTime();
 			build(mark, proto, panel, t);
+			long t1 = System.nanoTime();
 			MarkEvent.fire(MarkEvent.create(Events.update), mark.scene());
+			long t2 = System.nanoTime();
 			evaluate(mark, panel, t);
+			
+			if (stats != null) {
+				// bind and link times are recorded during the build
+				stats.build = t1 - t0 - stats.bind - stats.link;
+				stats.event = t2 - t1;
+				stats.evaluate = System.nanoTime() - t2;
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			_stats = null;
 		}
+		fireUpdated(mark, stats);
 	}
 	
 	private void build(Mark mark, GroupItem proto, PanelItem panel, Transition t)
 	{
+		long t0 = System.nanoTime();
 		PropertySet pset = mark.bind();
 		Evaluator eval = mark.evaluator();
 		if (pset.dirty) {
+			long tc = System.nanoTime();
 			eval = _compiler.build(mark);
 			mark.evaluator(eval);
+			if (_stats != null) _stats.compiled(System.nanoTime() - tc);
+		} else {
+			// swap in evaluators compiled in the background
+			Evaluator compiled = _compiler.compiled(mark);
+			if (compiled != null) {
+				eval = compiled;
+				mark.evaluator(eval);
+			}
 		}
 		
 		// create group for scenegraph elements
+		int before = _stats==null ? 0 : groupSize(mark, panel);
+		long t1 = System.nanoTime();
 		GroupItem group = eval.build(mark, proto, panel, t!=null);
+		long t2 = System.nanoTime();
 		if (group.type == MarkType.Link) {
 			((LinkEvaluator) eval).buildGraph(group);
 		}
+		if (_stats != null) {
+			_stats.bind += t1 - t0;
+			_stats.link += System.nanoTime() - t2;
+			_stats.built(mark, group, before, t2 - t1);
+		}
 		
 		// recurse
 		if (group.type == MarkType.Panel) {
@@ -73,7 +106,10 @@ public class SerialUpdater extends MarkUpdater {
 		Evaluator eval = mark.evaluator();
 		
 		// evaluate marks
+		long t0 = System.nanoTime();
 		eval.evaluate(group, 0, group.size(), t!=null);
+		group.changed();
+		if (_stats != null) _stats.evaluated(mark, System.nanoTime() - t0);
 		// create animators if needed
 		if (t != null) t.add(eval.transition(group));
 		
@@ -0,0 +1,18 @@
+package pv.mark.update;
+
+import pv.mark.Mark;
+
+/**
+ * Receives the {@link UpdateStats} of scene updates performed by a
+ * {@link MarkUpdater}.
+ */
+public interface UpdateListener {
+
+	/**
+	 * Called after an update completes, on the thread that ran the update.
+	 * @param mark the updated mark
+	 * @param stats the recorded timings and counts
+	 */
+	public void updated(Mark mark, UpdateStats stats);
+
+}
@@ -0,0 +1,186 @@
+package pv.mark.update;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import pv.mark.Mark;
+import pv.scene.ColumnGroupItem;
+import pv.scene.GroupItem;
+import pv.scene.Item;
+
+/**
+ * Timings and item counts recorded for a single scene update. Phase
+ * timings are wall-clock nanoseconds. Per-mark timings sum over all groups
+ * generated for the mark, and may exceed the phase timings when groups are
+ * processed in parallel. Stats are recorded only while an
+ * {@link UpdateListener} is registered with the updater.
+ */
+public class UpdateStats {
+
+	/** Nanoseconds spent binding properties, including compilation. */
+	public long bind;
+	/** Nanoseconds spent compiling evaluators. */
+	public long compile;
+	/** Nanoseconds spent building the scenegraph. */
+	public long build;
+	/** Nanoseconds spent building graph links. */
+	public long link;
+	/** Nanoseconds spent firing the update event. */
+	public long event;
+	/** Nanoseconds spent evaluating properties. */
+	public long evaluate;
+	/** Total nanoseconds spent in the update. */
+	public long total;
+
+	/** Number of items in the built groups. */
+	public int built;
+	/** Number of items newly created by the build. */
+	public int born;
+	/** Number of exiting items kept for animation. */
+	public int zombie;
+	/** Number of items removed by the build. */
+	public int discarded;
+
+	private final Map<Mark,MarkStats> _marks = new LinkedHashMap<Mark,MarkStats>();
+	private long _start;
+
+	public UpdateStats() {
+		_start = System.nanoTime();
+	}
+
+	/**
+	 * Returns the per-mark stats, in the order marks were first built.
+	 */
+	public synchronized List<MarkStats> marks() {
+		return new ArrayList<MarkStats>(_marks.values());
+	}
+
+	/**
+	 * Returns the per-mark stats, most expensive first.
+	 */
+	public List<MarkStats> slowest() {
+		List<MarkStats> list = marks();
+		Collections.sort(list, new Comparator<MarkStats>() {
+			public int compare(MarkStats a, MarkStats b) {
+				long ta = a.build + a.evaluate, tb = b.build + b.evaluate;
+				return ta > tb ? -1 : (ta < tb ? 1 : 0);
+			}
+		});
+		return list;
+	}
+
+	/**
+	 * Returns the stats of a mark, or null if the mark was not updated.
+	 */
+	public synchronized MarkStats mark(Mark mark) {
+		return _marks.get(mark);
+	}
+
+	private synchronized MarkStats stats(Mark mark) {
+		MarkStats s = _marks.get(mark);
+		if (s == null) _marks.put(mark, s = new MarkStats(mark));
+		return s;
+	}
+
+	// -- recording -----------------------------------------------------------
+
+	/**
+	 * Records the build of a group.
+	 * @param mark the built mark
+	 * @param group the built group
+	 * @param before the number of items in the group before the build
+	 * @param ns the nanoseconds spent
+	 */
+	public void built(Mark mark, GroupItem group, int before, long ns) {
+		int size = group.size(), born = 0, zombie = 0;
+		if (!(group instanceof ColumnGroupItem)) {
+			for (int i=0; i<size; ++i) {
+				Item item = group.item(i);
+				if (item == null) continue;
+				if (item.born()) ++born;
+				if (item.zombie()) ++zombie;
+			}
+		}
+		int discarded = Math.max(0, before - size);
+		MarkStats s = stats(mark);
+		synchronized (s) {
+			s.groups += 1;
+			s.build += ns;
+			s.items += size;
+			s.born += born;
+			s.zombie += zombie;
+			s.discarded += discarded;
+		}
+		synchronized (this) {
+			this.built += size;
+			this.born += born;
+			this.zombie += zombie;
+			this.discarded += discarded;
+		}
+	}
+
+	/**
+	 * Records the evaluation of a group.
+	 * @param mark the evaluated mark
+	 * @param ns the nanoseconds spent
+	 */
+	public void evaluated(Mark mark, long ns) {
+		MarkStats s = stats(mark);
+		synchronized (s) {
+			s.evaluate += ns;
+		}
+	}
+
+	/**
+	 * Records evaluator compilation time.
+	 */
+	public synchronized void compiled(long ns) {
+		compile += ns;
+	}
+
+	/**
+	 * Records the end of the update.
+	 */
+	public void finish() {
+		total = System.nanoTime() - _start;
+	}
+
+	public String toString() {
+		return "update " + total + "ns [bind " + bind + ", compile " + compile
+			+ ", build " + build + ", link " + link + ", event " + event
+			+ ", evaluate " + evaluate + "] items [built " + built + ", born "
+			+ born + ", zombie " + zombie + ", discarded " + discarded + "]";
+	}
+
+	/**
+	 * Timings and item counts of a single mark.
+	 */
+	public static class MarkStats {
+		public final Mark mark;
+		public final int treeIndex;
+		/** Number of groups generated for the mark. */
+		public int groups;
+		/** Nanoseconds spent building the mark's groups. */
+		public long build;
+		/** Nanoseconds spent evaluating the mark's groups. */
+		public long evaluate;
+		public int items, born, zombie, discarded;
+
+		MarkStats(Mark mark) {
+			this.mark = mark;
+			this.treeIndex = mark.treeIndex();
+		}
+
+		public String toString() {
+			return mark.markType() + "#" + treeIndex + " build " + build
+				+ "ns, evaluate " + evaluate + "ns, groups " + groups
+				+ ", items " + items + " (born " + born + ", zombie " + zombie
+				+ ", discarded " + discarded + ")";
+		}
+	}
+
+}
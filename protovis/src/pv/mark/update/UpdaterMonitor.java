@@ -0,0 +1,114 @@
+package pv.mark.update;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import pv.mark.Mark;
+
+/**
+ * An {@link UpdateListener} that aggregates update statistics and exposes
+ * them as a JMX MBean, so that update costs can be inspected in a running
+ * application with tools such as JConsole.
+ *
+ * <pre>
+ * UpdaterMonitor.register(MarkUpdater.instance(), "main");
+ * </pre>
+ */
+public class UpdaterMonitor implements UpdateListener, UpdaterMonitorMBean {
+
+	/** Maximum number of marks reported by {@link #getLastMarks()}. */
+	private static final int MAX_MARKS = 20;
+
+	private UpdateStats _last;
+	private long _count, _sum, _max, _compile;
+
+	/**
+	 * Registers a new monitor as a listener of an updater and with the
+	 * platform MBean server, under the name
+	 * <code>pv:type=MarkUpdater,name=<i>name</i></code>.
+	 * @param updater the updater to monitor
+	 * @param name the name of the MBean
+	 * @return the registered monitor, or null if registration failed
+	 */
+	public static UpdaterMonitor register(MarkUpdater updater, String name) {
+		UpdaterMonitor monitor = new UpdaterMonitor();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(monitor, objectName(name));
+		} catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
+		updater.addUpdateListener(monitor);
+		return monitor;
+	}
+
+	/**
+	 * Unregisters a monitor from an updater and the platform MBean server.
+	 * @param updater the monitored updater
+	 * @param name the name the monitor was registered with
+	 * @param monitor the monitor
+	 */
+	public static void unregister(MarkUpdater updater, String name, UpdaterMonitor monitor) {
+		updater.removeUpdateListener(monitor);
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static ObjectName objectName(String name) throws Exception {
+		return new ObjectName("pv:type=MarkUpdater,name=" + ObjectName.quote(name));
+	}
+
+	// ------------------------------------------------------------------------
+
+	public synchronized void updated(Mark mark, UpdateStats stats) {
+		_last = stats;
+		_count += 1;
+		_sum += stats.total;
+		_max = Math.max(_max, stats.total);
+		_compile += stats.compile;
+	}
+
+	public synchronized void reset() {
+		_last = null;
+		_count = _sum = _max = _compile = 0;
+	}
+
+	public synchronized long getUpdateCount() { return _count; }
+
+	public synchronized long getLastTotalNanos() { return _last==null ? 0 : _last.total; }
+	public synchronized long getMaxTotalNanos() { return _max; }
+	public synchronized long getMeanTotalNanos() { return _count==0 ? 0 : _sum / _count; }
+
+	public synchronized long getLastBindNanos() { return _last==null ? 0 : _last.bind; }
+	public synchronized long getLastBuildNanos() { return _last==null ? 0 : _last.build; }
+	public synchronized long getLastLinkNanos() { return _last==null ? 0 : _last.link; }
+	public synchronized long getLastEventNanos() { return _last==null ? 0 : _last.event; }
+	public synchronized long getLastEvaluateNanos() { return _last==null ? 0 : _last.evaluate; }
+
+	public synchronized long getLastCompileNanos() { return _last==null ? 0 : _last.compile; }
+	public synchronized long getTotalCompileNanos() { return _compile; }
+
+	public synchronized int getLastItemsBuilt() { return _last==null ? 0 : _last.built; }
+	public synchronized int getLastItemsBorn() { return _last==null ? 0 : _last.born; }
+	public synchronized int getLastItemsZombie() { return _last==null ? 0 : _last.zombie; }
+	public synchronized int getLastItemsDiscarded() { return _last==null ? 0 : _last.discarded; }
+
+	public String[] getLastMarks() {
+		UpdateStats last;
+		synchronized (this) { last = _last; }
+		if (last == null) return new String[0];
+		List<UpdateStats.MarkStats> marks = last.slowest();
+		int n = Math.min(MAX_MARKS, marks.size());
+		String[] s = new String[n];
+		for (int i=0; i<n; ++i) s[i] = marks.get(i).toString();
+		return s;
+	}
+
+}
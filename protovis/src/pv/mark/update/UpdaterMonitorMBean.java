@@ -0,0 +1,40 @@
+package pv.mark.update;
+
+/**
+ * JMX management interface of an {@link UpdaterMonitor}. Timings are in
+ * nanoseconds; "last" values describe the most recent update.
+ */
+public interface UpdaterMonitorMBean {
+
+	public long getUpdateCount();
+
+	public long getLastTotalNanos();
+	public long getMaxTotalNanos();
+	public long getMeanTotalNanos();
+
+	public long getLastBindNanos();
+	public long getLastBuildNanos();
+	public long getLastLinkNanos();
+	public long getLastEventNanos();
+	public long getLastEvaluateNanos();
+
+	public long getLastCompileNanos();
+	public long getTotalCompileNanos();
+
+	public int getLastItemsBuilt();
+	public int getLastItemsBorn();
+	public int getLastItemsZombie();
+	public int getLastItemsDiscarded();
+
+	/**
+	 * Returns a description of the marks of the last update, most
+	 * expensive first.
+	 */
+	public String[] getLastMarks();
+
+	/**
+	 * Clears the accumulated statistics.
+	 */
+	public void reset();
+
+}
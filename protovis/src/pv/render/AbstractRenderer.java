@@ -4,9 +4,11 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 
+import pv.scene.GridIndex;
 import pv.scene.GroupItem;
 import pv.scene.Item;
 import pv.util.Objects;
+import pv.util.Rect;
 
 public class AbstractRenderer {
 
@@ -18,8 +20,17 @@ public class AbstractRenderer {
 		}
 	};
 	
+	/** Minimum group size for which visible items are found by index. */
+	protected static final int GRID_THRESHOLD = 1024;
+	
 	protected int _width, _height;
 	
+	/** The visible rectangle in the current item frame, if culling. */
+	protected final Rect _view = new Rect();
+	protected boolean _culling = false;
+	private final GridIndex.Hits _hits = new GridIndex.Hits();
+	private boolean _indexed = false;
+	
 	public int width() { return _width; }
 	public void width(int width) {
 		_width = width;
@@ -29,6 +40,27 @@ public class AbstractRenderer {
 		_height = height;
 	}
 		
+	/**
+	 * Returns the number of rows of a group to render. When culling a
+	 * large group that is not entirely visible, only the rows intersecting
+	 * the visible rectangle are returned, as found by the group's
+	 * {@link GridIndex}. Rows are then looked up using {@link #row(int)},
+	 * in their original order.
+	 */
+	protected int visibleItems(GroupItem group, int size) {
+		_indexed = _culling && size >= GRID_THRESHOLD
+			&& !_view.contains(group.bounds);
+		return _indexed ? group.grid().query(_view, _hits) : size;
+	}
+	
+	/**
+	 * Returns the row of the i-th item returned by
+	 * {@link #visibleItems(GroupItem, int)}.
+	 */
+	protected final int row(int i) {
+		return _indexed ? _hits.rows[i] : i;
+	}
+	
 	// switch to radix sort?
 	@SuppressWarnings("unchecked")
 	public static List<GroupItem> preprocess(List<Item> items) {
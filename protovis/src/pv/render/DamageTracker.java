@@ -0,0 +1,392 @@
+package pv.render;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pv.mark.constants.MarkType;
+import pv.scene.ColumnGroupItem;
+import pv.scene.DotItem;
+import pv.scene.GroupItem;
+import pv.scene.ImageItem;
+import pv.scene.Item;
+import pv.scene.LabelItem;
+import pv.scene.PanelItem;
+import pv.scene.WedgeItem;
+import pv.style.Fill;
+import pv.style.Fill.Solid;
+import pv.style.Stroke;
+import pv.util.Objects;
+import pv.util.Rect;
+
+/**
+ * Finds the regions of a display that changed between two renders of a
+ * scenegraph, so that displays repaint only those regions.
+ *
+ * <p>The tracker keeps the bounds and a style signature of every item
+ * last rendered. Only groups whose {@link GroupItem#version} advanced
+ * since are compared, so tracking an unchanged scene costs one check per
+ * group. The damage is the union of the old and new bounds of the items
+ * that moved or restyled; lines and areas damage the old and new bounds
+ * of the whole group, as any change redraws their path. Changes the
+ * tracker cannot bound, such as to panels, labels, links or the structure
+ * of the scenegraph, request a full repaint. Image loads, reported with
+ * {@link #imageLoaded(String)}, damage the items showing the image.</p>
+ *
+ * <p>Groups are matched by their position in the scenegraph rather than
+ * by identity, as double-buffered scenes alternate between snapshots. A
+ * tracker is not thread-safe; it must be used by the thread rendering
+ * the scenegraph.</p>
+ */
+public class DamageTracker {
+
+	/** Extra margin of line and area bounds, in stroke widths, for joins. */
+	private static final double JOIN_MARGIN = 5;
+
+	/** Number of loads of each image url, part of the style of images. */
+	private static final Map<String,Integer> _loads =
+		new ConcurrentHashMap<String,Integer>();
+	private static final AtomicInteger _loaded = new AtomicInteger();
+
+	/**
+	 * Notes that an image finished loading, so that trackers damage the
+	 * image items showing it, whose properties did not change.
+	 * @param url the url of the image
+	 */
+	public static void imageLoaded(String url) {
+		if (url == null) return;
+		synchronized (_loads) {
+			Integer n = _loads.get(url);
+			_loads.put(url, n == null ? 1 : n+1);
+		}
+		_loaded.incrementAndGet();
+	}
+
+	private static class Entry {
+		String type;
+		int version = -1, size = -1, loaded;
+		boolean visible;
+		double x, y;
+		// per item: min x, min y, max x, max y; NaN if not drawn
+		double[] bounds = new double[0];
+		int[] styles = new int[0];
+		Rect extent = new Rect();
+	}
+
+	private final List<Entry> _entries = new ArrayList<Entry>();
+	private final List<double[]> _panels = new ArrayList<double[]>();
+	private int _ne, _np;
+	private boolean _full = false;
+	private boolean _invalid = true;
+	private final Rect _damage = new Rect();
+	private boolean _damaged = false;
+	private final Rect _extent = new Rect();
+	private final double[] _box = new double[4];
+	private int _images;
+
+	/**
+	 * Requests a full repaint on the next call to {@link #track(List)}, for
+	 * example after the display was resized.
+	 */
+	public void invalidate() {
+		_invalid = true;
+	}
+
+	/**
+	 * Indicates if the last tracked changes require a full repaint.
+	 */
+	public boolean full() {
+		return _full;
+	}
+
+	/**
+	 * Returns the damaged rectangle found by the last call to
+	 * {@link #track(List)}, in the coordinates of the root panels.
+	 */
+	public Rect damage() {
+		return _damage;
+	}
+
+	/**
+	 * Compares scenegraphs to their state at the previous call, recording
+	 * the damaged region and if a full repaint is needed.
+	 * @param roots the root panels of the scenes, in rendering order
+	 * @return true if anything needs to be repainted
+	 */
+	public boolean track(List<PanelItem> roots) {
+		_full = _invalid;
+		_invalid = false;
+		_damaged = false;
+		_damage.set(0, 0, 0, 0);
+		_ne = _np = 0;
+		_images = _loaded.get();
+		for (PanelItem root : roots) {
+			visit(root, 0, 0);
+		}
+		if (_ne != _entries.size() || _np != _panels.size()) {
+			_full = true;
+			_entries.subList(_ne, _entries.size()).clear();
+			_panels.subList(_np, _panels.size()).clear();
+		}
+		return _full || _damaged;
+	}
+
+	private void visit(PanelItem panel, double x, double y) {
+		checkPanel(panel, x, y);
+		x += panel.left;
+		y += panel.top;
+		for (Item item : panel.items) {
+			GroupItem group = (GroupItem) item;
+			if (group == null) {
+				continue;
+			} else if (group instanceof PanelItem) {
+				visit((PanelItem) group, x, y);
+			} else if (group.type == MarkType.Panel) {
+				checkPanel(group, x, y);
+				for (Item layer : group.items) {
+					if (layer != null) visit((PanelItem) layer, x, y);
+				}
+			} else {
+				checkGroup(group, x, y);
+			}
+		}
+	}
+
+	/**
+	 * Requests a full repaint if the geometry, style or number of groups
+	 * of a panel changed, as these move or restyle all of its contents.
+	 */
+	private void checkPanel(GroupItem panel, double x, double y) {
+		double[] p;
+		if (_np < _panels.size()) {
+			p = _panels.get(_np);
+		} else {
+			_panels.add(p = new double[10]);
+			_full = true;
+		}
+		++_np;
+		if (p[0] != x || p[1] != y || p[2] != panel.left || p[3] != panel.top
+			|| p[4] != panel.width || p[5] != panel.height
+			|| p[6] != (panel.visible ? 1 : 0) || p[7] != panel.alpha
+			|| p[8] != style(panel.fill, panel.stroke) || p[9] != panel.size())
+		{
+			_full = true;
+			p[0] = x; p[1] = y; p[2] = panel.left; p[3] = panel.top;
+			p[4] = panel.width; p[5] = panel.height;
+			p[6] = panel.visible ? 1 : 0; p[7] = panel.alpha;
+			p[8] = style(panel.fill, panel.stroke); p[9] = panel.size();
+		}
+	}
+
+	private void checkGroup(GroupItem group, double x, double y) {
+		Entry e;
+		if (_ne < _entries.size()) {
+			e = _entries.get(_ne);
+		} else {
+			_entries.add(e = new Entry());
+		}
+		++_ne;
+
+		int n = group.size();
+		if (e.type == group.type && e.version == group.version && e.size == n
+			&& e.visible == group.visible && e.x == x && e.y == y
+			&& (group.type != MarkType.Image || e.loaded == _images))
+		{
+			return;
+		}
+		if (e.type != group.type) {
+			// a different mark, or a new one: start over
+			e.type = group.type;
+			e.size = -1;
+			_full = true;
+		}
+		String type = group.type;
+		boolean path = type == MarkType.Line || type == MarkType.Area;
+		boolean bounded = path || type == MarkType.Bar || type == MarkType.Dot
+			|| type == MarkType.Rule || type == MarkType.Image
+			|| type == MarkType.Wedge;
+		boolean resized = e.size != n;
+
+		if (resized) {
+			e.bounds = new double[4*n];
+			e.styles = new int[n];
+			Arrays.fill(e.bounds, Double.NaN);
+		}
+		double[] bounds = e.bounds;
+		int[] styles = e.styles;
+		boolean changed = false;
+		double ox = x + group.left, oy = y + group.top;
+		double stroke = 0;
+		_extent.set(0, 0, -1, -1);
+
+		ColumnGroupItem c = group instanceof ColumnGroupItem
+			? (ColumnGroupItem) group : null;
+		Rect r = Objects.Rect.get();
+		for (int i=0, k=0; i<n; ++i, k+=4) {
+			int style;
+			if (c != null) {
+				boolean visible = group.visible && c.visibles[i];
+				if (visible) c.bounds(i, r);
+				style = visible ? style(c.fills[i], c.strokes[i], c.alphas[i]) : 0;
+				if (c.shapes != null && visible && c.shapes[i] != null)
+					style = 31*style + c.shapes[i].hashCode();
+				box(visible, r, ox, oy);
+			} else {
+				Item item = group.item(i);
+				boolean visible = group.visible && item != null && item.visible;
+				if (visible) {
+					if (item.stroke != null)
+						stroke = Math.max(stroke, item.stroke.width());
+					bounds(item, r);
+				}
+				style = visible ? style(item) : 0;
+				box(visible, r, ox, oy);
+			}
+			double[] b = _box;
+			if (b[0] == b[0]) extend(b);
+			if (styles[i] == style && same(bounds, k, b)) continue;
+			changed = true;
+			if (!path && !resized) {
+				// union of the old and new bounds of the item
+				damage(bounds[k], bounds[k+1], bounds[k+2], bounds[k+3]);
+				damage(b[0], b[1], b[2], b[3]);
+			}
+			System.arraycopy(b, 0, bounds, k, 4);
+			styles[i] = style;
+		}
+		Objects.Rect.reclaim(r);
+
+		if (path) {
+			// paths may join beyond the bounds of their vertices
+			double m = JOIN_MARGIN * stroke + 1;
+			if (_extent.w >= 0) {
+				_extent.set(_extent.x-m, _extent.y-m, _extent.w+m+m, _extent.h+m+m);
+			}
+		}
+		if ((path || resized) && (changed || resized || e.visible != group.visible)) {
+			Rect x0 = e.extent;
+			if (x0.w >= 0) damage(x0.x, x0.y, x0.x+x0.w, x0.y+x0.h);
+			if (_extent.w >= 0) damage(_extent.x, _extent.y,
+				_extent.x+_extent.w, _extent.y+_extent.h);
+		}
+		if ((changed || resized) && !bounded) {
+			_full = true;
+		}
+		e.extent.set(_extent);
+		e.version = group.version;
+		e.loaded = _images;
+		e.size = n;
+		e.visible = group.visible;
+		e.x = x;
+		e.y = y;
+	}
+
+	/** Computes the bounds of an item, relative to its group. */
+	private static void bounds(Item item, Rect r) {
+		if (item instanceof WedgeItem) {
+			// wedge bounds are not computed by items
+			WedgeItem w = (WedgeItem) item;
+			double s = w.stroke==null ? 1 : Math.max(1, w.stroke.width()/2);
+			double o = Math.abs(w.outerRadius) + s;
+			r.set(w.left-o, w.top-o, o+o, o+o);
+		} else {
+			item.bounds(r);
+		}
+	}
+
+	/** Stores rounded-out bounds in root coordinates, or NaN if hidden. */
+	private void box(boolean visible, Rect r, double ox, double oy) {
+		double[] b = _box;
+		double x0 = r.getMinX(), y0 = r.getMinY();
+		double x1 = r.getMaxX(), y1 = r.getMaxY();
+		if (!visible || !(x0 <= x1 && y0 <= y1)) {
+			b[0] = b[1] = b[2] = b[3] = Double.NaN;
+			return;
+		}
+		// a pixel of antialiasing
+		b[0] = ox + x0 - 1; b[1] = oy + y0 - 1;
+		b[2] = ox + x1 + 1; b[3] = oy + y1 + 1;
+	}
+
+	private static boolean same(double[] a, int k, double[] b) {
+		// compare bits, so that hidden items compare equal
+		for (int j=0; j<4; ++j) {
+			if (Double.doubleToLongBits(a[k+j]) != Double.doubleToLongBits(b[j]))
+				return false;
+		}
+		return true;
+	}
+
+	private void extend(double[] b) {
+		Rect x = _extent;
+		if (x.w < 0) {
+			x.set(b[0], b[1], b[2]-b[0], b[3]-b[1]);
+		} else {
+			double x0 = Math.min(x.x, b[0]), y0 = Math.min(x.y, b[1]);
+			double x1 = Math.max(x.x+x.w, b[2]), y1 = Math.max(x.y+x.h, b[3]);
+			x.set(x0, y0, x1-x0, y1-y0);
+		}
+	}
+
+	private void damage(double x0, double y0, double x1, double y1) {
+		if (!(x0 <= x1 && y0 <= y1)) return;
+		if (!_damaged) {
+			_damage.set(x0, y0, x1-x0, y1-y0);
+			_damaged = true;
+		} else {
+			double a = Math.min(_damage.x, x0), b = Math.min(_damage.y, y0);
+			double c = Math.max(_damage.x+_damage.w, x1);
+			double d = Math.max(_damage.y+_damage.h, y1);
+			_damage.set(a, b, c-a, d-b);
+		}
+	}
+
+	// -- style signatures ----------------------------------------------------
+
+	private static int style(Item item) {
+		int h = style(item.fill, item.stroke);
+		h = 31*h + hash(item.alpha);
+		if (item instanceof DotItem) {
+			String shape = ((DotItem) item).shape;
+			h = 31*h + (shape == null ? 0 : shape.hashCode());
+		} else if (item instanceof ImageItem) {
+			String url = ((ImageItem) item).url;
+			h = 31*h + (url == null ? 0 : url.hashCode());
+			Integer loads = url == null ? null : _loads.get(url);
+			h = 31*h + (loads == null ? 0 : loads);
+		} else if (item instanceof LabelItem) {
+			String text = ((LabelItem) item).text;
+			h = 31*h + (text == null ? 0 : text.hashCode());
+		}
+		return h | 1; // never zero, the style of hidden items
+	}
+
+	private static int style(int fill, Stroke stroke, double alpha) {
+		int h = 31*fill + style(null, stroke);
+		h = 31*h + hash(alpha);
+		return h | 1;
+	}
+
+	private static int style(Fill fill, Stroke stroke) {
+		int h = hash(fill);
+		if (stroke != null) {
+			h = 31*h + hash(stroke.width());
+			h = 31*h + hash(stroke.fill());
+		}
+		return h;
+	}
+
+	private static int hash(Fill fill) {
+		if (fill == null) return 0;
+		return fill instanceof Solid ? ((Solid) fill).color() : fill.key().hashCode();
+	}
+
+	private static int hash(double v) {
+		long bits = Double.doubleToLongBits(v);
+		return (int) (bits ^ (bits >>> 32));
+	}
+
+}
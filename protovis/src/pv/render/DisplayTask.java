@@ -1,21 +1,61 @@
 package pv.render;
 
 import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import pv.animate.Scheduler;
+import pv.mark.Scene;
 
+/**
+ * Publishes and renders the scenes of a display once per scheduler cycle.
+ * Displays are rendered only if one of their scenes changed since the last
+ * cycle, as reported by {@link Scene#version()}, if a change was noted
+ * with {@link Scheduler#changed()}, such as by a transition or an image
+ * load, or if the display was invalidated, so that idle displays cost
+ * nothing. Scenes publish each version once, however many displays show
+ * them.
+ */
 public class DisplayTask implements Scheduler.Task {
 
 	private WeakReference<Display> _display;
+	private Map<Scene,Long> _versions = new WeakHashMap<Scene,Long>();
+	private volatile boolean _dirty = true;
+	private long _changes = -1;
 	
 	public DisplayTask(Display d) {
 		_display = new WeakReference<Display>(d);
 	}
 	
+	/**
+	 * Requests that the display be rendered on the next scheduler cycle,
+	 * for changes not made by scene updates, such as to its transform.
+	 */
+	public void invalidate() {
+		_dirty = true;
+		Scheduler.instance().wake();
+	}
+	
 	public long evaluate(long t) {
 		Display display = _display.get();
 		if (display == null) return -1;
-		display.render();
+		// changes outside of scene updates, such as image loads, only
+		// require the published scenes to be rendered again
+		long c = Scheduler.instance().changes();
+		boolean render = _dirty || c != _changes;
+		_changes = c;
+		_dirty = false;
+		for (Scene scene : display.scenes()) {
+			long v = scene.version();
+			Long last = _versions.get(scene);
+			if (last == null || last.longValue() != v) {
+				_versions.put(scene, v);
+				render = true;
+			}
+			// a no-op unless the scene changed since it was last published
+			scene.publish();
+		}
+		if (render) display.render();
 		return 1;
 	}
 
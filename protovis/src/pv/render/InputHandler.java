@@ -2,20 +2,46 @@ package pv.render;
 
 import java.util.List;
 
+import pv.scene.ColumnGroupItem;
+import pv.scene.GridIndex;
 import pv.scene.GroupItem;
 import pv.scene.Item;
+import pv.util.Objects;
 
 public class InputHandler {
+	
+	/** Minimum group size for which picking queries the group's index. */
+	public static final int GRID_THRESHOLD = 256;
+	
+	private static final ThreadLocal<GridIndex.Hits> s_hits
+		= new ThreadLocal<GridIndex.Hits>() {
+			protected GridIndex.Hits initialValue() { return new GridIndex.Hits(); }
+		};
 
+	/**
+	 * Returns the top-most interactive item containing a point. Groups
+	 * are searched in the reverse of their rendering order, and large
+	 * groups of items are searched through their {@link GridIndex}.
+	 * @param list the items to search, such as the roots of a display
+	 * @param x the x-coordinate, in the coordinate frame of the items
+	 * @param y the y-coordinate, in the coordinate frame of the items
+	 * @return the picked item, or null if none
+	 */
 	public static Item pick(List<Item> list, double x, double y) {
 		Item target = null;
 		for (int i=list.size(); --i>=0;) {
 			Item item = list.get(i);
-			if (!item.visible) continue;
+			if (item == null || !item.visible) continue;
 			if (item.hit(x,y)) {
-				if (item instanceof GroupItem) {
+				if (item instanceof ColumnGroupItem) {
+					if (item.interactive()) {
+						ColumnGroupItem cg = (ColumnGroupItem) item;
+						int row = pick(cg, x-item.left, y-item.top);
+						if (row >= 0) target = cg.item(row);
+					}
+				} else if (item instanceof GroupItem) {
 					if (item.interactive()) {
-						target = pick(item.items(), x-item.left, y-item.top);
+						target = pick((GroupItem)item, x-item.left, y-item.top);
 					}
 				} else {
 					target = item;
@@ -30,4 +56,49 @@ public class InputHandler {
 		return target;
 	}
 	
+	/**
+	 * Indicates if two picked items are the same, including copies of the
+	 * same row of a columnar group, which are made anew on each pick.
+	 */
+	public static boolean same(Item a, Item b) {
+		if (a == b) return true;
+		return a != null && b != null && a.group == b.group
+			&& a.group instanceof ColumnGroupItem && a.index == b.index;
+	}
+	
+	private static Item pick(GroupItem group, double x, double y) {
+		List<Item> items = group.items;
+		int n = items.size();
+		if (n > 1 && items.get(0) instanceof GroupItem) {
+			// child groups, searched in reverse depth order
+			@SuppressWarnings("unchecked")
+			List<Item> groups = (List<Item>)(List<?>) AbstractRenderer.preprocess(items);
+			try {
+				return pick(groups, x, y);
+			} finally {
+				Objects.List.reclaim(groups);
+			}
+		} else if (n < GRID_THRESHOLD) {
+			return pick(items, x, y);
+		}
+		GridIndex.Hits hits = s_hits.get();
+		group.grid().query(x, y, hits);
+		for (int j=hits.size; --j>=0;) {
+			Item item = items.get(hits.rows[j]);
+			if (item != null && item.visible && item.hit(x, y)) return item;
+		}
+		return null;
+	}
+	
+	private static int pick(ColumnGroupItem group, double x, double y) {
+		if (group.count < GRID_THRESHOLD) return group.pick(x, y);
+		GridIndex.Hits hits = s_hits.get();
+		group.grid().query(x, y, hits);
+		for (int j=hits.size; --j>=0;) {
+			int row = hits.rows[j];
+			if (row < group.count && group.hit(row, x, y)) return row;
+		}
+		return -1;
+	}
+	
 }
@@ -0,0 +1,355 @@
+package pv.render;
+
+import java.util.Arrays;
+import java.util.List;
+
+import pv.mark.constants.Interpolate;
+import pv.scene.ColumnGroupItem;
+import pv.scene.DotItem;
+import pv.scene.GroupItem;
+import pv.scene.Item;
+import pv.style.Fill;
+import pv.util.Geometry;
+import pv.util.Rect;
+
+/**
+ * Computes aggregated representations of groups with more items than
+ * pixels, for marks with level of detail enabled through
+ * {@link pv.mark.Mark#lod(double)}. Dense dot groups are binned into a
+ * density image with one pixel per device pixel. Line and area groups are
+ * clipped to the view and decimated to the extremes of each pixel column
+ * once dense, using the decimation stages of {@link Geometry}.
+ * The decision is made per frame from the current transform, so that
+ * renderers switch back to full detail as the view is zoomed in.
+ *
+ * <p>Each renderer owns an instance, which reuses its buffers between
+ * frames. The view transform must be set with
+ * {@link #transform(double, double, double, double, double, double)}
+ * before each group is aggregated.</p>
+ */
+public class LevelOfDetail {
+
+	/** Default items per pixel above which groups are aggregated. */
+	public static final double THRESHOLD = 1;
+	/** Minimum number of items for a group to be aggregated. */
+	public static final int MIN_ITEMS = 1024;
+
+	// user to device transform
+	private double _m00 = 1, _m10 = 0, _m01 = 0, _m11 = 1, _m02 = 0, _m12 = 0;
+
+	// density accumulation buffers, per pixel
+	private float[] _trans = new float[0];
+	private float[] _rgb = new float[0];
+
+	/** The density image, as non-premultiplied ARGB pixels. */
+	public int[] pixels = new int[0];
+	/** The device bounds of the density image. */
+	public int x, y, width, height;
+
+	/** Maximum distance of vertices dropped from lines, in pixels. */
+	public static final double TOLERANCE = 0.25;
+
+	/**
+	 * Decimated vertices in user space, as x,y pairs. For lines, a NaN pair
+	 * breaks the line; for areas, see {@link #area(GroupItem, Rect)}.
+	 */
+	public double[] points = new double[0];
+	/** The number of values of the top edge of a decimated area. */
+	public int split;
+
+	// decimation buffers
+	private double[] _xy = new double[0], _xy2 = new double[0];
+	private double[] _tmp = new double[0], _tmp2 = new double[0];
+	private int[] _stack = new int[0];
+
+	/**
+	 * Sets the transform from user to device space, with the same
+	 * arguments as {@link java.awt.geom.AffineTransform#setTransform}.
+	 */
+	public void transform(double m00, double m10, double m01, double m11,
+		double m02, double m12)
+	{
+		_m00 = m00; _m10 = m10; _m01 = m01;
+		_m11 = m11; _m02 = m02; _m12 = m12;
+	}
+
+	private static int size(GroupItem group) {
+		return group instanceof ColumnGroupItem
+			? ((ColumnGroupItem) group).count : group.size();
+	}
+
+	private static Rect bounds(GroupItem group) {
+		if (group.bounds.w == 0 && group.bounds.h == 0) group.computeBounds();
+		return group.bounds;
+	}
+
+	/**
+	 * Indicates if a dot group covers fewer device pixels than its items
+	 * times its level of detail threshold.
+	 */
+	public boolean dense(GroupItem group) {
+		int n = size(group);
+		if (group.lod <= 0 || n < MIN_ITEMS) return false;
+		Rect b = bounds(group);
+		double area = Math.abs((_m00*_m11 - _m01*_m10) * b.w * b.h);
+		return n >= group.lod * Math.max(area, 1);
+	}
+
+	/**
+	 * Indicates if a line or area group is decimated. Stepped, segmented
+	 * and rotated lines are never decimated.
+	 */
+	public boolean decimates(GroupItem group) {
+		return group.lod > 0 && size(group) >= MIN_ITEMS && !group.segmented
+			&& group.interpolate != Interpolate.StepAfter
+			&& group.interpolate != Interpolate.StepBefore
+			&& _m01 == 0 && _m10 == 0;
+	}
+
+	// -- density ------------------------------------------------------------
+
+	/**
+	 * Bins the visible items of a dot group into the density image. Each
+	 * pixel is colored as if its items were composited on top of each
+	 * other, with the alpha-weighted mean of their colors.
+	 * @param group the dot group
+	 * @param view the visible rectangle in user space
+	 * @return false if no pixel is covered
+	 */
+	public boolean density(GroupItem group, Rect view) {
+		// device bounds of the visible part of the group
+		Rect b = bounds(group);
+		double vx0 = Math.max(view.getMinX(), b.getMinX());
+		double vy0 = Math.max(view.getMinY(), b.getMinY());
+		double vx1 = Math.min(view.getMaxX(), b.getMaxX());
+		double vy1 = Math.min(view.getMaxY(), b.getMaxY());
+		if (vx0 > vx1 || vy0 > vy1) return false;
+		double dx0 = Double.MAX_VALUE, dy0 = Double.MAX_VALUE;
+		double dx1 = -Double.MAX_VALUE, dy1 = -Double.MAX_VALUE;
+		for (int i=0; i<4; ++i) {
+			double ux = (i & 1) == 0 ? vx0 : vx1, uy = (i & 2) == 0 ? vy0 : vy1;
+			double px = _m00*ux + _m01*uy + _m02, py = _m10*ux + _m11*uy + _m12;
+			dx0 = Math.min(dx0, px); dy0 = Math.min(dy0, py);
+			dx1 = Math.max(dx1, px); dy1 = Math.max(dy1, py);
+		}
+		x = (int) Math.floor(dx0); y = (int) Math.floor(dy0);
+		width = (int) Math.ceil(dx1) - x + 1;
+		height = (int) Math.ceil(dy1) - y + 1;
+		int len = width * height;
+		if (_trans.length < len) {
+			_trans = new float[len];
+			_rgb = new float[3*len];
+			pixels = new int[len];
+		}
+		Arrays.fill(_trans, 0, len, 1f);
+		Arrays.fill(_rgb, 0, 3*len, 0f);
+
+		if (group instanceof ColumnGroupItem) {
+			ColumnGroupItem c = (ColumnGroupItem) group;
+			for (int i=0; i<c.count; ++i) {
+				if (!c.visibles[i] || c.shapes[i] == null) continue;
+				int argb = c.fills[i];
+				if (argb == 0 && c.strokes[i] != null) argb = color(c.strokes[i].fill());
+				add(c.lefts[i], c.tops[i], argb, c.alphas[i]);
+			}
+		} else {
+			List<Item> items = group.items;
+			for (int i=0; i<items.size(); ++i) {
+				DotItem item = (DotItem) items.get(i);
+				if (item == null || !item.visible || item.shape == null) continue;
+				Fill f = item.fill != null ? item.fill
+					: item.stroke != null ? item.stroke.fill() : null;
+				add(item.left, item.top, color(f), item.alpha);
+			}
+		}
+
+		boolean covered = false;
+		for (int i=0; i<len; ++i) {
+			float a = 1 - _trans[i];
+			if (a <= 0) { pixels[i] = 0; continue; }
+			covered = true;
+			int k = 3*i;
+			pixels[i] = (clamp(a) << 24) | (clamp(_rgb[k]/a) << 16)
+				| (clamp(_rgb[k+1]/a) << 8) | clamp(_rgb[k+2]/a);
+		}
+		return covered;
+	}
+
+	private static int color(Fill f) {
+		return f instanceof Fill.Solid ? ((Fill.Solid) f).color() : 0;
+	}
+
+	private static int clamp(float v) {
+		int c = (int) (255 * v + 0.5f);
+		return c < 0 ? 0 : c > 255 ? 255 : c;
+	}
+
+	private void add(double ux, double uy, int argb, double alpha) {
+		if (argb == 0) return;
+		int px = (int) Math.floor(_m00*ux + _m01*uy + _m02) - x;
+		int py = (int) Math.floor(_m10*ux + _m11*uy + _m12) - y;
+		if (px < 0 || py < 0 || px >= width || py >= height) return;
+		float a = (float) (alpha * (argb >>> 24) / 255.0);
+		if (a <= 0) return;
+		int i = py * width + px, k = 3*i;
+		// composite over the items binned so far, premultiplied
+		float u = 1 - a;
+		_rgb[k]   = a * ((argb >> 16) & 0xFF) / 255f + u * _rgb[k];
+		_rgb[k+1] = a * ((argb >> 8) & 0xFF) / 255f + u * _rgb[k+1];
+		_rgb[k+2] = a * (argb & 0xFF) / 255f + u * _rgb[k+2];
+		_trans[i] *= u;
+	}
+
+	// -- decimation ---------------------------------------------------------
+
+	/**
+	 * Decimates a line group. Only the vertices of segments overlapping
+	 * the view horizontally are kept. If more vertices than pixel columns
+	 * times the level of detail threshold remain, they are reduced to the
+	 * extremes of each column with {@link Geometry#m4}, which rasterizes
+	 * like the full line. Otherwise, as the view is zoomed in, they are
+	 * simplified within {@link #TOLERANCE} with {@link Geometry#rdp}. As
+	 * when rendering at full detail, invisible items start a new line.
+	 * @param group the line group
+	 * @param view the visible rectangle in user space, or null
+	 * @return the number of values stored in {@link #points}
+	 */
+	public int line(GroupItem group, Rect view) {
+		List<Item> items = group.items;
+		int n = items.size();
+		_xy = grow(_xy, 4*n);
+		double x0 = view == null ? -Double.MAX_VALUE : view.getMinX();
+		double x1 = view == null ? Double.MAX_VALUE : view.getMaxX();
+
+		// gather visible vertices, breaking the line at gaps
+		int k = 0;
+		boolean gap = false;
+		for (int i=0; i<n; ++i) {
+			Item item = items.get(i);
+			if (!visible(items, i, x0, x1)) {
+				gap = k > 0;
+				continue;
+			}
+			if ((gap || (i > 0 && !item.visible)) && k > 0) {
+				_xy[k++] = Double.NaN; _xy[k++] = Double.NaN;
+			}
+			gap = false;
+			_xy[k++] = item.left; _xy[k++] = item.top;
+		}
+
+		int npts = k >> 1;
+		points = grow(points, 2*npts);
+		if (npts >= group.lod * columns(_xy, npts)) {
+			npts = Geometry.m4(_xy, npts, _m00, _m02, false, points);
+		} else {
+			_stack = grow(_stack, 2*npts);
+			npts = Geometry.rdp(_xy, npts, Math.abs(_m00), Math.abs(_m11),
+				TOLERANCE, points, _stack);
+		}
+		return 2*npts;
+	}
+
+	/**
+	 * Decimates an area group. Only the items overlapping the view
+	 * horizontally are kept. If more items than pixel columns times the
+	 * level of detail threshold remain, and the edges are monotonic in x,
+	 * the top and bottom edges are reduced to the extremes of each column
+	 * with {@link Geometry#m4}, unless that would not reduce them.
+	 * The top edge is stored first, followed by the bottom edge, both from
+	 * left to right, and {@link #split} is set to the length of the top
+	 * edge. Both edges have the same length if the items have the same
+	 * width.
+	 * @param group the area group
+	 * @param view the visible rectangle in user space, or null
+	 * @return the number of values stored in {@link #points}
+	 */
+	public int area(GroupItem group, Rect view) {
+		List<Item> items = group.items;
+		int n = items.size();
+		_xy = grow(_xy, 2*n);
+		_xy2 = grow(_xy2, 2*n);
+		double x0 = view == null ? -Double.MAX_VALUE : view.getMinX();
+		double x1 = view == null ? Double.MAX_VALUE : view.getMaxX();
+
+		int k = 0;
+		for (int i=0; i<n; ++i) {
+			if (!visible(items, i, x0, x1)) continue;
+			Item item = items.get(i);
+			_xy[k] = item.left; _xy[k+1] = item.top;
+			_xy2[k] = item.left + item.width; _xy2[k+1] = item.top + item.height;
+			k += 2;
+		}
+
+		// padded columns only shrink edges that advance monotonically in x
+		int npts = k >> 1;
+		if (npts >= group.lod * columns(_xy, npts)
+			&& monotonic(_xy, npts) && monotonic(_xy2, npts))
+		{
+			_tmp = grow(_tmp, 8*npts);
+			_tmp2 = grow(_tmp2, 8*npts);
+			int top = Geometry.m4(_xy, npts, _m00, _m02, true, _tmp);
+			int bottom = Geometry.m4(_xy2, npts, _m00, _m02, true, _tmp2);
+			if (top + bottom < 2*npts) {
+				points = grow(points, 2*(top + bottom));
+				System.arraycopy(_tmp, 0, points, 0, 2*top);
+				System.arraycopy(_tmp2, 0, points, 2*top, 2*bottom);
+				split = 2*top;
+				return 2*(top + bottom);
+			}
+		}
+		points = grow(points, 4*npts);
+		System.arraycopy(_xy, 0, points, 0, 2*npts);
+		System.arraycopy(_xy2, 0, points, 2*npts, 2*npts);
+		split = 2*npts;
+		return 4*npts;
+	}
+
+	/**
+	 * Indicates if the segment before or after an item overlaps a range of
+	 * x-coordinates.
+	 */
+	private static boolean visible(List<Item> items, int i, double x0, double x1) {
+		double x = items.get(i).left;
+		double a = i > 0 ? items.get(i-1).left : x;
+		double b = i < items.size()-1 ? items.get(i+1).left : x;
+		return (Math.min(a, x) <= x1 && Math.max(a, x) >= x0)
+			|| (Math.min(x, b) <= x1 && Math.max(x, b) >= x0);
+	}
+
+	/**
+	 * Returns the number of pixel columns spanned by points, plus one.
+	 */
+	private int columns(double[] p, int npts) {
+		double lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE;
+		for (int j=0; j<2*npts; j+=2) {
+			double c = Math.floor(_m00*p[j] + _m02);
+			if (c < lo) lo = c;
+			if (c > hi) hi = c;
+		}
+		return lo > hi ? 1 : (int) Math.min(hi - lo + 2, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Indicates if the x-coordinates of points never reverse direction.
+	 */
+	private static boolean monotonic(double[] p, int npts) {
+		int dir = 0;
+		for (int j=2; j<2*npts; j+=2) {
+			double d = p[j] - p[j-2];
+			if (d == 0) continue;
+			int s = d > 0 ? 1 : -1;
+			if (dir == 0) dir = s;
+			else if (s != dir) return false;
+		}
+		return true;
+	}
+
+		private static double[] grow(double[] a, int len) {
+		return a.length < len ? new double[Math.max(len, 2*a.length)] : a;
+	}
+
+	private static int[] grow(int[] a, int len) {
+		return a.length < len ? new int[Math.max(len, 2*a.length)] : a;
+	}
+
+}
@@ -85,7 +85,7 @@ public class AWTInputHandler extends InputHandler implements KeyListener,
 		_x = _pt.getX(); _y = _pt.getY();
 		
 		Item item = pick(_display.items(), _x, _y);
-		if (_active != item) {
+		if (!same(_active, item)) {
 			if (_active != null) {
 				MarkEvent.fire(event(mouseExit, e), _active);
 			}
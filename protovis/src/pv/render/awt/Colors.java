@@ -93,7 +93,7 @@ public class Colors extends pv.style.Color {
      * blue, and alpha channel information
      * @return a Java Color object
      */
-    public static Color getColor(int rgba) {
+    public static synchronized Color getColor(int rgba) {
         Color c = null;
         if ( (c=(Color)colorMap.get(rgba)) == null ) {
             c = new Color(rgba,true);
@@ -126,7 +126,7 @@ public class Colors extends pv.style.Color {
     /**
      * Clear the Color object cache.
      */
-    public static void clearCache() {
+    public static synchronized void clearCache() {
         colorMap.clear();
     }
 	
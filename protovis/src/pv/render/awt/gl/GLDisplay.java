@@ -6,12 +6,14 @@ import java.awt.geom.Point2D;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.media.opengl.GL;
 import javax.media.opengl.GLAutoDrawable;
 import javax.media.opengl.GLCanvas;
 import javax.media.opengl.GLCapabilities;
 import javax.media.opengl.GLEventListener;
+import javax.swing.SwingUtilities;
 
 import pv.animate.Scheduler;
 import pv.mark.Scene;
@@ -41,12 +43,18 @@ public class GLDisplay extends GLCanvas implements Display, GLEventListener {
 	protected List<Item> _items = new CopyOnWriteArrayList<Item>();
 	protected GLRenderer _renderer = GLRenderer.instance();
 	protected AWTInputHandler _handler;
+	protected DisplayTask _task;
 	
 	protected AffineTransform _transform = new AffineTransform();
 	protected AffineTransform _itransform = new AffineTransform();
 	protected float[] _matrix = new float[16];
 	protected Point2D _pt = new Point2D.Double();
 	
+	protected AtomicBoolean _pending = new AtomicBoolean(false);
+	protected Runnable _paint = new Runnable() {
+		public void run() { _pending.set(false); GLDisplay.super.display(); }
+	};
+	
 	protected float _frameTime = 0;
 	protected float[] _bgcolor = {1,1,1,1};
 	protected int _fpi = 0;
@@ -59,7 +67,8 @@ public class GLDisplay extends GLCanvas implements Display, GLEventListener {
 	public GLDisplay(GLCapabilities caps) {
 		super(caps);
 		addGLEventListener(this);
-		Scheduler.instance().addPostTask(new DisplayTask(this));
+		_task = new DisplayTask(this);
+		Scheduler.instance().addPostTask(_task);
 	}
 	
 	public Component asComponent() {
@@ -69,11 +78,13 @@ public class GLDisplay extends GLCanvas implements Display, GLEventListener {
 	public void addScene(Scene scene) {
 		_scenes.add(scene);
 		_items.add(scene.items());
+		_task.invalidate();
 	}
 	
 	public boolean removeScene(Scene scene) {
 		if (_scenes.remove(scene)) {
 			_items.remove(scene.items());
+			_task.invalidate();
 			return true;
 		} else {
 			return false;
@@ -110,7 +121,26 @@ public class GLDisplay extends GLCanvas implements Display, GLEventListener {
 	public void postRender() {}
 	
 	public void render() {
-		super.display();
+		if (buffered()) {
+			// snapshots are safe to render while the next update runs
+			if (_pending.compareAndSet(false, true)) {
+				SwingUtilities.invokeLater(_paint);
+			}
+		} else {
+			super.display();
+		}
+	}
+	
+	/**
+	 * Indicates if all scenes of this display are double-buffered, so that
+	 * frames can be rendered asynchronously.
+	 */
+	protected boolean buffered() {
+		if (_scenes.isEmpty()) return false;
+		for (Scene scene : _scenes) {
+			if (!scene.doubleBuffered()) return false;
+		}
+		return true;
 	}
 	
 	public void repaint() {
@@ -141,8 +171,8 @@ public class GLDisplay extends GLCanvas implements Display, GLEventListener {
 		gl.glLoadMatrixf(matrix, 0);
 		_renderer.init(gl, matrix);
 		
-		for (Item scene : _items) {
-			_renderer.render(gl, (PanelItem)scene);
+		for (Scene scene : _scenes) {
+			_renderer.render(gl, (PanelItem)scene.renderItems());
 		}
 		postRender();
 	}
@@ -203,6 +233,7 @@ public class GLDisplay extends GLCanvas implements Display, GLEventListener {
 	public void reset() {
 		_transform.setToIdentity();
 		_itransform.setToIdentity();
+		_task.invalidate();
 	}
 	
 	public void pan(double dx, double dy) {
@@ -218,6 +249,7 @@ public class GLDisplay extends GLCanvas implements Display, GLEventListener {
         try {
             _itransform = _transform.createInverse();
         } catch ( Exception e ) { /*will never happen here*/ }
+        _task.invalidate();
 	}
 	
 	public void zoom(double s, double x, double y) {
@@ -230,6 +262,7 @@ public class GLDisplay extends GLCanvas implements Display, GLEventListener {
         try {
             _itransform = _transform.createInverse();
         } catch ( Exception e ) { /*will never happen here*/ }
+        _task.invalidate();
 	}
 	
 	public void rotate(double theta, double x, double y) {
@@ -242,6 +275,7 @@ public class GLDisplay extends GLCanvas implements Display, GLEventListener {
         try {
             _itransform = _transform.createInverse();
         } catch ( Exception e ) { /*will never happen here*/ }
+        _task.invalidate();
 	}
 	
 	private float[] getModelMatrix() {
@@ -17,7 +17,9 @@ import pv.mark.constants.Shape;
 import pv.mark.constants.TextAlign;
 import pv.mark.constants.TextBaseline;
 import pv.render.AbstractRenderer;
+import pv.render.LevelOfDetail;
 import pv.render.awt.Fonts;
+import pv.scene.ColumnGroupItem;
 import pv.scene.DotItem;
 import pv.scene.GroupItem;
 import pv.scene.ImageItem;
@@ -27,6 +29,7 @@ import pv.scene.PanelItem;
 import pv.scene.LinkItem;
 import pv.scene.RuleItem;
 import pv.scene.WedgeItem;
+import pv.style.Color;
 import pv.style.Fill;
 import pv.style.Font;
 import pv.style.Stroke;
@@ -57,6 +60,9 @@ public class GLRenderer extends AbstractRenderer {
 	private Fill _curFill = null;
 	private double _curAlpha = Double.NaN;
 	private FrameBuffer _fbo;
+	private int _cached = 0;
+	private LevelOfDetail _lod = new LevelOfDetail();
+	private IntBuffer _density = BufferUtil.newIntBuffer(0);
 	
 	private GL gl;
 	private GLU _glu = new GLU();
@@ -124,6 +130,7 @@ public class GLRenderer extends AbstractRenderer {
 				gl.glMatrixMode(GL.GL_MODELVIEW);
 				gl.glPushMatrix();
 				gl.glLoadIdentity();
+				++_cached;
 			}
 		}
 		
@@ -164,11 +171,12 @@ public class GLRenderer extends AbstractRenderer {
 					renderPanel(gl, (PanelItem)item);
 				}
 				Objects.List.reclaim(panels);
-				if (group.interactive())
+				if (group.interactive() || group.lod > 0)
 					group.computeBounds();
 			} else if (group.visible) {
+				view();
 				gr.render(group, gl);
-				if (group.interactive())
+				if (group.interactive() || group.lod > 0)
 					group.computeBounds();
 			}
 		}
@@ -178,6 +186,7 @@ public class GLRenderer extends AbstractRenderer {
 			// finish render to texture
 			gl.glPopMatrix();
 			tex.end(gl);
+			--_cached;
 			tex.draw(gl, 0, 0);
 		}
 		panel.dirty(false);
@@ -190,6 +199,68 @@ public class GLRenderer extends AbstractRenderer {
 		panel.computeBounds();
 	}
 	
+	/**
+	 * Sets the visible rectangle by mapping the viewport back through the
+	 * current modelview matrix. Panels cached to textures are not culled,
+	 * as their textures are reused when the view changes.
+	 */
+	private void view() {
+		float a = _matrix[0], b = _matrix[1], c = _matrix[4], d = _matrix[5];
+		float tx = _matrix[12], ty = _matrix[13];
+		double det = a*d - b*c;
+		_culling = _cached == 0 && _width > 0 && _height > 0 && det != 0;
+		if (!_culling) return;
+		
+		double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE;
+		double x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+		for (int i=0; i<4; ++i) {
+			double px = ((i & 1) == 0 ? 0 : _width) - tx;
+			double py = ((i & 2) == 0 ? 0 : _height) - ty;
+			double x = (d*px - c*py) / det, y = (a*py - b*px) / det;
+			if (x < x0) x0 = x;
+			if (y < y0) y0 = y;
+			if (x > x1) x1 = x;
+			if (y > y1) y1 = y;
+		}
+		_view.set(x0, y0, x1-x0, y1-y0);
+	}
+	
+	/**
+	 * Prepares level of detail aggregation for a group with the current
+	 * modelview matrix, returning false if the group has no level of detail
+	 * set or is drawn into a cached panel texture.
+	 */
+	private boolean lod(Item group) {
+		if (((GroupItem)group).lod <= 0 || _cached > 0) return false;
+		_lod.transform(_matrix[0], _matrix[1], _matrix[4], _matrix[5],
+			_matrix[12], _matrix[13]);
+		return true;
+	}
+	
+	/**
+	 * Draws the density image of a dot group in window coordinates,
+	 * returning false if the group is not dense enough to be aggregated.
+	 */
+	private boolean density(Item group) {
+		GroupItem g = (GroupItem) group;
+		if (!lod(g) || !_lod.dense(g)) return false;
+		if (!_lod.density(g, _culling ? _view : g.bounds)) return true;
+		
+		int len = _lod.width * _lod.height;
+		if (_density.capacity() < len) {
+			_density = BufferUtil.newIntBuffer(len);
+		}
+		_density.clear();
+		_density.put(_lod.pixels, 0, len).flip();
+		// rows run top-down, while window coordinates run bottom-up
+		gl.glWindowPos2i(_lod.x, _height - _lod.y);
+		gl.glPixelZoom(1, -1);
+		gl.glDrawPixels(_lod.width, _lod.height, GL.GL_BGRA,
+			GL.GL_UNSIGNED_INT_8_8_8_8_REV, _density);
+		gl.glPixelZoom(1, 1);
+		return true;
+	}
+	
 	// -----
 	
 	private final void shape(final int type) {
@@ -261,6 +332,19 @@ public class GLRenderer extends AbstractRenderer {
 		}
 	}
 	
+	private final void fill(final int argb, final double alpha, final int reps) {
+		int abgr = (argb==0 ? 0x00ffffff : (argb & 0xFF00FF00)
+			| ((argb & 0x000000FF) << 16)
+			| ((argb & 0x00FF0000) >> 16));
+		if (alpha < 1) {
+			int a = (int)(Color.alpha(abgr) * alpha);
+			abgr = (a << 24) | (0x00FFFFFF & abgr);
+		}
+		for (int i=0; i<reps; ++i) {
+			cb.put(abgr);
+		}
+	}
+	
 	private final void stroke(Stroke s, double alpha) {
 		gl.glLineWidth((float)s.width());
 		fill(s.fill(), alpha);
@@ -296,6 +380,9 @@ public class GLRenderer extends AbstractRenderer {
 			int itp = interpolateCode(g.interpolate);
 			clear();
 			
+			if (lod(g) && _lod.decimates(g) && renderDecimated(g, first, fb, sb)) {
+				return;
+			}
 			if (fb) {
 				if (g.segmented && itp != LINEAR) {
 					int len = items.size()-1;
@@ -362,13 +449,50 @@ public class GLRenderer extends AbstractRenderer {
 			}
 		}
 	}
+	/**
+	 * Draws a decimated area, returning false if its edges differ in length
+	 * and it cannot be filled as a strip.
+	 */
+	private boolean renderDecimated(GroupItem g, Item first, boolean fb, boolean sb) {
+		int n = _lod.area(g, _culling ? _view : null), s = _lod.split;
+		double[] p = _lod.points;
+		if (fb && 2*s != n) return false;
+		if (n == 0) return true;
+		if (fb) {
+			fill(first.fill, first.alpha);
+			for (int k=0; k<s; k+=2) {
+				vertex(p[k], p[k+1]);
+				vertex(p[s+k], p[s+k+1]);
+			}
+			shape(GL.GL_QUAD_STRIP);
+			clear();
+		}
+		if (sb) {
+			stroke(first.stroke, first.alpha);
+			for (int k=0; k<s; k+=2) {
+				vertex(p[k], p[k+1]);
+			}
+			for (int k=n-2; k>=s; k-=2) {
+				vertex(p[k], p[k+1]);
+			}
+			vertex(p[0], p[1]);
+			shape(GL.GL_LINE_STRIP);
+			clear();
+		}
+		return true;
+	}
 	class BarRenderer extends GroupRenderer {
 		public void render(Item group, GL gl) {
+			if (group instanceof ColumnGroupItem) {
+				render((ColumnGroupItem)group, gl);
+				return;
+			}
 			List<Item> items = group.items();
 			boolean fb = false, sb = false;
 			
-			for (int i=0; i<items.size(); ++i) {
-				Item item = items.get(i);
+			int n = visibleItems((GroupItem)group, items.size());
+			for (int j=0; j<n; ++j) {
+				Item item = items.get(row(j));
 				if (!item.visible) continue;
 				fb = item.fill != null;
 				sb = item.stroke != null;
@@ -389,16 +513,56 @@ public class GLRenderer extends AbstractRenderer {
 				clear();
 			}
 		}
+		// fills are batched into colored quads, flushed before each outline
+		public void render(ColumnGroupItem c, GL gl) {
+			int cap = vb.capacity() - 8; clear();
+			
+			int n = visibleItems(c, c.count);
+			for (int j=0; j<n; ++j) {
+				int i = row(j);
+				if (!c.visibles[i]) continue;
+				int fill = c.fills[i];
+				Stroke stroke = c.strokes[i];
+				if (fill == 0 && stroke == null) continue;
+				
+				double l = c.lefts[i], r = l + c.widths[i];
+				double t = c.tops[i], b = t + c.heights[i];
+				if (fill != 0) {
+					if (vb.position() > cap) {
+						paint(GL.GL_QUADS); clear();
+					}
+					vertex(l,t); vertex(r,t); vertex(r,b); vertex(l,b);
+					fill(fill, c.alphas[i], 4);
+				}
+				if (stroke != null) {
+					if (vb.position() > 0) {
+						paint(GL.GL_QUADS); clear();
+					}
+					vertex(l,t); vertex(r,t); vertex(r,b); vertex(l,b);
+					stroke(stroke, c.alphas[i]);
+					shape(GL.GL_LINE_LOOP);
+					clear();
+				}
+			}
+			if (vb.position() > 0) paint(GL.GL_QUADS);
+			clear();
+		}
 	}
 	class DotRenderer extends GroupRenderer {
 		public void render(Item group, GL gl) {
+			if (group instanceof ColumnGroupItem) {
+				render((ColumnGroupItem)group, gl);
+				return;
+			}
+			if (density(group)) return;
 			List<Item> items = group.items();
 			boolean fb = false, sb = false, p = false, pp = false;
 			Shapes.ShapeRenderer sr = null; String shape = null;
 			int cap = vb.capacity(); clear();
 			
-			for (int i=0, k=0; i<items.size(); ++i) {
-				DotItem item = (DotItem) items.get(i);
+			int n = visibleItems((GroupItem)group, items.size());
+			for (int j=0, k=0; j<n; ++j) {
+				DotItem item = (DotItem) items.get(row(j));
 				if (!item.visible) continue;
 				
 				p = (item.shape == Shape.Point);
@@ -440,6 +604,53 @@ public class GLRenderer extends AbstractRenderer {
 			}
 			if (pp) paint(GL.GL_POINTS);
 		}
+		public void render(ColumnGroupItem c, GL gl) {
+			if (density(c)) return;
+			boolean fb = false, sb = false, p = false, pp = false;
+			Shapes.ShapeRenderer sr = null; String shape = null;
+			int cap = vb.capacity(); clear();
+			
+			int n = visibleItems(c, c.count);
+			for (int j=0, k=0; j<n; ++j) {
+				int i = row(j);
+				if (!c.visibles[i]) continue;
+				String s = c.shapes[i];
+				
+				p = (s == Shape.Point);
+				fb = c.fills[i] != 0;
+				sb = c.strokes[i] != null && !p;
+				if (!(fb || sb) || s==null) continue;
+				if (s != shape || k >= cap) {
+					shape = s;
+					sr = Shapes.shape(shape);
+					if (k > 0) {
+						paint(GL.GL_POINTS); k = 0;
+						clear();
+					}
+					pp = p;
+				}
+				
+				float x = (float)c.lefts[i], y = (float)c.tops[i];
+				if (p) {
+					k += 2;
+					fill(c.fills[i], c.alphas[i], 1);
+					vertex(x, y);
+				} else {
+					float r = (float)c.radii[i];
+					if (fb) {
+						fill(ColumnGroupItem.fill(c.fills[i]), c.alphas[i]);
+						shape(sr.fill(vb, x, y, r, _zoom));
+						clear();
+					}
+					if (sb) {
+						stroke(c.strokes[i], c.alphas[i]);
+						shape(sr.draw(vb, x, y, r, _zoom));
+						clear();
+					}
+				}
+			}
+			if (pp) paint(GL.GL_POINTS);
+		}
 	}
 	class ImageRenderer extends GroupRenderer {
 		private Images _img = new Images();
@@ -618,7 +829,10 @@ public class GLRenderer extends AbstractRenderer {
 			if (sb) {
 				GroupItem g = (GroupItem)group;
 				int itp = interpolateCode(g.interpolate);
-				if (!g.segmented && (first.stroke.width() <= 2 || itp != LINEAR)) {
+				if (first.stroke.width() <= 2 && lod(g) && _lod.decimates(g)) {
+					stroke(first.stroke, first.alpha);
+					renderDecimated(g);
+				} else if (!g.segmented && (first.stroke.width() <= 2 || itp != LINEAR)) {
 					stroke(first.stroke, first.alpha);
 					int len = items.size()-1, cap = vb.capacity()-4;
 					for (int i=0, k=0; i<=len; ++i, k+=2) {
@@ -647,6 +861,30 @@ public class GLRenderer extends AbstractRenderer {
 				}
 			}
 		}
+		/**
+		 * Draws a decimated thin line.
+		 */
+		private void renderDecimated(GroupItem g) {
+			int n = _lod.line(g, _culling ? _view : null), cap = vb.capacity()-2;
+			double[] p = _lod.points;
+			clear();
+			for (int k=0; k<n; k+=2) {
+				if (p[k] != p[k]) {
+					// break the line
+					if (vb.position() > 2) shape(GL.GL_LINE_STRIP);
+					clear();
+					continue;
+				}
+				if (vb.position() >= cap) {
+					shape(GL.GL_LINE_STRIP);
+					float x = vb.get(cap-2), y = vb.get(cap-1);
+					clear(); vertex(x, y);
+				}
+				vertex(p[k], p[k+1]);
+			}
+			if (vb.position() > 2) shape(GL.GL_LINE_STRIP);
+			clear();
+		}
 		public void miterJoin(GL gl, List<Item> items, boolean segment, int interp) {
 			if (items.size() < 2) return;
 			int cap = vb.capacity() - 8;
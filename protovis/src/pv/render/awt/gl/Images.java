@@ -9,7 +9,9 @@ import java.util.Map;
 import javax.imageio.ImageIO;
 import javax.media.opengl.GL;
 
+import pv.animate.Scheduler;
 import pv.util.IOLib;
+import pv.util.ThreadPool;
 
 import com.sun.opengl.util.texture.Texture;
 import com.sun.opengl.util.texture.TextureData;
@@ -74,12 +76,14 @@ public class Images {
 		synchronized (_queue) {
 			_queue.add(e);
 			newThread = (_threadCount < _maxThreads);
+			if (newThread) _threadCount++;
 		}
-		if (newThread) new Loader().start();
+		// loading blocks, so keep it off the CPU-bound thread pool
+		if (newThread) ThreadPool.getIOPool().execute(new Loader());
 	}
 	
 	public static class ImageEntry {
-		boolean loaded = false;
+		volatile boolean loaded = false;
 		String location = null;
 		
 		BufferedImage image = null;
@@ -104,7 +108,7 @@ public class Images {
 		}
 	}
 	
-	public class Loader extends Thread {
+	public class Loader implements Runnable {
 		public void run() {
 			while (true) {
 				ImageEntry e = null;
@@ -125,6 +129,8 @@ public class Images {
 					e.tdata = null;
 					e.loaded = false;
 				}
+				// have displays render the loaded image
+				Scheduler.instance().changed();
 			}
 			
 		}
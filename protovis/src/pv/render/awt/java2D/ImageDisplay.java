@@ -0,0 +1,329 @@
+package pv.render.awt.java2D;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics2D;
+import java.awt.event.KeyListener;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import pv.mark.Scene;
+import pv.mark.update.SerialUpdater;
+import pv.render.Display;
+import pv.render.awt.Colors;
+import pv.scene.Item;
+import pv.scene.PanelItem;
+import pv.util.ObjectPool;
+import pv.util.ThreadPool;
+
+/**
+ * A headless display that renders scenes into an offscreen image. Unlike
+ * {@link Java2DDisplay}, an image display is not a component and is not
+ * driven by the scheduler: each call to {@link #render()} draws the
+ * scenes synchronously in the calling thread, without touching the AWT
+ * event dispatch thread. Images are taken from a pool shared by displays
+ * of the same size, and returned to it by {@link #dispose()}.
+ *
+ * <p>Displays may render concurrently on different threads, provided each
+ * display is used by a single thread at a time. By default each thread
+ * renders with its own {@link Java2DRenderer}; the renderers share one
+ * image cache.</p>
+ *
+ * <pre>
+ * ImageDisplay display = new ImageDisplay(400, 300);
+ * scene.update(new SerialUpdater());
+ * display.addScene(scene);
+ * display.render();
+ * display.writePNG(new File("chart.png"));
+ * display.dispose();
+ * </pre>
+ */
+public class ImageDisplay implements Display {
+
+	private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+	private static final ConcurrentHashMap<Long,ObjectPool<BufferedImage>> s_pools
+		= new ConcurrentHashMap<Long,ObjectPool<BufferedImage>>();
+	private static final ThreadLocal<Java2DRenderer> s_renderer
+		= new ThreadLocal<Java2DRenderer>() {
+			protected Java2DRenderer initialValue() { return new Java2DRenderer(); }
+		};
+
+	protected List<Scene> _scenes = new CopyOnWriteArrayList<Scene>();
+	protected List<Item> _items = new CopyOnWriteArrayList<Item>();
+	protected Java2DRenderer _renderer = null;
+	protected BufferedImage _image;
+	protected int _width, _height;
+	protected Color _background = Color.WHITE;
+
+	protected AffineTransform _transform = new AffineTransform();
+	protected AffineTransform _itransform = new AffineTransform();
+	protected Point2D _pt = new Point2D.Double();
+
+	public ImageDisplay(int width, int height) {
+		setSize(width, height);
+	}
+
+	/**
+	 * Returns null, as image displays are not components.
+	 */
+	public Component asComponent() {
+		return null;
+	}
+
+	public void addScene(Scene scene) {
+		_scenes.add(scene);
+		_items.add(scene.items());
+	}
+
+	public boolean removeScene(Scene scene) {
+		if (_scenes.remove(scene)) {
+			_items.remove(scene.items());
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	public List<Scene> scenes() {
+		return Collections.unmodifiableList(_scenes);
+	}
+
+	public List<Item> items() {
+		return Collections.unmodifiableList(_items);
+	}
+
+	/**
+	 * Sets the renderer to use, or null to use a renderer per thread.
+	 */
+	public void renderer(Java2DRenderer renderer) {
+		_renderer = renderer;
+	}
+
+	public void bgcolor(int color) {
+		_background = Colors.getColor(color);
+	}
+
+	public void bgcolor(int color, double alpha) {
+		_background = Colors.getColor(color, alpha);
+	}
+
+	public void setSize(int width, int height) {
+		if (width == _width && height == _height) return;
+		dispose();
+		_width = width;
+		_height = height;
+	}
+
+	public int getWidth() { return _width; }
+	public int getHeight() { return _height; }
+
+	/**
+	 * Returns the rendered image, or null if the display has not been
+	 * rendered since it was created or disposed.
+	 */
+	public BufferedImage image() {
+		return _image;
+	}
+
+	// -- rendering -----------------------------------------------------------
+
+	public void preRender() {}
+	public void postRender() {}
+
+	/**
+	 * Renders the scenes into the display's image, in the calling thread.
+	 */
+	public void render() {
+		preRender();
+		if (_image == null) _image = pool(_width, _height).get();
+		Graphics2D g = _image.createGraphics();
+		try {
+			g.setBackground(_background);
+			g.clearRect(0, 0, _width, _height);
+			g.clipRect(0, 0, _width, _height);
+			g.setTransform(_transform);
+			Java2DRenderer r = _renderer != null ? _renderer : s_renderer.get();
+			for (Scene scene : _scenes) {
+				r.render(g, (PanelItem) scene.renderItems());
+			}
+		} finally {
+			g.dispose();
+		}
+		postRender();
+	}
+
+	/**
+	 * Writes the rendered image in PNG format.
+	 */
+	public void writePNG(OutputStream out) throws IOException {
+		if (_image == null) render();
+		ImageIO.write(_image, "png", out);
+	}
+
+	/**
+	 * Writes the rendered image to a PNG file.
+	 */
+	public void writePNG(File file) throws IOException {
+		if (_image == null) render();
+		ImageIO.write(_image, "png", file);
+	}
+
+	/**
+	 * Returns the rendered image encoded in PNG format.
+	 */
+	public byte[] toPNG() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writePNG(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Returns the display's image to the image pool. The image must no
+	 * longer be used afterwards.
+	 */
+	public void dispose() {
+		if (_image != null) {
+			pool(_width, _height).reclaim(_image);
+			_image = null;
+		}
+	}
+
+	private static ObjectPool<BufferedImage> pool(final int width, final int height) {
+		Long key = ((long) width << 32) | (height & 0xffffffffL);
+		ObjectPool<BufferedImage> pool = s_pools.get(key);
+		if (pool == null) {
+			pool = new ObjectPool<BufferedImage>(POOL_SIZE) {
+				public BufferedImage create() {
+					return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+				}
+			};
+			ObjectPool<BufferedImage> prev = s_pools.putIfAbsent(key, pool);
+			if (prev != null) pool = prev;
+		}
+		return pool;
+	}
+
+	// -- batch export --------------------------------------------------------
+
+	/**
+	 * Updates and renders scenes in parallel on the {@link ThreadPool},
+	 * or in turn if called from a task of the pool, returning the PNG
+	 * encoding of each scene in order. Each scene is
+	 * updated with its own {@link SerialUpdater}, so scenes must not share
+	 * marks.
+	 * @param scenes the scenes to render
+	 * @param width the image width
+	 * @param height the image height
+	 * @return the PNG images, with null entries for scenes that failed
+	 * @throws InterruptedException if interrupted while waiting for the
+	 * images, in which case unfinished exports are cancelled
+	 */
+	public static List<byte[]> exportPNG(Collection<Scene> scenes,
+		final int width, final int height) throws InterruptedException
+	{
+		List<Callable<byte[]>> tasks = new ArrayList<Callable<byte[]>>(scenes.size());
+		for (final Scene scene : scenes) {
+			tasks.add(new Callable<byte[]>() {
+				public byte[] call() throws Exception {
+					scene.update(new SerialUpdater());
+					ImageDisplay display = new ImageDisplay(width, height);
+					try {
+						display.addScene(scene);
+						display.render();
+						return display.toPNG();
+					} finally {
+						display.dispose();
+					}
+				}
+			});
+		}
+
+		List<byte[]> images = new ArrayList<byte[]>(tasks.size());
+		for (Future<byte[]> f : ThreadPool.invokeAll(tasks)) {
+			try {
+				images.add(f.get());
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+				images.add(null);
+			}
+		}
+		return images;
+	}
+
+	// -- view transforms -----------------------------------------------------
+
+	public AffineTransform getTransform() {
+		return _transform;
+	}
+
+	public AffineTransform getInverseTransform() {
+		return _itransform;
+	}
+
+	/**
+	 * Does nothing, as image displays receive no input.
+	 */
+	public void addKeyListener(KeyListener kl) {
+	}
+
+	public void reset() {
+		_transform.setToIdentity();
+		_itransform.setToIdentity();
+	}
+
+	public void pan(double dx, double dy) {
+		_pt.setLocation(dx, dy);
+		_itransform.transform(_pt, _pt);
+		double panx = _pt.getX();
+		double pany = _pt.getY();
+		_pt.setLocation(0, 0);
+		_itransform.transform(_pt, _pt);
+		panx -= _pt.getX();
+		pany -= _pt.getY();
+		_transform.translate(panx, pany);
+		invert();
+	}
+
+	public void zoom(double s, double x, double y) {
+		_pt.setLocation(x, y);
+		_itransform.transform(_pt, _pt);
+		double zx = _pt.getX(), zy = _pt.getY();
+		_transform.translate(zx, zy);
+		_transform.scale(s, s);
+		_transform.translate(-zx, -zy);
+		invert();
+	}
+
+	public void rotate(double theta, double x, double y) {
+		_pt.setLocation(x, y);
+		_itransform.transform(_pt, _pt);
+		double zx = _pt.getX(), zy = _pt.getY();
+		_transform.translate(zx, zy);
+		_transform.rotate(theta);
+		_transform.translate(-zx, -zy);
+		invert();
+	}
+
+	private void invert() {
+		try {
+			_itransform = _transform.createInverse();
+		} catch (Exception e) { /* will never happen here */ }
+	}
+
+}
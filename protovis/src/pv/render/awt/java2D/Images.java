@@ -2,19 +2,37 @@ package pv.render.awt.java2D;
 
 import java.awt.image.BufferedImage;
 import java.net.URL;
-import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.imageio.ImageIO;
 
+import pv.animate.Scheduler;
+import pv.render.DamageTracker;
 import pv.util.IOLib;
+import pv.util.ThreadPool;
 
+/**
+ * A cache of images loaded by URL. Images load asynchronously on the I/O
+ * pool; the cache may be shared by renderers on different threads.
+ */
 public class Images {
 
+	private static final Images s_instance = new Images();
+
+	/**
+	 * Returns the cache shared by renderers, so that each image is loaded
+	 * once no matter how many renderers draw it.
+	 */
+	public static Images instance() {
+		return s_instance;
+	}
+
 	private int _maxThreads = 8;
 	private int _threadCount = 0;
-	private Map<String,ImageEntry> _map = new HashMap<String,ImageEntry>();
+	private ConcurrentMap<String,ImageEntry> _map
+		= new ConcurrentHashMap<String,ImageEntry>();
 	private LinkedList<ImageEntry> _queue = new LinkedList<ImageEntry>();
 	
 	public Images() {
@@ -35,7 +53,9 @@ public class Images {
 	public ImageEntry get(String location) {
 		ImageEntry e = _map.get(location);
 		if (e == null) {
-			_map.put(location, e = new ImageEntry(location));
+			// only the thread that inserts the entry loads it
+			ImageEntry prev = _map.putIfAbsent(location, e = new ImageEntry(location));
+			if (prev != null) return prev;
 			load(e);
 		}
 		return e;
@@ -50,12 +70,14 @@ public class Images {
 		synchronized (_queue) {
 			_queue.add(e);
 			newThread = (_threadCount < _maxThreads);
+			if (newThread) _threadCount++;
 		}
-		if (newThread) new Loader().start();
+		// loading blocks, so keep it off the CPU-bound thread pool
+		if (newThread) ThreadPool.getIOPool().execute(new Loader());
 	}
 	
 	public static class ImageEntry {
-		boolean loaded = false;
+		volatile boolean loaded = false;
 		String location = null;
 		BufferedImage image = null;
 		
@@ -64,7 +86,7 @@ public class Images {
 		}
 	}
 	
-	public class Loader extends Thread {
+	public class Loader implements Runnable {
 		public void run() {
 			while (true) {
 				ImageEntry e = null;
@@ -83,6 +105,9 @@ public class Images {
 					e.image = null;
 					e.loaded = false;
 				}
+				// have displays render the loaded image
+				DamageTracker.imageLoaded(e.location);
+				Scheduler.instance().changed();
 			}
 			
 		}
@@ -6,41 +6,79 @@ import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JComponent;
 import javax.swing.SwingUtilities;
 
 import pv.animate.Scheduler;
 import pv.mark.Scene;
+import pv.render.DamageTracker;
 import pv.render.Display;
 import pv.render.DisplayTask;
 import pv.render.awt.AWTInputHandler;
 import pv.render.awt.Colors;
 import pv.scene.Item;
 import pv.scene.PanelItem;
+import pv.util.Rect;
 
 public class Java2DDisplay extends JComponent implements Display {
 
 	private static final long serialVersionUID = 3917179431350332689L;
+	
+	/** Fraction of the display area above which damage is repainted in full. */
+	public static final double FULL_REPAINT = 0.5;
 
 	protected List<Scene> _scenes = new ArrayList<Scene>();
 	protected List<Item> _items = new ArrayList<Item>();
 	protected Java2DRenderer _renderer = Java2DRenderer.instance();
+	protected TiledRenderer _tiled = null;
 	protected AWTInputHandler _handler;
+	protected DisplayTask _task;
 	
     protected BufferedImage _offscreen;
 	protected AffineTransform _transform = new AffineTransform();
 	protected AffineTransform _itransform = new AffineTransform();
 	protected Point2D _pt = new Point2D.Double();
 	
+	protected DamageTracker _damage = new DamageTracker();
+	protected List<PanelItem> _roots = new ArrayList<PanelItem>();
+	protected Rectangle _region = null;
+	protected boolean _tracked = false;
+	private boolean _rendered = false;
+	private AffineTransform _painted = new AffineTransform();
+	private Color _paintedBackground = null;
+	private Rectangle2D _rect = new Rectangle2D.Double();
+	
+	protected AtomicBoolean _pending = new AtomicBoolean(false);
 	protected Runnable _paint = new Runnable() {
-		public void run() { paintImmediately(0, 0, getWidth(), getHeight()); }
+		public void run() {
+			_pending.set(false);
+			if (!damaged()) return;
+			Rectangle r = _region;
+			_tracked = true;
+			_rendered = false;
+			try {
+				if (r == null) {
+					paintImmediately(0, 0, getWidth(), getHeight());
+				} else {
+					paintImmediately(r);
+				}
+			} finally {
+				_tracked = false;
+				// the damage was consumed but not painted, such as while
+				// the display is hidden, so repaint in full next time
+				if (!_rendered) _damage.invalidate();
+			}
+		}
 	};
 	
 	protected float[] _frameTimes = new float[10];
@@ -60,7 +98,8 @@ public class Java2DDisplay extends JComponent implements Display {
 		addMouseWheelListener(_handler);
 		setFocusable(true);
 		
-		Scheduler.instance().addPostTask(new DisplayTask(this));
+		_task = new DisplayTask(this);
+		Scheduler.instance().addPostTask(_task);
 	}
 	
 	public Component asComponent() {
@@ -70,11 +109,13 @@ public class Java2DDisplay extends JComponent implements Display {
 	public void addScene(Scene scene) {
 		_scenes.add(scene);
 		_items.add(scene.items());
+		_task.invalidate();
 	}
 	
 	public boolean removeScene(Scene scene) {
 		if (_scenes.remove(scene)) {
 			_items.remove(scene.items());
+			_task.invalidate();
 			return true;
 		} else {
 			return false;
@@ -126,6 +167,11 @@ public class Java2DDisplay extends JComponent implements Display {
 	public void render() {
 		if (SwingUtilities.isEventDispatchThread()) {
 			_paint.run();
+		} else if (buffered()) {
+			// snapshots are safe to render while the next update runs
+			if (_pending.compareAndSet(false, true)) {
+				SwingUtilities.invokeLater(_paint);
+			}
 		} else {
 			try {
 				SwingUtilities.invokeAndWait(_paint);
@@ -135,26 +181,131 @@ public class Java2DDisplay extends JComponent implements Display {
 		}
 	}
 	
-	public void paintComponent(Graphics g) {
-		preRender();
+	/**
+	 * Indicates if all scenes of this display are double-buffered, so that
+	 * frames can be rendered asynchronously.
+	 */
+	protected boolean buffered() {
+		if (_scenes.isEmpty()) return false;
+		for (Scene scene : _scenes) {
+			if (!scene.doubleBuffered()) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Indicates if frames are rasterized in parallel tiles.
+	 */
+	public boolean tiled() {
+		return _tiled != null;
+	}
+	
+	/**
+	 * Sets if frames are rasterized in parallel tiles, one per thread of
+	 * the thread pool. Tiling pays off for scenes with many items, such
+	 * as large scatter plots, where frame time is dominated by
+	 * rasterization.
+	 * @see TiledRenderer
+	 */
+	public void tiled(boolean tiled) {
+		_tiled = tiled ? new TiledRenderer() : null;
+	}
+	
+	/**
+	 * Compares the scenes to the last painted frame, and sets the region
+	 * of the offscreen buffer to repaint, or null to repaint it in full.
+	 * Must be called from the event dispatch thread.
+	 * @return false if nothing changed since the last painted frame
+	 */
+	protected boolean damaged() {
+		_roots.clear();
+		for (Scene scene : _scenes) {
+			_roots.add((PanelItem)scene.renderItems());
+		}
+		boolean changed = _damage.track(_roots);
 		
-//		long t0 = System.currentTimeMillis();
+		int w = getWidth(), h = getHeight();
+		_region = null;
+		if (_offscreen == null || _offscreen.getWidth() != w
+			|| _offscreen.getHeight() != h || !_transform.equals(_painted)
+			|| !getBackground().equals(_paintedBackground))
+		{
+			return true;
+		}
+		if (!changed) return false;
+		if (_damage.full() || _tiled != null) return true;
 		
-		if (_offscreen == null) {
-            _offscreen = getNewOffscreenBuffer(getWidth(), getHeight());
+		// device bounds of the damage, with a pixel of antialiasing
+		Rect d = _damage.damage();
+		_rect.setRect(d.x, d.y, d.w, d.h);
+		Rectangle r = _transform.createTransformedShape(_rect).getBounds();
+		r.grow(1, 1);
+		r = r.intersection(new Rectangle(0, 0, w, h));
+		if (r.isEmpty()) return false;
+		if (r.width * (double) r.height <= FULL_REPAINT * w * h) {
+			_region = r;
+		}
+		return true;
+	}
+	
+	/**
+	 * Renders the scenes into the offscreen buffer, within a region or in
+	 * full if the region is null.
+	 */
+	protected void renderOffscreen(Rectangle region) {
+		int w = getWidth(), h = getHeight();
+		if (_offscreen == null || _offscreen.getWidth() != w
+			|| _offscreen.getHeight() != h)
+		{
+            _offscreen = getNewOffscreenBuffer(w, h);
+            region = null;
         }
-        Graphics2D g2D = (Graphics2D) g;
-        Graphics2D buf_g2D = (Graphics2D) _offscreen.getGraphics();
 		
-        buf_g2D.setColor(getBackground());
-        buf_g2D.fillRect(0, 0, getWidth(), getHeight());
-        
-		buf_g2D.setTransform(_transform);
+        if (_tiled != null) {
+        	_tiled.render(_offscreen, _roots, _transform, getBackground());
+        } else {
+	        Graphics2D buf_g2D = (Graphics2D) _offscreen.getGraphics();
+	        Rectangle r = region != null ? region : new Rectangle(0, 0, w, h);
+			
+	        buf_g2D.setColor(getBackground());
+	        buf_g2D.fillRect(r.x, r.y, r.width, r.height);
+	        buf_g2D.clipRect(r.x, r.y, r.width, r.height);
+	        
+			buf_g2D.setTransform(_transform);
+			
+			for (PanelItem root : _roots) {
+				_renderer.render(buf_g2D, root);
+			}
+			buf_g2D.dispose();
+        }
+        _painted.setTransform(_transform);
+        _paintedBackground = getBackground();
+	}
+	
+	/**
+	 * Paints the display from the offscreen buffer, first rendering the
+	 * regions damaged since the last frame. Frames requested by
+	 * {@link #render()} repaint only the damaged region; other paints,
+	 * such as when the display is exposed, copy the buffer unless the
+	 * scenes changed.
+	 */
+	public void paintComponent(Graphics g) {
+		preRender();
+		
+//		long t0 = System.currentTimeMillis();
 		
-		for (Item scene : _items) {
-			_renderer.render(buf_g2D, (PanelItem)scene);
+		Graphics2D g2D = (Graphics2D) g;
+		if (_tracked) {
+			renderOffscreen(_region);
+			_rendered = true;
+		} else if (damaged()) {
+			Rectangle r = _region;
+			renderOffscreen(r);
+			// show damage outside of the area being painted
+			Rectangle clip = g2D.getClipBounds();
+			if (r == null) r = new Rectangle(0, 0, getWidth(), getHeight());
+			if (clip != null && !clip.contains(r)) repaint(r);
 		}
-		buf_g2D.dispose();
 		g2D.drawImage(_offscreen, 0, 0, null);
 		
 		postRender();
@@ -184,6 +335,7 @@ public class Java2DDisplay extends JComponent implements Display {
 	public void reset() {
 		_transform.setToIdentity();
 		_itransform.setToIdentity();
+		_task.invalidate();
 	}
 	
 	public void pan(double dx, double dy) {
@@ -199,6 +351,7 @@ public class Java2DDisplay extends JComponent implements Display {
         try {
             _itransform = _transform.createInverse();
         } catch ( Exception e ) { /*will never happen here*/ }
+        _task.invalidate();
 	}
 	
 	/**
@@ -231,6 +384,7 @@ public class Java2DDisplay extends JComponent implements Display {
         try {
             _itransform = _transform.createInverse();
         } catch ( Exception e ) { /*will never happen here*/ }
+        _task.invalidate();
 	}
 	
 	public void rotate(double theta, double x, double y) {
@@ -243,6 +397,7 @@ public class Java2DDisplay extends JComponent implements Display {
         try {
             _itransform = _transform.createInverse();
         } catch ( Exception e ) { /*will never happen here*/ }
+        _task.invalidate();
 	}
 
 }
@@ -2,6 +2,7 @@ package pv.render.awt.java2D;
 
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Shape;
 import java.awt.geom.AffineTransform;
@@ -10,6 +11,7 @@ import java.awt.geom.GeneralPath;
 import java.awt.geom.Line2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -18,8 +20,10 @@ import pv.mark.constants.MarkType;
 import pv.mark.constants.TextAlign;
 import pv.mark.constants.TextBaseline;
 import pv.render.AbstractRenderer;
+import pv.render.LevelOfDetail;
 import pv.render.awt.Colors;
 import pv.render.awt.Fonts;
+import pv.scene.ColumnGroupItem;
 import pv.scene.DotItem;
 import pv.scene.GroupItem;
 import pv.scene.ImageItem;
@@ -28,6 +32,7 @@ import pv.scene.LabelItem;
 import pv.scene.PanelItem;
 import pv.scene.LinkItem;
 import pv.scene.WedgeItem;
+import pv.style.Color;
 import pv.style.Fill;
 import pv.style.Font;
 import pv.style.Stroke;
@@ -51,6 +56,18 @@ public class Java2DRenderer extends AbstractRenderer {
 	private GeneralPath _path = new GeneralPath();
 	//private RoundRectangle2D _rrect = new RoundRectangle2D.Double();
 	
+	private boolean _cull = false;
+	private Rectangle _clip = new Rectangle();
+	
+	private LevelOfDetail _lod = new LevelOfDetail();
+	private BufferedImage _density = null;
+	
+	private ShapeCache _shapes = new ShapeCache();
+	private Images _images = Images.instance();
+	private boolean _sprites = false;
+	private AffineTransform _stamp = new AffineTransform();
+	private AffineTransform _identity = new AffineTransform();
+	
 	public Java2DRenderer() {
 		_map.put(MarkType.Area,  new AreaRenderer());
 		_map.put(MarkType.Bar,   new BarRenderer());
@@ -76,6 +93,149 @@ public class Java2DRenderer extends AbstractRenderer {
 		renderPanel(g, panel);		
 	}
 	
+	/**
+	 * Indicates if rendering is culled against the clip of the graphics
+	 * context.
+	 */
+	public boolean cull() {
+		return _cull;
+	}
+	
+	/**
+	 * Sets if groups are culled against the clip of the graphics context.
+	 * When culling, groups whose bounds fall outside the clip are skipped.
+	 * Group bounds must be computed before rendering, see
+	 * {@link #computeBounds(PanelItem)}; the renderer does not update them.
+	 * Bar and dot items outside the clip are skipped in either mode.
+	 */
+	public void cull(boolean b) {
+		_cull = b;
+	}
+	
+	/**
+	 * Returns the cache of geometry retained between frames.
+	 */
+	public ShapeCache shapes() {
+		return _shapes;
+	}
+	
+	/**
+	 * Returns the image cache, by default shared by all renderers.
+	 */
+	public Images images() {
+		return _images;
+	}
+	
+	/**
+	 * Sets the image cache.
+	 */
+	public void images(Images images) {
+		_images = images;
+	}
+	
+	/**
+	 * Indicates if dots are drawn as pre-rasterized sprites.
+	 */
+	public boolean sprites() {
+		return _sprites;
+	}
+	
+	/**
+	 * Sets if dots are drawn as pre-rasterized sprites, cached by radius,
+	 * fill, stroke and scale. Sprites are placed within a quarter pixel
+	 * and suit charts with few distinct dot styles; they are not used
+	 * under rotated or sheared transforms.
+	 */
+	public void sprites(boolean b) {
+		_sprites = b;
+	}
+	
+	/**
+	 * Computes the bounds of all groups in a panel tree, as updated by
+	 * {@link #renderPanel(Graphics2D, PanelItem)} when not culling.
+	 */
+	public static void computeBounds(PanelItem panel) {
+		for (Item item : panel.items) {
+			GroupItem group = (GroupItem) item;
+			if (group == null) continue;
+			if (group instanceof PanelItem) {
+				computeBounds((PanelItem)group);
+			} else if (group.type == MarkType.Panel) {
+				for (Item layer : group.items) {
+					if (layer != null) computeBounds((PanelItem)layer);
+				}
+				group.computeBounds();
+			} else if (group.visible) {
+				group.computeBounds();
+			}
+		}
+		panel.computeBounds();
+	}
+	
+	/**
+	 * Sets the visible rectangle from the clip of a graphics context, in
+	 * user space. Items are culled against it only if a clip is set.
+	 */
+	private void view(Graphics2D g) {
+		_culling = g.getClip() != null;
+		if (_culling) {
+			g.getClipBounds(_clip);
+			_view.set(_clip.x, _clip.y, _clip.width, _clip.height);
+		}
+	}
+	
+	/**
+	 * Returns true if a box, grown by half a stroke width plus a pixel of
+	 * antialiasing, lies outside the visible rectangle.
+	 */
+	private boolean culled(double x, double y, double w, double h, Stroke s) {
+		if (!_culling) return false;
+		double m = (s==null ? 0 : s.width()/2) + 1;
+		if (w < 0) { x += w; w = -w; }
+		if (h < 0) { y += h; h = -h; }
+		return x+w+m < _clip.x || y+h+m < _clip.y
+			|| x-m > _clip.x+_clip.width || y-m > _clip.y+_clip.height;
+	}
+	
+	/**
+	 * Prepares level of detail aggregation for a group with the current
+	 * transform, returning false if the group has no level of detail set.
+	 */
+	private boolean lod(Item group, Graphics2D g) {
+		if (((GroupItem)group).lod <= 0) return false;
+		AffineTransform t = g.getTransform();
+		_lod.transform(t.getScaleX(), t.getShearY(), t.getShearX(),
+			t.getScaleY(), t.getTranslateX(), t.getTranslateY());
+		return true;
+	}
+	
+	/**
+	 * Draws the density image of a dot group in device space, returning
+	 * false if the group is not dense enough to be aggregated.
+	 */
+	private boolean density(Item group, Graphics2D g) {
+		GroupItem gi = (GroupItem) group;
+		if (!lod(gi, g) || !_lod.dense(gi)) return false;
+		if (!_lod.density(gi, _culling ? _view : gi.bounds)) return true;
+		
+		int w = _lod.width, h = _lod.height;
+		if (_density == null || _density.getWidth() < w || _density.getHeight() < h) {
+			int dw = _density == null ? w : Math.max(w, _density.getWidth());
+			int dh = _density == null ? h : Math.max(h, _density.getHeight());
+			_density = new BufferedImage(dw, dh, BufferedImage.TYPE_INT_ARGB);
+		}
+		int[] data = ((DataBufferInt)_density.getRaster().getDataBuffer()).getData();
+		int stride = _density.getWidth();
+		for (int y=0; y<h; ++y) {
+			System.arraycopy(_lod.pixels, y*w, data, y*stride, w);
+		}
+		AffineTransform t = g.getTransform();
+		g.setTransform(new AffineTransform());
+		g.drawImage(_density, _lod.x, _lod.y, _lod.x+w, _lod.y+h, 0, 0, w, h, null);
+		g.setTransform(t);
+		return true;
+	}
+	
 	public void renderPanel(Graphics2D g, PanelItem panel) {
 		// TODO set current color to null?
 		
@@ -118,10 +278,12 @@ public class Java2DRenderer extends AbstractRenderer {
 					renderPanel(g, (PanelItem)item);
 				}
 				Objects.List.reclaim(layers);
-				group.computeBounds();
+				if (!_cull) group.computeBounds();
 			} else if (group.visible) {
+				view(g);
+				if (_cull && _culling && !_view.intersects(group.bounds)) continue;
 				gr.render(group, g);
-				group.computeBounds();
+				if (!_cull) group.computeBounds();
 			}
 		}
 		Objects.List.reclaim(items);
@@ -130,7 +292,7 @@ public class Java2DRenderer extends AbstractRenderer {
 		if (translate) {
 			g.translate(-panel.left, -panel.top);
 		}
-		panel.computeBounds();
+		if (!_cull) panel.computeBounds();
 	}
 	
 	private void fill(Fill fill, double alpha, Graphics2D g) {
@@ -138,11 +300,50 @@ public class Java2DRenderer extends AbstractRenderer {
 		g.setColor(Colors.getColor(sf.color(), alpha*sf.alpha()));
 	}
 	
+	private void fill(int argb, double alpha, Graphics2D g) {
+		g.setColor(Colors.getColor(argb, alpha*Color.alpha(argb)/255.0));
+	}
+	
 	private void stroke(Stroke s, double alpha, Graphics2D g) {
 		fill(s.fill(), alpha, g);
 		g.setStroke(StrokeLib.getStroke((float)s.width()));
 	}
 	
+	/**
+	 * Switches to device space for drawing sprites, returning false if
+	 * sprites are disabled or the transform rotates or shears.
+	 */
+	private boolean beginSprites(Graphics2D g) {
+		if (!_sprites) return false;
+		AffineTransform t = g.getTransform();
+		if (t.getShearX() != 0 || t.getShearY() != 0) return false;
+		_stamp.setTransform(t);
+		g.setTransform(_identity);
+		return true;
+	}
+	
+	private void endSprites(Graphics2D g) {
+		g.setTransform(_stamp);
+	}
+	
+	private void sprite(double x, double y, double r, java.awt.Color fill,
+		Stroke stroke, double alpha, Graphics2D g)
+	{
+		double dx = _stamp.getScaleX()*x + _stamp.getTranslateX();
+		double dy = _stamp.getScaleY()*y + _stamp.getTranslateY();
+		java.awt.Color sc = null;
+		float w = 0;
+		if (stroke != null) {
+			Solid sf = (Solid) stroke.fill();
+			sc = Colors.getColor(sf.color(), alpha*sf.alpha());
+			w = (float) stroke.width();
+		}
+		ShapeCache.Sprite s = _shapes.sprite(dx, dy, r,
+			_stamp.getScaleX(), _stamp.getScaleY(), fill, sc, w);
+		g.drawImage(s.image, (int)Math.floor(dx) - s.x,
+			(int)Math.floor(dy) - s.y, null);
+	}
+	
 	private void font(Font f, Graphics2D g) {
 		int style = java.awt.Font.PLAIN;
 		if (f.bold()) style |= java.awt.Font.BOLD;
@@ -167,14 +368,29 @@ public class Java2DRenderer extends AbstractRenderer {
 			if (!(fb || sb)) return;
 			
 			_path.reset();
-			_path.moveTo(first.left, first.top);
-			for (int i=1; i<items.size(); ++i) {
-				Item item = items.get(i);
-				_path.lineTo(item.left, item.top);
-			}
-			for (int i=items.size(); --i>=0;) {
-				Item item = items.get(i);
-				_path.lineTo(item.left + item.width, item.top + item.height);
+			if (lod(group, g) && _lod.decimates((GroupItem)group)) {
+				// top edge forwards, bottom edge backwards
+				int n = _lod.area((GroupItem)group, _culling ? _view : null);
+				int s = _lod.split;
+				double[] p = _lod.points;
+				if (n == 0) return;
+				_path.moveTo(p[0], p[1]);
+				for (int k=2; k<s; k+=2) {
+					_path.lineTo(p[k], p[k+1]);
+				}
+				for (int k=n-2; k>=s; k-=2) {
+					_path.lineTo(p[k], p[k+1]);
+				}
+			} else {
+				_path.moveTo(first.left, first.top);
+				for (int i=1; i<items.size(); ++i) {
+					Item item = items.get(i);
+					_path.lineTo(item.left, item.top);
+				}
+				for (int i=items.size(); --i>=0;) {
+					Item item = items.get(i);
+					_path.lineTo(item.left + item.width, item.top + item.height);
+				}
 			}
 			_path.closePath();
 			
@@ -190,16 +406,23 @@ public class Java2DRenderer extends AbstractRenderer {
 	}
 	class BarRenderer extends GroupRenderer {
 		public void render(Item group, Graphics2D g) {
+			if (group instanceof ColumnGroupItem) {
+				render((ColumnGroupItem)group, g);
+				return;
+			}
 			List<Item> items = group.items();
 			boolean fb = false, sb = false;
 			
-			for (int i=0; i<items.size(); ++i) {
-				Item item = items.get(i);
+			int n = visibleItems((GroupItem)group, items.size());
+			for (int j=0; j<n; ++j) {
+				Item item = items.get(row(j));
 				if (!item.visible) continue;
 				fb = item.fill != null;
 				sb = item.stroke != null;
 
 				if (fb || sb) {
+					if (culled(item.left, item.top, item.width, item.height,
+						item.stroke)) continue;
 					_rect.setRect(item.left, item.top, item.width, item.height);
 					if (fb) {
 						fill(item.fill, item.alpha, g);
@@ -212,16 +435,45 @@ public class Java2DRenderer extends AbstractRenderer {
 				}
 			}
 		}
+		public void render(ColumnGroupItem c, Graphics2D g) {
+			int n = visibleItems(c, c.count);
+			for (int j=0; j<n; ++j) {
+				int i = row(j);
+				if (!c.visibles[i]) continue;
+				int fill = c.fills[i];
+				Stroke stroke = c.strokes[i];
+				if (fill == 0 && stroke == null) continue;
+				if (culled(c.lefts[i], c.tops[i], c.widths[i], c.heights[i],
+					stroke)) continue;
+				
+				_rect.setRect(c.lefts[i], c.tops[i], c.widths[i], c.heights[i]);
+				if (fill != 0) {
+					fill(fill, c.alphas[i], g);
+					g.fill(_rect);
+				}
+				if (stroke != null) {
+					stroke(stroke, c.alphas[i], g);
+					g.draw(_rect);
+				}
+			}
+		}
 	}
 	// TODO: currently draws circles only. Fix this.
 	class DotRenderer extends GroupRenderer {		
 		public void render(Item group, Graphics2D g) {
+			if (group instanceof ColumnGroupItem) {
+				render((ColumnGroupItem)group, g);
+				return;
+			}
+			if (density(group, g)) return;
 			List<Item> items = group.items();
 			boolean fb = false, sb = false;
 			String shape = null;
 			
-			for (int i=0; i<items.size(); ++i) {
-				DotItem item = (DotItem) items.get(i);
+			boolean stamp = beginSprites(g);
+			int n = visibleItems((GroupItem)group, items.size());
+			for (int j=0; j<n; ++j) {
+				DotItem item = (DotItem) items.get(row(j));
 				if (!item.visible) continue;
 				fb = item.fill != null;
 				sb = item.stroke != null;
@@ -229,6 +481,15 @@ public class Java2DRenderer extends AbstractRenderer {
 				if (item.shape != shape) {
 					shape = item.shape;
 				}
+				if (culled(item.left-item.radius, item.top-item.radius,
+					2*item.radius, 2*item.radius, item.stroke)) continue;
+				if (stamp) {
+					Solid sf = (Solid) item.fill;
+					sprite(item.left, item.top, item.radius, fb ? Colors.getColor(
+						sf.color(), item.alpha*sf.alpha()) : null,
+						item.stroke, item.alpha, g);
+					continue;
+				}
 				
 				_circ.setFrameFromCenter(item.left, item.top,
 					item.left+item.radius, item.top+item.radius);
@@ -243,10 +504,40 @@ public class Java2DRenderer extends AbstractRenderer {
 					g.draw(ss);
 				}
 			}
+			if (stamp) endSprites(g);
+		}
+		public void render(ColumnGroupItem c, Graphics2D g) {
+			if (density(c, g)) return;
+			boolean stamp = beginSprites(g);
+			int n = visibleItems(c, c.count);
+			for (int j=0; j<n; ++j) {
+				int i = row(j);
+				if (!c.visibles[i] || c.shapes[i]==null) continue;
+				int fill = c.fills[i];
+				Stroke stroke = c.strokes[i];
+				if (fill == 0 && stroke == null) continue;
+				
+				double x = c.lefts[i], y = c.tops[i], r = c.radii[i];
+				if (culled(x-r, y-r, 2*r, 2*r, stroke)) continue;
+				if (stamp) {
+					sprite(x, y, r, fill == 0 ? null : Colors.getColor(fill,
+						c.alphas[i]*Color.alpha(fill)/255.0), stroke, c.alphas[i], g);
+					continue;
+				}
+				_circ.setFrameFromCenter(x, y, x+r, y+r);
+				if (fill != 0) {
+					fill(fill, c.alphas[i], g);
+					g.fill(_circ);
+				}
+				if (stroke != null) {
+					stroke(stroke, c.alphas[i], g);
+					g.draw(_circ);
+				}
+			}
+			if (stamp) endSprites(g);
 		}
 	}
 	class ImageRenderer extends GroupRenderer {
-		private Images images = new Images();
 		private AffineTransform transform = new AffineTransform();
 		
 		public void render(Item group, Graphics2D g) {
@@ -255,7 +546,7 @@ public class Java2DRenderer extends AbstractRenderer {
 			for (int i=0; i<items.size(); ++i) {
 				ImageItem item = (ImageItem) items.get(i);
 				if (!item.visible || item.url == null) continue;
-				BufferedImage img = images.getImage(item.url);
+				BufferedImage img = _images.getImage(item.url);
 				if (img == null) continue;
 				
 				double w = img.getWidth() / 2;
@@ -344,13 +635,30 @@ public class Java2DRenderer extends AbstractRenderer {
 			if (!(fb || sb)) return;
 			
 			_path.reset();
-			_path.moveTo(first.left, first.top);
-			for (int i=1; i<items.size(); ++i) {
-				Item item = items.get(i);
-				if (item.visible) {
-					_path.lineTo(item.left, item.top);
-				} else {
-					_path.moveTo(item.left, item.top);
+			if (lod(group, g) && _lod.decimates((GroupItem)group)) {
+				// decimated vertices, where NaN breaks the line
+				int n = _lod.line((GroupItem)group, _culling ? _view : null);
+				double[] p = _lod.points;
+				boolean move = true;
+				for (int k=0; k<n; k+=2) {
+					if (p[k] != p[k]) {
+						move = true;
+					} else if (move) {
+						_path.moveTo(p[k], p[k+1]);
+						move = false;
+					} else {
+						_path.lineTo(p[k], p[k+1]);
+					}
+				}
+			} else {
+				_path.moveTo(first.left, first.top);
+				for (int i=1; i<items.size(); ++i) {
+					Item item = items.get(i);
+					if (item.visible) {
+						_path.lineTo(item.left, item.top);
+					} else {
+						_path.moveTo(item.left, item.top);
+					}
 				}
 			}
 			// if closed path
@@ -381,15 +689,14 @@ public class Java2DRenderer extends AbstractRenderer {
 				sb = item.stroke != null;
 
 				if (fb || sb) {
-					_path.reset();
-					Shapes.drawWedge(_path, item);
+					java.awt.Shape ws = _shapes.wedge(item);
 					if (fb) {
 						fill(item.fill, item.alpha, g);
-						g.fill(_path);
+						g.fill(ws);
 					}
 					if (sb) {
 						stroke(item.stroke, item.alpha, g);
-						g.draw(_path);
+						g.draw(ws);
 					}
 				}
 			}
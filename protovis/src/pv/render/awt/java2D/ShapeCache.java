@@ -0,0 +1,225 @@
+package pv.render.awt.java2D;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.GeneralPath;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import pv.scene.GroupItem;
+import pv.scene.Item;
+import pv.scene.WedgeItem;
+
+/**
+ * Retains drawing geometry between frames, so that scenes repainted without
+ * changes, for example on hover, do not rebuild it.
+ *
+ * <p>Wedge paths are kept per item, keyed by the geometry they were built
+ * from, and are rebuilt only for items whose geometry changed since. Keys
+ * are compared rather than relying on the {@link Item#DIRTY} flag alone,
+ * as transitions move items without flagging them. The entries of a group
+ * are reset when its number of items changes.</p>
+ *
+ * <p>Dot sprites are pre-rasterized stamps for each combination of radius,
+ * fill, stroke and device scale, with four subpixel offsets per axis, that
+ * are drawn as images instead of rasterizing each dot.</p>
+ *
+ * <p>A cache is not thread-safe; each renderer owns its own.</p>
+ */
+public class ShapeCache {
+
+	/** Maximum number of sprites kept before the sprite cache is cleared. */
+	public static final int MAX_SPRITES = 1024;
+	/** Subpixel positions per pixel of sprites. */
+	private static final int SUBPIXELS = 4;
+	/** Number of geometry values kept per wedge. */
+	private static final int WEDGE_KEYS = 6;
+
+	private static class Entry {
+		double[] keys = new double[0];
+		java.awt.Shape[] shapes = new java.awt.Shape[0];
+	}
+
+	private final Map<GroupItem,Entry> _entries
+		= new WeakHashMap<GroupItem,Entry>();
+	private Entry _entry;
+	private GroupItem _group;
+
+	private final Map<Sprite,Sprite> _sprites = new HashMap<Sprite,Sprite>();
+	private final Sprite _probe = new Sprite();
+	private final Ellipse2D _circ = new Ellipse2D.Double();
+
+	/**
+	 * Clears all retained geometry and sprites.
+	 */
+	public void clear() {
+		_entries.clear();
+		_entry = null;
+		_group = null;
+		_sprites.clear();
+	}
+
+	// -- shapes --------------------------------------------------------------
+
+	private Entry entry(GroupItem group, int stride) {
+		int n = group.size();
+		if (group == _group && _entry.shapes.length == n) return _entry;
+		Entry e = _entries.get(group);
+		if (e == null) {
+			_entries.put(group, e = new Entry());
+		}
+		if (e.shapes.length != n) {
+			e.keys = new double[stride * n];
+			e.shapes = new java.awt.Shape[n];
+		}
+		_group = group;
+		_entry = e;
+		return e;
+	}
+
+	/**
+	 * Returns the path of a wedge, rebuilding it only if the geometry of
+	 * the wedge changed since it was last built.
+	 */
+	public java.awt.Shape wedge(WedgeItem item) {
+		Entry e = entry(item.group, WEDGE_KEYS);
+		int i = item.index, k = WEDGE_KEYS * i;
+		if (i >= e.shapes.length) {
+			GeneralPath p = new GeneralPath();
+			Shapes.drawWedge(p, item);
+			return p;
+		}
+		double[] keys = e.keys;
+		GeneralPath p = (GeneralPath) e.shapes[i];
+		if (p != null && keys[k] == item.left && keys[k+1] == item.top
+			&& keys[k+2] == item.startAngle && keys[k+3] == item.endAngle
+			&& keys[k+4] == item.innerRadius && keys[k+5] == item.outerRadius)
+		{
+			return p;
+		}
+		if (p == null) {
+			e.shapes[i] = p = new GeneralPath();
+		} else {
+			p.reset();
+		}
+		Shapes.drawWedge(p, item);
+		keys[k] = item.left; keys[k+1] = item.top;
+		keys[k+2] = item.startAngle; keys[k+3] = item.endAngle;
+		keys[k+4] = item.innerRadius; keys[k+5] = item.outerRadius;
+		return p;
+	}
+
+	// -- sprites -------------------------------------------------------------
+
+	/**
+	 * A pre-rasterized circle, drawn with its center at pixel
+	 * (x, y) + subpixel offset of the image.
+	 */
+	public static class Sprite {
+		public BufferedImage image;
+		public int x, y;
+
+		double radius, sx, sy;
+		float width;
+		int fill, stroke, qx, qy;
+
+		@Override
+		public int hashCode() {
+			long h = Double.doubleToLongBits(radius) * 31
+				+ Double.doubleToLongBits(sx) * 17 + Double.doubleToLongBits(sy);
+			h = h * 31 + Float.floatToIntBits(width);
+			h = h * 31 + fill;
+			h = h * 31 + stroke;
+			h = h * 31 + (qx * SUBPIXELS + qy);
+			return (int) (h ^ (h >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Sprite)) return false;
+			Sprite s = (Sprite) o;
+			return radius == s.radius && sx == s.sx && sy == s.sy
+				&& width == s.width && fill == s.fill && stroke == s.stroke
+				&& qx == s.qx && qy == s.qy;
+		}
+	}
+
+	/**
+	 * Returns the sprite of a circle drawn at a device position.
+	 * @param dx the device x-coordinate of the center
+	 * @param dy the device y-coordinate of the center
+	 * @param radius the radius in user space
+	 * @param sx the horizontal scale from user space to device space
+	 * @param sy the vertical scale from user space to device space
+	 * @param fill the fill color, or null for none
+	 * @param stroke the stroke color, or null for none
+	 * @param width the stroke width in user space
+	 */
+	public Sprite sprite(double dx, double dy, double radius, double sx,
+		double sy, Color fill, Color stroke, float width)
+	{
+		Sprite p = _probe;
+		p.radius = radius; p.sx = sx; p.sy = sy;
+		p.fill = fill == null ? 0 : fill.getRGB();
+		p.stroke = stroke == null ? 0 : stroke.getRGB();
+		p.width = stroke == null ? 0 : width;
+		p.qx = (int) ((dx - Math.floor(dx)) * SUBPIXELS);
+		p.qy = (int) ((dy - Math.floor(dy)) * SUBPIXELS);
+
+		Sprite s = _sprites.get(p);
+		if (s == null) {
+			if (_sprites.size() >= MAX_SPRITES) _sprites.clear();
+			s = rasterize(p, fill, stroke);
+			_sprites.put(s, s);
+		}
+		return s;
+	}
+
+	private Sprite rasterize(Sprite p, Color fill, Color stroke) {
+		Sprite s = new Sprite();
+		s.radius = p.radius; s.sx = p.sx; s.sy = p.sy;
+		s.fill = p.fill; s.stroke = p.stroke; s.width = p.width;
+		s.qx = p.qx; s.qy = p.qy;
+
+		double sx = Math.abs(p.sx), sy = Math.abs(p.sy);
+		double margin = p.width / 2 + 2;
+		s.x = (int) Math.ceil((p.radius + margin) * sx);
+		s.y = (int) Math.ceil((p.radius + margin) * sy);
+		s.image = new BufferedImage(2*s.x + 2, 2*s.y + 2,
+			BufferedImage.TYPE_INT_ARGB);
+
+		Graphics2D g = s.image.createGraphics();
+		try {
+			g.setRenderingHint(
+				RenderingHints.KEY_ANTIALIASING,
+				RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setRenderingHint(
+				RenderingHints.KEY_RENDERING,
+				RenderingHints.VALUE_RENDER_QUALITY);
+			// center within the subpixel bucket
+			g.translate(s.x + (p.qx + 0.5) / SUBPIXELS,
+				s.y + (p.qy + 0.5) / SUBPIXELS);
+			g.scale(p.sx, p.sy);
+			_circ.setFrameFromCenter(0, 0, p.radius, p.radius);
+			if (fill != null) {
+				g.setColor(fill);
+				g.fill(_circ);
+			}
+			if (stroke != null) {
+				BasicStroke bs = StrokeLib.getStroke(p.width);
+				g.setColor(stroke);
+				g.setStroke(bs);
+				g.draw(_circ);
+			}
+		} finally {
+			g.dispose();
+		}
+		return s;
+	}
+
+}
@@ -86,7 +86,7 @@ public class StrokeLib {
      * @return the stroke
      * @see java.awt.BasicStroke
      */
-    public static BasicStroke getStroke(float width, int cap, int join,
+    public static synchronized BasicStroke getStroke(float width, int cap, int join,
             float miterLimit, float[] dashes, float dashPhase)
     {
         int key = getStrokeKey(width,cap,join,miterLimit,dashes,dashPhase);
@@ -156,7 +156,7 @@ public class StrokeLib {
     /**
      * Clear the Stroke object cache.
      */
-    public static void clearCache() {
+    public static synchronized void clearCache() {
         strokeMap.clear();
     }    
     
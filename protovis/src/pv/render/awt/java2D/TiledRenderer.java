@@ -0,0 +1,125 @@
+package pv.render.awt.java2D;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import pv.scene.PanelItem;
+import pv.util.ThreadPool;
+
+/**
+ * Renders scenes into an image in parallel, by splitting the image into
+ * horizontal tiles that are rasterized concurrently on the
+ * {@link ThreadPool}. Each tile is a subimage sharing the pixels of the
+ * target image, drawn by its own culling {@link Java2DRenderer} with a
+ * clip set to the tile, so that groups and bar and dot items outside the
+ * tile are skipped and the tiles need no further compositing. The tile
+ * renderers share the {@link Images#instance() image cache}, so each image
+ * is loaded once.
+ *
+ * <p>Group bounds are computed once per frame before the tiles are drawn,
+ * so that tiles only read the scenegraph. The scenegraph must not change
+ * while rendering. Tiled rendering should not be started from a thread of
+ * the thread pool, as it waits for tasks queued on the same pool.</p>
+ */
+public class TiledRenderer {
+
+	private int _tiles = 0;
+	private List<Java2DRenderer> _renderers = new ArrayList<Java2DRenderer>();
+
+	/**
+	 * Returns the number of tiles, or zero if the number of tiles is the
+	 * number of threads of the thread pool.
+	 */
+	public int tiles() {
+		return _tiles;
+	}
+
+	/**
+	 * Sets the number of tiles, or zero to use one tile per thread of the
+	 * thread pool.
+	 */
+	public void tiles(int tiles) {
+		_tiles = tiles;
+	}
+
+	/**
+	 * Renders panels into an image.
+	 * @param image the target image
+	 * @param roots the root panels to render, in order
+	 * @param transform the view transform
+	 * @param background the background color, or null to leave the image
+	 *  contents in place
+	 */
+	public void render(BufferedImage image, List<PanelItem> roots,
+		final AffineTransform transform, final Color background)
+	{
+		final int width = image.getWidth(), height = image.getHeight();
+		int n = Math.min(height, _tiles > 0 ? _tiles : ThreadPool.getThreadCount());
+		if (n < 1) return;
+
+		for (PanelItem root : roots) {
+			Java2DRenderer.computeBounds(root);
+		}
+		while (_renderers.size() < n) {
+			Java2DRenderer r = new Java2DRenderer();
+			r.cull(true);
+			_renderers.add(r);
+		}
+
+		final List<PanelItem> panels = roots;
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(n);
+		for (int i=0; i<n; ++i) {
+			final int y0 = i * height / n, y1 = (i+1) * height / n;
+			final BufferedImage tile = image.getSubimage(0, y0, width, y1-y0);
+			final Java2DRenderer r = _renderers.get(i);
+			tasks.add(new Callable<Object>() {
+				public Object call() {
+					Graphics2D g = tile.createGraphics();
+					try {
+						if (background != null) {
+							g.setColor(background);
+							g.fillRect(0, 0, width, y1-y0);
+						}
+						g.clipRect(0, 0, width, y1-y0);
+						g.translate(0, -y0);
+						g.transform(transform);
+						for (PanelItem panel : panels) {
+							r.render(g, panel);
+						}
+					} finally {
+						g.dispose();
+					}
+					return null;
+				}
+			});
+		}
+
+		if (n == 1) {
+			try {
+				tasks.get(0).call();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		try {
+			for (Future<Object> f : ThreadPool.invokeAll(tasks)) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					e.printStackTrace();
+				}
+			}
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
@@ -0,0 +1,377 @@
+package pv.scene;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+import pv.mark.constants.MarkType;
+import pv.style.Color;
+import pv.style.Fill;
+import pv.style.Stroke;
+import pv.util.Objects;
+import pv.util.Rect;
+
+/**
+ * A group item that stores the properties of its items in parallel
+ * columns of primitive values, rather than as one {@link Item} instance
+ * per datum. Columnar groups are used for bar and dot marks created with
+ * {@link pv.mark.Mark#columnar(boolean)}. Fills are stored as ARGB
+ * integers (zero for no fill), strokes and shapes as shared references.
+ *
+ * <p>Evaluators and renderers access rows directly through the columns,
+ * or through a cursor item using {@link #load(Item, int)} and
+ * {@link #store(Item, int)}. The {@link #item(int)} and {@link #items()}
+ * methods return detached copies of rows; changes to those copies are not
+ * written back unless passed to {@link #store(Item, int)} or
+ * {@link #update(Item)}, as is done after event handlers run. Item
+ * animation is not supported for columnar groups.</p>
+ */
+public class ColumnGroupItem extends GroupItem {
+
+	private static final int MIN_CAPACITY = 16;
+
+	public int count = 0;
+	public Object[] values;
+	public boolean[] visibles;
+	public double[] lefts;
+	public double[] rights;
+	public double[] tops;
+	public double[] bottoms;
+	public double[] widths;
+	public double[] heights;
+	public double[] alphas;
+	public int[] fills;
+	public Stroke[] strokes;
+
+	// dot columns, null for other mark types
+	public String[] shapes;
+	public double[] sizes;
+	public double[] radii;
+
+	private final boolean _dot;
+	private final List<Item> _view = new AbstractList<Item>() {
+		public Item get(int index) { return item(index); }
+		public int size() { return count; }
+	};
+
+	public ColumnGroupItem(String type) {
+		super(type);
+		_dot = (type == MarkType.Dot);
+		capacity(MIN_CAPACITY);
+	}
+
+	/**
+	 * Indicates if columnar groups can represent items of the given mark
+	 * type.
+	 */
+	public static boolean supports(String type) {
+		return type == MarkType.Bar || type == MarkType.Dot;
+	}
+
+	// -- Rows ----------------------------------------------------------------
+
+	public int size() { return count; }
+	public List<Item> items() { return _view; }
+
+	public Item item(int index) {
+		Item item = _dot ? new DotItem() : new Item();
+		load(item, index);
+		return item;
+	}
+
+	public void add(Item item) {
+		capacity(count+1);
+		store(item, count++);
+	}
+
+	public void set(int index, Item item) {
+		store(item, index);
+	}
+
+	/**
+	 * Copies the values of a row into a cursor item.
+	 * @param item the cursor item
+	 * @param i the row index
+	 */
+	public void load(Item item, int i) {
+		item.group = this;
+		item.index = i;
+		item.data = values[i];
+		item.visible = visibles[i];
+		item.left = lefts[i];
+		item.right = rights[i];
+		item.top = tops[i];
+		item.bottom = bottoms[i];
+		item.width = widths[i];
+		item.height = heights[i];
+		item.alpha = alphas[i];
+		item.fill = fill(fills[i]);
+		item.stroke = strokes[i];
+		if (_dot) {
+			DotItem dot = (DotItem) item;
+			dot.shape = shapes[i];
+			dot.size = sizes[i];
+			dot.radius = radii[i];
+		}
+	}
+
+	/**
+	 * Copies the values of a cursor item into a row.
+	 * @param item the cursor item
+	 * @param i the row index
+	 */
+	public void store(Item item, int i) {
+		values[i] = item.data;
+		visibles[i] = item.visible;
+		lefts[i] = item.left;
+		rights[i] = item.right;
+		tops[i] = item.top;
+		bottoms[i] = item.bottom;
+		widths[i] = item.width;
+		heights[i] = item.height;
+		alphas[i] = item.alpha;
+		fills[i] = item.fill==null ? 0 : ((Fill.Solid)item.fill).color();
+		strokes[i] = item.stroke;
+		if (_dot) {
+			DotItem dot = (DotItem) item;
+			shapes[i] = dot.shape;
+			sizes[i] = dot.size;
+			radii[i] = dot.radius;
+		}
+	}
+
+	/**
+	 * Writes a detached copy of a row back to its row, if it was changed,
+	 * and advances the version of the group.
+	 * @param item a copy of a row of this group, from {@link #item(int)}
+	 * @return true if the row changed
+	 */
+	public boolean update(Item item) {
+		int i = item.index;
+		if (item.group != this || i < 0 || i >= count || same(item, i)) {
+			return false;
+		}
+		store(item, i);
+		changed();
+		return true;
+	}
+
+	/** Indicates if a cursor item holds the values of a row. */
+	private boolean same(Item item, int i) {
+		int fill = item.fill==null ? 0 : ((Fill.Solid)item.fill).color();
+		if (values[i] != item.data || visibles[i] != item.visible
+			|| !same(lefts[i], item.left) || !same(rights[i], item.right)
+			|| !same(tops[i], item.top) || !same(bottoms[i], item.bottom)
+			|| !same(widths[i], item.width) || !same(heights[i], item.height)
+			|| !same(alphas[i], item.alpha) || fills[i] != fill
+			|| strokes[i] != item.stroke)
+		{
+			return false;
+		}
+		if (_dot) {
+			DotItem dot = (DotItem) item;
+			return shapes[i] == dot.shape && same(sizes[i], dot.size)
+				&& same(radii[i], dot.radius);
+		}
+		return true;
+	}
+
+	private static boolean same(double a, double b) {
+		return a == b || (a != a && b != b);
+	}
+
+	/**
+	 * Copies the rows of another columnar group into this group.
+	 * @param src the group to copy, of the same type as this group
+	 */
+	public void copy(ColumnGroupItem src) {
+		int n = src.count;
+		capacity(n);
+		if (n < count) discard(n);
+		System.arraycopy(src.values, 0, values, 0, n);
+		System.arraycopy(src.visibles, 0, visibles, 0, n);
+		System.arraycopy(src.lefts, 0, lefts, 0, n);
+		System.arraycopy(src.rights, 0, rights, 0, n);
+		System.arraycopy(src.tops, 0, tops, 0, n);
+		System.arraycopy(src.bottoms, 0, bottoms, 0, n);
+		System.arraycopy(src.widths, 0, widths, 0, n);
+		System.arraycopy(src.heights, 0, heights, 0, n);
+		System.arraycopy(src.alphas, 0, alphas, 0, n);
+		System.arraycopy(src.fills, 0, fills, 0, n);
+		System.arraycopy(src.strokes, 0, strokes, 0, n);
+		if (_dot) {
+			System.arraycopy(src.shapes, 0, shapes, 0, n);
+			System.arraycopy(src.sizes, 0, sizes, 0, n);
+			System.arraycopy(src.radii, 0, radii, 0, n);
+		}
+		count = n;
+	}
+	
+	/**
+	 * Returns the fill for a fill column value.
+	 */
+	public static Fill fill(int argb) {
+		return argb==0 ? null : Fill.solid(argb, Color.alpha(argb)/255.0);
+	}
+
+	/**
+	 * Assigns data values to rows, adding and removing rows as needed.
+	 * Flags the group as modified if any data value changes, and as dirty
+	 * if the number of rows changes.
+	 * @param data the data values
+	 */
+	public void build(Iterable<?> data) {
+		int index = 0, len = count;
+		for (Object datum : data) {
+			if (index >= count) {
+				capacity(index+1);
+				reset(index);
+				count = index+1;
+				modified(true);
+			}
+			if (values[index] != datum) {
+				values[index] = datum;
+				modified(true);
+			}
+			index += 1;
+		}
+		if (index != len)
+			dirty(true);
+		discard(index);
+	}
+
+	private void reset(int i) {
+		values[i] = null;
+		visibles[i] = true;
+		lefts[i] = rights[i] = tops[i] = bottoms[i] = 0;
+		widths[i] = heights[i] = 0;
+		alphas[i] = 1;
+		fills[i] = 0;
+		strokes[i] = null;
+		if (_dot) {
+			shapes[i] = null;
+			sizes[i] = radii[i] = 0;
+		}
+	}
+
+	private void capacity(int n) {
+		int cap = values==null ? 0 : values.length;
+		if (n <= cap) return;
+		cap = Math.max(n, Math.max(MIN_CAPACITY, cap + (cap >> 1)));
+
+		values   = values==null ? new Object[cap] : Arrays.copyOf(values, cap);
+		visibles = visibles==null ? new boolean[cap] : Arrays.copyOf(visibles, cap);
+		lefts    = grow(lefts, cap);
+		rights   = grow(rights, cap);
+		tops     = grow(tops, cap);
+		bottoms  = grow(bottoms, cap);
+		widths   = grow(widths, cap);
+		heights  = grow(heights, cap);
+		alphas   = grow(alphas, cap);
+		fills    = fills==null ? new int[cap] : Arrays.copyOf(fills, cap);
+		strokes  = strokes==null ? new Stroke[cap] : Arrays.copyOf(strokes, cap);
+		if (_dot) {
+			shapes = shapes==null ? new String[cap] : Arrays.copyOf(shapes, cap);
+			sizes  = grow(sizes, cap);
+			radii  = grow(radii, cap);
+		}
+	}
+
+	private static double[] grow(double[] a, int n) {
+		return a==null ? new double[n] : Arrays.copyOf(a, n);
+	}
+
+	@Override
+	public void discard(int index) {
+		if (index < 0) {
+			super.discard(-1);
+			index = 0;
+		}
+		if (index < count) {
+			Arrays.fill(values, index, count, null);
+			Arrays.fill(strokes, index, count, null);
+			count = index;
+		}
+	}
+
+	// -- Geometry Management -------------------------------------------------
+
+	@Override
+	public void computeBounds()
+	{
+		bounds.set(left, top, 0, 0);
+		if (count == 0) return;
+
+		double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE;
+		double x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+		Rect b = Objects.Rect.get();
+		for (int i=0; i<count; ++i) {
+			bounds(i, b);
+			double l = b.x, t = b.y, r = b.x+b.w, u = b.y+b.h;
+			if (l < x0) x0 = l;
+			if (t < y0) y0 = t;
+			if (r > x1) x1 = r;
+			if (u > y1) y1 = u;
+		}
+		Objects.Rect.reclaim(b);
+		bounds.set(x0+left, y0+top, x1-x0, y1-y0);
+	}
+
+	/**
+	 * Computes the bounds of a row, relative to the group, as
+	 * {@link Item#bounds(Rect)} does for item instances.
+	 * @param index the row index
+	 * @param b the rectangle in which to store the bounds
+	 * @return the bounds rectangle
+	 */
+	public Rect bounds(int index, Rect b)
+	{
+		double s = strokes[index]==null ? 0 : strokes[index].width();
+		if (s > 1) s = s/2;
+		if (s < 1) s = 1;
+		if (_dot) {
+			s += radii[index];
+			b.set(lefts[index]-s, tops[index]-s, s+s, s+s);
+		} else {
+			b.set(lefts[index]-s, tops[index]-s,
+				widths[index]+s+s, heights[index]+s+s);
+		}
+		return b;
+	}
+
+	/**
+	 * Returns the index of the top-most visible row containing the given
+	 * point, or -1 if no row contains the point.
+	 * @param x the x-coordinate, relative to the group
+	 * @param y the y-coordinate, relative to the group
+	 */
+	public int pick(double x, double y)
+	{
+		for (int i=count; --i>=0;) {
+			if (hit(i, x, y)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Indicates if a visible row contains the given point.
+	 */
+	public boolean hit(int i, double x, double y)
+	{
+		if (!visibles[i]) return false;
+		double s = strokes[i]==null ? 0 : strokes[i].width();
+		if (_dot) {
+			// circular hit testing, as in DotItem
+			double dx = x - lefts[i];
+			double dy = y - tops[i];
+			return (dx*dx + dy*dy) <= (sizes[i]+s);
+		} else {
+			if (s > 1) s = s/2;
+			if (s < 1) s = 1;
+			double l = lefts[i], t = tops[i];
+			return x >= l-s && x <= l+widths[i]+s
+				&& y >= t-s && y <= t+heights[i]+s;
+		}
+	}
+
+}
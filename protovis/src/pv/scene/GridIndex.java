@@ -0,0 +1,313 @@
+package pv.scene;
+
+import java.util.Arrays;
+
+import pv.util.Objects;
+import pv.util.Rect;
+
+/**
+ * A uniform grid over the bounds of the items of a group, used to find the
+ * items intersecting a rectangle without visiting every item. Each cell
+ * lists the items whose bounds overlap it; items spanning many cells are
+ * kept in a separate list that every query scans. Cells are sized so that
+ * each holds a few items on average.
+ *
+ * <p>An index is a snapshot of item bounds at the time it was built, and is
+ * immutable afterwards, so it may be shared between threads. Code that
+ * moves the items of a group should call {@link GroupItem#changed()}, so
+ * that the index is brought up to date on next use with
+ * {@link #update(GroupItem)}. Updates only move the items whose bounds
+ * changed, and rebuild the grid when many items moved.</p>
+ */
+public class GridIndex {
+
+	/** Target average number of items per cell. */
+	private static final int ITEMS_PER_CELL = 4;
+	/** Maximum number of cells in a grid. */
+	private static final int MAX_CELLS = 1 << 20;
+	/** Number of cells above which an item is kept in the large list. */
+	private static final int MAX_SPAN = 16;
+	/** Fraction of moved items above which updates rebuild the grid. */
+	private static final int MAX_MOVED = 16;
+
+	/** The rows matching a query, in ascending order. */
+	public static class Hits {
+		public int[] rows = new int[64];
+		public int size = 0;
+
+		void add(int row) {
+			if (size == rows.length) rows = Arrays.copyOf(rows, 2*size);
+			rows[size++] = row;
+		}
+	}
+
+	private final double _x, _y, _cw, _ch;
+	private final int _nx, _ny;
+	private final int[] _start;
+	private final int[] _rows;
+	private final int[] _large;
+	private final float[] _bounds;
+	// rows moved since the grid was built, absent from their cell lists
+	private final long[] _moved;
+	private final int[] _extra;
+
+	/**
+	 * Builds an index over the current bounds of the items of a group,
+	 * in the coordinate frame of the items.
+	 */
+	public GridIndex(GroupItem group) {
+		int n = count(group);
+
+		// gather item bounds and their extent
+		float[] bounds = new float[4*n];
+		double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE;
+		double x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+		double sw = 0, sh = 0; int m = 0;
+		Rect b = Objects.Rect.get();
+		for (int i=0, k=0; i<n; ++i, k+=4) {
+			if (!bounds(group, i, b, bounds, k)) continue;
+			sw += bounds[k+2] - bounds[k];
+			sh += bounds[k+3] - bounds[k+1];
+			++m;
+			if (bounds[k] < x0) x0 = bounds[k];
+			if (bounds[k+1] < y0) y0 = bounds[k+1];
+			if (bounds[k+2] > x1) x1 = bounds[k+2];
+			if (bounds[k+3] > y1) y1 = bounds[k+3];
+		}
+		Objects.Rect.reclaim(b);
+		if (x0 > x1) { x0 = x1 = y0 = y1 = 0; }
+
+		// size the grid by the item count and the aspect ratio, with cells
+		// no smaller than the average item
+		double w = Math.max(x1-x0, 1e-6), h = Math.max(y1-y0, 1e-6);
+		int cells = Math.max(1, Math.min(MAX_CELLS, n / ITEMS_PER_CELL));
+		int nx = (int) Math.ceil(Math.sqrt(cells * w / h));
+		nx = Math.max(1, Math.min(cells, nx));
+		int ny = Math.max(1, cells / nx);
+		if (m > 0) {
+			nx = Math.max(1, Math.min(nx, (int) (w * m / sw)));
+			ny = Math.max(1, Math.min(ny, (int) (h * m / sh)));
+		}
+		_x = x0; _y = y0;
+		_nx = nx; _ny = ny;
+		_cw = w / nx; _ch = h / ny;
+		_bounds = bounds;
+		_moved = null;
+		_extra = new int[0];
+
+		// count items per cell, then fill cells in row order
+		int[] start = new int[nx*ny + 1];
+		int large = 0;
+		for (int k=0; k<4*n; k+=4) {
+			if (bounds[k] != bounds[k]) continue;
+			int cx0 = cx(bounds[k]), cx1 = cx(bounds[k+2]);
+			int cy0 = cy(bounds[k+1]), cy1 = cy(bounds[k+3]);
+			if ((cx1-cx0+1) * (cy1-cy0+1) > MAX_SPAN) {
+				++large; continue;
+			}
+			for (int cy=cy0; cy<=cy1; ++cy)
+				for (int cx=cx0; cx<=cx1; ++cx)
+					++start[cy*nx + cx + 1];
+		}
+		for (int i=1; i<start.length; ++i) start[i] += start[i-1];
+
+		int[] rows = new int[start[start.length-1]];
+		int[] fill = Arrays.copyOf(start, start.length-1);
+		_large = new int[large];
+		large = 0;
+		for (int i=0, k=0; i<n; ++i, k+=4) {
+			if (bounds[k] != bounds[k]) continue;
+			int cx0 = cx(bounds[k]), cx1 = cx(bounds[k+2]);
+			int cy0 = cy(bounds[k+1]), cy1 = cy(bounds[k+3]);
+			if ((cx1-cx0+1) * (cy1-cy0+1) > MAX_SPAN) {
+				_large[large++] = i; continue;
+			}
+			for (int cy=cy0; cy<=cy1; ++cy)
+				for (int cx=cx0; cx<=cx1; ++cx)
+					rows[fill[cy*nx + cx]++] = i;
+		}
+		_start = start;
+		_rows = rows;
+	}
+
+	/** Creates an index sharing the grid of another, with moved rows. */
+	private GridIndex(GridIndex g, float[] bounds, long[] moved, int[] extra) {
+		_x = g._x; _y = g._y;
+		_nx = g._nx; _ny = g._ny;
+		_cw = g._cw; _ch = g._ch;
+		_start = g._start;
+		_rows = g._rows;
+		_large = g._large;
+		_bounds = bounds;
+		_moved = moved;
+		_extra = extra;
+	}
+
+	/**
+	 * Returns an index matching the current bounds of the items of a
+	 * group. Returns this index if no item moved, an index sharing this
+	 * grid if a few items moved, and a new index otherwise.
+	 * @param group the group this index was built for
+	 */
+	public GridIndex update(GroupItem group) {
+		int n = count(group);
+		if (n != size()) return new GridIndex(group);
+
+		float[] bounds = null;
+		long[] moved = _moved;
+		int[] extra = _extra;
+		int m = extra.length;
+		float[] cur = new float[4];
+		Rect b = Objects.Rect.get();
+		try {
+			for (int i=0, k=0; i<n; ++i, k+=4) {
+				bounds(group, i, b, cur, 0);
+				if (same(cur, _bounds, k)) continue;
+				if (bounds == null) {
+					bounds = Arrays.copyOf(_bounds, _bounds.length);
+					moved = moved == null ? new long[(n+63) >> 6]
+						: Arrays.copyOf(moved, moved.length);
+					extra = Arrays.copyOf(extra, Math.max(16, 2*m));
+				}
+				System.arraycopy(cur, 0, bounds, k, 4);
+				if ((moved[i >> 6] & (1L << i)) != 0) continue;
+				if (m >= n / MAX_MOVED) return new GridIndex(group);
+				moved[i >> 6] |= 1L << i;
+				if (m == extra.length) extra = Arrays.copyOf(extra, 2*m);
+				extra[m++] = i;
+			}
+		} finally {
+			Objects.Rect.reclaim(b);
+		}
+		if (bounds == null) return this;
+		return new GridIndex(this, bounds, moved, Arrays.copyOf(extra, m));
+	}
+
+	/** The number of items covered by this index. */
+	public int size() {
+		return _bounds.length >> 2;
+	}
+
+	private static int count(GroupItem group) {
+		return group instanceof ColumnGroupItem
+			? ((ColumnGroupItem) group).count : group.size();
+	}
+
+	/**
+	 * Stores the bounds of a row, rounded outwards so that queries never
+	 * miss an item, or NaN if the row has no bounds.
+	 */
+	private static boolean bounds(GroupItem group, int i, Rect b, float[] out, int k) {
+		if (group instanceof ColumnGroupItem) {
+			((ColumnGroupItem) group).bounds(i, b);
+		} else {
+			Item item = group.item(i);
+			if (item == null) {
+				Arrays.fill(out, k, k+4, Float.NaN);
+				return false;
+			}
+			item.bounds(b);
+		}
+		double l = b.getMinX(), t = b.getMinY();
+		double r = b.getMaxX(), u = b.getMaxY();
+		if (!(l <= r && t <= u)) {
+			Arrays.fill(out, k, k+4, Float.NaN);
+			return false;
+		}
+		out[k] = lo(l); out[k+1] = lo(t);
+		out[k+2] = hi(r); out[k+3] = hi(u);
+		return true;
+	}
+
+	private static boolean same(float[] a, float[] b, int k) {
+		// compare bits, so that unbounded rows compare equal
+		for (int j=0; j<4; ++j) {
+			if (Float.floatToIntBits(a[j]) != Float.floatToIntBits(b[k+j]))
+				return false;
+		}
+		return true;
+	}
+
+	private static float lo(double v) {
+		float f = (float) v;
+		return f > v ? Math.nextAfter(f, Double.NEGATIVE_INFINITY) : f;
+	}
+
+	private static float hi(double v) {
+		float f = (float) v;
+		return f < v ? Math.nextAfter(f, Double.POSITIVE_INFINITY) : f;
+	}
+
+	private int cx(double x) {
+		int c = (int) ((x - _x) / _cw);
+		return c < 0 ? 0 : c >= _nx ? _nx-1 : c;
+	}
+
+	private int cy(double y) {
+		int c = (int) ((y - _y) / _ch);
+		return c < 0 ? 0 : c >= _ny ? _ny-1 : c;
+	}
+
+	private boolean moved(int row) {
+		return _moved != null && (_moved[row >> 6] & (1L << row)) != 0;
+	}
+
+	private boolean intersects(int row, double x0, double y0, double x1, double y1) {
+		int k = row << 2;
+		return _bounds[k] <= x1 && _bounds[k+2] >= x0
+			&& _bounds[k+1] <= y1 && _bounds[k+3] >= y0;
+	}
+
+	/**
+	 * Finds the items whose bounds intersect a rectangle.
+	 * @param r the query rectangle, in the coordinate frame of the items
+	 * @param hits receives the matching rows in ascending order
+	 * @return the number of matching rows
+	 */
+	public int query(Rect r, Hits hits) {
+		return query(r.getMinX(), r.getMinY(), r.getMaxX(), r.getMaxY(), hits);
+	}
+
+	/**
+	 * Finds the items whose bounds contain a point.
+	 * @param x the x-coordinate, in the coordinate frame of the items
+	 * @param y the y-coordinate, in the coordinate frame of the items
+	 * @param hits receives the matching rows in ascending order
+	 * @return the number of matching rows
+	 */
+	public int query(double x, double y, Hits hits) {
+		return query(x, y, x, y, hits);
+	}
+
+	private int query(double x0, double y0, double x1, double y1, Hits hits) {
+		hits.size = 0;
+		int cx0 = cx(x0), cx1 = cx(x1);
+		int cy0 = cy(y0), cy1 = cy(y1);
+		for (int cy=cy0; cy<=cy1; ++cy) {
+			for (int cx=cx0; cx<=cx1; ++cx) {
+				int cell = cy*_nx + cx;
+				for (int i=_start[cell]; i<_start[cell+1]; ++i) {
+					int row = _rows[i];
+					if (!intersects(row, x0, y0, x1, y1) || moved(row)) continue;
+					// report each row only from the first cell of the overlap
+					int k = row << 2;
+					if (cx(Math.max(x0, _bounds[k])) == cx
+						&& cy(Math.max(y0, _bounds[k+1])) == cy)
+					{
+						hits.add(row);
+					}
+				}
+			}
+		}
+		for (int row : _large) {
+			if (intersects(row, x0, y0, x1, y1) && !moved(row)) hits.add(row);
+		}
+		for (int row : _extra) {
+			if (intersects(row, x0, y0, x1, y1)) hits.add(row);
+		}
+		// preserve drawing order
+		Arrays.sort(hits.rows, 0, hits.size);
+		return hits.size;
+	}
+
+}
@@ -16,11 +16,15 @@ public class GroupItem extends Item {
 	public Map<String,List<EventHandler>> handlers;
 	public GroupItem proto = null;
 	public Rect bounds = new Rect();
+	public volatile GridIndex grid = null;
+	public volatile boolean gridStale = false;
+	public volatile int version = 0;
 	
 	public long props = 0;
 	public boolean segmented;
 	public String interpolate;
 	public int depth = 0;
+	public double lod = 0;
 
 	public GroupItem() {
 	}
@@ -35,6 +39,38 @@ public class GroupItem extends Item {
 	public List<Item> items() { return items; }
 	public int size() { return items.size(); }
 	
+	/**
+	 * Notes that the items of this group may have changed, marking the
+	 * spatial index stale and advancing the version, which displays
+	 * compare to find the groups to repaint. Called by updaters and
+	 * transitions whenever they touch the items of a group. Concurrent
+	 * calls may advance the version only once, but always advance it.
+	 */
+	public void changed() {
+		gridStale = true;
+		++version;
+	}
+	
+	/**
+	 * Returns a spatial index over the bounds of this group's items,
+	 * building it if there is no index, and updating it if stale. The
+	 * stale flag is cleared before the index is rebuilt, so that a call
+	 * to {@link #changed()} during the rebuild marks it stale again.
+	 * Rebuilds are serialized, as renderers, tile threads and input
+	 * handling may all query the index.
+	 */
+	public synchronized GridIndex grid() {
+		GridIndex g = grid;
+		if (g == null) {
+			gridStale = false;
+			grid = g = new GridIndex(this);
+		} else if (gridStale) {
+			gridStale = false;
+			grid = g = g.update(this);
+		}
+		return g;
+	}
+	
 	public List<EventHandler> handlers(String type) {
 		return handlers==null ? null : handlers.get(type);
 	}
@@ -0,0 +1,203 @@
+package pv.scene;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock-free triple buffer of scenegraph snapshots, decoupling the thread
+ * that updates a scene from the threads that render it. The writer copies
+ * the working scenegraph into its back buffer and publishes it with a
+ * single atomic exchange; the reader swaps in the most recently published
+ * snapshot before each frame. Each side owns one buffer exclusively, so
+ * neither ever waits for the other and renders never see a half-updated
+ * scenegraph.
+ *
+ * <p>Snapshots are copies of the item fields read by renderers. Item
+ * instances are reused between publishes where the scenegraph structure
+ * is unchanged. Prototype and link endpoint references are redirected to
+ * the snapshot items; the animation state of items is not copied. Only a
+ * single thread may render from a buffer at a time.</p>
+ */
+public class SceneBuffer {
+
+	/** A published buffer, and if it is newer than the reader's. */
+	private static class Slot {
+		final PanelItem root;
+		final boolean fresh;
+		Slot(PanelItem root, boolean fresh) {
+			this.root = root;
+			this.fresh = fresh;
+		}
+	}
+
+	private final AtomicReference<Slot> _middle;
+	private PanelItem _back;
+	// volatile, as renders may move between threads, one at a time
+	private volatile PanelItem _front;
+
+	// copy state, owned by the writer
+	private final Map<Item,GroupItem> _groups = new IdentityHashMap<Item,GroupItem>();
+	private final List<GroupItem> _protos = new ArrayList<GroupItem>();
+	private final List<LinkItem> _links = new ArrayList<LinkItem>();
+
+	public SceneBuffer() {
+		_back = root();
+		_front = root();
+		_middle = new AtomicReference<Slot>(new Slot(root(), false));
+	}
+
+	private static PanelItem root() {
+		PanelItem root = new PanelItem();
+		root.group = root;
+		return root;
+	}
+
+	/**
+	 * Copies a working scenegraph into the back buffer and publishes it.
+	 * Must be called from a single writer thread, while the working
+	 * scenegraph is not being modified.
+	 * @param working the root of the working scenegraph
+	 */
+	public void publish(PanelItem working) {
+		copy(working, _back);
+		Slot prev = _middle.getAndSet(new Slot(_back, true));
+		_back = prev.root;
+	}
+
+	/**
+	 * Returns the most recently published snapshot. The returned
+	 * scenegraph remains unchanged until the next call to this method.
+	 * Must be called by one rendering thread at a time, as the previous
+	 * snapshot is handed back to the writer.
+	 */
+	public PanelItem acquire() {
+		if (_middle.get().fresh) {
+			Slot next = _middle.getAndSet(new Slot(_front, false));
+			_front = next.root;
+		}
+		return _front;
+	}
+
+	// ------------------------------------------------------------------------
+
+	private void copy(PanelItem src, PanelItem dst) {
+		try {
+			copyItem(src, dst);
+			dst.group = dst;
+			// redirect references to snapshot items
+			for (GroupItem g : _protos) {
+				g.proto = _groups.get(g.proto);
+			}
+			for (LinkItem l : _links) {
+				l.source = lookup(l.source);
+				l.target = lookup(l.target);
+			}
+		} finally {
+			_groups.clear();
+			_protos.clear();
+			_links.clear();
+		}
+	}
+
+	private Item lookup(Item item) {
+		if (item == null) return null;
+		GroupItem g = _groups.get(item.group);
+		return (g == null || item.index >= g.size()) ? null : g.item(item.index);
+	}
+
+	private void copyItem(Item s, Item d) {
+		d.flags = s.flags;
+		d.index = s.index;
+		d.visible = s.visible;
+		d.data = s.data;
+		d.next = null;
+		d.ease = s.ease;
+		d.delay = s.delay;
+		d.left = s.left;
+		d.right = s.right;
+		d.top = s.top;
+		d.bottom = s.bottom;
+		d.width = s.width;
+		d.height = s.height;
+		d.alpha = s.alpha;
+		d.stroke = s.stroke;
+		d.fill = s.fill;
+		if (s instanceof GroupItem) {
+			copyGroup((GroupItem) s, (GroupItem) d);
+		} else if (s instanceof LinkItem) {
+			LinkItem sl = (LinkItem) s, dl = (LinkItem) d;
+			dl.populate(sl);
+			dl.sourceX = sl.sourceX;
+			dl.sourceY = sl.sourceY;
+			dl.targetX = sl.targetX;
+			dl.targetY = sl.targetY;
+			_links.add(dl);
+		} else if (s.getClass() != Item.class) {
+			d.populate(s);
+		}
+	}
+
+	private void copyGroup(GroupItem s, GroupItem d) {
+		_groups.put(s, d);
+		d.type = s.type;
+		d.handlers = s.handlers;
+		d.bounds.set(s.bounds);
+		d.grid = s.grid; // immutable, and updated against the copied bounds
+		d.gridStale = s.gridStale;
+		d.version = s.version;
+		d.props = s.props;
+		d.segmented = s.segmented;
+		d.interpolate = s.interpolate;
+		d.depth = s.depth;
+		d.lod = s.lod;
+		d.proto = s.proto;
+		if (s.proto != null) _protos.add(d);
+		if (s instanceof PanelItem) {
+			// panel caches are only reused while a snapshot is unchanged
+			((PanelItem) d).cache = ((PanelItem) s).cache;
+			d.dirty(true);
+		}
+		if (s instanceof ColumnGroupItem) {
+			((ColumnGroupItem) d).copy((ColumnGroupItem) s);
+			return;
+		}
+
+		int n = s.items.size();
+		List<Item> items = d.items;
+		for (int i=0; i<n; ++i) {
+			Item si = s.items.get(i);
+			Item di = i < items.size() ? items.get(i) : null;
+			if (si == null) {
+				di = null;
+			} else {
+				if (!compatible(si, di)) di = create(si);
+				di.group = d;
+				copyItem(si, di);
+			}
+			if (i < items.size()) items.set(i, di); else items.add(di);
+		}
+		for (int i=items.size(); --i >= n;) items.remove(i);
+	}
+
+	private static boolean compatible(Item s, Item d) {
+		if (d == null || d.getClass() != s.getClass()) return false;
+		return !(s instanceof ColumnGroupItem)
+			|| ((GroupItem)s).type == ((GroupItem)d).type;
+	}
+
+	private static Item create(Item s) {
+		if (s instanceof ColumnGroupItem) {
+			return new ColumnGroupItem(((GroupItem)s).type);
+		}
+		try {
+			return s.getClass().getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			throw new IllegalStateException(
+				"Can't copy scenegraph item of type "+s.getClass().getName(), e);
+		}
+	}
+
+}
@@ -0,0 +1,168 @@
+package pv.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A content-addressed, on-disk store of compiled class files. Each entry
+ * is a directory named by a hash key that contains one <code>.class</code>
+ * file per compiled class (a top-level class plus any nested classes),
+ * named by the class' qualified name. Entries are written to a temporary
+ * directory first and then renamed into place, so that concurrent
+ * processes sharing a cache directory never observe partial entries.
+ */
+public class ClassCache {
+
+	private static final String CLASS_EXTENSION = ".class";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final File _dir;
+
+	/**
+	 * Create a new ClassCache backed by the given directory. The directory
+	 * need not exist yet; it is created when the first class is stored.
+	 * @param dir the cache directory
+	 */
+	public ClassCache(File dir) {
+		_dir = dir;
+	}
+
+	/**
+	 * Returns the directory backing this cache.
+	 * @return the cache directory
+	 */
+	public File directory() {
+		return _dir;
+	}
+
+	/**
+	 * Computes a hash key for the given strings. The key is a hexadecimal
+	 * SHA-1 digest over the UTF-8 encoding of each part.
+	 * @param parts the strings to hash
+	 * @return the hash key
+	 */
+	public static String key(String... parts) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			for (String s : parts) {
+				md.update(String.valueOf(s).getBytes("UTF-8"));
+				md.update((byte)0);
+			}
+			byte[] b = md.digest();
+			char[] c = new char[2*b.length];
+			for (int i=0; i<b.length; ++i) {
+				c[2*i]   = HEX[(b[i] >> 4) & 0xF];
+				c[2*i+1] = HEX[b[i] & 0xF];
+			}
+			return new String(c);
+		} catch (Exception e) {
+			// SHA-1 and UTF-8 are always available
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Loads the class files stored under the given key.
+	 * @param key the hash key
+	 * @return a map from qualified class names to byte code, or null if
+	 * no entry exists for the key or the entry could not be read
+	 */
+	public Map<String,byte[]> load(String key) {
+		File entry = new File(_dir, key);
+		File[] files = entry.listFiles();
+		if (files == null || files.length == 0) return null;
+
+		Map<String,byte[]> classes = new HashMap<String,byte[]>();
+		try {
+			for (File f : files) {
+				String name = f.getName();
+				if (!name.endsWith(CLASS_EXTENSION)) continue;
+				name = name.substring(0, name.length()-CLASS_EXTENSION.length());
+				classes.put(name, read(f));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		return classes.isEmpty() ? null : classes;
+	}
+
+	/**
+	 * Stores class files under the given key. If an entry for the key
+	 * already exists, it is left untouched.
+	 * @param key the hash key
+	 * @param classes a map from qualified class names to byte code
+	 * @return true if the entry exists after the call, false otherwise
+	 */
+	public boolean store(String key, Map<String,byte[]> classes) {
+		File entry = new File(_dir, key);
+		if (entry.isDirectory()) return true;
+		if (!_dir.isDirectory() && !_dir.mkdirs()) return false;
+
+		File tmp = new File(_dir, key+"."+Thread.currentThread().getId()
+			+"."+System.nanoTime()+".tmp");
+		try {
+			if (!tmp.mkdir()) return false;
+			for (Map.Entry<String,byte[]> e : classes.entrySet()) {
+				write(new File(tmp, e.getKey()+CLASS_EXTENSION), e.getValue());
+			}
+			// another process may have won the race; either entry is valid
+			if (!tmp.renameTo(entry)) delete(tmp);
+		} catch (IOException e) {
+			e.printStackTrace();
+			delete(tmp);
+		}
+		return entry.isDirectory();
+	}
+
+	/**
+	 * Removes all entries from this cache.
+	 */
+	public void clear() {
+		File[] files = _dir.listFiles();
+		if (files == null) return;
+		for (File f : files) delete(f);
+	}
+
+	// ------------------------------------------------------------------------
+
+	private static byte[] read(File f) throws IOException {
+		InputStream is = new FileInputStream(f);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream((int)f.length());
+			byte[] buf = new byte[4096];
+			for (int n; (n=is.read(buf)) >= 0;) {
+				bytes.write(buf, 0, n);
+			}
+			return bytes.toByteArray();
+		} finally {
+			is.close();
+		}
+	}
+
+	private static void write(File f, byte[] bytes) throws IOException {
+		OutputStream os = new FileOutputStream(f);
+		try {
+			os.write(bytes);
+		} finally {
+			os.close();
+		}
+	}
+
+	private static void delete(File f) {
+		File[] files = f.listFiles();
+		if (files != null) {
+			for (File c : files) delete(c);
+		}
+		f.delete();
+	}
+
+}
@@ -0,0 +1,340 @@
+package pv.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal writer for Java class files, sufficient for emitting simple
+ * straight-line methods at runtime without a Java compiler. Class files are
+ * written in the Java 5 (49.0) format, so no stack map frames are required.
+ * Class and type names are given in internal form (e.g.,
+ * <code>pv/scene/Item</code>), and descriptors in JVM notation (e.g.,
+ * <code>(Lpv/scene/Item;)V</code>).
+ */
+public class ClassWriter {
+
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_SUPER  = 0x0020;
+
+	public static final int ACONST_NULL = 0x01;
+	public static final int ICONST_0    = 0x03;
+	public static final int BIPUSH      = 0x10;
+	public static final int SIPUSH      = 0x11;
+	public static final int LDC         = 0x12;
+	public static final int LDC_W       = 0x13;
+	public static final int LDC2_W      = 0x14;
+	public static final int ALOAD       = 0x19;
+	public static final int AALOAD      = 0x32;
+	public static final int ASTORE      = 0x3a;
+	public static final int I2L         = 0x85;
+	public static final int I2F         = 0x86;
+	public static final int I2D         = 0x87;
+	public static final int L2I         = 0x88;
+	public static final int L2F         = 0x89;
+	public static final int L2D         = 0x8a;
+	public static final int F2I         = 0x8b;
+	public static final int F2L         = 0x8c;
+	public static final int F2D         = 0x8d;
+	public static final int D2I         = 0x8e;
+	public static final int D2L         = 0x8f;
+	public static final int D2F         = 0x90;
+	public static final int RETURN      = 0xb1;
+	public static final int GETFIELD    = 0xb4;
+	public static final int PUTFIELD    = 0xb5;
+	public static final int INVOKESPECIAL   = 0xb7;
+	public static final int INVOKESTATIC    = 0xb8;
+	public static final int INVOKEINTERFACE = 0xb9;
+	public static final int CHECKCAST   = 0xc0;
+
+	private static final int CONSTANT_Utf8 = 1;
+	private static final int CONSTANT_Integer = 3;
+	private static final int CONSTANT_Double = 6;
+	private static final int CONSTANT_Class = 7;
+	private static final int CONSTANT_String = 8;
+	private static final int CONSTANT_Fieldref = 9;
+	private static final int CONSTANT_Methodref = 10;
+	private static final int CONSTANT_InterfaceMethodref = 11;
+	private static final int CONSTANT_NameAndType = 12;
+
+	private final ByteArrayOutputStream _pool = new ByteArrayOutputStream();
+	private final DataOutputStream _pout = new DataOutputStream(_pool);
+	private final Map<String,Integer> _entries = new HashMap<String,Integer>();
+	private int _count = 1;
+
+	private final List<Code> _methods = new ArrayList<Code>();
+	private final int _this, _super;
+
+	/**
+	 * Create a new ClassWriter for a public class.
+	 * @param name the internal name of the class
+	 * @param superName the internal name of the super class
+	 */
+	public ClassWriter(String name, String superName) {
+		_this = cls(name);
+		_super = cls(superName);
+	}
+
+	// -- constant pool -------------------------------------------------------
+
+	public int utf8(String s) {
+		Integer idx = _entries.get("U"+s);
+		if (idx != null) return idx;
+		try {
+			_pout.writeByte(CONSTANT_Utf8);
+			_pout.writeUTF(s);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return entry("U"+s, 1);
+	}
+
+	public int cls(String name) {
+		Integer idx = _entries.get("C"+name);
+		if (idx != null) return idx;
+		return entry("C"+name, CONSTANT_Class, utf8(name), -1, 1);
+	}
+
+	public int string(String s) {
+		Integer idx = _entries.get("S"+s);
+		if (idx != null) return idx;
+		return entry("S"+s, CONSTANT_String, utf8(s), -1, 1);
+	}
+
+	public int integer(int v) {
+		Integer idx = _entries.get("I"+v);
+		if (idx != null) return idx;
+		try {
+			_pout.writeByte(CONSTANT_Integer);
+			_pout.writeInt(v);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return entry("I"+v, 1);
+	}
+
+	public int number(double v) {
+		String key = "D"+Double.doubleToRawLongBits(v);
+		Integer idx = _entries.get(key);
+		if (idx != null) return idx;
+		try {
+			_pout.writeByte(CONSTANT_Double);
+			_pout.writeDouble(v);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return entry(key, 2); // doubles occupy two pool slots
+	}
+
+	public int field(String owner, String name, String desc) {
+		return member(CONSTANT_Fieldref, owner, name, desc);
+	}
+
+	public int method(String owner, String name, String desc) {
+		return member(CONSTANT_Methodref, owner, name, desc);
+	}
+
+	public int imethod(String owner, String name, String desc) {
+		return member(CONSTANT_InterfaceMethodref, owner, name, desc);
+	}
+
+	private int member(int tag, String owner, String name, String desc) {
+		String key = tag+owner+"."+name+":"+desc;
+		Integer idx = _entries.get(key);
+		if (idx != null) return idx;
+		int c = cls(owner);
+		int nt = nameAndType(name, desc);
+		return entry(key, tag, c, nt, 1);
+	}
+
+	private int nameAndType(String name, String desc) {
+		String key = "N"+name+":"+desc;
+		Integer idx = _entries.get(key);
+		if (idx != null) return idx;
+		return entry(key, CONSTANT_NameAndType, utf8(name), utf8(desc), 1);
+	}
+
+	private int entry(String key, int tag, int a, int b, int slots) {
+		try {
+			_pout.writeByte(tag);
+			_pout.writeShort(a);
+			if (b >= 0) _pout.writeShort(b);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return entry(key, slots);
+	}
+
+	private int entry(String key, int slots) {
+		int idx = _count;
+		_count += slots;
+		_entries.put(key, idx);
+		return idx;
+	}
+
+	// -- methods -------------------------------------------------------------
+
+	/**
+	 * Begins a new method. The returned {@link Code} instance is used to
+	 * append byte code instructions to the method body.
+	 * @param access the access flags
+	 * @param name the method name
+	 * @param desc the method descriptor
+	 * @param maxStack the maximum operand stack depth
+	 * @param maxLocals the number of local variable slots, including
+	 * <code>this</code> and the method arguments
+	 * @return the method body
+	 */
+	public Code method(int access, String name, String desc, int maxStack, int maxLocals) {
+		Code c = new Code(this, access, utf8(name), utf8(desc), maxStack, maxLocals);
+		_methods.add(c);
+		return c;
+	}
+
+	/**
+	 * Returns the class file contents.
+	 */
+	public byte[] toByteArray() {
+		int code = utf8("Code");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);  // minor version
+			out.writeShort(49); // major version (Java 5)
+			out.writeShort(_count);
+			_pool.writeTo(out);
+			out.writeShort(ACC_PUBLIC | ACC_SUPER);
+			out.writeShort(_this);
+			out.writeShort(_super);
+			out.writeShort(0); // interfaces
+			out.writeShort(0); // fields
+			out.writeShort(_methods.size());
+			for (Code c : _methods) {
+				byte[] b = c._code.toByteArray();
+				out.writeShort(c._access);
+				out.writeShort(c._name);
+				out.writeShort(c._desc);
+				out.writeShort(1); // attributes
+				out.writeShort(code);
+				out.writeInt(12 + b.length);
+				out.writeShort(c._maxStack);
+				out.writeShort(c._maxLocals);
+				out.writeInt(b.length);
+				out.write(b);
+				out.writeShort(0); // exception table
+				out.writeShort(0); // attributes
+			}
+			out.writeShort(0); // class attributes
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * The byte code of a single method.
+	 */
+	public static class Code {
+		private final ClassWriter _cw;
+		private final ByteArrayOutputStream _code = new ByteArrayOutputStream();
+		private final int _access, _name, _desc, _maxStack, _maxLocals;
+
+		private Code(ClassWriter cw, int access, int name, int desc, int maxStack, int maxLocals) {
+			_cw = cw;
+			_access = access;
+			_name = name;
+			_desc = desc;
+			_maxStack = maxStack;
+			_maxLocals = maxLocals;
+		}
+
+		public Code op(int opcode) {
+			_code.write(opcode);
+			return this;
+		}
+
+		private Code op(int opcode, int u2) {
+			_code.write(opcode);
+			_code.write((u2 >> 8) & 0xFF);
+			_code.write(u2 & 0xFF);
+			return this;
+		}
+
+		public Code aload(int local) {
+			if (local <= 3) return op(0x2a + local);
+			_code.write(ALOAD);
+			_code.write(local);
+			return this;
+		}
+
+		public Code astore(int local) {
+			if (local <= 3) return op(0x4b + local);
+			_code.write(ASTORE);
+			_code.write(local);
+			return this;
+		}
+
+		public Code iconst(int v) {
+			if (v >= -1 && v <= 5) return op(ICONST_0 + v);
+			if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+				_code.write(BIPUSH);
+				_code.write(v);
+				return this;
+			}
+			if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) {
+				return op(SIPUSH, v & 0xFFFF);
+			}
+			return ldc(_cw.integer(v));
+		}
+
+		public Code dconst(double v) {
+			return op(LDC2_W, _cw.number(v));
+		}
+
+		public Code sconst(String s) {
+			return ldc(_cw.string(s));
+		}
+
+		private Code ldc(int idx) {
+			if (idx <= 0xFF) {
+				_code.write(LDC);
+				_code.write(idx);
+				return this;
+			}
+			return op(LDC_W, idx);
+		}
+
+		public Code getfield(String owner, String name, String desc) {
+			return op(GETFIELD, _cw.field(owner, name, desc));
+		}
+
+		public Code putfield(String owner, String name, String desc) {
+			return op(PUTFIELD, _cw.field(owner, name, desc));
+		}
+
+		public Code checkcast(String type) {
+			return op(CHECKCAST, _cw.cls(type));
+		}
+
+		public Code invokespecial(String owner, String name, String desc) {
+			return op(INVOKESPECIAL, _cw.method(owner, name, desc));
+		}
+
+		public Code invokestatic(String owner, String name, String desc) {
+			return op(INVOKESTATIC, _cw.method(owner, name, desc));
+		}
+
+		public Code invokeinterface(String owner, String name, String desc, int argSlots) {
+			op(INVOKEINTERFACE, _cw.imethod(owner, name, desc));
+			_code.write(argSlots + 1);
+			_code.write(0);
+			return this;
+		}
+	}
+
+}
@@ -0,0 +1,261 @@
+package pv.util;
+
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * A work-stealing thread pool for executing {@link RecursiveAction}s. This
+ * class mirrors the subset of <code>java.util.concurrent.ForkJoinPool</code>
+ * used by the toolkit, so that it runs on Java 6 platforms.
+ *
+ * <p>Each worker thread owns a double-ended task queue. Workers push and
+ * pop forked tasks at the head of their own queue, and idle workers steal
+ * the oldest (typically largest) tasks from the tail of other queues.
+ * Tasks forked by threads outside the pool go to the submission queue of
+ * the pool they invoked, or else of the common pool. Joining threads
+ * execute other queued tasks while they wait, so that deep task trees
+ * never leave a core blocked.</p>
+ */
+public class ForkJoinPool {
+
+	private static final long IDLE_WAIT = 50;
+	private static final long JOIN_WAIT = 1;
+
+	private static final Object s_lock = new Object();
+	private static volatile ForkJoinPool s_common;
+
+	/** The pool invoked by an outside thread, which receives its forks. */
+	private static final ThreadLocal<ForkJoinPool> s_invoking
+		= new ThreadLocal<ForkJoinPool>();
+
+	/**
+	 * Returns the shared pool, with the thread count and priority of the
+	 * {@link ThreadPool}. The pool is replaced if either changes.
+	 */
+	public static ForkJoinPool commonPool() {
+		int n = ThreadPool.getThreadCount();
+		int priority = ThreadPool.getThreadPriority();
+		ForkJoinPool p = s_common;
+		if (matches(p, n, priority)) return p;
+		synchronized (s_lock) {
+			p = s_common;
+			if (!matches(p, n, priority)) {
+				if (p != null) p.shutdown();
+				s_common = p = new ForkJoinPool(n, priority);
+			}
+			return p;
+		}
+	}
+
+	private static boolean matches(ForkJoinPool p, int n, int priority) {
+		return p != null && !p._shutdown
+			&& p.getParallelism() == n && p._priority == priority;
+	}
+
+	private final Worker[] _workers;
+	private final LinkedBlockingDeque<RecursiveAction> _submissions
+		= new LinkedBlockingDeque<RecursiveAction>();
+	private final Object _lock = new Object();
+	private final int _priority;
+	private volatile int _idle = 0;
+	private volatile boolean _shutdown = false;
+
+	/**
+	 * Create a new ForkJoinPool, with workers at normal priority.
+	 * @param parallelism the number of worker threads
+	 */
+	public ForkJoinPool(int parallelism) {
+		this(parallelism, Thread.NORM_PRIORITY);
+	}
+
+	/**
+	 * Create a new ForkJoinPool.
+	 * @param parallelism the number of worker threads
+	 * @param priority the priority of the worker threads
+	 */
+	public ForkJoinPool(int parallelism, int priority) {
+		_priority = priority;
+		_workers = new Worker[Math.max(1, parallelism)];
+		for (int i=0; i<_workers.length; ++i) {
+			_workers[i] = new Worker(this, i);
+		}
+		for (Worker w : _workers) w.start();
+	}
+
+	/**
+	 * Returns the number of worker threads.
+	 */
+	public int getParallelism() {
+		return _workers.length;
+	}
+
+	/**
+	 * Executes a task and waits for its completion. The calling thread
+	 * executes the task itself, with subtasks forked to this pool.
+	 * @param task the task to run
+	 */
+	public void invoke(RecursiveAction task) {
+		Worker w = current();
+		if (w != null && w.pool == this) {
+			task.invoke();
+		} else {
+			// forks made by this thread while it waits go to this pool
+			ForkJoinPool prev = s_invoking.get();
+			s_invoking.set(this);
+			try {
+				submit(task);
+				join(task, this);
+			} finally {
+				if (prev == null) s_invoking.remove();
+				else s_invoking.set(prev);
+			}
+			task.rethrow();
+		}
+	}
+
+	/**
+	 * Stops the worker threads once their queues are drained.
+	 */
+	public void shutdown() {
+		_shutdown = true;
+		synchronized (_lock) {
+			_lock.notifyAll();
+		}
+	}
+
+	// ------------------------------------------------------------------------
+
+	private void submit(RecursiveAction task) {
+		_submissions.addLast(task);
+		signal();
+	}
+
+	private void signal() {
+		if (_idle > 0) {
+			synchronized (_lock) {
+				_lock.notify();
+			}
+		}
+	}
+
+	private void idle() {
+		synchronized (_lock) {
+			_idle++;
+			try {
+				// re-check after announcing, so no signal is missed
+				if (!hasTasks() && !_shutdown) _lock.wait(IDLE_WAIT);
+			} catch (InterruptedException e) {
+				// exit on shutdown
+			} finally {
+				_idle--;
+			}
+		}
+	}
+
+	private boolean hasTasks() {
+		if (!_submissions.isEmpty()) return true;
+		for (Worker w : _workers) {
+			if (!w.queue.isEmpty()) return true;
+		}
+		return false;
+	}
+
+	private RecursiveAction steal(Worker thief) {
+		RecursiveAction t = _submissions.pollFirst();
+		if (t != null) return t;
+		int n = _workers.length;
+		int start = thief==null ? 0 : thief.index + 1;
+		for (int i=0; i<n; ++i) {
+			Worker w = _workers[(start + i) % n];
+			if (w == thief) continue;
+			t = w.queue.pollLast();
+			if (t != null) return t;
+		}
+		return null;
+	}
+
+	private static Worker current() {
+		Thread t = Thread.currentThread();
+		return t instanceof Worker ? (Worker) t : null;
+	}
+
+	/** Returns the pool for tasks forked by a thread outside any pool. */
+	private static ForkJoinPool external() {
+		ForkJoinPool p = s_invoking.get();
+		return p != null ? p : commonPool();
+	}
+
+	static void push(RecursiveAction task) {
+		Worker w = current();
+		if (w != null) {
+			w.queue.addFirst(task);
+			w.pool.signal();
+		} else {
+			external().submit(task);
+		}
+	}
+
+	static void join(RecursiveAction task) {
+		join(task, null);
+	}
+
+	private static void join(RecursiveAction task, ForkJoinPool pool) {
+		Worker w = current();
+		if (w != null) pool = w.pool;
+		else if (pool == null) pool = external();
+		while (!task.isDone()) {
+			RecursiveAction t = null;
+			if (w != null) {
+				// run the task directly if it was not stolen
+				if (w.queue.peekFirst() == task && w.queue.removeFirstOccurrence(task)) {
+					t = task;
+				} else {
+					t = w.queue.pollFirst();
+				}
+			} else if (pool._submissions.removeFirstOccurrence(task)) {
+				t = task;
+			}
+			if (t == null) t = pool.steal(w);
+			if (t != null) {
+				t.exec();
+			} else {
+				task.await(JOIN_WAIT);
+			}
+		}
+	}
+
+	static int surplus() {
+		Worker w = current();
+		return w == null ? 0 : w.queue.size() - w.pool._idle;
+	}
+
+	/**
+	 * A worker thread, owning a task queue.
+	 */
+	private static class Worker extends Thread {
+		final ForkJoinPool pool;
+		final int index;
+		final LinkedBlockingDeque<RecursiveAction> queue
+			= new LinkedBlockingDeque<RecursiveAction>();
+
+		Worker(ForkJoinPool pool, int index) {
+			this.pool = pool;
+			this.index = index;
+			setName("pv-forkjoin-"+index);
+			setDaemon(true);
+			setPriority(pool._priority);
+		}
+
+		public void run() {
+			while (!pool._shutdown || !queue.isEmpty()) {
+				RecursiveAction t = queue.pollFirst();
+				if (t == null) t = pool.steal(this);
+				if (t != null) {
+					t.exec();
+				} else {
+					pool.idle();
+				}
+			}
+		}
+	}
+
+}
@@ -187,6 +187,139 @@ public class Geometry {
 		return subdiv + (includeFirst ? 1 : 0);
 	}
 	
+    // -- decimation ----------------------------------------------------
+
+	/**
+	 * Decimates a polyline to at most four vertices per pixel column: the
+	 * first, lowest, highest and last vertex of the column, in their
+	 * original order (M4 aggregation). Drawn one pixel wide, the result
+	 * rasterizes like the full polyline. The column of a vertex is
+	 * floor(x*scale + offset). NaN vertices break the polyline and are
+	 * copied to the output.
+	 * @param p the input points in [x0,y0,x1,y1,...] order
+	 * @param npts the number of input points
+	 * @param scale the scale from x-coordinates to pixels
+	 * @param offset the offset from x-coordinates to pixels
+	 * @param pad if true, every column has exactly four vertices, with
+	 *  coincident vertices repeated, so that polylines binned into the
+	 *  same columns have the same number of vertices
+	 * @param out the output points, at least 2*npts long, or if padding,
+	 *  8*npts long, as each run of vertices in a column is padded and the
+	 *  runs are not bounded by the columns when x is not monotonic
+	 * @return the number of output points
+	 */
+	public static int m4(double[] p, int npts, double scale, double offset,
+		boolean pad, double[] out)
+	{
+		if (out.length < (pad ? 8 : 2)*npts || out == p) {
+			throw new IllegalArgumentException(
+				"Pre-allocated data structure too small");
+		}
+		int k = 0, first = -1, lo = 0, hi = 0, last = 0;
+		double col = 0;
+		for (int j=0; j<2*npts; j+=2) {
+			double x = p[j], y = p[j+1];
+			if (x != x || y != y) {
+				k = column(p, first, lo, hi, last, pad, out, k);
+				out[k++] = Double.NaN; out[k++] = Double.NaN;
+				first = -1;
+				continue;
+			}
+			double c = Math.floor(x*scale + offset);
+			if (first < 0 || c != col) {
+				k = column(p, first, lo, hi, last, pad, out, k);
+				col = c;
+				first = lo = hi = last = j;
+				continue;
+			}
+			if (y < p[lo+1]) lo = j;
+			if (y > p[hi+1]) hi = j;
+			last = j;
+		}
+		k = column(p, first, lo, hi, last, pad, out, k);
+		return k >> 1;
+	}
+
+	private static int column(double[] p, int first, int lo, int hi,
+		int last, boolean pad, double[] out, int k)
+	{
+		if (first < 0) return k;
+		int a = Math.min(lo, hi), b = Math.max(lo, hi);
+		out[k++] = p[first]; out[k++] = p[first+1];
+		if (pad || a != first) { out[k++] = p[a]; out[k++] = p[a+1]; }
+		if (pad || b != a) { out[k++] = p[b]; out[k++] = p[b+1]; }
+		if (pad || last != b) { out[k++] = p[last]; out[k++] = p[last+1]; }
+		return k;
+	}
+
+	/**
+	 * Simplifies a polyline with the Ramer-Douglas-Peucker algorithm,
+	 * dropping vertices closer than a tolerance to the segment between the
+	 * vertices kept around them. Distances are measured with x and y
+	 * scaled to pixels. NaN vertices break the polyline and are copied to
+	 * the output. The running time is O(n log n) for typical input, and
+	 * O(n^2) in the worst case.
+	 * @param p the input points in [x0,y0,x1,y1,...] order
+	 * @param npts the number of input points
+	 * @param sx the scale from x-coordinates to pixels
+	 * @param sy the scale from y-coordinates to pixels
+	 * @param tolerance the largest distance of a dropped vertex, in pixels
+	 * @param out the output points, at least 2*npts long
+	 * @param stack a work buffer, at least 2*npts long
+	 * @return the number of output points
+	 */
+	public static int rdp(double[] p, int npts, double sx, double sy,
+		double tolerance, double[] out, int[] stack)
+	{
+		if (out.length < 2*npts || stack.length < 2*npts || out == p) {
+			throw new IllegalArgumentException(
+				"Pre-allocated data structure too small");
+		}
+		double tol2 = tolerance * tolerance;
+		int k = 0, start = 0;
+		for (int i=0; i<=npts; ++i) {
+			if (i < npts && p[2*i] == p[2*i] && p[2*i+1] == p[2*i+1]) continue;
+			k = rdp(p, start, i-1, sx, sy, tol2, out, k, stack);
+			if (i < npts) { out[k++] = Double.NaN; out[k++] = Double.NaN; }
+			start = i+1;
+		}
+		return k >> 1;
+	}
+
+	private static int rdp(double[] p, int a, int b, double sx, double sy,
+		double tol2, double[] out, int k, int[] stack)
+	{
+		if (b < a) return k;
+		if (b == a) {
+			out[k++] = p[2*a]; out[k++] = p[2*a+1];
+			return k;
+		}
+		// segments are popped left to right, so vertices are kept in order
+		int sp = 0;
+		stack[sp++] = a; stack[sp++] = b;
+		while (sp > 0) {
+			int e = stack[--sp], s = stack[--sp];
+			double x0 = p[2*s]*sx, y0 = p[2*s+1]*sy;
+			double dx = p[2*e]*sx - x0, dy = p[2*e+1]*sy - y0;
+			double len2 = dx*dx + dy*dy, max = -1;
+			int m = -1;
+			for (int i=s+1; i<e; ++i) {
+				double px = p[2*i]*sx - x0, py = p[2*i+1]*sy - y0;
+				double c = px*dy - py*dx;
+				double d = len2 == 0 ? px*px + py*py : c*c / len2;
+				if (d > max) { max = d; m = i; }
+			}
+			if (max > tol2) {
+				stack[sp++] = m; stack[sp++] = e;
+				stack[sp++] = s; stack[sp++] = m;
+			} else {
+				out[k++] = p[2*s]; out[k++] = p[2*s+1];
+			}
+		}
+		out[k++] = p[2*b]; out[k++] = p[2*b+1];
+		return k;
+	}
+	
     // -- convex hull ----------------------------------------------------
     
 	/**
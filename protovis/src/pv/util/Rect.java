@@ -38,6 +38,11 @@ public class Rect {
 			y >= getMinY() && y <= getMaxY();
 	}
 	
+	public boolean contains(Rect r) {
+		return r.getMinX() >= getMinX() && r.getMaxX() <= getMaxX() &&
+			r.getMinY() >= getMinY() && r.getMaxY() <= getMaxY();
+	}
+	
 	public static void union(Rect s, Rect t, Rect r) {
 		double x1 = Math.min(s.getMinX(), t.getMinX());
 		double y1 = Math.min(s.getMinY(), t.getMinY());
@@ -0,0 +1,138 @@
+package pv.util;
+
+import java.util.List;
+
+/**
+ * A recursive, result-less task executed by a {@link ForkJoinPool}. This
+ * class mirrors the subset of <code>java.util.concurrent.RecursiveAction</code>
+ * used by the toolkit, so that it runs on Java 6 platforms. Subclasses
+ * implement {@link #compute()}, typically splitting their work into
+ * subtasks that are forked and then joined.
+ */
+public abstract class RecursiveAction {
+
+	private volatile boolean _done = false;
+	private Throwable _error;
+
+	/**
+	 * The main computation performed by this task.
+	 */
+	protected abstract void compute();
+
+	/**
+	 * Runs this task, recording its completion.
+	 */
+	final void exec() {
+		try {
+			compute();
+		} catch (Throwable t) {
+			_error = t;
+		} finally {
+			_done = true;
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits for up to the given time for this task to complete.
+	 */
+	final void await(long millis) {
+		synchronized (this) {
+			if (_done) return;
+			try {
+				wait(millis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Indicates if this task has completed.
+	 */
+	public final boolean isDone() {
+		return _done;
+	}
+
+	/**
+	 * Arranges to execute this task asynchronously. If the current thread
+	 * is a pool worker, the task is pushed onto the worker's own queue;
+	 * otherwise it is submitted to the pool the thread is invoking, or to
+	 * the common pool.
+	 * @return this task
+	 */
+	public final RecursiveAction fork() {
+		ForkJoinPool.push(this);
+		return this;
+	}
+
+	/**
+	 * Waits for this task to complete. Rather than blocking, the calling
+	 * thread executes other queued tasks while waiting.
+	 * @throws RuntimeException if the task's computation threw an exception
+	 */
+	public final void join() {
+		ForkJoinPool.join(this);
+		rethrow();
+	}
+
+	/**
+	 * Executes this task in the calling thread.
+	 * @throws RuntimeException if the task's computation threw an exception
+	 */
+	public final void invoke() {
+		exec();
+		rethrow();
+	}
+
+	final void rethrow() {
+		Throwable t = _error;
+		if (t instanceof RuntimeException) throw (RuntimeException) t;
+		if (t instanceof Error) throw (Error) t;
+		if (t != null) throw new RuntimeException(t);
+	}
+
+	/**
+	 * Forks the second task, executes the first in the calling thread and
+	 * then joins the second.
+	 */
+	public static void invokeAll(RecursiveAction a, RecursiveAction b) {
+		b.fork();
+		a.exec();
+		b.join();
+		a.rethrow();
+	}
+
+	/**
+	 * Forks all but the first task, executes the first in the calling
+	 * thread, and then joins the others. All tasks complete before an
+	 * exception, if any, is rethrown.
+	 */
+	public static void invokeAll(List<? extends RecursiveAction> tasks) {
+		int n = tasks.size();
+		if (n == 0) return;
+		for (int i=n; --i>0;) {
+			tasks.get(i).fork();
+		}
+		tasks.get(0).exec();
+		for (int i=1; i<n; ++i) {
+			ForkJoinPool.join(tasks.get(i));
+		}
+		for (int i=0; i<n; ++i) {
+			tasks.get(i).rethrow();
+		}
+	}
+
+	/**
+	 * Returns an estimate of the number of tasks forked by the current
+	 * worker thread that have not yet been executed or stolen. Tasks may
+	 * use this to decide whether splitting their work further is worth
+	 * the overhead; a small surplus means other threads are idle.
+	 */
+	public static int getSurplusQueuedTaskCount() {
+		return ForkJoinPool.surplus();
+	}
+
+}
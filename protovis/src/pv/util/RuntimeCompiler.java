@@ -67,12 +67,21 @@ public class RuntimeCompiler<T> {
 	
 	private static RuntimeCompiler<?> s_instance;
 	public static RuntimeCompiler<?> instance() {
-		if (s_instance == null) s_instance = new RuntimeCompiler<Evaluator>(
-			RuntimeCompiler.class.getClassLoader(),
-			Arrays.asList(new String[] {"-target", "1.5"}));
+		if (s_instance == null) s_instance = create();
 		return s_instance;
 	}
 	
+   /**
+    * Creates a new compiler instance with the default options, independent
+    * of the shared {@link #instance()}. Separate instances may be used to
+    * compile concurrently.
+    */
+   public static RuntimeCompiler<?> create() {
+      return new RuntimeCompiler<Evaluator>(
+            RuntimeCompiler.class.getClassLoader(),
+            Arrays.asList(new String[] {"-target", "1.5"}));
+   }
+	
    // Compiler requires source files with a ".java" extension:
    static final String JAVA_EXTENSION = ".java";
 
@@ -267,6 +276,55 @@ public class RuntimeCompiler<T> {
       }
    }
 
+   /**
+    * Returns the byte code of a class generated by this instance, along
+    * with the byte code of any nested classes it declares.
+    * 
+    * @param qualifiedClassName
+    *           the name of the compiled top-level class
+    * @return a map from qualified class names to byte code; the map is
+    *         empty if no such class was generated by this instance
+    */
+   public synchronized Map<String, byte[]> getByteCode(
+         final String qualifiedClassName)
+   {
+      Map<String, byte[]> map = new HashMap<String, byte[]>();
+      String nested = qualifiedClassName + "$";
+      for (JavaFileObject file : classLoader.files()) {
+         String name = file.getName();
+         if (name.equals(qualifiedClassName) || name.startsWith(nested)) {
+            map.put(name, ((JavaFileObjectImpl) file).getByteCode());
+         }
+      }
+      return map;
+   }
+
+   /**
+    * Defines previously compiled classes in this instance's class loader
+    * and returns the requested class. This allows byte code saved from an
+    * earlier call to {@link #getByteCode(String)} to be reused without
+    * invoking the compiler.
+    * 
+    * @param qualifiedClassName
+    *           the name of the class to return
+    * @param classes
+    *           a map from qualified class names to byte code, including the
+    *           requested class and any classes it depends on
+    * @return the requested class
+    * @throws ClassNotFoundException
+    *            if the requested class is not included in the map and not
+    *            otherwise accessible
+    */
+   public synchronized Class<T> define(final String qualifiedClassName,
+         final Map<String, byte[]> classes) throws ClassNotFoundException
+   {
+      for (Entry<String, byte[]> entry : classes.entrySet()) {
+         String name = entry.getKey();
+         classLoader.add(name, new JavaFileObjectImpl(name, entry.getValue()));
+      }
+      return loadClass(qualifiedClassName);
+   }
+
    /**
     * Load a class that was generated by this instance or accessible from its
     * parent class loader. Use this method if you need access to additional
@@ -527,6 +585,21 @@ final class JavaFileObjectImpl extends SimpleJavaFileObject {
       source = null;
    }
 
+   /**
+    * Construct a new instance which holds previously compiled byte code
+    * 
+    * @param name
+    *           the file name
+    * @param bytes
+    *           the byte code
+    */
+   JavaFileObjectImpl(final String name, final byte[] bytes) {
+      super(RuntimeCompiler.toURI(name), Kind.CLASS);
+      source = null;
+      byteCode = new ByteArrayOutputStream(bytes.length);
+      byteCode.write(bytes, 0, bytes.length);
+   }
+
    /**
     * Return the source code content
     * 
@@ -1,47 +1,227 @@
 package pv.util;
 
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.ThreadFactory;
 
+/**
+ * Shared executors. The thread pool is a bounded pool for CPU-bound work,
+ * such as evaluation, layout and animation, with one thread per processor
+ * by default. The IO pool runs blocking work, such as image loading, so
+ * that it never occupies the CPU-bound threads. The IO pool creates a
+ * virtual thread per task when the platform supports virtual threads, and
+ * otherwise uses a cached pool of daemon threads. Either executor can be
+ * replaced by an application-provided one, which the application keeps
+ * ownership of: only the default executors are ever shut down.
+ */
 public class ThreadPool {
 	
 	private static int _numThreads = Runtime.getRuntime().availableProcessors();
-	private static ExecutorService _pool;
+	private static volatile int _priority = Thread.NORM_PRIORITY;
+	private static volatile ExecutorService _pool;
+	private static volatile ExecutorService _io;
+	// if the executors are defaults, created and shut down here
+	private static boolean _ownPool, _ownIO;
+	private static boolean _virtual = true;
+	
+	// set while a thread runs tasks for the thread pool
+	private static final ThreadLocal<Boolean> s_worker = new ThreadLocal<Boolean>() {
+		protected Boolean initialValue() { return Boolean.FALSE; }
+	};
 	
 	private static ThreadGroup _tg = null;
 	private static ThreadFactory _tf = new ThreadFactory() {
 		private int id = 0;
-		public Thread newThread(Runnable r) {
-			Thread t = new Thread(_tg, r);
+		public Thread newThread(final Runnable r) {
+			Thread t = new Thread(_tg, new Runnable() {
+				public void run() {
+					s_worker.set(Boolean.TRUE);
+					r.run();
+				}
+			});
 			t.setName("pv-worker-"+(id++));
 			t.setDaemon(true);
-			t.setPriority(Thread.MAX_PRIORITY);
+			t.setPriority(_priority);
+			return t;
+		}
+	};
+	private static ThreadFactory _iotf = new ThreadFactory() {
+		private int id = 0;
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r);
+			t.setName("pv-io-"+(id++));
+			t.setDaemon(true);
 			return t;
 		}
 	};
 	
+	/**
+	 * Sets the number of threads of the default thread pool, replacing
+	 * it. An application-provided pool is kept.
+	 */
 	public static void setThreadCount(int numThreads) {
 		if (numThreads == _numThreads) return;
-		_numThreads = numThreads;
-		shutdown();
+		synchronized (ThreadPool.class) {
+			_numThreads = numThreads;
+			if (_ownPool) release(false);
+		}
 	}
 	
 	public static int getThreadCount() {
 		return _numThreads;
 	}
 	
+	/**
+	 * Sets the priority of the threads of the default thread pool and of
+	 * the fork/join workers, normal by default. Takes effect for threads
+	 * created after the call.
+	 */
+	public static void setThreadPriority(int priority) {
+		_priority = priority;
+	}
+	
+	/**
+	 * Returns the priority of the threads of the default thread pool.
+	 */
+	public static int getThreadPriority() {
+		return _priority;
+	}
+	
 	public static ExecutorService getThreadPool() {
 		return getThreadPool(_numThreads);
 	}
 	
+	/**
+	 * Replaces the executor for CPU-bound work. The executor should run
+	 * {@link #getThreadCount()} tasks concurrently. The previous executor
+	 * is shut down if it is the default one.
+	 * @param pool the executor, or null to restore the default pool
+	 */
+	public static void setThreadPool(ExecutorService pool) {
+		synchronized (ThreadPool.class) {
+			if (pool == _pool) return;
+			if (_ownPool) release(false);
+			_pool = pool;
+			_ownPool = false;
+		}
+	}
+	
+	/**
+	 * Indicates if the current thread is a thread of the default thread
+	 * pool, or is running a task started by {@link #invokeAll(Collection)}.
+	 */
+	public static boolean isPoolThread() {
+		return s_worker.get().booleanValue();
+	}
+	
+	/**
+	 * Runs tasks on the thread pool and waits for them to finish, like
+	 * {@link ExecutorService#invokeAll(Collection)}. If called from a task
+	 * already running on the pool, the tasks run on the calling thread,
+	 * as waiting for other tasks from every thread of a bounded pool
+	 * would deadlock.
+	 * @param tasks the tasks to run
+	 * @return the futures of the tasks, all done, in the same order
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static <T> List<Future<T>> invokeAll(
+		Collection<? extends Callable<T>> tasks) throws InterruptedException
+	{
+		List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		if (isPoolThread()) {
+			for (Callable<T> task : tasks) {
+				FutureTask<T> f = new FutureTask<T>(task);
+				f.run();
+				futures.add(f);
+			}
+			return futures;
+		}
+		List<Callable<T>> list = new ArrayList<Callable<T>>(tasks.size());
+		for (final Callable<T> task : tasks) {
+			list.add(new Callable<T>() {
+				public T call() throws Exception {
+					Boolean worker = s_worker.get();
+					s_worker.set(Boolean.TRUE);
+					try {
+						return task.call();
+					} finally {
+						s_worker.set(worker);
+					}
+				}
+			});
+		}
+		return getThreadPool().invokeAll(list);
+	}
+	
+	/**
+	 * Returns the executor for blocking work.
+	 */
+	public static ExecutorService getIOPool() {
+		if (_io == null) {
+			synchronized (ThreadPool.class) {
+				if (_io == null) {
+					ExecutorService io = _virtual ? virtualThreadPool() : null;
+					if (io == null) io = Executors.newCachedThreadPool(_iotf);
+					_ownIO = true;
+					_io = io;
+				}
+			}
+		}
+		return _io;
+	}
+	
+	/**
+	 * Replaces the executor for blocking work. The previous executor is
+	 * shut down if it is the default one.
+	 * @param pool the executor, or null to restore the default pool
+	 */
+	public static void setIOPool(ExecutorService pool) {
+		synchronized (ThreadPool.class) {
+			if (pool == _io) return;
+			if (_ownIO) releaseIO(false);
+			_io = pool;
+			_ownIO = false;
+		}
+	}
+	
+	/**
+	 * Sets if the default IO pool uses virtual threads, when supported by
+	 * the platform. Replaces the current default IO pool.
+	 */
+	public static void setVirtualThreads(boolean b) {
+		synchronized (ThreadPool.class) {
+			_virtual = b;
+			if (_ownIO) releaseIO(false);
+		}
+	}
+	
+	/**
+	 * Creates an executor starting a virtual thread per task, or returns
+	 * null if the platform has no virtual threads.
+	 */
+	private static ExecutorService virtualThreadPool() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
 	private static ExecutorService getThreadPool(int nThreads) {
 		if (_pool == null) {
 			synchronized (ThreadPool.class) {
 				if (_pool == null) {
 					_tg = new ThreadGroup("Protovis");
 					_tg.setDaemon(true);
+					_ownPool = true;
 					_pool = Executors.newFixedThreadPool(nThreads, _tf);
 				}
 			}
@@ -49,31 +229,51 @@ public class ThreadPool {
 		return _pool;
 	}
 	
+	/**
+	 * Shuts down the default executors. Application-provided executors
+	 * are released but left running. The defaults are created again when
+	 * next requested.
+	 */
 	public static void shutdown() {
-		if (_pool != null) {
-			synchronized (ThreadPool.class) {
-				if (_pool != null) {
-					_pool.shutdown();
-					_pool = null;
-					_tg = null;
-				}
-				
-			}
+		synchronized (ThreadPool.class) {
+			releaseIO(false);
+			release(false);
 		}
 	}
 	
+	/**
+	 * Shuts down the default executors, interrupting their running tasks.
+	 * Application-provided executors are released but left running.
+	 * @return the tasks of the default thread pool that never started
+	 */
 	public static List<Runnable> shutdownNow() {
+		synchronized (ThreadPool.class) {
+			releaseIO(true);
+			return release(true);
+		}
+	}
+	
+	/** Releases the thread pool, shutting it down if it is the default. */
+	private static List<Runnable> release(boolean now) {
 		List<Runnable> list = null;
-		if (_pool != null) {
-			synchronized (ThreadPool.class) {
-				if (_pool != null) {
-					list = _pool.shutdownNow();
-					_pool = null;
-					_tg = null;
-				}
-			}
+		ExecutorService pool = _pool;
+		if (pool != null && _ownPool) {
+			if (now) list = pool.shutdownNow(); else pool.shutdown();
 		}
+		_pool = null;
+		_ownPool = false;
+		_tg = null;
 		return list;
 	}
 	
+	/** Releases the IO pool, shutting it down if it is the default. */
+	private static void releaseIO(boolean now) {
+		ExecutorService io = _io;
+		if (io != null && _ownIO) {
+			if (now) io.shutdownNow(); else io.shutdown();
+		}
+		_io = null;
+		_ownIO = false;
+	}
+	
 }
\ No newline at end of file
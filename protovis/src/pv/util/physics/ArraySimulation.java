@@ -0,0 +1,711 @@
+package pv.util.physics;
+
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import pv.util.ThreadPool;
+
+/**
+ * A physical simulation of particles, springs, and forces that stores its
+ * state in parallel columns of primitive values rather than as linked
+ * {@link Particle} and {@link Spring} instances. Positions, velocities,
+ * forces and masses are float arrays indexed by particle, and springs are
+ * pairs of particle indices with their own parameter columns. Each pass
+ * over particles or springs is split by index range across the
+ * {@link ThreadPool}, in simple loops over the arrays, which suits large
+ * simulations of up to millions of particles.
+ *
+ * <p>The simulation performs the same integration as {@link Simulation}.
+ * Particles and springs are identified by the ids returned when they are
+ * added, which remain valid until they are removed; their current index
+ * into the columns is found with {@link #particle(int)} and
+ * {@link #spring(int)}. Removed particles and springs are compacted out
+ * of the columns at the start of the next tick, preserving order, which
+ * changes indices but not ids.</p>
+ *
+ * <p>Particle and spring functions written for {@link Simulation} can be
+ * run through {@link #runParticles(Simulation.ParticleFunction)} and
+ * {@link #runSprings(Simulation.SpringFunction)}, which present blocks of the
+ * columns as reused particle and spring instances.</p>
+ */
+public class ArraySimulation {
+
+	private static final int MIN_CAPACITY = 16;
+	/** Number of items below which passes are not split across threads. */
+	private static final int GRAIN = 4096;
+	/** Number of instances presented at a time to adapted functions. */
+	private static final int BLOCK = 256;
+
+	// -- particle columns --
+	public float[] xs, ys, vxs, vys, fxs, fys, masses;
+	public boolean[] fixed;
+	public int[] degrees;
+	private float[] _vxs, _vys;
+	private boolean[] _dead;
+	private int[] _pids;
+	private int _pcount = 0;
+
+	// -- spring columns --
+	public int[] sources, targets;
+	public float[] restLengths, tensions, dampings, sfxs, sfys;
+	private boolean[] _sdead;
+	private int[] _sids;
+	private int _scount = 0;
+
+	// id to index maps, -1 for removed ids
+	private int[] _pindex = new int[MIN_CAPACITY], _sindex = new int[MIN_CAPACITY];
+	private int _pnext = 0, _snext = 0;
+	private int _pkilled = 0, _skilled = 0;
+	private int[] _remap;
+
+	// springs incident to each particle, in spring order, as the spring
+	// index for its source and the complement of the index for its target
+	private int[] _links = new int[0], _offsets = new int[1];
+	private boolean _linked = false;
+
+	private NBodyForce _nbody;
+	private float _gx, _gy, _dc;
+	private float _dt, _dt1, _dt2;
+	private Rectangle2D _bounds = null;
+	private float _minX, _minY, _maxX, _maxY;
+
+	private final List<Pass> _tasks = new ArrayList<Pass>();
+
+	/** Sets a bounding box for particles in this simulation.
+	 *  Null (the default) indicates no boundaries. */
+	public Rectangle2D bounds() { return _bounds; }
+	public ArraySimulation bounds(Rectangle2D b) {
+		if (_bounds == b) return this;
+		if (b == null) { _bounds = null; return this; }
+		if (_bounds == null) { _bounds = new Rectangle2D.Float(); }
+		// ensure x is left-most and y is top-most
+		_bounds.setRect(
+				b.getX() + (b.getWidth() < 0 ? b.getWidth() : 0),
+				b.getY() + (b.getHeight() < 0 ? b.getHeight() : 0),
+				(b.getWidth() < 0 ? -1 : 1) * b.getWidth(),
+				(b.getHeight() < 0 ? -1 : 1) * b.getHeight());
+		return this;
+	}
+
+	/** The gravitational force along the x-dimension. */
+	public float gravityX() { return _gx; }
+	public ArraySimulation gravityX(float g) { _gx = g; return this; }
+
+	/** The gravitational force along the y-dimension. */
+	public float gravityY() { return _gy; }
+	public ArraySimulation gravityY(float g) { _gy = g; return this; }
+
+	/**  The drag (viscosity) co-efficient. */
+	public float drag() { return _dc; }
+	public ArraySimulation drag(float d) { _dc = d; return this; }
+
+	/** The attraction (or repulsion if negative) between particles. */
+	public float attraction() { return _nbody.gravitation(); }
+	public ArraySimulation attraction(float a) { _nbody.gravitation(a); return this; }
+
+	/** The maximum range over which attractive/repulsive forces are exerted. */
+	public float range() { return _nbody.maxDistance(); }
+	public ArraySimulation range(float r) { _nbody.maxDistance(r); return this; }
+
+	// ------------------------------------------------------------------------
+
+	/**
+	 * Creates a new physics simulation.
+	 */
+	public ArraySimulation()
+	{
+		this(0, 0, 0.1f, -10);
+	}
+
+	/**
+	 * Creates a new physics simulation.
+	 * @param gx the gravitational acceleration along the x dimension
+	 * @param gy the gravitational acceleration along the y dimension
+	 * @param drag the default drag (viscosity) co-efficient
+	 * @param attraction the gravitational attraction (or repulsion, for
+	 *  negative values) between particles.
+	 */
+	public ArraySimulation(float gx, float gy, float drag, float attraction)
+	{
+		_nbody = new NBodyForce(attraction);
+		_gx = gx; _gy = gy; _dc = drag;
+		particleCapacity(MIN_CAPACITY);
+		springCapacity(MIN_CAPACITY);
+	}
+
+	// -- Init Simulation -----------------------------------------------------
+
+	/** The number of particles, including those removed since the last tick. */
+	public int particleCount() { return _pcount; }
+
+	/** The number of springs, including those removed since the last tick. */
+	public int springCount() { return _scount; }
+
+	/**
+	 * Adds a new particle to the simulation.
+	 * @param mass the mass (charge) of the particle
+	 * @param x the particle's starting x position
+	 * @param y the particle's starting y position
+	 * @return the id of the added particle
+	 */
+	public int addParticle(float mass, float x, float y)
+	{
+		if (_pcount == xs.length) particleCapacity(2 * _pcount);
+		int i = _pcount++, id = _pnext++;
+		if (id == _pindex.length) _pindex = Arrays.copyOf(_pindex, 2 * id);
+		_pindex[id] = i;
+		_pids[i] = id;
+		xs[i] = x; ys[i] = y;
+		vxs[i] = vys[i] = _vxs[i] = _vys[i] = 0;
+		fxs[i] = fys[i] = 0;
+		masses[i] = mass;
+		fixed[i] = false;
+		degrees[i] = 0;
+		_dead[i] = false;
+		_linked = false;
+		return id;
+	}
+
+	/**
+	 * Adds a spring to the simulation.
+	 * @param p1 the id of the first particle attached to the spring
+	 * @param p2 the id of the second particle attached to the spring
+	 * @param restLength the rest length of the spring
+	 * @param tension the tension of the spring
+	 * @param damping the damping (friction) co-efficient of the spring
+	 * @return the id of the added spring
+	 */
+	public int addSpring(int p1, int p2, float restLength,
+		float tension, float damping)
+	{
+		int i1 = particle(p1), i2 = particle(p2);
+		if (i1 < 0 || i2 < 0) {
+			throw new IllegalArgumentException("Unknown particle id");
+		}
+		if (_scount == sources.length) springCapacity(2 * _scount);
+		int i = _scount++, id = _snext++;
+		if (id == _sindex.length) _sindex = Arrays.copyOf(_sindex, 2 * id);
+		_sindex[id] = i;
+		_sids[i] = id;
+		sources[i] = i1; targets[i] = i2;
+		restLengths[i] = restLength;
+		tensions[i] = tension;
+		dampings[i] = damping;
+		sfxs[i] = sfys[i] = 0;
+		_sdead[i] = false;
+		degrees[i1]++;
+		degrees[i2]++;
+		_linked = false;
+		return id;
+	}
+
+	/**
+	 * Returns the current index of a particle, or -1 if it was removed.
+	 */
+	public int particle(int id) {
+		return id < 0 || id >= _pnext ? -1 : _pindex[id];
+	}
+
+	/**
+	 * Returns the current index of a spring, or -1 if it was removed.
+	 */
+	public int spring(int id) {
+		return id < 0 || id >= _snext ? -1 : _sindex[id];
+	}
+
+	/**
+	 * Returns the id of the particle at an index.
+	 */
+	public int particleId(int index) {
+		return _pids[index];
+	}
+
+	/**
+	 * Returns the id of the spring at an index.
+	 */
+	public int springId(int index) {
+		return _sids[index];
+	}
+
+	/**
+	 * Removes a particle, and the springs attached to it, at the start of
+	 * the next tick.
+	 */
+	public void removeParticle(int id) {
+		int i = particle(id);
+		if (i < 0 || _dead[i]) return;
+		_dead[i] = true;
+		++_pkilled;
+	}
+
+	/**
+	 * Removes a spring at the start of the next tick.
+	 */
+	public void removeSpring(int id) {
+		int i = spring(id);
+		if (i < 0 || _sdead[i]) return;
+		_sdead[i] = true;
+		++_skilled;
+	}
+
+	/**
+	 * Removes all particles and springs.
+	 */
+	public void reset() {
+		Arrays.fill(_pindex, 0, _pnext, -1);
+		Arrays.fill(_sindex, 0, _snext, -1);
+		_pcount = _scount = 0;
+		_pkilled = _skilled = 0;
+		_linked = false;
+	}
+
+	private void particleCapacity(int n) {
+		n = Math.max(n, MIN_CAPACITY);
+		xs = copy(xs, n); ys = copy(ys, n);
+		vxs = copy(vxs, n); vys = copy(vys, n);
+		_vxs = copy(_vxs, n); _vys = copy(_vys, n);
+		fxs = copy(fxs, n); fys = copy(fys, n);
+		masses = copy(masses, n);
+		fixed = fixed == null ? new boolean[n] : Arrays.copyOf(fixed, n);
+		_dead = _dead == null ? new boolean[n] : Arrays.copyOf(_dead, n);
+		degrees = copy(degrees, n);
+		_pids = copy(_pids, n);
+	}
+
+	private void springCapacity(int n) {
+		n = Math.max(n, MIN_CAPACITY);
+		sources = copy(sources, n); targets = copy(targets, n);
+		restLengths = copy(restLengths, n);
+		tensions = copy(tensions, n);
+		dampings = copy(dampings, n);
+		sfxs = copy(sfxs, n); sfys = copy(sfys, n);
+		_sdead = _sdead == null ? new boolean[n] : Arrays.copyOf(_sdead, n);
+		_sids = copy(_sids, n);
+	}
+
+	private static float[] copy(float[] a, int n) {
+		return a == null ? new float[n] : Arrays.copyOf(a, n);
+	}
+
+	private static int[] copy(int[] a, int n) {
+		return a == null ? new int[n] : Arrays.copyOf(a, n);
+	}
+
+	/**
+	 * Compacts removed particles and springs out of the columns, removing
+	 * springs attached to removed particles.
+	 */
+	private void compact() {
+		if (_pkilled == 0 && _skilled == 0) return;
+		_linked = false;
+		if (_pkilled > 0) {
+			// new index of each particle, or -1 if removed
+			if (_remap == null || _remap.length < _pcount) {
+				_remap = new int[xs.length];
+			}
+			int n = 0;
+			for (int i=0; i<_pcount; ++i) {
+				_remap[i] = _dead[i] ? -1 : n++;
+			}
+			for (int i=0; i<_pcount; ++i) {
+				int j = _remap[i];
+				_pindex[_pids[i]] = j;
+				if (j < 0 || j == i) continue;
+				xs[j] = xs[i]; ys[j] = ys[i];
+				vxs[j] = vxs[i]; vys[j] = vys[i];
+				_vxs[j] = _vxs[i]; _vys[j] = _vys[i];
+				fxs[j] = fxs[i]; fys[j] = fys[i];
+				masses[j] = masses[i];
+				fixed[j] = fixed[i];
+				_pids[j] = _pids[i];
+				_dead[j] = false;
+			}
+			// remove springs attached to removed particles
+			for (int i=0; i<_scount; ++i) {
+				sources[i] = _remap[sources[i]];
+				targets[i] = _remap[targets[i]];
+				if ((sources[i] < 0 || targets[i] < 0) && !_sdead[i]) {
+					_sdead[i] = true;
+					++_skilled;
+				}
+			}
+			_pcount = n;
+			_pkilled = 0;
+		}
+		if (_skilled > 0) {
+			int n = 0;
+			for (int i=0; i<_scount; ++i) {
+				if (_sdead[i]) {
+					_sindex[_sids[i]] = -1;
+					continue;
+				}
+				_sindex[_sids[i]] = n;
+				if (n != i) {
+					sources[n] = sources[i]; targets[n] = targets[i];
+					restLengths[n] = restLengths[i];
+					tensions[n] = tensions[i];
+					dampings[n] = dampings[i];
+					sfxs[n] = sfxs[i]; sfys[n] = sfys[i];
+					_sids[n] = _sids[i];
+					_sdead[n] = false;
+				}
+				++n;
+			}
+			_scount = n;
+			_skilled = 0;
+		}
+		Arrays.fill(degrees, 0, _pcount, 0);
+		for (int i=0; i<_scount; ++i) {
+			degrees[sources[i]]++;
+			degrees[targets[i]]++;
+		}
+	}
+
+	// -- Run Simulation ------------------------------------------------------
+
+	/**
+	 * Advance the simulation by 1 timestep.
+	 */
+	public void tick() { tick(1, 1); }
+
+	/**
+	 * Advance the simulation for the specified time interval.
+	 * @param dt the time interval to step the simulation (default 1)
+	 * @param iter the number of iterations to run
+	 */
+	public void tick(float dt, int iter)
+	{
+		_dt = dt;
+		_dt1 = dt/2;
+		_dt2 = dt*dt/2;
+		if (_bounds != null) {
+			_minX = (float)_bounds.getMinX();
+			_maxX = (float)_bounds.getMaxX();
+			_minY = (float)_bounds.getMinY();
+			_maxY = (float)_bounds.getMaxY();
+		}
+		compact();
+		link();
+
+		while (--iter >= 0) {
+			// evaluate the forces
+			run(Pass.INIT, _pcount);
+			_nbody.run(this);
+			run(Pass.SPRINGS, _scount);
+			run(Pass.SUM, _pcount);
+			run(Pass.EVAL, _pcount);
+		}
+	}
+
+	/**
+	 * Builds the lists of springs incident to each particle, if particles
+	 * or springs were added or removed.
+	 */
+	private void link() {
+		if (_linked) return;
+		if (_offsets.length < _pcount+1) _offsets = new int[xs.length+1];
+		if (_links.length < 2*_scount) _links = new int[2*sources.length];
+		Arrays.fill(_offsets, 0, _pcount+1, 0);
+		for (int i=0; i<_scount; ++i) {
+			_offsets[sources[i]+1]++;
+			_offsets[targets[i]+1]++;
+		}
+		for (int i=0; i<_pcount; ++i) _offsets[i+1] += _offsets[i];
+		for (int i=0; i<_scount; ++i) {
+			_links[_offsets[sources[i]]++] = i;
+			_links[_offsets[targets[i]]++] = ~i;
+		}
+		// restore the offsets, each shifted to the next particle's start
+		for (int i=_pcount; i>0; --i) _offsets[i] = _offsets[i-1];
+		_offsets[0] = 0;
+		_linked = true;
+	}
+
+	/**
+	 * Adds the forces of springs to their particles. Each particle gathers
+	 * the forces of its springs in spring order, so that particles can be
+	 * summed in parallel without contention, and with the same result as
+	 * adding the forces of the springs serially.
+	 */
+	private void sum(int lo, int hi) {
+		for (int i=lo; i<hi; ++i) {
+			float fx = fxs[i], fy = fys[i];
+			for (int j=_offsets[i], end=_offsets[i+1]; j<end; ++j) {
+				int k = _links[j];
+				if (k >= 0) {
+					fx += sfxs[k]; fy += sfys[k];
+				} else {
+					fx -= sfxs[~k]; fy -= sfys[~k];
+				}
+			}
+			fxs[i] = fx; fys[i] = fy;
+		}
+	}
+
+	/**
+	 * Advances particles using Verlet integration, then applies gravity
+	 * and drag forces.
+	 */
+	private void init(int lo, int hi) {
+		float dt = _dt, dt2 = _dt2, dt1 = _dt1, gx = _gx, gy = _gy, dc = _dc;
+		for (int i=lo; i<hi; ++i) {
+			if (fixed[i]) {
+				vxs[i] = vys[i] = 0;
+			} else {
+				float ax = fxs[i] / masses[i], ay = fys[i] / masses[i];
+				xs[i] += vxs[i]*dt + ax*dt2;
+				ys[i] += vys[i]*dt + ay*dt2;
+				_vxs[i] = vxs[i] + ax*dt1;
+				_vys[i] = vys[i] + ay*dt1;
+			}
+			fxs[i] = (gx * masses[i]) - (dc * vxs[i]);
+			fys[i] = (gy * masses[i]) - (dc * vys[i]);
+		}
+	}
+
+	/**
+	 * Updates velocities from the forces, and keeps particles in bounds.
+	 */
+	private void eval(int lo, int hi) {
+		float dt1 = _dt1;
+		for (int i=lo; i<hi; ++i) {
+			if (!fixed[i]) {
+				float ax = dt1 / masses[i];
+				vxs[i] = _vxs[i] + fxs[i] * ax;
+				vys[i] = _vys[i] + fys[i] * ax;
+			}
+		}
+		if (_bounds == null) return;
+		for (int i=lo; i<hi; ++i) {
+			if (xs[i] < _minX) {
+				xs[i] = _minX; vxs[i] = 0;
+			} else if (xs[i] > _maxX) {
+				xs[i] = _maxX; vxs[i] = 0;
+			}
+			if (ys[i] < _minY) {
+				ys[i] = _minY; vys[i] = 0;
+			} else if (ys[i] > _maxY) {
+				ys[i] = _maxY; vys[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Computes the forces of springs, as {@link Simulation.SpringForce}.
+	 */
+	private void springs(int lo, int hi) {
+		for (int i=lo; i<hi; ++i) {
+			int p1 = sources[i], p2 = targets[i];
+			float dx = xs[p1] - xs[p2];
+			float dy = ys[p1] - ys[p2];
+			float dn = dx*dx + dy*dy, dd;
+			if (dn > 0) {
+				float half = 0.5f*dn;
+				int b = Float.floatToIntBits(dn);
+				b = 0x5f3759df - (b>>1);
+				dn = Float.intBitsToFloat(b);
+				dn = dn*(1.5f - half*dn*dn);
+				dd = dn;
+				dn = 1/dn;
+			} else {
+				dd = 1;
+			}
+
+			float k = tensions[i] * (dn - restLengths[i]);
+			k += dampings[i] * (dx*(vxs[p1]-vxs[p2]) + dy*(vys[p1]-vys[p2])) * dd;
+			k *= dd;
+
+			// provide a random direction when needed
+			if (dn==0) {
+				dx = 0.01f * (float)(0.5-Math.random());
+				dy = 0.01f * (float)(0.5-Math.random());
+			}
+			sfxs[i] = -k * dx;
+			sfys[i] = -k * dy;
+		}
+	}
+
+	// -- Adapters ------------------------------------------------------------
+
+	/**
+	 * Runs a particle function over all particles, in parallel blocks.
+	 * Each block of particles is loaded into reused {@link Particle}
+	 * instances, linked in index order, and the function's changes to
+	 * their mass, position, velocity, force and fixed flag are stored back.
+	 * Other particle fields are not retained.
+	 */
+	public void runParticles(Simulation.ParticleFunction pf) {
+		run(Pass.PARTICLES, _pcount, pf, null);
+	}
+
+	/**
+	 * Runs a spring function over all springs, in parallel blocks. Each
+	 * block of springs is loaded into reused {@link Spring} instances,
+	 * whose endpoints are copies of the attached particles, and the
+	 * function's changes to spring parameters and forces are stored back.
+	 * Changes to the endpoint copies are discarded.
+	 */
+	public void runSprings(Simulation.SpringFunction sf) {
+		run(Pass.SPRINGS_ADAPTED, _scount, null, sf);
+	}
+
+	private void load(int i, Particle p) {
+		p.mass = masses[i];
+		p.degree = degrees[i];
+		p.x = xs[i]; p.y = ys[i];
+		p.vx = vxs[i]; p.vy = vys[i];
+		p._vx = _vxs[i]; p._vy = _vys[i];
+		p.fx = fxs[i]; p.fy = fys[i];
+		p.fixed = fixed[i];
+		p.die = false;
+		p.tag = _pids[i];
+	}
+
+	private void store(Particle p, int i) {
+		masses[i] = p.mass;
+		xs[i] = p.x; ys[i] = p.y;
+		vxs[i] = p.vx; vys[i] = p.vy;
+		_vxs[i] = p._vx; _vys[i] = p._vy;
+		fxs[i] = p.fx; fys[i] = p.fy;
+		fixed[i] = p.fixed;
+	}
+
+	// -- Parallel Passes -----------------------------------------------------
+
+	private void run(int pass, int n) {
+		run(pass, n, null, null);
+	}
+
+	/**
+	 * Runs a pass over n items, split in contiguous index ranges across
+	 * the thread pool.
+	 */
+	private void run(int pass, int n, Simulation.ParticleFunction pf,
+		Simulation.SpringFunction sf)
+	{
+		if (n == 0) return;
+		int nt = n < GRAIN ? 1 : Math.max(1, ThreadPool.getThreadCount());
+		while (_tasks.size() < nt) _tasks.add(new Pass());
+		int step = (n + nt - 1) / nt;
+		for (int t=0; t<nt; ++t) {
+			Pass task = _tasks.get(t);
+			task.pass = pass;
+			task.pf = pf;
+			task.sf = sf;
+			if (pass == Pass.SUM) {
+				// balance particles and their springs, for hubs
+				task.lo = t == 0 ? 0 : _tasks.get(t-1).hi;
+				task.hi = t == nt-1 ? n : split(n, (t+1) / (float)nt);
+			} else {
+				task.lo = Math.min(n, t*step);
+				task.hi = Math.min(n, (t+1)*step);
+			}
+		}
+		if (nt == 1) {
+			_tasks.get(0).call();
+		} else {
+			try {
+				ThreadPool.invokeAll(_tasks.subList(0, nt));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (int t=0; t<nt; ++t) {
+			_tasks.get(t).pf = null;
+			_tasks.get(t).sf = null;
+		}
+	}
+
+	/**
+	 * Returns the first particle index past a fraction of the total work
+	 * of summing spring forces, counting a unit per particle and per
+	 * incident spring.
+	 */
+	private int split(int n, float f) {
+		long w = (long) (f * (n + _offsets[n]));
+		int lo = 0, hi = n;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (mid + _offsets[mid] < w) lo = mid + 1; else hi = mid;
+		}
+		return lo;
+	}
+
+	private class Pass implements Callable<Pass> {
+		static final int INIT = 0, SPRINGS = 1, SUM = 2, EVAL = 3,
+			PARTICLES = 4, SPRINGS_ADAPTED = 5;
+
+		int pass, lo, hi;
+		Simulation.ParticleFunction pf;
+		Simulation.SpringFunction sf;
+		// reused instances for adapted functions
+		Particle[] particles;
+		Spring[] springs;
+
+		public Pass call() {
+			switch (pass) {
+			case INIT: init(lo, hi); break;
+			case SPRINGS: springs(lo, hi); break;
+			case SUM: sum(lo, hi); break;
+			case EVAL: eval(lo, hi); break;
+			case PARTICLES: adaptParticles(); break;
+			case SPRINGS_ADAPTED: adaptSprings(); break;
+			}
+			return this;
+		}
+
+		private void adaptParticles() {
+			if (particles == null) {
+				particles = new Particle[BLOCK];
+				for (int j=0; j<BLOCK; ++j) particles[j] = new Particle();
+			}
+			for (int b=lo; b<hi; b+=BLOCK) {
+				int m = Math.min(BLOCK, hi - b);
+				for (int j=0; j<m; ++j) {
+					load(b+j, particles[j]);
+					particles[j].next = j+1 < m ? particles[j+1] : null;
+				}
+				pf.run(particles[0], null);
+				for (int j=0; j<m; ++j) store(particles[j], b+j);
+			}
+		}
+
+		private void adaptSprings() {
+			if (springs == null) {
+				springs = new Spring[BLOCK];
+				for (int j=0; j<BLOCK; ++j) {
+					springs[j] = new Spring(new Particle(), new Particle());
+				}
+			}
+			for (int b=lo; b<hi; b+=BLOCK) {
+				int m = Math.min(BLOCK, hi - b);
+				for (int j=0; j<m; ++j) {
+					int i = b+j;
+					Spring s = springs[j];
+					load(sources[i], s.p1);
+					load(targets[i], s.p2);
+					s.restLength = restLengths[i];
+					s.tension = tensions[i];
+					s.damping = dampings[i];
+					s.fx = sfxs[i]; s.fy = sfys[i];
+					s.die = false;
+					s.tag = _sids[i];
+					s.next = j+1 < m ? springs[j+1] : null;
+				}
+				sf.run(springs[0], null);
+				for (int j=0; j<m; ++j) {
+					int i = b+j;
+					Spring s = springs[j];
+					restLengths[i] = s.restLength;
+					tensions[i] = s.tension;
+					dampings[i] = s.damping;
+					sfxs[i] = s.fx; sfys[i] = s.fy;
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,431 @@
+package pv.util.physics;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Multilevel placement of the particles of a simulation. The graph of
+ * particles and springs is coarsened repeatedly, by matching each particle
+ * with the neighbor joined by the stiffest spring and collapsing unmatched
+ * particles into a matched neighbor, until it is small or no longer
+ * shrinks. The coarsest graph is laid out from random positions, and each
+ * finer graph starts from the positions of the particles it was collapsed
+ * into and is refined with a few ticks. Coarse graphs are simulated with
+ * an {@link ArraySimulation} using the settings of the original
+ * simulation; the finest is the original simulation itself.
+ *
+ * <p>Coarse particles have the summed mass of their particles, and coarse
+ * springs the summed tension and damping and the mean rest length of the
+ * springs they replace. Since large structures are untangled at coarse
+ * levels, where ticks are cheap, a large graph needs far fewer ticks at
+ * full size than when simulated from random positions.</p>
+ *
+ * <p>{@link #place(Simulation)} places a simulation in the calling thread.
+ * To keep a large placement from stalling the thread running the
+ * simulation, a {@link Placement} snapshots the graph, runs the coarse
+ * levels on another thread, and is applied when done.</p>
+ */
+public class Multilevel {
+
+	/** Number of particles at which coarsening stops. */
+	private static final int COARSEST = 50;
+	/** Coarsening stops when a level keeps more than this fraction. */
+	private static final float MIN_REDUCTION = 0.9f;
+	/** Maximum ticks to lay out a level. */
+	private static final int COARSEST_TICKS = 300;
+	/** Maximum ticks to refine the finest level. */
+	private static final int FINEST_TICKS = 10;
+	/** Mean speed, relative to the rest length, at which a level is done. */
+	private static final float TOLERANCE = 0.01f;
+
+	/**
+	 * A level of the coarsened graph, with springs in compressed rows:
+	 * the springs of particle i are at offsets[i] to offsets[i+1], each
+	 * spring stored once per end.
+	 */
+	private static class Level {
+		int n;
+		float[] mass, x, y;
+		int[] offsets, adj;
+		float[] tension, length, damping;
+		// the particle of the next coarser level containing each particle
+		int[] parent;
+		float meanLength;
+
+		Level(int n) {
+			this.n = n;
+			mass = new float[n];
+			x = new float[n];
+			y = new float[n];
+			offsets = new int[n+1];
+		}
+
+		void edges(int m) {
+			adj = new int[m];
+			tension = new float[m];
+			length = new float[m];
+			damping = new float[m];
+		}
+
+		void lengths() {
+			int m = offsets[n];
+			double sum = 0;
+			for (int e=0; e<m; ++e) sum += length[e];
+			meanLength = m > 0 && sum > 0 ? (float)(sum / m) : 1;
+		}
+	}
+
+	/**
+	 * Places the particles of a simulation. Fixed particles keep their
+	 * positions; the velocities and forces of the others are cleared.
+	 * @param sim the simulation to place
+	 */
+	public void place(Simulation sim)
+	{
+		Placement p = placement(sim);
+		p.run();
+		if (p.apply()) refine(sim, p._fine, FINEST_TICKS);
+	}
+
+	/**
+	 * Returns a placement of the current particles and springs of a
+	 * simulation, which may be run on another thread while the simulation
+	 * goes on, and applied once done. The simulation is read only here
+	 * and in {@link Placement#apply()}.
+	 * @param sim the simulation to place
+	 * @return the placement, to be run
+	 */
+	public Placement placement(Simulation sim)
+	{
+		return new Placement(sim);
+	}
+
+	/**
+	 * A placement of a snapshot of a simulation.
+	 */
+	public static class Placement implements Runnable {
+		private final Particle[] _particles;
+		private final Level _fine;
+		private final float _gx, _gy, _drag, _attraction, _range;
+		private final Rectangle2D _bounds;
+		private float _cx, _cy;
+		private volatile boolean _done = false;
+		private boolean _placed = false;
+
+		Placement(Simulation sim) {
+			int n = 0;
+			for (Particle p = sim.particles(); p!=null; p=p.next) ++n;
+			_particles = new Particle[n];
+			n = 0;
+			for (Particle p = sim.particles(); p!=null; p=p.next) {
+				_particles[n++] = p;
+				_cx += p.x; _cy += p.y;
+			}
+			if (n > 0) { _cx /= n; _cy /= n; }
+			_fine = level(sim, _particles);
+			_gx = sim.gravityX();
+			_gy = sim.gravityY();
+			_drag = sim.drag();
+			_attraction = sim.attraction();
+			_range = sim.range();
+			_bounds = sim.bounds() == null ? null
+				: (Rectangle2D) sim.bounds().clone();
+		}
+
+		/**
+		 * Lays out the snapshot. Touches only the snapshot, so that it can
+		 * run on any thread.
+		 */
+		public void run() {
+			try {
+				if (_fine.n > 0) layout();
+				_placed = _fine.n > 0;
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			} finally {
+				_done = true;
+			}
+		}
+
+		/**
+		 * Indicates if the placement has run.
+		 */
+		public boolean isDone() {
+			return _done;
+		}
+
+		/**
+		 * Moves the particles of the snapshot that are still live and not
+		 * fixed to their placed positions, clearing their velocities and
+		 * forces. Call from the thread running the simulation, once done.
+		 * @return true if the particles were moved
+		 */
+		public boolean apply() {
+			if (!_done || !_placed) return false;
+			Level l = _fine;
+			for (int i=0; i<_particles.length; ++i) {
+				Particle p = _particles[i];
+				if (p.fixed || p.die) continue;
+				p.x = l.x[i];
+				p.y = l.y[i];
+				p.vx = p.vy = p._vx = p._vy = 0;
+				p.fx = p.fy = 0;
+			}
+			return true;
+		}
+
+		private void layout() {
+			// coarsen, keeping the chain of levels
+			Level fine = _fine;
+			Level[] levels = new Level[] { fine };
+			for (Level l = fine; l.n > COARSEST;) {
+				Level c = coarsen(l);
+				if (c == null) break;
+				levels = Arrays.copyOf(levels, levels.length+1);
+				levels[levels.length-1] = l = c;
+			}
+
+			// lay out the coarsest level from random positions
+			Level top = levels[levels.length-1];
+			float cx = _cx, cy = _cy;
+			float side = (float)Math.sqrt(top.n) * top.meanLength;
+			if (_bounds != null) {
+				cx = (float)_bounds.getCenterX();
+				cy = (float)_bounds.getCenterY();
+				side = (float)Math.min(side,
+					Math.min(_bounds.getWidth(), _bounds.getHeight()));
+			}
+			for (int i=0; i<top.n; ++i) {
+				top.x[i] = cx + side * (float)(Math.random() - 0.5);
+				top.y[i] = cy + side * (float)(Math.random() - 0.5);
+			}
+			if (top != fine) relax(top, ticks(fine, top));
+
+			// interpolate and refine down to the original particles
+			for (int l=levels.length-1; --l >= 0;) {
+				Level f = levels[l], c = levels[l+1];
+				float jitter = 0.5f * f.meanLength;
+				for (int i=0; i<f.n; ++i) {
+					int j = f.parent[i];
+					f.x[i] = c.x[j] + jitter * (float)(Math.random() - 0.5);
+					f.y[i] = c.y[j] + jitter * (float)(Math.random() - 0.5);
+				}
+				if (l > 0) relax(f, ticks(fine, f));
+			}
+		}
+
+		/**
+		 * Simulates a coarse level until it settles or runs out of ticks.
+		 */
+		private void relax(Level l, int ticks)
+		{
+			ArraySimulation as = new ArraySimulation(_gx, _gy, _drag, _attraction);
+			as.range(_range);
+			as.bounds(_bounds);
+			// ids are assigned in order, and so match level indices
+			for (int i=0; i<l.n; ++i) {
+				as.addParticle(l.mass[i], l.x[i], l.y[i]);
+			}
+			for (int a=0; a<l.n; ++a) {
+				for (int e=l.offsets[a]; e<l.offsets[a+1]; ++e) {
+					int b = l.adj[e];
+					if (a < b) {
+						as.addSpring(a, b, l.length[e], l.tension[e], l.damping[e]);
+					}
+				}
+			}
+			float tol = TOLERANCE * l.meanLength * l.n;
+			while (--ticks >= 0) {
+				as.tick();
+				float speed = 0;
+				for (int i=0; i<l.n; ++i) {
+					speed += Math.abs(as.vxs[i]) + Math.abs(as.vys[i]);
+				}
+				if (speed < tol) break;
+			}
+			System.arraycopy(as.xs, 0, l.x, 0, l.n);
+			System.arraycopy(as.ys, 0, l.y, 0, l.n);
+		}
+	}
+
+	/**
+	 * Returns the maximum ticks to run for a level, growing with the
+	 * square root of the coarsening, so that coarse levels, which are
+	 * cheap, settle fully while the total work stays a small multiple of
+	 * the ticks at the finest level.
+	 */
+	private static int ticks(Level fine, Level l) {
+		double t = FINEST_TICKS * Math.sqrt(fine.n / (double)l.n);
+		return (int)Math.min(COARSEST_TICKS, Math.round(t));
+	}
+
+	/**
+	 * Builds the finest level from the particles and springs of a
+	 * simulation, numbering the particles in list order.
+	 */
+	private static Level level(Simulation sim, Particle[] particles)
+	{
+		int n = particles.length;
+		// a local numbering, as the simulation uses particle indices
+		Map<Particle,Integer> index = new IdentityHashMap<Particle,Integer>(n);
+		for (int i=0; i<n; ++i) index.put(particles[i], i);
+		Level l = new Level(n);
+		for (int i=0; i<n; ++i) l.mass[i] = particles[i].mass;
+
+		// the ends of live springs, whose particles are in the snapshot
+		int m = 0;
+		for (Spring s = sim.springs(); s!=null; s=s.next) if (live(s)) ++m;
+		int[] ends = new int[2*m];
+		Spring[] springs = new Spring[m];
+		m = 0;
+		for (Spring s = sim.springs(); s!=null; s=s.next) {
+			if (!live(s)) continue;
+			Integer a = index.get(s.p1), b = index.get(s.p2);
+			if (a == null || b == null) continue;
+			springs[m] = s;
+			ends[2*m] = a;
+			ends[2*m+1] = b;
+			++m;
+		}
+
+		int[] off = l.offsets;
+		for (int j=0; j<2*m; ++j) off[ends[j]+1]++;
+		for (int i=0; i<n; ++i) off[i+1] += off[i];
+		l.edges(off[n]);
+		int[] pos = Arrays.copyOf(off, n);
+		for (int j=0; j<m; ++j) {
+			int a = ends[2*j], b = ends[2*j+1];
+			edge(l, pos[a]++, b, springs[j]);
+			edge(l, pos[b]++, a, springs[j]);
+		}
+		l.lengths();
+		return l;
+	}
+
+	private static boolean live(Spring s) {
+		return !s.die && !s.p1.die && !s.p2.die && s.p1 != s.p2;
+	}
+
+	private static void edge(Level l, int e, int b, Spring s) {
+		l.adj[e] = b;
+		l.tension[e] = s.tension;
+		l.length[e] = s.restLength;
+		l.damping[e] = s.damping;
+	}
+
+	/**
+	 * Returns the next coarser level, or null if it would not be much
+	 * smaller.
+	 */
+	private static Level coarsen(Level f)
+	{
+		int n = f.n;
+		int[] off = f.offsets, adj = f.adj;
+		int[] parent = new int[n];
+		Arrays.fill(parent, -1);
+
+		// visit particles in random order
+		int[] order = new int[n];
+		for (int i=0; i<n; ++i) order[i] = i;
+		for (int i=n; --i > 0;) {
+			int j = (int)(Math.random() * (i+1));
+			int t = order[i]; order[i] = order[j]; order[j] = t;
+		}
+
+		// match each particle with the unmatched neighbor joined by the
+		// stiffest spring
+		int k = 0;
+		for (int i=0; i<n; ++i) {
+			int u = order[i];
+			if (parent[u] >= 0) continue;
+			int best = -1;
+			float max = -Float.MAX_VALUE;
+			for (int e=off[u]; e<off[u+1]; ++e) {
+				int v = adj[e];
+				if (parent[v] < 0 && v != u && f.tension[e] > max) {
+					best = v;
+					max = f.tension[e];
+				}
+			}
+			if (best >= 0) parent[u] = parent[best] = k++;
+		}
+		// collapse the rest, whose neighbors are all matched, into the
+		// stiffest neighbor, so that the leaves of hubs coarsen quickly
+		for (int i=0; i<n; ++i) {
+			int u = order[i];
+			if (parent[u] >= 0) continue;
+			int best = -1;
+			float max = -Float.MAX_VALUE;
+			for (int e=off[u]; e<off[u+1]; ++e) {
+				if (f.tension[e] > max) {
+					best = adj[e];
+					max = f.tension[e];
+				}
+			}
+			parent[u] = best >= 0 && parent[best] >= 0 ? parent[best] : k++;
+		}
+		if (k > MIN_REDUCTION * n) return null;
+		f.parent = parent;
+
+		// the members of each coarse particle
+		Level c = new Level(k);
+		int[] moff = new int[k+1], members = new int[n];
+		for (int u=0; u<n; ++u) {
+			c.mass[parent[u]] += f.mass[u];
+			moff[parent[u]+1]++;
+		}
+		for (int a=0; a<k; ++a) moff[a+1] += moff[a];
+		int[] pos = Arrays.copyOf(moff, k);
+		for (int u=0; u<n; ++u) members[pos[parent[u]]++] = u;
+
+		// merge the springs between members of different coarse particles
+		c.edges(off[n]);
+		int[] count = new int[off[n]];
+		int[] mark = new int[k];
+		Arrays.fill(mark, -1);
+		int m = 0;
+		for (int a=0; a<k; ++a) {
+			c.offsets[a] = m;
+			for (int i=moff[a]; i<moff[a+1]; ++i) {
+				int u = members[i];
+				for (int e=off[u]; e<off[u+1]; ++e) {
+					int b = parent[adj[e]];
+					if (b == a) continue;
+					if (mark[b] != a) {
+						mark[b] = a;
+						pos[b] = m;
+						c.adj[m++] = b;
+					}
+					int j = pos[b];
+					c.tension[j] += f.tension[e];
+					c.length[j] += f.length[e];
+					c.damping[j] += f.damping[e];
+					count[j]++;
+				}
+			}
+		}
+		c.offsets[k] = m;
+		for (int j=0; j<m; ++j) c.length[j] /= count[j];
+		c.lengths();
+		return c;
+	}
+
+	/**
+	 * Simulates a placed simulation until it settles or runs out of ticks.
+	 */
+	private static void refine(Simulation sim, Level l, int ticks)
+	{
+		float tol = TOLERANCE * l.meanLength * l.n;
+		while (--ticks >= 0) {
+			sim.tick();
+			float speed = 0;
+			for (Particle p = sim.particles(); p!=null; p=p.next) {
+				speed += Math.abs(p.vx) + Math.abs(p.vy);
+			}
+			if (speed < tol) break;
+		}
+	}
+
+}
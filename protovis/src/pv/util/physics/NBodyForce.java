@@ -1,43 +1,95 @@
 package pv.util.physics;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import pv.util.ThreadPool;
+
+/**
+ * An n-body force between all particles of a simulation, computed with
+ * the Barnes-Hut approximation over a quadtree.
+ *
+ * <p>The quadtree is stored in flat arrays and rebuilt on each run without
+ * allocating. Particles are sorted by the Morton code of their position,
+ * so that each quadtree cell holds a contiguous range of particles, and
+ * the tree is built from the sorted codes. Cells holding particles of a
+ * single sub-cell are collapsed, so that every internal node has at least
+ * two children. Particles closer than a cell at the deepest level share a
+ * leaf. Sorting, building and force evaluation run in parallel on the
+ * {@link ThreadPool}, and the tree is traversed iteratively through
+ * next-node links rather than by recursion.</p>
+ */
 public class NBodyForce {
 
+	/** Depth of the quadtree, the bits per axis of the Morton codes. */
+	private static final int LEVELS = 16;
+	/** Number of particles below which work is not split across threads. */
+	private static final int GRAIN = 4096;
+	/** Bits of the Morton codes sorted per radix pass. */
+	private static final int RADIX = 8;
+	private static final int BUCKETS = 1 << RADIX;
+
 	private float _g;     // gravitational constant
 	private float _t;     // barnes-hut theta
 	private float _max, _max2;   // max effective distance
 	private float _min, _min2;   // min effective distance
 	private float _eps;   // epsilon for determining 'same' location
-	
-	private float _x1, _y1, _x2, _y2;
-	private QuadTreeNode _root;
-	
-	/** The gravitational constant to use. 
+
+	private float _x1, _y1, _size, _scale;
+
+	// particles, in list order: the particle or its index into the columns
+	// of an array simulation, and its position and mass
+	private Particle[] _ps = new Particle[0];
+	private int[] _id = new int[0];
+	private float[] _px = new float[0], _py = new float[0], _pm = new float[0];
+	private int _n;
+	// force columns of an array simulation, or null
+	private float[] _fxs, _fys;
+
+	// morton codes and particle indices, sorted by code
+	private int[] _code = new int[0], _index = new int[0];
+	private int[] _code2 = new int[0], _index2 = new int[0];
+	private int[] _counts = new int[0];
+
+	// particle positions and masses, in morton order
+	private float[] _sx = new float[0], _sy = new float[0], _sm = new float[0];
+
+	// quadtree nodes: particle range, children, the next node after the
+	// subtree in traversal order (-1 at the end), cell size and mass
+	private int[] _start = new int[0], _end = new int[0];
+	private int[] _first = new int[0], _children = new int[0];
+	private int[] _next = new int[0];
+	private float[] _cell = new float[0];
+	private float[] _mass = new float[0], _cx = new float[0], _cy = new float[0];
+	private int _nodes;
+
+	// subtrees built in parallel: root node and first node of their region
+	private int[] _roots = new int[0], _bases = new int[0];
+	private int _subtrees;
+	private final AtomicInteger _claim = new AtomicInteger();
+
+	private final List<Pass> _tasks = new ArrayList<Pass>();
+
+	/** The gravitational constant to use.
 	 *  Negative values produce a repulsive force. */
 	public float gravitation() { return _g; }
 	public void gravitation(float g) { _g = g; }
-	
-	/** The maximum distance over which forces are exerted. 
+
+	/** The maximum distance over which forces are exerted.
 	 *  Any greater distances will be ignored. */
 	public float maxDistance() { return _max; }
 	public void maxDistance(float d) { _max = d; _max2 = d*d; }
-	
+
 	/** The minumum effective distance over which forces are exerted.
 	 * 	Any lesser distances will be treated as the minimum. */
 	public float minDistance() { return _min; }
 	public void minDistance(float d) { _min = d; _min2 = d*d; }
-	
-	private Simulation.ParticleFunction forces = new Simulation.ParticleFunction() {
-		public void run(Particle start, Particle end) {
-			for (Particle p = start; p != end; p=p.next) {
-				forces(p, _root, _x1, _y1, _x2, _y2);
-			}
-		}
-	};
-	
+
 	// --------------------------------------------------------------------
-	
+
 	/**
 	 * Creates a new NBodyForce with given parameters.
 	 * @param g the gravitational constant to use.
@@ -46,7 +98,7 @@ public class NBodyForce {
 	public NBodyForce(float g) {
 		this(g, 500, 2, 0.01f, 0.9f);
 	}
-	
+
 	/**
 	 * Creates a new NBodyForce with given parameters.
 	 * @param g the gravitational constant to use.
@@ -69,9 +121,8 @@ public class NBodyForce {
 		minDistance(min);
 		_eps = eps;
 		_t = t;
-		_root = QuadTreeNode.node();
 	}
-	
+
 	/**
 	 * Applies this force to a simulation.
 	 * @param sim the Simulation to apply the force to
@@ -79,254 +130,439 @@ public class NBodyForce {
 	public void run(Simulation sim)
 	{
 		if (_g == 0) return;
-		
-		// clear the quadtree
-		clear(_root); _root = QuadTreeNode.node();
-		
-		// get the tree bounds
-		bounds(sim);
-    
-    	// populate the tree
-		for (Particle p = sim.particles(); p!=null; p=p.next) {
-    		insert(p, _root, _x1, _y1, _x2, _y2);
-    	}	
-    	
-    	// traverse tree to compute mass
-    	accumulate(_root);
-    	
-    	// calculate forces on each particle
-    	sim.run(forces);
-	}
-	
-	private void accumulate(QuadTreeNode n) {
-		float xc=0, yc=0;
-		n.mass = 0;
-		
-		// accumulate childrens' mass
-		if (n.hasChildren) {
-			QuadTreeNode c;
-			if ((c=n.c1) != null) {
-				accumulate(c);
-				n.mass += c.mass;
-				xc += c.mass * c.cx;
-				yc += c.mass * c.cy;
-			}
-			if ((c=n.c2) != null) {
-				accumulate(c);
-				n.mass += c.mass;
-				xc += c.mass * c.cx;
-				yc += c.mass * c.cy;
-			}
-			if ((c=n.c3) != null) {
-				accumulate(c);
-				n.mass += c.mass;
-				xc += c.mass * c.cx;
-				yc += c.mass * c.cy;
-			}
-			if ((c=n.c4) != null) {
-				accumulate(c);
-				n.mass += c.mass;
-				xc += c.mass * c.cx;
-				yc += c.mass * c.cy;
-			}
-		}
-		
-		// accumulate own mass
-		if (n.p != null) {
-			n.mass += n.p.mass;
-			xc += n.p.mass * n.p.x;
-			yc += n.p.mass * n.p.y;
-		}
-		n.cx = xc / n.mass;
-		n.cy = yc / n.mass;
+
+		// gather particles and the tree bounds
+		gather(sim);
+		solve();
 	}
-	
-	private void forces(Particle p, QuadTreeNode n,
-		float x1, float y1, float x2, float y2)
+
+	/**
+	 * Applies this force to an array simulation.
+	 * @param sim the ArraySimulation to apply the force to
+	 */
+	public void run(ArraySimulation sim)
 	{
-		float f = 0;
-		float dx = n.cx - p.x;
-		float dy = n.cy - p.y;
-		float dd = dx*dx + dy*dy, dn;
-		
-		// fast inverse square root
-		float half = 0.5f*dd;
-		int i = Float.floatToIntBits(dd);
-		i = 0x5f3759df - (i>>1);
-		dn = Float.intBitsToFloat(i);
-		dn = dn*(1.5f - half*dn*dn);
-		
-		boolean max = _max > 0 && dd > _max2;
-		if (dd==0) { // add direction when needed
-			dx = _eps * (float)(0.5-Math.random());
-			dy = _eps * (float)(0.5-Math.random());
-		}
-		
-		// the Barnes-Hut approximation criteria is if the ratio of the
-    	// size of the quadtree box to the distance between the point and
-    	// the box's center of mass is beneath some threshold theta.
-    	if ( (!n.hasChildren && n.p != p) || ((x2-x1)*dn < _t) )
-    	{
-        	if ( max ) return;
-        	// either only 1 particle or we meet criteria
-        	// for Barnes-Hut approximation, so calc force
-        	dn = dd<_min2 ? (1/_min) : dn;
-        	f = _g * p.mass * n.mass * (dn*dn*dn);
-        	p.fx += f*dx; p.fy += f*dy;
-    	}
-    	else if ( n.hasChildren )
-    	{
-        	// recurse for more accurate calculation
-        	float sx = (x1+x2)/2f;
-        	float sy = (y1+y2)/2f;
-        	
-        	if (n.c1 != null) forces(p, n.c1, x1, y1, sx, sy);
-			if (n.c2 != null) forces(p, n.c2, sx, y1, x2, sy);
-			if (n.c3 != null) forces(p, n.c3, x1, sy, sx, y2);
-			if (n.c4 != null) forces(p, n.c4, sx, sy, x2, y2);
-
-        	if ( max ) return;
-        	if ( n.p != null && n.p != p ) {
-        		dn = dd<_min2 ? (1/_min) : dn;
-            	f = _g * p.mass * n.p.mass * (dn*dn*dn);
-            	p.fx += f*dx; p.fy += f*dy;
-        	}
-		}
+		if (_g == 0) return;
+
+		// gather particles and the tree bounds
+		gather(sim);
+		_fxs = sim.fxs;
+		_fys = sim.fys;
+		solve();
+		_fxs = _fys = null;
 	}
-			
-	// -- Helpers ---------------------------------------------------------
-	
-	private void insert(Particle p, QuadTreeNode n,
-		float x1, float y1, float x2, float y2)
+
+	private void solve()
 	{
-		// ignore particles with NaN coordinates
-		if (Float.isNaN(p.x) || Float.isNaN(p.y)) return;
-		
-		// try to insert particle p at node n in the quadtree
-    	// by construction, each leaf will contain either 1 or 0 particles
-    	if ( n.hasChildren ) {
-        	// n contains more than 1 particle
-        	insertHelper(p,n,x1,y1,x2,y2);
-    	} else if ( n.p != null ) {
-        	// n contains 1 particle
-        	if ( isSameLocation(n.p, p) ) {
-        		// recurse
-            	insertHelper(p,n,x1,y1,x2,y2);
-        	} else {
-        		// divide
-        		Particle v = n.p; n.p = null;
-            	insertHelper(v,n,x1,y1,x2,y2);
-            	insertHelper(p,n,x1,y1,x2,y2);
-        	}
-    	} else { 
-        	// n is empty, add p as leaf
-        	n.p = p;
-    	}
+		if (_n == 0) return;
+
+		// sort particles by morton code
+		run(Pass.CODES, _n);
+		sort();
+		run(Pass.GATHER, _n);
+
+		// build the tree and compute masses
+		build();
+
+		// calculate forces on each particle
+		run(Pass.FORCES, _n);
 	}
-	
-	private void insertHelper(Particle p, QuadTreeNode n,
-		float x1, float y1, float x2, float y2)
+
+	// -- Tree Construction ---------------------------------------------------
+
+	private void gather(Simulation sim)
 	{
-		// determine split
-		float sx = (x1+x2)/2f;
-		float sy = (y1+y2)/2f;
-		int c = (p.x >= sx ? 1 : 0) + (p.y >= sy ? 2 : 0);
-		
-		// update bounds
-		if (c==1 || c==3) x1 = sx; else x2 = sx;
-		if (c>1) y1 = sy; else y2 = sy;
-		
-		// update children
-		QuadTreeNode cn;
-		if (c == 0) {
-			if (n.c1==null) n.c1 = QuadTreeNode.node();
-			cn = n.c1;
-		} else if (c == 1) {
-			if (n.c2==null) n.c2 = QuadTreeNode.node();
-			cn = n.c2;
-		} else if (c == 2) {
-			if (n.c3==null) n.c3 = QuadTreeNode.node();
-			cn = n.c3;
-		} else {
-			if (n.c4==null) n.c4 = QuadTreeNode.node();
-			cn = n.c4;
+		int n = 0;
+		for (Particle p = sim.particles(); p!=null; p=p.next) ++n;
+		capacity(n);
+
+		float x1 = Float.MAX_VALUE, y1 = Float.MAX_VALUE;
+		float x2 = -Float.MAX_VALUE, y2 = -Float.MAX_VALUE;
+		n = 0;
+		for (Particle p = sim.particles(); p!=null; p=p.next) {
+			// ignore particles with NaN coordinates
+			float x = p.x, y = p.y;
+			if (x != x || y != y) continue;
+			_ps[n] = p; _px[n] = x; _py[n] = y; _pm[n] = p.mass; ++n;
+			if (x < x1) x1 = x;
+			if (y < y1) y1 = y;
+			if (x > x2) x2 = x;
+			if (y > y2) y2 = y;
 		}
-		n.hasChildren = true;
-		insert(p,cn,x1,y1,x2,y2);
+		bounds(n, x1, y1, x2, y2);
 	}
-	
-	private void clear(QuadTreeNode n)
+
+	private void gather(ArraySimulation sim)
 	{
-		if (n.c1 != null) clear(n.c1);
-		if (n.c2 != null) clear(n.c2);
-		if (n.c3 != null) clear(n.c3);
-		if (n.c4 != null) clear(n.c4);
-		QuadTreeNode.reclaim(n);
+		int count = sim.particleCount();
+		capacity(count);
+
+		float[] xs = sim.xs, ys = sim.ys, masses = sim.masses;
+		float x1 = Float.MAX_VALUE, y1 = Float.MAX_VALUE;
+		float x2 = -Float.MAX_VALUE, y2 = -Float.MAX_VALUE;
+		int n = 0;
+		for (int i=0; i<count; ++i) {
+			// ignore particles with NaN coordinates
+			float x = xs[i], y = ys[i];
+			if (x != x || y != y) continue;
+			_id[n] = i; _px[n] = x; _py[n] = y; _pm[n] = masses[i]; ++n;
+			if (x < x1) x1 = x;
+			if (y < y1) y1 = y;
+			if (x > x2) x2 = x;
+			if (y > y2) y2 = y;
+		}
+		bounds(n, x1, y1, x2, y2);
 	}
-	
-	private void bounds(Simulation sim)
+
+	private void bounds(int n, float x1, float y1, float x2, float y2)
 	{
-		_x1 = _y1 = Float.MAX_VALUE;
-		_x2 = _y2 = Float.MIN_VALUE;
+		_n = n;
 
-		// get bounding box
-		for (Particle p = sim.particles(); p!=null; p=p.next) {
-			if (p.x < _x1) _x1 = p.x;
-			if (p.y < _y1) _y1 = p.y;
-			if (p.x > _x2) _x2 = p.x;
-			if (p.y > _y2) _y2 = p.y;
-		}
-		
 		// square the box
-		float dx = _x2 - _x1;
-		float dy = _y2 - _y1;
-		if (dx > dy) {
-			_y2 = _y1 + dx;
+		_x1 = x1; _y1 = y1;
+		_size = Math.max(x2 - x1, y2 - y1);
+		_scale = _size > 0 ? (1 << LEVELS) / _size : 0;
+	}
+
+	private void capacity(int n) {
+		if (_ps.length >= n) return;
+		int m = Math.max(n, _ps.length + (_ps.length >> 1));
+		_ps = new Particle[m]; _id = new int[m];
+		_px = new float[m]; _py = new float[m]; _pm = new float[m];
+		_code = new int[m]; _index = new int[m];
+		_code2 = new int[m]; _index2 = new int[m];
+		_sx = new float[m]; _sy = new float[m]; _sm = new float[m];
+		_roots = new int[m]; _bases = new int[m];
+		// a top node per subtree root, and two nodes per particle
+		int k = 4*m + 1;
+		_start = new int[k]; _end = new int[k];
+		_first = new int[k]; _children = new int[k];
+		_next = new int[k]; _cell = new float[k];
+		_mass = new float[k]; _cx = new float[k]; _cy = new float[k];
+	}
+
+	/**
+	 * Returns the morton code of a position: the bits of the cell
+	 * coordinates interleaved, x first, so that the two bits at each level
+	 * give the quadrant in the order top-left, top-right, bottom-left,
+	 * bottom-right.
+	 */
+	private int code(float x, float y) {
+		int qx = (int) ((x - _x1) * _scale);
+		int qy = (int) ((y - _y1) * _scale);
+		int max = (1 << LEVELS) - 1;
+		qx = qx < 0 ? 0 : qx > max ? max : qx;
+		qy = qy < 0 ? 0 : qy > max ? max : qy;
+		return spread(qx) | (spread(qy) << 1);
+	}
+
+	private static int spread(int v) {
+		v = (v | (v << 8)) & 0x00FF00FF;
+		v = (v | (v << 4)) & 0x0F0F0F0F;
+		v = (v | (v << 2)) & 0x33333333;
+		v = (v | (v << 1)) & 0x55555555;
+		return v;
+	}
+
+	/**
+	 * Sorts the morton codes with a least significant digit radix sort,
+	 * skipping digits shared by all codes.
+	 */
+	private void sort() {
+		int nt = threads(_n);
+		if (_counts.length < nt*BUCKETS) _counts = new int[nt*BUCKETS];
+		for (int shift=0; shift<32; shift+=RADIX) {
+			Arrays.fill(_counts, 0, nt*BUCKETS, 0);
+			run(Pass.COUNT, _n, shift);
+
+			// turn counts into offsets, by digit then by thread
+			int total = 0; boolean skip = false;
+			for (int d=0; d<BUCKETS && !skip; ++d) {
+				int sum = 0;
+				for (int t=0; t<nt; ++t) {
+					int c = _counts[t*BUCKETS + d];
+					_counts[t*BUCKETS + d] = total + sum;
+					sum += c;
+				}
+				skip = (sum == _n);
+				total += sum;
+			}
+			if (skip) continue;
+
+			run(Pass.SCATTER, _n, shift);
+			int[] c = _code; _code = _code2; _code2 = c;
+			int[] i = _index; _index = _index2; _index2 = i;
+		}
+	}
+
+	/**
+	 * Builds the quadtree over the sorted particles. The top of the tree
+	 * is built first, down to subtrees small enough to be built in
+	 * parallel, each in its own region of the node arrays. Children of a
+	 * node are stored contiguously, after their parent, so that masses
+	 * can be accumulated in reverse order of the nodes.
+	 */
+	private void build() {
+		int grain = Math.max(GRAIN, _n / (4*ThreadPool.getThreadCount()));
+		node(0, 0, _n, -1);
+		_nodes = 1;
+		_subtrees = 0;
+		int base = 0;
+		for (int i=0; i<_nodes; ++i) {
+			if (_end[i] - _start[i] <= 1 || _cell[i] == 0) continue;
+			if (_end[i] - _start[i] > grain) {
+				_nodes = split(i, _nodes);
+			} else {
+				_roots[_subtrees] = i;
+				_bases[_subtrees++] = base;
+				base += 2 * (_end[i] - _start[i]);
+			}
+		}
+		int top = _nodes;
+		for (int k=0; k<_subtrees; ++k) _bases[k] += top;
+
+		_claim.set(0);
+		run(Pass.SUBTREES, _subtrees);
+
+		// accumulate the top of the tree, including subtree roots
+		for (int i=top; --i >= 0;) accumulate(i);
+	}
+
+	/**
+	 * Builds a subtree in its region of the node arrays, breadth-first,
+	 * using the nodes as the queue, then accumulates its masses.
+	 */
+	private void subtree(int root, int base) {
+		int end = split(root, base);
+		for (int i=base; i<end; ++i) {
+			if (_end[i] - _start[i] > 1 && _cell[i] > 0) end = split(i, end);
+		}
+		for (int i=end; --i >= base;) accumulate(i);
+	}
+
+	/**
+	 * Sets up a node over a range of sorted particles. The cell of a node
+	 * is the deepest cell containing all of its particles; leaves holding
+	 * several particles at the deepest level have a cell size of zero.
+	 */
+	private void node(int i, int start, int end, int next) {
+		_start[i] = start;
+		_end[i] = end;
+		_next[i] = next;
+		_children[i] = 0;
+		int diff = _code[start] ^ _code[end-1];
+		if (diff == 0) {
+			// a single particle, or particles sharing the deepest cell
+			_cell[i] = end - start > 1 ? 0 : _size / (1 << LEVELS);
 		} else {
-			_x2 = _x1 + dy;
+			int level = Integer.numberOfLeadingZeros(diff) >>> 1;
+			_cell[i] = _size / (1 << level);
 		}
 	}
-	
-	private boolean isSameLocation(Particle p1, Particle p2) {
-    	return (Math.abs(p1.x - p2.x) < _eps && 
-    			Math.abs(p1.y - p2.y) < _eps);
+
+	/**
+	 * Creates the children of a node, one per occupied quadrant, starting
+	 * at the given node index.
+	 * @return the index after the last child
+	 */
+	private int split(int i, int at) {
+		int start = _start[i], end = _end[i];
+		int level = Integer.numberOfLeadingZeros(_code[start] ^ _code[end-1]) >>> 1;
+		int shift = 2 * (LEVELS - 1 - level);
+		_first[i] = at;
+		int c = at;
+		for (int s=start; s<end;) {
+			// find the end of the quadrant of particle s
+			int q = (_code[s] >>> shift) & 3;
+			int lo = s + 1, hi = end;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (((_code[mid] >>> shift) & 3) == q) lo = mid + 1; else hi = mid;
+			}
+			node(c, s, lo, c + 1);
+			++c;
+			s = lo;
+		}
+		_next[c-1] = _next[i];
+		_children[i] = c - at;
+		return c;
+	}
+
+	private void accumulate(int i) {
+		float m = 0, xc = 0, yc = 0;
+		int n = _children[i];
+		if (n == 0) {
+			for (int j=_start[i]; j<_end[i]; ++j) {
+				float pm = _sm[j];
+				m += pm;
+				xc += pm * _sx[j];
+				yc += pm * _sy[j];
+			}
+		} else {
+			for (int c=_first[i], e=c+n; c<e; ++c) {
+				float cm = _mass[c];
+				m += cm;
+				xc += cm * _cx[c];
+				yc += cm * _cy[c];
+			}
+		}
+		_mass[i] = m;
+		_cx[i] = xc / m;
+		_cy[i] = yc / m;
 	}
-	
-	// -- Helper QuadTreeNode class -------------------------------------------
-	
-	static class QuadTreeNode
+
+	// -- Forces --------------------------------------------------------------
+
+	private void forces(int k)
 	{
-		public float mass = 0;
-		public float cx = 0;
-		public float cy = 0;
-		public Particle p = null;
-		public QuadTreeNode c1 = null;
-		public QuadTreeNode c2 = null;
-		public QuadTreeNode c3 = null;
-		public QuadTreeNode c4 = null;
-		public boolean hasChildren = false;
-		
-		// -- Factory ---------------------------------------------------------
-		
-		private static ArrayList<QuadTreeNode> _nodes = new ArrayList<QuadTreeNode>();
-		
-		public static QuadTreeNode node() {
-			QuadTreeNode n; int len = _nodes.size();
-			if (len > 0) {
-				n = _nodes.remove(len-1);
+		float px = _sx[k], py = _sy[k], pm = _sm[k];
+		float fx = 0, fy = 0;
+
+		for (int i=0; i>=0;) {
+			float dx = _cx[i] - px;
+			float dy = _cy[i] - py;
+			float dd = dx*dx + dy*dy;
+			float dn = invsqrt(dd);
+			boolean max = _max > 0 && dd > _max2;
+
+			if (_children[i] == 0) {
+				// leaves exert the forces of their particles
+				for (int j=_start[i]; j<_end[i]; ++j) {
+					if (j == k) continue;
+					dx = _sx[j] - px;
+					dy = _sy[j] - py;
+					dd = dx*dx + dy*dy;
+					if (_max > 0 && dd > _max2) continue;
+					if (dd == 0) { // add direction when needed
+						dx = _eps * (float)(0.5-Math.random());
+						dy = _eps * (float)(0.5-Math.random());
+					}
+					dn = dd<_min2 ? (1/_min) : invsqrt(dd);
+					float f = _g * pm * _sm[j] * (dn*dn*dn);
+					fx += f*dx; fy += f*dy;
+				}
+				i = _next[i];
+			} else if (_cell[i]*dn < _t) {
+				// the Barnes-Hut approximation criteria is if the ratio of
+				// the size of the cell to the distance between the point
+				// and the cell's center of mass is beneath theta
+				if (!max) {
+					dn = dd<_min2 ? (1/_min) : dn;
+					float f = _g * pm * _mass[i] * (dn*dn*dn);
+					fx += f*dx; fy += f*dy;
+				}
+				i = _next[i];
 			} else {
-				n = new QuadTreeNode();
+				// descend for more accurate calculation
+				i = _first[i];
 			}
-			return n;
 		}
-		
-		public static void reclaim(QuadTreeNode  n) {
-			n.mass = n.cx = n.cy = 0;
-			n.p = null;
-			n.hasChildren = false;
-			n.c1 = n.c2 = n.c3 = n.c4 = null;
-			_nodes.add(n);
+		int j = _index[k];
+		if (_fxs == null) {
+			_ps[j].fx += fx;
+			_ps[j].fy += fy;
+		} else {
+			_fxs[_id[j]] += fx;
+			_fys[_id[j]] += fy;
+		}
+	}
+
+	/** Fast inverse square root. */
+	private static float invsqrt(float dd) {
+		float half = 0.5f*dd;
+		int i = Float.floatToIntBits(dd);
+		i = 0x5f3759df - (i>>1);
+		float dn = Float.intBitsToFloat(i);
+		return dn*(1.5f - half*dn*dn);
+	}
+
+	// -- Parallel Passes -----------------------------------------------------
+
+	private int threads(int n) {
+		return n < GRAIN ? 1 : Math.max(1, ThreadPool.getThreadCount());
+	}
+
+	private void run(int pass, int n) {
+		run(pass, n, 0);
+	}
+
+	/**
+	 * Runs a pass over n elements, split in contiguous ranges across the
+	 * thread pool. Subtree passes are split by subtrees instead, claimed
+	 * by the tasks in turn.
+	 */
+	private void run(int pass, int n, int shift) {
+		int nt = pass == Pass.SUBTREES
+			? Math.min(n, threads(_n)) : threads(n);
+		if (nt < 1) return;
+		while (_tasks.size() < nt) _tasks.add(new Pass());
+		int step = (n + nt - 1) / nt;
+		for (int t=0; t<nt; ++t) {
+			Pass task = _tasks.get(t);
+			task.pass = pass;
+			task.shift = shift;
+			task.thread = t;
+			task.lo = Math.min(n, t*step);
+			task.hi = Math.min(n, (t+1)*step);
+		}
+		if (nt == 1) {
+			_tasks.get(0).call();
+			return;
+		}
+		try {
+			ThreadPool.invokeAll(_tasks.subList(0, nt));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private class Pass implements Callable<Pass> {
+		static final int CODES = 0, COUNT = 1, SCATTER = 2, GATHER = 3,
+			SUBTREES = 4, FORCES = 5;
+
+		int pass, shift, thread, lo, hi;
+
+		public Pass call() {
+			int[] counts = _counts;
+			int off = thread * BUCKETS;
+			switch (pass) {
+			case CODES:
+				for (int i=lo; i<hi; ++i) {
+					_code[i] = code(_px[i], _py[i]);
+					_index[i] = i;
+				}
+				break;
+			case COUNT:
+				for (int i=lo; i<hi; ++i) {
+					++counts[off + ((_code[i] >>> shift) & (BUCKETS-1))];
+				}
+				break;
+			case SCATTER:
+				for (int i=lo; i<hi; ++i) {
+					int j = counts[off + ((_code[i] >>> shift) & (BUCKETS-1))]++;
+					_code2[j] = _code[i];
+					_index2[j] = _index[i];
+				}
+				break;
+			case GATHER:
+				for (int i=lo; i<hi; ++i) {
+					int j = _index[i];
+					_sx[i] = _px[j];
+					_sy[i] = _py[j];
+					_sm[i] = _pm[j];
+				}
+				break;
+			case SUBTREES:
+				for (int k; (k = _claim.getAndIncrement()) < _subtrees;) {
+					subtree(_roots[k], _bases[k]);
+				}
+				break;
+			case FORCES:
+				for (int i=lo; i<hi; ++i) forces(i);
+				break;
+			}
+			return this;
 		}
 	}
 
-}
\ No newline at end of file
+}
@@ -32,6 +32,8 @@ public class Particle {
 	public int tag;
 	/** Optional object corresponding to this particle. */
 	public Object payload = null;
+	/** The position of the particle in its simulation's particle list. */
+	int index;
 	
 	public Particle next = null;
 	
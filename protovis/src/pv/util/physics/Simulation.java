@@ -2,6 +2,7 @@ package pv.util.physics;
 
 import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Callable;
 
@@ -22,6 +23,7 @@ public class Simulation {
 	private ParticleInit _init;
 	private ParticleEval _eval;
 	private SpringForce _spring;
+	private SpringSum _sum;
 	private Rectangle2D _bounds = null;
 	
 	/** Sets a bounding box for particles in this simulation.
@@ -82,6 +84,7 @@ public class Simulation {
 	{
 		_nbody = new NBodyForce(attraction);
 		_spring = new SpringForce();
+		_sum = new SpringSum();
 		_init = new ParticleInit(gx, gy, drag);
 		_eval = new ParticleEval();
 	}
@@ -101,6 +104,7 @@ public class Simulation {
 		if (_pt == null) _pt = _ph;
 		_pt.next = p; _pt = p;
 		_pcount += 1;
+		_sum.linked = false;
 		return p;
 	}
 	
@@ -122,6 +126,7 @@ public class Simulation {
 		if (_st == null) _st = _sh;
 		_st.next = s; _st = s;
 		_scount += 1;
+		_sum.linked = false;
 		return s;
 	}
 	
@@ -155,6 +160,7 @@ public class Simulation {
 			reclaimSpring(s);
 		reclaimSpring(s);
 		_scount = 0;
+		_sum.linked = false;
 	}
 	
 	// -- Run Simulation --------------------------------------------------
@@ -185,34 +191,41 @@ public class Simulation {
 		Particle p; Spring s;
 		
 		// remove springs connected to dead particles
-		for (Spring i = _sh; (s=i.next) != null; i=i.next) {
+		for (Spring i = _sh; (s=i.next) != null;) {
 			if (s.die || s.p1.die || s.p2.die) {
 				s.p1.degree--;
 				s.p2.degree--;
 				i.next = s.next;
 				reclaimSpring(s);
 				_scount -= 1;
+				_sum.linked = false;
 				if (i.next == null) { _st = i; break; }
+			} else {
+				i = s;
 			}
 		}
 		
 		// remove dead particles
-		for (Particle i = _ph; (p=i.next)!=null; i=i.next) {
+		for (Particle i = _ph; (p=i.next)!=null;) {
 			if (p.die) {
 				i.next = p.next;
 				reclaimParticle(p);
 				_pcount -= 1;
+				_sum.linked = false;
 				if (i.next == null) { _pt = i; break; }
+			} else {
+				i = p;
 			}
 		}
 		
 		initTasks();
+		_sum.link(_ph.next, _pcount, _sh.next, _scount);
 		
 		while (--iter >= 0) {
 			// evaluate the forces
 			run(_init);
 			_nbody.run(this);
-			run(_spring); _spring.finish(_sh.next);
+			run(_spring); run(_sum);
 			run(_eval);
 		}
 	}
@@ -261,9 +274,9 @@ public class Simulation {
 		for (int i=0; i<_ptasks.size(); ++i)
 			_ptasks.get(i).function = pf;
 		try {
-			ThreadPool.getThreadPool().invokeAll(_ptasks);
+			ThreadPool.invokeAll(_ptasks);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			Thread.currentThread().interrupt();
 		}
 	}
 	
@@ -271,9 +284,9 @@ public class Simulation {
 		for (int i=0; i<_stasks.size(); ++i)
 			_stasks.get(i).function = sf;
 		try {
-			ThreadPool.getThreadPool().invokeAll(_stasks);
+			ThreadPool.invokeAll(_stasks);
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			Thread.currentThread().interrupt();
 		}
 	}
 	
@@ -406,6 +419,10 @@ public class Simulation {
 			}
 		}
 		
+		/**
+		 * Adds the forces of springs to their particles, serially. The
+		 * simulation instead uses a {@link SpringSum}, in parallel.
+		 */
 		public void finish(Spring s) {
 			for (; s!=null; s=s.next) {
 				s.p1.fx += s.fx; s.p1.fy += s.fy;
@@ -414,6 +431,64 @@ public class Simulation {
 		}
 	}
 	
+	/**
+	 * Adds the forces of springs to their particles. Spring functions only
+	 * write the forces of their springs, so that springs sharing a
+	 * particle can be evaluated in parallel. Each particle then gathers
+	 * the forces of its springs, in spring list order, so that particles
+	 * can be summed in parallel without contention and with the same
+	 * result as adding the forces serially. The lists of springs incident
+	 * to each particle are rebuilt only when particles or springs are
+	 * added or removed.
+	 */
+	public static class SpringSum implements ParticleFunction {
+		boolean linked = false;
+		// springs incident to each particle, and whether it is their p1
+		private Spring[] _springs = new Spring[0];
+		private boolean[] _heads = new boolean[0];
+		private int[] _offsets = new int[1];
+		
+		void link(Particle p, int pcount, Spring s, int scount) {
+			if (linked) return;
+			if (_offsets.length < pcount+1) _offsets = new int[pcount+1];
+			if (_springs.length < 2*scount) {
+				_springs = new Spring[2*scount];
+				_heads = new boolean[2*scount];
+			}
+			Arrays.fill(_offsets, 0, pcount+1, 0);
+			for (int i=0; p!=null; p=p.next) p.index = i++;
+			for (Spring t=s; t!=null; t=t.next) {
+				_offsets[t.p1.index+1]++;
+				_offsets[t.p2.index+1]++;
+			}
+			for (int i=0; i<pcount; ++i) _offsets[i+1] += _offsets[i];
+			for (; s!=null; s=s.next) {
+				int j = _offsets[s.p1.index]++;
+				_springs[j] = s; _heads[j] = true;
+				j = _offsets[s.p2.index]++;
+				_springs[j] = s; _heads[j] = false;
+			}
+			// restore the offsets, each shifted to the next particle's start
+			for (int i=pcount; i>0; --i) _offsets[i] = _offsets[i-1];
+			_offsets[0] = 0;
+			Arrays.fill(_springs, 2*scount, _springs.length, null);
+			linked = true;
+		}
+		
+		public void run(Particle start, Particle end) {
+			for (Particle p = start; p!=end; p=p.next) {
+				for (int j=_offsets[p.index]; j<_offsets[p.index+1]; ++j) {
+					Spring s = _springs[j];
+					if (_heads[j]) {
+						p.fx += s.fx; p.fy += s.fy;
+					} else {
+						p.fx -= s.fx; p.fy -= s.fy;
+					}
+				}
+			}
+		}
+	}
+	
 	// -- Particle Pool ---------------------------------------------------
 	
 	/** The maximum number of items stored in a simulation object pool. */
@@ -0,0 +1,66 @@
+package pv.render;
+
+import pv.scene.GroupItem;
+import pv.scene.Item;
+
+/**
+ * Tests the decimation of {@link LevelOfDetail}. Run as an application;
+ * a failure throws an AssertionError.
+ */
+public class LevelOfDetailTest {
+
+	public static void main(String[] args) {
+		testAreaNonMonotonic();
+		testAreaMonotonic();
+		System.out.println("LevelOfDetailTest passed");
+	}
+
+	/** Dense areas with x alternating between two columns. */
+	static void testAreaNonMonotonic() {
+		GroupItem group = new GroupItem();
+		group.lod = 1;
+		int n = 2000;
+		for (int i=0; i<n; ++i) {
+			Item item = new Item();
+			item.group = group;
+			item.index = i;
+			item.left = i % 2;
+			item.top = i;
+			item.height = 1;
+			group.add(item);
+		}
+		LevelOfDetail lod = new LevelOfDetail();
+		check(lod.decimates(group), "decimated");
+		int k = lod.area(group, null);
+		check(k <= 4*n, "values " + k);
+		check(lod.split == k/2, "split " + lod.split);
+		check(lod.points[0] == 0 && lod.points[1] == 0, "first top");
+		check(lod.points[lod.split] == 0 && lod.points[lod.split+1] == 1,
+			"first bottom");
+	}
+
+	/** Dense areas advancing in x are reduced per column. */
+	static void testAreaMonotonic() {
+		GroupItem group = new GroupItem();
+		group.lod = 1;
+		int n = 2000;
+		for (int i=0; i<n; ++i) {
+			Item item = new Item();
+			item.group = group;
+			item.index = i;
+			item.left = i / 100;
+			item.top = i % 7;
+			item.height = 1;
+			group.add(item);
+		}
+		LevelOfDetail lod = new LevelOfDetail();
+		int k = lod.area(group, null);
+		check(k < 4*n, "values " + k);
+		check(lod.split == k/2, "split " + lod.split);
+	}
+
+	static void check(boolean b, String message) {
+		if (!b) throw new AssertionError(message);
+	}
+
+}
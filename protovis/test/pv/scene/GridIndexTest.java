@@ -0,0 +1,183 @@
+package pv.scene;
+
+import java.util.Random;
+
+import pv.mark.constants.MarkType;
+import pv.util.Rect;
+
+/**
+ * Tests that {@link GridIndex} queries find the same rows as a scan of the
+ * items, after building and after updates. Run as an application; a
+ * failure throws an AssertionError.
+ */
+public class GridIndexTest {
+
+	private static final Random RANDOM = new Random(42);
+
+	public static void main(String[] args) {
+		testQuery();
+		testUpdateFew();
+		testUpdateMany();
+		testUnchanged();
+		testResized();
+		testGroupItems();
+		testStale();
+		System.out.println("GridIndexTest passed");
+	}
+
+	/** Queries match a scan, including items spanning many cells. */
+	static void testQuery() {
+		ColumnGroupItem g = bars(2000);
+		// a few large items, kept outside of the cells
+		for (int i=0; i<2000; i+=500) g.widths[i] = g.heights[i] = 800;
+		verify(g, new GridIndex(g), "build");
+	}
+
+	/** Moving a few items shares the grid and reports the new bounds. */
+	static void testUpdateFew() {
+		ColumnGroupItem g = bars(2000);
+		GridIndex grid = new GridIndex(g);
+		for (int i=0; i<10; ++i) move(g, RANDOM.nextInt(g.count));
+		GridIndex next = grid.update(g);
+		check(next != grid, "moved items update the index");
+		verify(g, next, "few moved");
+
+		// moving them again, and others, keeps the index consistent
+		for (int i=0; i<10; ++i) move(g, RANDOM.nextInt(g.count));
+		verify(g, next.update(g), "moved twice");
+	}
+
+	/** Moving many items rebuilds the grid. */
+	static void testUpdateMany() {
+		ColumnGroupItem g = bars(2000);
+		GridIndex grid = new GridIndex(g);
+		for (int i=0; i<g.count; i+=2) move(g, i);
+		verify(g, grid.update(g), "many moved");
+	}
+
+	/** An update with nothing moved returns the same index. */
+	static void testUnchanged() {
+		ColumnGroupItem g = bars(500);
+		GridIndex grid = new GridIndex(g);
+		check(grid.update(g) == grid, "unchanged index is kept");
+	}
+
+	/** A change in the number of items rebuilds the index. */
+	static void testResized() {
+		ColumnGroupItem g = bars(500);
+		GridIndex grid = new GridIndex(g);
+		Item item = new Item();
+		item.left = 10; item.top = 10; item.width = 5; item.height = 5;
+		g.add(item);
+		GridIndex next = grid.update(g);
+		check(next.size() == 501, "size " + next.size());
+		verify(g, next, "resized");
+	}
+
+	/** Groups of items are indexed too, skipping missing items. */
+	static void testGroupItems() {
+		GroupItem g = new GroupItem(MarkType.Bar);
+		for (int i=0; i<1000; ++i) {
+			Item item = null;
+			if (i % 7 != 0) {
+				item = new Item();
+				item.left = RANDOM.nextInt(1000);
+				item.top = RANDOM.nextInt(1000);
+				item.width = 1 + RANDOM.nextInt(20);
+				item.height = 1 + RANDOM.nextInt(20);
+			}
+			g.add(item);
+		}
+		GridIndex grid = new GridIndex(g);
+		verify(g, grid, "items");
+		for (int i=1; i<1000; i+=50) {
+			Item item = g.item(i);
+			if (item != null) item.left = RANDOM.nextInt(1000);
+		}
+		verify(g, grid.update(g), "items moved");
+	}
+
+	/** A group marked as changed brings its index up to date. */
+	static void testStale() {
+		ColumnGroupItem g = bars(1000);
+		GridIndex grid = g.grid();
+		check(g.grid() == grid, "index is reused until changed");
+		move(g, 3);
+		g.changed();
+		check(g.gridStale, "changed() marks the index stale");
+		verify(g, g.grid(), "changed");
+		check(!g.gridStale, "index is current after grid()");
+	}
+
+	// ------------------------------------------------------------------------
+
+	/** Bars at integer coordinates, so that bounds are exact floats. */
+	private static ColumnGroupItem bars(int n) {
+		ColumnGroupItem g = new ColumnGroupItem(MarkType.Bar);
+		Item item = new Item();
+		for (int i=0; i<n; ++i) {
+			item.visible = true;
+			item.left = RANDOM.nextInt(1000);
+			item.top = RANDOM.nextInt(1000);
+			item.width = 1 + RANDOM.nextInt(20);
+			item.height = 1 + RANDOM.nextInt(20);
+			g.add(item);
+		}
+		return g;
+	}
+
+	private static void move(ColumnGroupItem g, int i) {
+		g.lefts[i] = RANDOM.nextInt(1000);
+		g.tops[i] = RANDOM.nextInt(1000);
+	}
+
+	/** Compares random point and rectangle queries to a scan. */
+	private static void verify(GroupItem g, GridIndex grid, String name) {
+		GridIndex.Hits hits = new GridIndex.Hits();
+		Rect r = new Rect();
+		for (int q=0; q<500; ++q) {
+			double x = RANDOM.nextDouble() * 1100 - 50;
+			double y = RANDOM.nextDouble() * 1100 - 50;
+			if (q % 2 == 0) {
+				r.set(x, y, 0, 0);
+				grid.query(x, y, hits);
+			} else {
+				r.set(x, y, RANDOM.nextDouble() * 200, RANDOM.nextDouble() * 200);
+				grid.query(r, hits);
+			}
+			int k = 0;
+			Rect b = new Rect();
+			for (int i=0; i<count(g); ++i) {
+				if (!bounds(g, i, b)) continue;
+				if (b.getMinX() > r.getMaxX() || b.getMaxX() < r.getMinX()
+					|| b.getMinY() > r.getMaxY() || b.getMaxY() < r.getMinY())
+					continue;
+				check(k < hits.size && hits.rows[k] == i,
+					name + ": query " + q + " misses row " + i);
+				++k;
+			}
+			check(k == hits.size, name + ": query " + q + " found "
+				+ hits.size + " rows, expected " + k);
+		}
+	}
+
+	private static int count(GroupItem g) {
+		return g instanceof ColumnGroupItem ? ((ColumnGroupItem) g).count : g.size();
+	}
+
+	private static boolean bounds(GroupItem g, int i, Rect b) {
+		if (g instanceof ColumnGroupItem) {
+			((ColumnGroupItem) g).bounds(i, b);
+			return true;
+		}
+		Item item = g.item(i);
+		if (item == null) return false;
+		item.bounds(b);
+		return true;
+	}
+
+	private static void check(boolean b, String msg) {
+		if (!b) throw new AssertionError(msg);
+	}
+
+}
@@ -0,0 +1,72 @@
+package pv.util;
+
+/**
+ * Tests the decimation stages of {@link Geometry}. Run as an application;
+ * a failure throws an AssertionError.
+ */
+public class GeometryTest {
+
+	public static void main(String[] args) {
+		testM4Monotonic();
+		testM4PadNonMonotonic();
+		testM4NaN();
+		System.out.println("GeometryTest passed");
+	}
+
+	/** Monotonic x keeps the first, lowest, highest and last per column. */
+	static void testM4Monotonic() {
+		double[] p = { 0,5, 0.2,1, 0.4,9, 0.6,4, 1.5,3 };
+		double[] out = new double[2*5];
+		int n = Geometry.m4(p, 5, 1, 0, false, out);
+		check(n == 5, "points " + n);
+		double[] expected = { 0,5, 0.2,1, 0.4,9, 0.6,4, 1.5,3 };
+		for (int i=0; i<2*n; ++i) check(out[i] == expected[i], "value " + i);
+
+		double[] q = { 0,5, 0.1,5, 0.2,1, 0.3,5, 0.4,9, 0.5,5, 0.6,4 };
+		n = Geometry.m4(q, 7, 1, 0, false, out = new double[14]);
+		check(n == 4, "column reduced to " + n);
+		check(out[1] == 5 && out[3] == 1 && out[5] == 9 && out[7] == 4,
+			"first, low, high, last");
+	}
+
+	/** Padded output of alternating x needs a padded run per point. */
+	static void testM4PadNonMonotonic() {
+		int npts = 100;
+		double[] p = new double[2*npts];
+		for (int i=0; i<npts; ++i) {
+			p[2*i] = i % 2;
+			p[2*i+1] = i;
+		}
+		double[] out = new double[8*npts];
+		int n = Geometry.m4(p, npts, 1, 0, true, out);
+		check(n == 4*npts, "padded runs " + n);
+		for (int i=0; i<npts; ++i) {
+			for (int j=0; j<4; ++j) {
+				check(out[8*i+2*j] == i % 2 && out[8*i+2*j+1] == i,
+					"run " + i);
+			}
+		}
+
+		// too small a buffer is rejected rather than overrun
+		try {
+			Geometry.m4(p, npts, 1, 0, true, new double[8*2]);
+			check(false, "accepted a short buffer");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	/** NaN vertices break the line and are copied. */
+	static void testM4NaN() {
+		double[] p = { 0,1, 0.5,2, Double.NaN,Double.NaN, 0.6,3 };
+		double[] out = new double[8*4];
+		int n = Geometry.m4(p, 4, 1, 0, false, out);
+		check(n == 4, "points " + n);
+		check(Double.isNaN(out[4]) && Double.isNaN(out[5]), "break kept");
+		check(out[6] == 0.6 && out[7] == 3, "after break");
+	}
+
+	static void check(boolean b, String message) {
+		if (!b) throw new AssertionError(message);
+	}
+
+}
@@ -0,0 +1,148 @@
+package pv.util.physics;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Random;
+
+import pv.util.ThreadPool;
+
+/**
+ * Tests that {@link ArraySimulation} integrates like {@link Simulation},
+ * and keeps its ids across removals. Run as an application; a failure
+ * throws an AssertionError.
+ */
+public class ArraySimulationTest {
+
+	/** Maximum distance between matching particles of the simulations. */
+	private static final float TOLERANCE = 1e-3f;
+
+	public static void main(String[] args) {
+		int threads = ThreadPool.getThreadCount();
+		try {
+			for (int t : new int[] { 1, 3 }) {
+				// several threads split the passes, even on one processor
+				ThreadPool.setThreadCount(t);
+				testTick(600, false);
+				testTick(600, true);
+				testTick(10000, false);
+			}
+		} finally {
+			ThreadPool.setThreadCount(threads);
+		}
+		testIds();
+		testAdapter();
+		System.out.println("ArraySimulationTest passed");
+	}
+
+	/** Both simulations move the same particles to the same positions. */
+	static void testTick(int n, boolean remove) {
+		Random r = new Random(n);
+		Rectangle2D bounds = new Rectangle2D.Float(0, 0, 1000, 1000);
+		Simulation s = new Simulation();
+		ArraySimulation a = new ArraySimulation();
+		s.bounds(bounds);
+		a.bounds(bounds);
+
+		Particle[] ps = new Particle[n];
+		int[] ids = new int[n];
+		for (int i=0; i<n; ++i) {
+			float x = 1000 * r.nextFloat(), y = 1000 * r.nextFloat();
+			ps[i] = s.addParticle(1 + i % 3, x, y);
+			ids[i] = a.addParticle(1 + i % 3, x, y);
+		}
+		// a tree with a few hubs, so that spring sums are uneven
+		for (int i=1; i<n; ++i) {
+			int j = i % 4 == 0 ? r.nextInt(5) : r.nextInt(i);
+			s.addSpring(ps[i], ps[j], 30, 1e-4f, 0.1f);
+			a.addSpring(ids[i], ids[j], 30, 1e-4f, 0.1f);
+		}
+		ps[7].fixed = true;
+		a.fixed[a.particle(ids[7])] = true;
+		if (remove) {
+			for (int i=0; i<n; i+=97) {
+				if (i == 7) continue;
+				ps[i].die = true;
+				a.removeParticle(ids[i]);
+			}
+		}
+
+		for (int k=0; k<5; ++k) {
+			s.tick(1, 1);
+			a.tick(1, 1);
+		}
+
+		int live = 0;
+		for (int i=0; i<n; ++i) {
+			int j = a.particle(ids[i]);
+			if (ps[i].die) {
+				check(j == -1, "removed particle " + i + " has index " + j);
+				continue;
+			}
+			check(j >= 0, "particle " + i + " was lost");
+			check(a.particleId(j) == ids[i], "id of particle " + i);
+			float d = Math.abs(ps[i].x - a.xs[j]) + Math.abs(ps[i].y - a.ys[j]);
+			check(d <= TOLERANCE, "particle " + i + " is off by " + d
+				+ " with " + ThreadPool.getThreadCount() + " threads");
+			++live;
+		}
+		check(live == a.particleCount(), "particles " + a.particleCount());
+		check(ps[7].x == a.xs[a.particle(ids[7])], "fixed particle moved");
+
+		int springs = 0;
+		for (Spring q = s.springs(); q != null; q = q.next) ++springs;
+		check(springs == a.springCount(), "springs " + a.springCount()
+			+ ", expected " + springs);
+	}
+
+	/** Ids stay valid across compaction, and removed ids map to -1. */
+	static void testIds() {
+		ArraySimulation a = new ArraySimulation();
+		int[] ids = new int[20];
+		for (int i=0; i<ids.length; ++i) ids[i] = a.addParticle(1, i, i);
+		int s0 = a.addSpring(ids[0], ids[1], 10, 1e-4f, 0.1f);
+		int s1 = a.addSpring(ids[2], ids[3], 10, 1e-4f, 0.1f);
+		int s2 = a.addSpring(ids[4], ids[5], 10, 1e-4f, 0.1f);
+
+		a.removeParticle(ids[2]);
+		a.removeSpring(s2);
+		a.tick();
+
+		check(a.particleCount() == 19, "particles " + a.particleCount());
+		check(a.particle(ids[2]) == -1, "removed particle");
+		for (int i=0; i<ids.length; ++i) {
+			if (i == 2) continue;
+			int j = a.particle(ids[i]);
+			check(a.particleId(j) == ids[i], "id of particle " + i);
+		}
+		check(a.springCount() == 1, "springs " + a.springCount());
+		check(a.spring(s1) == -1, "spring of a removed particle");
+		check(a.spring(s2) == -1, "removed spring");
+		int j = a.spring(s0);
+		check(j >= 0 && a.springId(j) == s0, "kept spring");
+		check(a.sources[j] == a.particle(ids[0])
+			&& a.targets[j] == a.particle(ids[1]), "spring ends");
+
+		// new ids do not reuse removed ones
+		int id = a.addParticle(1, 0, 0);
+		check(id != ids[2] && a.particle(id) == a.particleCount()-1, "new id");
+	}
+
+	/** Functions written for Simulation run over the columns. */
+	static void testAdapter() {
+		ArraySimulation a = new ArraySimulation();
+		int n = 1000;
+		for (int i=0; i<n; ++i) a.addParticle(1, i, 0);
+		a.runParticles(new Simulation.ParticleFunction() {
+			public void run(Particle p, Particle end) {
+				for (; p != end; p = p.next) p.y = p.x + 1;
+			}
+		});
+		for (int i=0; i<n; ++i) {
+			check(a.ys[i] == i + 1, "adapted particle " + i);
+		}
+	}
+
+	private static void check(boolean b, String msg) {
+		if (!b) throw new AssertionError(msg);
+	}
+
+}